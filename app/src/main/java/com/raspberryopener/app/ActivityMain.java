@@ -10,10 +10,11 @@ import android.content.Intent;
 import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.pm.PackageManager;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Handler;
 import android.os.Message;
-import android.os.PowerManager;
+import android.os.SystemClock;
 import android.preference.PreferenceManager;
 import android.support.annotation.NonNull;
 import android.support.v4.app.ActivityCompat;
@@ -27,15 +28,17 @@ import android.widget.Button;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
 import java.lang.ref.WeakReference;
 import java.util.Set;
-import java.util.UUID;
 
 public class ActivityMain extends AppCompatActivity {
     private final String TAG = "ActivityMain";
 
     private static final int PERMISSIONS_REQUEST_ACCESS_COARSE_LOCATION = 1;
     private static boolean bluetoothEnabledByApplication = false;
+    private static long sRolledUpEvents = -1; // journal events in the saved rollup, only used on the serial executor
 
     // Message types sent from the BluetoothService Handler
     public static final int MESSAGE_STATE_CHANGE = 1;
@@ -44,6 +47,10 @@ public class ActivityMain extends AppCompatActivity {
     public static final int MESSAGE_DEVICE_NAME = 4;
     public static final int MESSAGE_TOAST = 5;
     public static final int MESSAGE_CONNECTED = 6;
+    public static final int MESSAGE_LOGGED_IN = 7;
+    public static final int MESSAGE_SESSION = 8;
+    public static final int MESSAGE_SESSION_EXPIRED = 9;
+    public static final int MESSAGE_LINK_QUALITY = 10;
 
     private int stateUI = BluetoothService.STATE_NONE;
     public static final int THEME_GREEN = 1;
@@ -51,7 +58,6 @@ public class ActivityMain extends AppCompatActivity {
     public static final int THEME_GRAY = 3;
     private int themeColor = THEME_GRAY;
 
-    public static final String DEVICE_NAME = "device_name";
     private String mConnectedDeviceName = null;
 
     private MainViewModel viewModel;
@@ -62,47 +68,120 @@ public class ActivityMain extends AppCompatActivity {
     private final ServiceHandler mServiceHandler = new ServiceHandler(this);
     private BluetoothService mBluetoothService;
     private BluetoothDevice pairedBluetoothDevice;
+    private GateRegistry mGates;
+    private GateProfile mConnectingGate; // gate of the last connect, its account is used to log in
+    private LastGateStore mLastGate;
+    private DiscoveryScheduler mDiscovery;
+    private boolean mBondVerified;       // pairedBluetoothDevice was checked against the bonded devices
+    private long mSelectedAddress;       // gate edited in the settings when the activity last looked
+
+    private static final int MSG_BONDED_GATE = 100; // sent to ReceiverHandler by verifyBondedGate()
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        long createdNanos = System.nanoTime();
+        // Whether to trace is a preference, so their first load is traced once it is known
+        Tracer tracer = Tracer.getInstance();
+        tracer.setEnabled(PreferenceManager.getDefaultSharedPreferences(this).getBoolean(Tracer.PREF_TRACE_ENABLED, false));
+        tracer.begin("ActivityMain.onCreate", createdNanos);
+        tracer.begin("SharedPreferences load", createdNanos);
+        tracer.end();
+
+        tracer.begin("super.onCreate");
         super.onCreate(savedInstanceState);
+        tracer.end();
+        // Ended by the first connect attempt, nothing is recorded when the activity does not get that far
+        ConnectionPhases.getInstance().start(ConnectionPhases.PHASE_COLD_START);
 
+        tracer.begin("setContentView");
         setContentView(R.layout.activity_main);
+        tracer.end();
 
+        tracer.begin("ViewModel");
         viewModel = ViewModelProviders.of(this).get(MainViewModel.class);
+        tracer.end();
+
+        // Latencies of previous sessions, a new session adds to them
+        tracer.begin("ConnectionPhases load");
+        try {
+            ConnectionPhases.getInstance().load(new File(getFilesDir(), ConnectionPhases.FILE_NAME));
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot load connection phases", e);
+        }
+        tracer.end();
+
+        tracer.begin("GateRegistry load");
+        mGates = GatePreferences.getRegistry(this);
+        mSelectedAddress = GatePreferences.getSelectedAddress(PreferenceManager.getDefaultSharedPreferences(this));
+        tracer.end();
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mDiscovery = createDiscoveryScheduler();
 
+        tracer.begin("Permission check");
         if(Build.VERSION.SDK_INT >= Build.VERSION_CODES.M)
             if (ContextCompat.checkSelfPermission(this, Manifest.permission.ACCESS_COARSE_LOCATION) != PackageManager.PERMISSION_GRANTED)
                 ActivityCompat.requestPermissions(this, new String[]{Manifest.permission.ACCESS_COARSE_LOCATION}, PERMISSIONS_REQUEST_ACCESS_COARSE_LOCATION);
-
-        boolean pairedDeviceNotExists = mBluetoothAdapter != null && mBluetoothAdapter.isEnabled() && !findPairedDevice();
+        tracer.end();
+
+        tracer.begin("Paired gate");
+        // The gate of the last connection is connected to right away, whether it is still bonded is
+        // checked in the background. Only without such a gate the bonded devices are scanned here.
+        mLastGate = new LastGateStore(new File(getFilesDir(), LastGateStore.FILE_NAME));
+        boolean pairedDeviceNotExists = false;
+        if (mBluetoothAdapter != null) {
+            pairedBluetoothDevice = getLastGateDevice();
+            if (pairedBluetoothDevice != null) {
+                if (mBluetoothAdapter.isEnabled())
+                    verifyBondedGate();
+            } else if (mBluetoothAdapter.isEnabled()) {
+                pairedDeviceNotExists = !findPairedDevice();
+            }
+        }
+        tracer.end();
 
         // Register receiver to obtain nearby bluetooth devices during searching for them
+        tracer.begin("registerReceiver");
         deviceReceiver = new DeviceReceiver(mReceiverHandler, pairedDeviceNotExists);
         IntentFilter intentFilter = new IntentFilter();
 
-        if(pairedBluetoothDevice == null) {
-            Log.i(TAG, "pairedBluetoothDevice == null");
-            intentFilter.addAction(BluetoothDevice.ACTION_FOUND);
-        }
+        // Also with a known gate, it may turn out not to be bonded anymore and has to be searched for
+        intentFilter.addAction(BluetoothDevice.ACTION_FOUND);
         intentFilter.addAction(BluetoothAdapter.ACTION_STATE_CHANGED);
+        intentFilter.addAction(BluetoothAdapter.ACTION_DISCOVERY_FINISHED);
         if(Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN_MR2) {
             intentFilter.addAction(BluetoothDevice.ACTION_PAIRING_REQUEST);
             intentFilter.addAction(BluetoothDevice.ACTION_BOND_STATE_CHANGED);
         }
         registerReceiver(deviceReceiver, intentFilter);
+        tracer.end();
 
+        tracer.begin("BluetoothService");
         mBluetoothService = viewModel.getBluetoothService();
         if(mBluetoothService == null) {
-            mBluetoothService = new BluetoothService(mServiceHandler);
+            // A session of the manager, sessions with more gates would run next to it on the same threads
+            mBluetoothService = viewModel.getSessionManager().create(new BluetoothService.HandlerListener(mServiceHandler));
+            // Come back by itself when the gate goes out of range or restarts
+            mBluetoothService.setReconnectBackoff(new ReconnectBackoff());
+            openJournal(mBluetoothService);
             viewModel.setBluetoothService(mBluetoothService);
         }else{
             mBluetoothService.setServiceHandler(mServiceHandler);
         }
+        tracer.end();
 
+        // Connection is torn down only after it has not been used for the idle window
+        viewModel.getConnectionLease().setOnEvictListener(new Runnable() {
+            @Override
+            public void run() {
+                disconnect();
+            }
+        });
+
+        tracer.begin("setupButtons");
         setupButtons();
+        tracer.end();
+        tracer.end();
     }
 
     @Override
@@ -111,19 +190,45 @@ public class ActivityMain extends AppCompatActivity {
 
         // Unregister receiver to not care about searched nearby bluetooth devices after application end
         unregisterReceiver(deviceReceiver);
+        mDiscovery.stop();
+
+        mServiceHandler.removeCallbacks(mEvictConnection);
+        ConnectionLease connectionLease = viewModel.getConnectionLease();
+        if (isFinishing())
+            connectionLease.evict();
+        connectionLease.setOnEvictListener(null);
     }
 
     @Override
     protected void onResume() {
         super.onResume();
+        Tracer tracer = Tracer.getInstance();
+        tracer.begin("ActivityMain.onResume");
+
+        ConnectionLease connectionLease = viewModel.getConnectionLease();
+        connectionLease.setIdleMillis(getConnectionIdleMillis());
+        viewModel.setSessionResume(PreferenceManager.getDefaultSharedPreferences(this).getBoolean("session_resume", false));
+        mBluetoothService.setHeartbeat(getHeartbeatIntervalMillis(), Heartbeat.DEFAULT_MISS_THRESHOLD);
+        connectionLease.acquire();
+        mServiceHandler.removeCallbacks(mEvictConnection);
 
+        // When we come back within the idle window the connection is still up and nothing has to be done
         int bluetoothState = mBluetoothService.getState();
 
+        // A gate chosen in the settings meanwhile is connected to instead
+        if (switchToSelectedGate())
+            bluetoothState = mBluetoothService.getState();
+
         if(bluetoothState != stateUI) {
             setUI(mBluetoothService.getState());
         }
 
-        if(bluetoothState == BluetoothService.STATE_NONE || bluetoothState == BluetoothService.STATE_BLUETOOTH_OFF) {
+        // A connection which failed or was lost while the activity was paused is not left to the user, the
+        // automatic reconnects may have given up meanwhile
+        if(bluetoothState == BluetoothService.STATE_NONE || bluetoothState == BluetoothService.STATE_BLUETOOTH_OFF
+                || bluetoothState == BluetoothService.STATE_CONNECTION_FAILED
+                || bluetoothState == BluetoothService.STATE_CONNECTION_LOST) {
+            mBluetoothService.getPhases().start(ConnectionPhases.PHASE_FIRST_GATE_STATE);
             if (mBluetoothAdapter != null) {
                 // Device support Bluetooth
                 if (!mBluetoothAdapter.isEnabled()) {
@@ -131,8 +236,8 @@ public class ActivityMain extends AppCompatActivity {
                 } else {
                     // There is need to start discovery now, because we do not wait for broadcast receiver to start discovery when bluetooth will turned on
                     if (pairedBluetoothDevice == null) {
+                        setAppState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH);
                         startFindBluetoothDevice();
-                        mBluetoothService.setState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH);
                     } else {
                         initConnectToDevice(pairedBluetoothDevice);
                     }
@@ -140,57 +245,298 @@ public class ActivityMain extends AppCompatActivity {
                 }
             } else {
                 // Device doesn't support Bluetooth
-                mBluetoothService.setState(BluetoothService.STATE_BLUETOOTH_NOT_SUPPORTED);
+                setAppState(BluetoothService.STATE_BLUETOOTH_NOT_SUPPORTED);
             }
         }
+        tracer.end();
     }
 
     @Override
     protected void onPause() {
         super.onPause();
 
-        PowerManager pm = (PowerManager) getSystemService(Context.POWER_SERVICE);
-        boolean isScreenOn = true;
-        if(pm != null) {
-            if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP)
-                isScreenOn = pm.isScreenOn();
-            else
-                isScreenOn = pm.isInteractive();
+        // Keep the connection for the idle window instead of tearing it down right away, a configuration
+        // change or a short switch to another app acquires the lease again before the window passes
+        ConnectionLease connectionLease = viewModel.getConnectionLease();
+        connectionLease.release();
+
+        // Time spent outside of the app would distort the phases
+        mBluetoothService.getPhases().cancel(ConnectionPhases.PHASE_FIRST_GATE_STATE);
+        ConnectionPhases.getInstance().cancel(ConnectionPhases.PHASE_COLD_START);
+        // The recreated activity pauses again, a configuration change alone saves nothing
+        if (!isChangingConfigurations()) {
+            saveConnectionPhases(this);
+            saveJournal(this, mBluetoothService.getJournal());
+            saveMetrics(this, mBluetoothService.getMetrics());
+            GatePreferences.save(this);
         }
 
-        if(!isChangingConfigurations() || !isScreenOn){
+        long millisUntilEviction = connectionLease.getMillisUntilEviction();
+        if (millisUntilEviction == 0)
+            connectionLease.evictIfIdle();
+        else if (millisUntilEviction > 0)
+            mServiceHandler.postDelayed(mEvictConnection, millisUntilEviction);
+    }
 
-            if(mBluetoothAdapter != null && mBluetoothAdapter.isDiscovering())
-                mBluetoothAdapter.cancelDiscovery();
+    private final Runnable mEvictConnection = new Runnable() {
+        @Override
+        public void run() {
+            ConnectionLease connectionLease = viewModel.getConnectionLease();
+            if (!connectionLease.evictIfIdle() && connectionLease.getMillisUntilEviction() > 0)
+                mServiceHandler.postDelayed(this, connectionLease.getMillisUntilEviction());
+        }
+    };
 
-            mBluetoothService.stop();
+    private void disconnect() {
+        Log.i(TAG, "disconnect");
+        mDiscovery.stop();
+        if(mBluetoothAdapter != null && mBluetoothAdapter.isDiscovering())
+            mBluetoothAdapter.cancelDiscovery();
 
-            turnOffBluetooth();
-        }
+        mBluetoothService.stop();
+        viewModel.setLogin(false);
+
+        turnOffBluetooth();
     }
 
-    private boolean findPairedDevice(){
-        SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(this);
-        if (sharedPref.contains("device_address")) {
-            String requiredHardwareAddress = sharedPref.getString("device_address", "").toUpperCase();
+    static void saveConnectionPhases(Context context) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                ConnectionPhases phases = ConnectionPhases.getInstance();
+                if (!phases.isDirty())
+                    return;
+                try {
+                    phases.save(new File(appContext.getFilesDir(), ConnectionPhases.FILE_NAME));
+                } catch (IOException e) {
+                    Log.e("ActivityMain", "Cannot save connection phases", e);
+                }
+            }
+        });
+    }
 
-            BluetoothAdapter mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
+    /**
+     * Writes the metrics of the service to the app directory, which can be pulled over adb.
+     */
+    static void saveMetrics(Context context, final MetricsRegistry metrics) {
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (!metrics.isDirty())
+                    return;
+                // Looking up the external directory touches the storage
+                File directory = appContext.getExternalFilesDir(null);
+                try {
+                    metrics.writeText(new File(directory != null ? directory : appContext.getFilesDir(),
+                            MetricsRegistry.FILE_NAME));
+                } catch (IOException e) {
+                    Log.e("ActivityMain", "Cannot save metrics", e);
+                }
+            }
+        });
+    }
 
-            if (pairedDevices.size() > 0)
-                Log.i(TAG, "pairedDevices.size() > 0");
+    // Opening maps the file and looks for the newest record, keep it off the main thread
+    private void openJournal(final BluetoothService service) {
+        final File file = new File(getFilesDir(), GateJournal.FILE_NAME);
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    service.setJournal(GateJournal.open(file, GateJournal.DEFAULT_CAPACITY));
+                } catch (IOException e) {
+                    Log.e("ActivityMain", "Cannot open gate journal", e);
+                }
+            }
+        });
+    }
 
-            while (pairedDevices.iterator().hasNext()) {
-                BluetoothDevice nextDevice = pairedDevices.iterator().next();
-                if (nextDevice.getAddress().toUpperCase().equals(requiredHardwareAddress)) {
-                    pairedBluetoothDevice = nextDevice;
-                    return true;
+    /**
+     * Writes the journal to the storage and adds the new records to the daily totals.
+     */
+    static void saveJournal(Context context, final GateJournal journal) {
+        if (journal == null)
+            return;
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                long events = journal.getEventCount();
+                if (events == sRolledUpEvents)
+                    return;
+                File file = new File(appContext.getFilesDir(), JournalRollup.FILE_NAME);
+                journal.flush();
+                JournalRollup rollup = new JournalRollup();
+                try {
+                    rollup.load(file);
+                } catch (IOException e) {
+                    Log.e("ActivityMain", "Cannot load journal rollup, counting again", e);
                 }
+                long counted = rollup.update(journal);
+                try {
+                    rollup.save(file);
+                    sRolledUpEvents = events;
+                } catch (IOException e) {
+                    Log.e("ActivityMain", "Cannot save journal rollup", e);
+                }
+                JournalRollup.Day today = rollup.getDay(rollup.dayOf(System.currentTimeMillis()));
+                Log.i("ActivityMain", "Journal: " + counted + " new events, " + (today == null ? 0 : today.getOpens())
+                        + " openings today");
             }
+        });
+    }
+
+    private long getConnectionIdleMillis() {
+        String idleSeconds = PreferenceManager.getDefaultSharedPreferences(this).getString("connection_idle_timeout", "");
+        try {
+            return Math.max(0, Long.parseLong(idleSeconds.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return MainViewModel.DEFAULT_CONNECTION_IDLE_MILLIS;
+        }
+    }
+
+    private long getHeartbeatIntervalMillis() {
+        String intervalSeconds = PreferenceManager.getDefaultSharedPreferences(this).getString("heartbeat_interval", "");
+        try {
+            return Math.max(0, Long.parseLong(intervalSeconds.trim())) * 1000;
+        } catch (NumberFormatException e) {
+            return 0; // off unless the gate is known to answer pings
+        }
+    }
+
+    private boolean findPairedDevice(){
+        BluetoothDevice device = findBondedGate(mBluetoothAdapter, mGates);
+        if (device != null) {
+            pairedBluetoothDevice = device;
+            mBondVerified = true;
+            return true;
         }
         return false;
     }
 
+    /**
+     * @return bonded device which is a known gate, the one connected to last if it is still bonded
+     */
+    private static BluetoothDevice findBondedGate(BluetoothAdapter adapter, GateRegistry gates, long lastAddress) {
+        if (gates.size() == 0)
+            return null;
+        Set<BluetoothDevice> pairedDevices = adapter.getBondedDevices();
+        if (pairedDevices == null)
+            return null;
+        BluetoothDevice found = null;
+        for (BluetoothDevice device : pairedDevices) {
+            long address = Helpers.parseAddress(device.getAddress());
+            if (address == lastAddress && address != Helpers.NO_ADDRESS)
+                return device;
+            if (found == null && gates.contains(address))
+                found = device;
+        }
+        return found;
+    }
+
+    private static BluetoothDevice findBondedGate(BluetoothAdapter adapter, GateRegistry gates) {
+        return findBondedGate(adapter, gates, Helpers.NO_ADDRESS);
+    }
+
+    /**
+     * @return device of the gate connected to last, without asking for the bonded devices;
+     * null if there is none or it is not a known gate anymore
+     */
+    private BluetoothDevice getLastGateDevice() {
+        long address;
+        try {
+            address = mLastGate.getAddress();
+        } catch (IOException e) {
+            Log.e(TAG, "Cannot load last gate", e);
+            return null;
+        }
+        if (address == Helpers.NO_ADDRESS || !mGates.contains(address))
+            return null;
+        mBondVerified = false;
+        return mBluetoothAdapter.getRemoteDevice(Helpers.formatAddress(address));
+    }
+
+    // Scans the bonded devices in the background, the result goes to ReceiverHandler as MSG_BONDED_GATE
+    private void verifyBondedGate() {
+        final BluetoothAdapter adapter = mBluetoothAdapter;
+        final GateRegistry gates = mGates;
+        final long lastAddress = Helpers.parseAddress(pairedBluetoothDevice.getAddress());
+        final Handler handler = mReceiverHandler;
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                BluetoothDevice device = findBondedGate(adapter, gates, lastAddress);
+                handler.obtainMessage(MSG_BONDED_GATE, device).sendToTarget();
+            }
+        });
+    }
+
+    private void onBondedGateVerified(BluetoothDevice bondedGate) {
+        mBondVerified = true;
+        if (pairedBluetoothDevice != null && bondedGate != null
+                && pairedBluetoothDevice.getAddress().equalsIgnoreCase(bondedGate.getAddress()))
+            return;
+        Log.i(TAG, "Last gate is not bonded anymore, " + (bondedGate == null ? "searching" : "switching to another gate"));
+        setLastGate(bondedGate == null ? Helpers.NO_ADDRESS : Helpers.parseAddress(bondedGate.getAddress()));
+        pairedBluetoothDevice = bondedGate;
+        deviceReceiver.pairedDeviceNotExists = bondedGate == null;
+        // A connection which is already up stays, otherwise the attempt to the old gate is given up
+        if (mBluetoothService.getStateMachine().is(ConnectionStateMachine.SESSION))
+            return;
+        mBluetoothService.stop();
+        if (bondedGate != null) {
+            initConnectToDevice(bondedGate);
+        } else {
+            setAppState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH);
+            startFindBluetoothDevice();
+        }
+    }
+
+    /**
+     * Makes the gate selected in the settings since the activity last looked the one to connect to,
+     * the connection to another gate is closed.
+     * @return true if the gate changed
+     */
+    private boolean switchToSelectedGate() {
+        long selected = GatePreferences.getSelectedAddress(PreferenceManager.getDefaultSharedPreferences(this));
+        if (selected == mSelectedAddress)
+            return false;
+        mSelectedAddress = selected;
+        if (mBluetoothAdapter == null || !mGates.contains(selected))
+            return false;
+        if (pairedBluetoothDevice != null && Helpers.parseAddress(pairedBluetoothDevice.getAddress()) == selected)
+            return false;
+        Log.i(TAG, "Switching to the gate selected in the settings");
+        setLastGate(selected);
+        pairedBluetoothDevice = mBluetoothAdapter.getRemoteDevice(Helpers.formatAddress(selected));
+        deviceReceiver.pairedDeviceNotExists = false;
+        mBondVerified = false;
+        mBluetoothService.stop();
+        // Whether it is bonded is checked in the background, like for the last gate on a cold start
+        if (mBluetoothAdapter.isEnabled())
+            verifyBondedGate();
+        return true;
+    }
+
+    // Remembers the gate for the next cold start, written only when it changes
+    private void setLastGate(long address) {
+        if (!mLastGate.set(address))
+            return;
+        final LastGateStore lastGate = mLastGate;
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    lastGate.save();
+                } catch (IOException e) {
+                    Log.e("ActivityMain", "Cannot save last gate", e);
+                }
+            }
+        });
+    }
+
     private void setupButtons(){
         Button settingsButton = findViewById(R.id.buttonSettings);
         settingsButton.setOnClickListener(new View.OnClickListener() {
@@ -254,29 +600,80 @@ public class ActivityMain extends AppCompatActivity {
         // We do not ask user to turn on bluetooth, we will turn it on without user interaction (without dialog)
         mBluetoothAdapter.enable();
         bluetoothEnabledByApplication = true;
-        mBluetoothService.setState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH);
+        setAppState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH);
     }
 
     private void turnOffBluetooth(){
         if (mBluetoothAdapter != null && bluetoothEnabledByApplication && mBluetoothAdapter.isEnabled()) {
             // Turn off bluetooth
             mBluetoothAdapter.disable();
-            mBluetoothService.setState(BluetoothService.STATE_BLUETOOTH_OFF);
+            setAppState(BluetoothService.STATE_BLUETOOTH_OFF);
         }
     }
 
+    /**
+     * Moves the service to a state of the app, which the transition table refuses from a session.
+     * A connection or connection attempt which is still going on is stopped first, the adapter
+     * going off or a new search ends it anyway.
+     */
+    private void setAppState(int state) {
+        if (!mBluetoothService.getStateMachine().is(ConnectionStateMachine.IDLE))
+            mBluetoothService.stop();
+        if (!mBluetoothService.setState(state))
+            Log.w(TAG, "Cannot move to state " + state + " from " + mBluetoothService.getState());
+    }
+
     private void startFindBluetoothDevice(){
-        mBluetoothAdapter.startDiscovery();
+        if (mDiscovery.isSearching())
+            return;
+        ConnectionPhases.getInstance().start(ConnectionPhases.PHASE_DISCOVERY);
+        deviceReceiver.setGates(mGates);
+        mDiscovery.start();
     }
 
     private void stopFindBluetoothDevice(){
-        mBluetoothAdapter.cancelDiscovery();
+        ConnectionPhases.getInstance().cancel(ConnectionPhases.PHASE_DISCOVERY);
+        mDiscovery.stop();
+    }
+
+    // Scans in bounded windows on the main thread, the receiver reports found gates and finished inquiries
+    private DiscoveryScheduler createDiscoveryScheduler() {
+        final BluetoothAdapter adapter = mBluetoothAdapter;
+        final Handler handler = mReceiverHandler;
+        return new DiscoveryScheduler(new DiscoveryScheduler.Radio() {
+            @Override
+            public boolean startDiscovery() {
+                return adapter != null && adapter.startDiscovery();
+            }
+
+            @Override
+            public void cancelDiscovery() {
+                if (adapter != null)
+                    adapter.cancelDiscovery();
+            }
+        }, new DiscoveryScheduler.Clock() {
+            @Override
+            public long elapsedMillis() {
+                return SystemClock.elapsedRealtime();
+            }
+
+            @Override
+            public void postDelayed(Runnable runnable, long delayMillis) {
+                handler.postDelayed(runnable, delayMillis);
+            }
+
+            @Override
+            public void removeCallbacks(Runnable runnable) {
+                handler.removeCallbacks(runnable);
+            }
+        });
     }
 
     private void pairDevice(BluetoothDevice device) {
         if(Build.VERSION.SDK_INT > Build.VERSION_CODES.JELLY_BEAN_MR2) {
             try {
                 Log.d(TAG, "Start Pairing... with: " + device.getName());
+                ConnectionPhases.getInstance().start(ConnectionPhases.PHASE_BONDING);
                 device.createBond();
                 Log.d(TAG, "Pairing finished.");
             } catch (Exception e) {
@@ -288,19 +685,24 @@ public class ActivityMain extends AppCompatActivity {
     }
 
     private void initConnectToDevice(@NonNull BluetoothDevice device){
-        if(PreferenceManager.getDefaultSharedPreferences(this).contains("uuid_service")){
+        GateProfile gate = mGates.find(device.getAddress());
+        if(gate != null){
             Log.i(TAG, "initConnectToDevice");
-            String uuidStr = PreferenceManager.getDefaultSharedPreferences(this).getString("uuid_service", "").toUpperCase();
-            if(uuidStr.length() == 36) {
-                UUID uuid = Helpers.makeUuid(uuidStr);
-                mBluetoothService.connect(device, uuid);
-            }else{
-                Log.i(TAG, "initConnectToDevice wrong UUID");
-            }
+            ConnectionPhases.getInstance().end(ConnectionPhases.PHASE_COLD_START);
+            mConnectingGate = gate;
+            // Snapshot of the credentials of the gate, the service logs in with it once connected
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(this);
+            viewModel.setCredentials(GatePreferences.getUsername(preferences, gate),
+                    GatePreferences.getPassword(preferences, gate));
+            // The registry remembers which socket strategy worked for the gate last time
+            mBluetoothService.connect(device, gate.getServiceUuid(), mGates);
+        }else{
+            Log.i(TAG, "initConnectToDevice unknown gate " + device.getAddress());
         }
     }
 
     private void setUI(int bluetoothServiceState){
+        Tracer.getInstance().begin("setUI");
         stateUI = bluetoothServiceState;
         View parentLayout = findViewById(R.id.parent_layout);
         TextView connectionTextView = parentLayout.findViewById(R.id.textConnection);
@@ -451,6 +853,7 @@ public class ActivityMain extends AppCompatActivity {
                 this.setTaskDescription(taskDescription);
             }
         }
+        Tracer.getInstance().end();
     }
 
     // The Handler that gets information back from the BluetoothService
@@ -472,69 +875,34 @@ public class ActivityMain extends AppCompatActivity {
                         activity.setUI(msg.arg1);
                         break;
                     case MESSAGE_WRITE:
-                        String writeStr = (String) msg.obj;
+                        String writeStr = new String((byte[]) msg.obj, 0, msg.arg1);
                         Log.i(TAG, "MESSAGE_WRITE: " + writeStr);
                         break;
                     case MESSAGE_READ:
                         String readStr = (String) msg.obj;
+                        // Known messages are already turned into states by BluetoothService
                         Log.i(TAG, "MESSAGE_READ: " + readStr);
-                        if (readStr.startsWith("loginStatus=")) {
-                            String dataGateState = readStr.substring(12);
-                            if(dataGateState.equals("1&gateIsOpened")){
-                                Log.i(TAG, "MESSAGE_READ - Password is correct, gateIsOpened");
-                                activity.mBluetoothService.setState(BluetoothService.STATE_GATE_OPENED);
-                                activity.viewModel.setLogin(true);
-                            }else if(dataGateState.equals("1&gateIsClosed")){
-                                Log.i(TAG, "MESSAGE_READ - Password is correct, gateIsClosed");
-                                activity.mBluetoothService.setState(BluetoothService.STATE_GATE_CLOSED);
-                                activity.viewModel.setLogin(true);
-                            }else{
-                                Integer loginStatus = Integer.parseInt(dataGateState);
-                                if (loginStatus == 1) {
-                                    Log.i(TAG, "MESSAGE_READ - Password is correct");
-                                    activity.mBluetoothService.setState(BluetoothService.STATE_LOGGED_IN);
-                                    activity.viewModel.setLogin(true);
-                                } else if (loginStatus == -1) {
-                                    Log.i(TAG, "MESSAGE_READ - Password is wrong");
-                                    activity.mBluetoothService.setState(BluetoothService.STATE_WRONG_PASSWORD);
-                                } else if (loginStatus == -2) {
-                                    Log.i(TAG, "MESSAGE_READ - Username do not exists");
-                                    activity.mBluetoothService.setState(BluetoothService.STATE_WRONG_USERNAME);
-                                }
-                            }
-                        }else if(readStr.equals("wrongUserData")){
-                            Log.i(TAG, "MESSAGE_READ - Username and/or password not accepted");
-                            activity.mBluetoothService.setState(BluetoothService.STATE_WRONG_DATA);
-                        }else if(readStr.equals("openingGate")){
-                            Log.i(TAG, "MESSAGE_READ - openingGate");
-                            activity.mBluetoothService.setState(BluetoothService.STATE_GATE_OPENING);
-                        }else if(readStr.equals("closingGate")){
-                            Log.i(TAG, "MESSAGE_READ - closingGate");
-                            activity.mBluetoothService.setState(BluetoothService.STATE_GATE_CLOSING);
-                        }else if(readStr.equals("gateIsOpened")){
-                            Log.i(TAG, "MESSAGE_READ - gateIsOpened");
-                            activity.mBluetoothService.setState(BluetoothService.STATE_GATE_OPENED);
-                        }else if(readStr.equals("gateIsClosed")){
-                            Log.i(TAG, "MESSAGE_READ - gateIsClosed");
-                            activity.mBluetoothService.setState(BluetoothService.STATE_GATE_CLOSED);
-                        }else if(readStr.equals("obstacle")){
-                            Log.i(TAG, "MESSAGE_READ - obstacle");
-                            activity.mBluetoothService.setState(BluetoothService.STATE_OBSTACLE);
-                        }else if(readStr.startsWith("obstacleRemoved")){
-                            Log.i(TAG, "MESSAGE_READ - obstacleRemoved");
-                            String dataGateState = readStr.substring(15);
-                            if(dataGateState.equals("&gateIsOpened")){
-                                activity.mBluetoothService.setState(BluetoothService.STATE_OBSTACLE_REMOVED_GATE_OPENED);
-                            }else if(dataGateState.equals("&gateIsClosed")){
-                                activity.mBluetoothService.setState(BluetoothService.STATE_OBSTACLE_REMOVED_GATE_CLOSED);
-                            }else{
-                                activity.mBluetoothService.setState(BluetoothService.STATE_OBSTACLE_REMOVED);
-                            }
-                        }
+                        break;
+                    case MESSAGE_LOGGED_IN:
+                        Log.i(TAG, "MESSAGE_LOGGED_IN");
+                        activity.viewModel.onLoggedIn();
+                        break;
+                    case MESSAGE_SESSION:
+                        Log.i(TAG, "MESSAGE_SESSION");
+                        activity.viewModel.onSessionGranted((String) msg.obj);
+                        break;
+                    case MESSAGE_SESSION_EXPIRED:
+                        Log.i(TAG, "MESSAGE_SESSION_EXPIRED");
+                        activity.viewModel.onSessionExpired();
+                        break;
+                    case MESSAGE_LINK_QUALITY:
+                        // Round trip of the heartbeat, the timeout for commands follows it
+                        Log.i(TAG, "MESSAGE_LINK_QUALITY: rtt " + (msg.arg1 / 1000) + " ms, command timeout "
+                                + msg.arg2 + " ms");
                         break;
                     case MESSAGE_DEVICE_NAME:
                         // save the connected device's name
-                        activity.mConnectedDeviceName = msg.getData().getString(DEVICE_NAME);
+                        activity.mConnectedDeviceName = (String) msg.obj;
                         Toast.makeText(activity, "Connected to "
                                 + activity.mConnectedDeviceName, Toast.LENGTH_SHORT).show();
                         break;
@@ -543,10 +911,10 @@ public class ActivityMain extends AppCompatActivity {
 //                        break;
                     case MESSAGE_CONNECTED:
                         Log.i(TAG, "MESSAGE_CONNECTED");
-                        // Device is connected with bluetooth adapter, try to log in to adapter
-                        String username = PreferenceManager.getDefaultSharedPreferences(activity).getString("username", "");
-                        String password = PreferenceManager.getDefaultSharedPreferences(activity).getString("password", "");
-                        activity.viewModel.login(username, password);
+                        // Device is connected with bluetooth adapter, log in unless the service already did
+                        activity.viewModel.onConnected(msg.arg1 == BluetoothService.CONNECTED_LOGIN_SENT);
+                        if (activity.mConnectingGate != null)
+                            activity.setLastGate(activity.mConnectingGate.getAddress());
                         break;
                 }
             }
@@ -577,7 +945,9 @@ public class ActivityMain extends AppCompatActivity {
                             break;
                         case BluetoothAdapter.STATE_ON:
                             Log.i(TAG, "Bluetooth on");
-                            if(bluetoothEnabledByApplication)
+                            if(activity.pairedBluetoothDevice != null && !activity.mBondVerified)
+                                activity.verifyBondedGate();
+                            else if(bluetoothEnabledByApplication)
                                 activity.deviceReceiver.pairedDeviceNotExists = !activity.findPairedDevice();
                             if(activity.pairedBluetoothDevice == null)
                                 activity.startFindBluetoothDevice();
@@ -588,14 +958,23 @@ public class ActivityMain extends AppCompatActivity {
                             Log.i(TAG, "Turning Bluetooth on...");
                             break;
                     }
+                }else if(msg.what == DeviceReceiver.MSG_DISCOVERY_FINISHED){
+                    activity.mDiscovery.onDiscoveryFinished();
                 }else if(msg.what == DeviceReceiver.MSG_BLUETOOTH_DEVICE){
                     Log.i(TAG, "Found required bluetooth device");
+                    // The rest of the inquiry would only slow down connecting
+                    if (activity.mDiscovery.onTargetFound())
+                        Log.i(TAG, "Found after " + activity.mDiscovery.getSearchScanCount() + " scans");
+                    ConnectionPhases.getInstance().end(ConnectionPhases.PHASE_DISCOVERY);
                     // First pair device
                     BluetoothDevice device = (BluetoothDevice)msg.obj;
 //                    activity.initConnectToDevice(device);
                     activity.pairDevice(device);
+                }else if(msg.what == MSG_BONDED_GATE){
+                    activity.onBondedGateVerified((BluetoothDevice) msg.obj);
                 }else if(msg.what == DeviceReceiver.MSG_BLUETOOTH_DEVICE_PAIRED){
                     // Second connect to paired device
+                    ConnectionPhases.getInstance().end(ConnectionPhases.PHASE_BONDING);
                     activity.pairedBluetoothDevice = (BluetoothDevice)msg.obj;
                     activity.initConnectToDevice(activity.pairedBluetoothDevice);
                 }
@@ -1,28 +1,36 @@
 package com.raspberryopener.app;
 
 import android.annotation.TargetApi;
+import android.app.Activity;
 import android.content.Context;
 import android.content.Intent;
 import android.content.res.Configuration;
 import android.media.Ringtone;
 import android.media.RingtoneManager;
 import android.net.Uri;
+import android.os.AsyncTask;
 import android.os.Build;
 import android.os.Bundle;
 import android.preference.EditTextPreference;
 import android.preference.ListPreference;
 import android.preference.Preference;
 import android.preference.PreferenceActivity;
+import android.preference.PreferenceCategory;
 import android.support.v7.app.ActionBar;
 import android.preference.PreferenceFragment;
 import android.preference.PreferenceManager;
 import android.preference.RingtonePreference;
 import android.text.TextUtils;
+import android.util.Log;
 import android.view.MenuItem;
 import android.widget.EditText;
+import android.widget.Toast;
 
 import com.raspberryopener.app.R;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.List;
 
 /**
@@ -178,7 +186,8 @@ public class ActivitySettings extends AppCompatPreferenceActivity {
     protected boolean isValidFragment(String fragmentName) {
         return PreferenceFragment.class.getName().equals(fragmentName)
                 || AccountPreferenceFragment.class.getName().equals(fragmentName)
-                || DevicePreferenceFragment.class.getName().equals(fragmentName);
+                || DevicePreferenceFragment.class.getName().equals(fragmentName)
+                || DiagnosticsPreferenceFragment.class.getName().equals(fragmentName);
     }
 
     /**
@@ -218,6 +227,8 @@ public class ActivitySettings extends AppCompatPreferenceActivity {
      */
     @TargetApi(Build.VERSION_CODES.HONEYCOMB)
     public static class DevicePreferenceFragment extends PreferenceFragment {
+        private static final int REQUEST_IMPORT_GATES = 1;
+
         @Override
         public void onCreate(Bundle savedInstanceState) {
             super.onCreate(savedInstanceState);
@@ -228,8 +239,221 @@ public class ActivitySettings extends AppCompatPreferenceActivity {
             // to their values. When their values change, their summaries are
             // updated to reflect the new value, per the Android Design
             // guidelines.
-            bindPreferenceSummaryToValue(findPreference("device_address"));
-            bindPreferenceSummaryToValue(findPreference("uuid_service"));
+            bindPreferenceSummaryToValue(findPreference(GatePreferences.PREF_DEVICE_ADDRESS));
+            bindPreferenceSummaryToValue(findPreference(GatePreferences.PREF_SERVICE_UUID));
+            bindPreferenceSummaryToValue(findPreference("connection_idle_timeout"));
+            bindPreferenceSummaryToValue(findPreference("heartbeat_interval"));
+
+            findPreference("selected_gate").setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object value) {
+                    GateProfile gate = GatePreferences.getRegistry(getActivity()).find((String) value);
+                    if (gate == null)
+                        return false;
+                    selectGate(gate);
+                    return true;
+                }
+            });
+            findPreference("import_gates").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    Intent intent = new Intent(Intent.ACTION_GET_CONTENT);
+                    intent.addCategory(Intent.CATEGORY_OPENABLE);
+                    intent.setType("text/*");
+                    startActivityForResult(Intent.createChooser(intent, getString(R.string.pref_title_import_gates)),
+                            REQUEST_IMPORT_GATES);
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            updateGates();
+        }
+
+        @Override
+        public void onActivityResult(int requestCode, int resultCode, Intent data) {
+            if (requestCode == REQUEST_IMPORT_GATES && resultCode == Activity.RESULT_OK && data != null && data.getData() != null)
+                importGates(data.getData());
+            else
+                super.onActivityResult(requestCode, resultCode, data);
+        }
+
+        // Lists the gates of the registry to choose from, the one edited below is chosen
+        private void updateGates() {
+            GateRegistry gates = GatePreferences.getRegistry(getActivity());
+            String[] entries = new String[gates.size()];
+            String[] values = new String[gates.size()];
+            for (int i = 0; i < entries.length; i++) {
+                GateProfile gate = gates.get(i);
+                values[i] = Helpers.formatAddress(gate.getAddress());
+                entries[i] = GateProfile.DEFAULT_ACCOUNT.equals(gate.getAccount()) ? values[i]
+                        : values[i] + " (" + gate.getAccount() + ")";
+            }
+            ListPreference list = (ListPreference) findPreference("selected_gate");
+            list.setEntries(entries);
+            list.setEntryValues(values);
+            long selected = GatePreferences.getSelectedAddress(getPreferenceManager().getSharedPreferences());
+            list.setValue(selected == Helpers.NO_ADDRESS ? null : Helpers.formatAddress(selected));
+            list.setEnabled(entries.length > 0);
+        }
+
+        private void selectGate(GateProfile gate) {
+            GatePreferences.selectGate(getPreferenceManager().getSharedPreferences(), gate);
+            // The fields below show the values they were created with, the same texts are not written again
+            String address = Helpers.formatAddress(gate.getAddress());
+            String uuid = gate.getServiceUuid().toString().toUpperCase();
+            EditTextPreference addressPreference = (EditTextPreference) findPreference(GatePreferences.PREF_DEVICE_ADDRESS);
+            EditTextPreference uuidPreference = (EditTextPreference) findPreference(GatePreferences.PREF_SERVICE_UUID);
+            addressPreference.setText(address);
+            addressPreference.setSummary(address);
+            uuidPreference.setText(uuid);
+            uuidPreference.setSummary(uuid);
+        }
+
+        // Reads the chosen file in the background, the registry is saved by GatePreferences
+        private void importGates(final Uri uri) {
+            final Context context = getActivity().getApplicationContext();
+            new AsyncTask<Void, Void, Integer>() {
+                @Override
+                protected Integer doInBackground(Void... params) {
+                    InputStream in = null;
+                    try {
+                        in = context.getContentResolver().openInputStream(uri);
+                        if (in == null)
+                            return -1;
+                        return GatePreferences.importGates(context, in);
+                    } catch (IOException e) {
+                        Log.e("ActivitySettings", "Cannot import gates", e);
+                        return -1;
+                    } finally {
+                        if (in != null) {
+                            try {
+                                in.close();
+                            } catch (IOException e) {
+                                Log.e("ActivitySettings", "Cannot close imported file", e);
+                            }
+                        }
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(Integer imported) {
+                    Toast.makeText(context, imported >= 0 ? context.getString(R.string.gates_imported, imported)
+                            : context.getString(R.string.gates_import_failed), Toast.LENGTH_LONG).show();
+                    if (isAdded())
+                        updateGates();
+                }
+            }.execute();
+        }
+
+        @Override
+        public boolean onOptionsItemSelected(MenuItem item) {
+            int id = item.getItemId();
+            if (id == android.R.id.home) {
+                startActivity(new Intent(getActivity(), ActivitySettings.class));
+                return true;
+            }
+            return super.onOptionsItemSelected(item);
+        }
+    }
+
+    /**
+     * This fragment shows the recorded connection latencies. It is used when the
+     * activity is showing a two-pane settings UI.
+     */
+    @TargetApi(Build.VERSION_CODES.HONEYCOMB)
+    public static class DiagnosticsPreferenceFragment extends PreferenceFragment {
+        private final Preference[] mPhasePreferences = new Preference[ConnectionPhases.PHASE_COUNT];
+
+        @Override
+        public void onCreate(Bundle savedInstanceState) {
+            super.onCreate(savedInstanceState);
+            addPreferencesFromResource(R.xml.pref_diagnostics);
+            setHasOptionsMenu(true);
+
+            // One read-only entry per phase, its summary shows the percentiles
+            PreferenceCategory phasesCategory = (PreferenceCategory) findPreference("connection_phases");
+            String[] phaseTitles = getResources().getStringArray(R.array.connection_phase_titles);
+            for (int i = 0; i < ConnectionPhases.PHASE_COUNT; i++) {
+                mPhasePreferences[i] = new Preference(getActivity());
+                mPhasePreferences[i].setTitle(phaseTitles[i]);
+                mPhasePreferences[i].setSelectable(false);
+                phasesCategory.addPreference(mPhasePreferences[i]);
+            }
+
+            findPreference("export_phases").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    Intent intent = new Intent(Intent.ACTION_SEND);
+                    intent.setType("text/plain");
+                    intent.putExtra(Intent.EXTRA_SUBJECT, getString(R.string.pref_title_connection_phases));
+                    intent.putExtra(Intent.EXTRA_TEXT, ConnectionPhases.getInstance().exportCsv());
+                    startActivity(Intent.createChooser(intent, getString(R.string.pref_title_export_phases)));
+                    return true;
+                }
+            });
+            findPreference("reset_phases").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    ConnectionPhases.getInstance().reset();
+                    ActivityMain.saveConnectionPhases(getActivity());
+                    updatePhaseSummaries();
+                    return true;
+                }
+            });
+            findPreference(Tracer.PREF_TRACE_ENABLED).setOnPreferenceChangeListener(new Preference.OnPreferenceChangeListener() {
+                @Override
+                public boolean onPreferenceChange(Preference preference, Object value) {
+                    Tracer.getInstance().setEnabled((Boolean) value);
+                    return true;
+                }
+            });
+            findPreference("export_trace").setOnPreferenceClickListener(new Preference.OnPreferenceClickListener() {
+                @Override
+                public boolean onPreferenceClick(Preference preference) {
+                    exportTrace(getActivity().getApplicationContext());
+                    return true;
+                }
+            });
+        }
+
+        // Writes the trace in the background to the app directory, which can be pulled over adb
+        private static void exportTrace(final Context context) {
+            File directory = context.getExternalFilesDir(null);
+            final File file = new File(directory != null ? directory : context.getFilesDir(), Tracer.FILE_NAME);
+            new AsyncTask<Void, Void, Boolean>() {
+                @Override
+                protected Boolean doInBackground(Void... params) {
+                    try {
+                        Tracer.getInstance().writeChromeTrace(file, android.os.Process.myPid());
+                        return true;
+                    } catch (IOException e) {
+                        Log.e("ActivitySettings", "Cannot export trace", e);
+                        return false;
+                    }
+                }
+
+                @Override
+                protected void onPostExecute(Boolean exported) {
+                    Toast.makeText(context, exported ? context.getString(R.string.trace_exported, file.getPath())
+                            : context.getString(R.string.trace_export_failed), Toast.LENGTH_LONG).show();
+                }
+            }.execute();
+        }
+
+        @Override
+        public void onResume() {
+            super.onResume();
+            updatePhaseSummaries();
+        }
+
+        private void updatePhaseSummaries() {
+            ConnectionPhases phases = ConnectionPhases.getInstance();
+            for (int i = 0; i < ConnectionPhases.PHASE_COUNT; i++)
+                mPhasePreferences[i].setSummary(phases.summarize(i));
         }
 
         @Override
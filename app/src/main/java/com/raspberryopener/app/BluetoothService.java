@@ -1,350 +1,781 @@
 package com.raspberryopener.app;
 
-import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothSocket;
-import android.content.Context;
-import android.os.Bundle;
 import android.os.Handler;
-import android.os.Message;
 import android.util.Log;
 
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
-import java.lang.reflect.Method;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class BluetoothService {
+public class BluetoothService implements ServiceStates {
     private static final String TAG = "BluetoothService";
-    private Handler mHandler; // handler that gets info from Bluetooth service
-
-    private ConnectThread mConnectThread;
-    private ConnectedThread mConnectedThread;
-
-    private int mState;
-
-    // Constants that indicate the current connection state
-    public static final int STATE_BLUETOOTH_NOT_SUPPORTED = -1;       // Device doesn't support bluetooth
-    public static final int STATE_BLUETOOTH_OFF = 0;                  // Bluetooth is turned off
-    public static final int STATE_BLUETOOTH_ON_SEARCH = 1;            // Bluetooth is turned on
-    public static final int STATE_NONE = 100;                         // we're doing nothing
-    public static final int STATE_LISTEN = 101;                       // now listening for incoming connections
-    public static final int STATE_CONNECTING = 102;                   // now initiating an outgoing connection
-    public static final int STATE_CONNECTED = 103;                    // now connected to a remote device
-    public static final int STATE_CONNECTION_FAILED = 104;            // we're unable to connect to the device
-    public static final int STATE_CONNECTION_LOST = 105;              // we're unable to connect to the device
-    public static final int STATE_LOGGED_IN = 106;                    // user is logged in on a remote device
-    public static final int STATE_WRONG_DATA = 107;                   // user cannot log in, wrong username and password
-    public static final int STATE_WRONG_USERNAME = 108;               // user cannot log in, wrong username
-    public static final int STATE_WRONG_PASSWORD = 109;               // user cannot log in, wrong password
-    public static final int STATE_GATE_OPENING = 120;                 // user log in, opening gate
-    public static final int STATE_GATE_CLOSING = 121;                 // user log in, closing gate
-    public static final int STATE_GATE_OPENED = 122;                  // user log in, gate is opened
-    public static final int STATE_GATE_CLOSED = 123;                  // user log in, gate is closed
-    public static final int STATE_OBSTACLE = 124;                     // user log in, obstacle in front of gate, cannot close gate
-    public static final int STATE_OBSTACLE_REMOVED = 125;             // user log in, obstacle removed
-    public static final int STATE_OBSTACLE_REMOVED_GATE_OPENED = 126; // user log in, obstacle removed, gate is opened
-    public static final int STATE_OBSTACLE_REMOVED_GATE_CLOSED = 127; // user log in, obstacle removed, gate is closed
+    private static final int CONNECT_TIMEOUT = 15000;
+    // Longest a command waits for the gate to answer the one before it, see CommandWriter#setPacing()
+    static final long COMMAND_PACING_MILLIS = 250;
+
+    /**
+     * Receives everything the service reports, the same what/arg1/arg2/obj values
+     * the UI Activity gets as {@link android.os.Message} fields.
+     */
+    public interface Listener {
+        void onServiceEvent(int what, int arg1, int arg2, Object obj);
+    }
+
+    private volatile Listener mListener; // listener that gets info from Bluetooth service
+
+    private ConnectTask mConnectTask;
+    private Connection mConnection;
+    private final IoLoop mLoop; // reads the connection and runs the timers, connects on its blocking pool
+
+    private final ConnectionStateMachine mState = new ConnectionStateMachine(STATE_NONE);
+
+    // Automatic reconnect, see scheduleReconnect()
+    private Transport mTransport;                   // transport of the last connect, reused to reconnect
+    private ReconnectBackoff mReconnectBackoff;      // null when reconnecting is disabled
+    private IoLoop.Timer mPendingReconnect;
+    private long mRecoveringSince = NOT_RECOVERING; // nanoTime when the connection went down
+    private int mReconnects;                        // successful reconnects since the service was created
+    private static final long NOT_RECOVERING = Long.MIN_VALUE;
+
+    // Outgoing commands, see CommandWriter
+    private final LatencyHistogram mWriteLatency = new LatencyHistogram(); // microseconds from write() until written
+    private final LatencyHistogram mWriteQueueDepth = new LatencyHistogram();
+
+    // Login queued as soon as the connection is up, see setLoginCommand()
+    public static final int CONNECTED_LOGIN_SENT = 1; // arg1 of MESSAGE_CONNECTED
+    private volatile byte[] mLoginCommand;
+    private volatile long mCommandPacingMillis = COMMAND_PACING_MILLIS;
+    private final LatencyHistogram mConnectToLogin = new LatencyHistogram(); // microseconds from connected until first write
+    // Login, first gate state and opening of this session, recorded into the shared ConnectionPhases
+    private final ConnectionPhases.Stopwatch mPhases = ConnectionPhases.getInstance().newStopwatch();
+
+    // Ping/pong of the connection, see setHeartbeat()
+    private long mHeartbeatIntervalMillis;          // 0 when the heartbeat is off
+    private int mHeartbeatMissThreshold = Heartbeat.DEFAULT_MISS_THRESHOLD;
+    private final LatencyHistogram mLinkRtt = new LatencyHistogram(); // microseconds, across all connections
+    private int mDeadLinks;                         // connections closed because the heartbeat got no pong
+
+    private volatile GateJournal mJournal;          // gets every state change, may be null
+
+    // Counters for tooling, written out with the histograms above, see getMetrics()
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final StripedCounter mBytesIn = mMetrics.counter("gate_received_bytes_total", "Bytes read from the gate");
+    private final StripedCounter mBytesOut = mMetrics.counter("gate_sent_bytes_total", "Bytes of commands written to the gate");
+    private final StripedCounter mMessagesIn = mMetrics.counter("gate_received_messages_total", "Messages received from the gate");
+    private final StripedCounter mMessagesOut = mMetrics.counter("gate_sent_commands_total", "Commands written to the gate, pings included");
+    private final StripedCounter mWriteErrors = mMetrics.counter("gate_write_errors_total", "Commands which could not be written");
+    private final StripedCounter mConnectAttempts = mMetrics.counter("gate_connect_attempts_total", "Connection attempts");
+    private final StripedCounter mConnectFailures = mMetrics.counter("gate_connect_failures_total", "Connection attempts which failed");
+    private final StripedCounter mConnectionsLost = mMetrics.counter("gate_connections_lost_total", "Connections which went down");
+    private final StripedCounter mReconnectsDone = mMetrics.counter("gate_reconnects_total", "Connections recovered automatically");
+    private final StripedCounter[] mStateMicros = new StripedCounter[ConnectionStateMachine.STATE_COUNT];
+    private final AtomicLong mStateSince = new AtomicLong(System.nanoTime()); // nanoTime of the last state change
 
     public BluetoothService(Handler handler) {
-        mHandler = handler;
-        mState = STATE_NONE;
+        this(new HandlerListener(handler));
+    }
+
+    public BluetoothService(Listener listener) {
+        this(listener, IoLoop.getDefault());
     }
 
-    public void setState(int state) {
-        Log.i(TAG, "setState() " + mState + " -> " + state);
-        mState = state;
+    /**
+     * @param loop runs reconnect delays and heartbeat ticks, reads the connection on a reader thread,
+     *             and connects and writes on its blocking pool; e.g. a loop shared by several services
+     */
+    public BluetoothService(Listener listener, IoLoop loop) {
+        mListener = listener;
+        mLoop = loop;
+
+        for (int i = 0; i < mStateMicros.length; i++) {
+            mStateMicros[i] = mMetrics.counter("gate_state_micros_total",
+                    "state=\"" + ConnectionStateMachine.nameOf(ConnectionStateMachine.stateAt(i)) + "\"",
+                    "Microseconds spent in each state until it was left");
+        }
+        mMetrics.gauge("gate_state", "Current state, see ServiceStates", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return mState.get();
+            }
+        });
+        mMetrics.histogram("gate_write_latency_micros", "Microseconds from queueing a command until it was written",
+                mWriteLatency);
+        mMetrics.histogram("gate_write_queue_depth", "Commands waiting to be written, sampled when one is queued",
+                mWriteQueueDepth);
+        mMetrics.histogram("gate_connect_to_login_micros", "Microseconds from connected until the first command was written",
+                mConnectToLogin);
+        mMetrics.histogram("gate_link_rtt_micros", "Microseconds between a heartbeat ping and its pong", mLinkRtt);
+    }
+
+    /**
+     * Moves to the state if {@link ConnectionStateMachine} allows it from the current one.
+     * @return false if the transition was refused, e.g. a message from a connection which is already closed
+     */
+    public boolean setState(int state) {
+        // The state which was actually left, another thread may change it between a get() and the move
+        int previous = mState.moveTo(state);
+        if (previous == ConnectionStateMachine.REFUSED) {
+            Log.w(TAG, "setState() " + mState.get() + " -> " + state + " refused");
+            return false;
+        }
+        // Every gate message changes the state, do not build the log line when nobody reads it
+        if (Log.isLoggable(TAG, Log.DEBUG))
+            Log.d(TAG, "setState() " + previous + " -> " + state);
+        long now = System.nanoTime();
+        mStateMicros[ConnectionStateMachine.indexOf(previous)].add((now - mStateSince.getAndSet(now)) / 1000);
+        GateJournal journal = mJournal;
+        if (journal != null)
+            journal.append(previous, state);
 
         // Give the new state to the Handler so the UI Activity can update
-        mHandler.obtainMessage(ActivityMain.MESSAGE_STATE_CHANGE, state, -1).sendToTarget();
+        post(ActivityMain.MESSAGE_STATE_CHANGE, state, -1, null);
+        return true;
     }
 
     public int getState() {
+        return mState.get();
+    }
+
+    /**
+     * @return the state holder, e.g. to read the counters of refused transitions
+     */
+    public ConnectionStateMachine getStateMachine() {
         return mState;
     }
 
     public void setServiceHandler(Handler serviceHandler) {
-        this.mHandler = serviceHandler;
+        setListener(new HandlerListener(serviceHandler));
+    }
+
+    public void setListener(Listener listener) {
+        this.mListener = listener;
+    }
+
+    private void post(int what, int arg1, int arg2, Object obj) {
+        mListener.onServiceEvent(what, arg1, arg2, obj);
+    }
+
+    /**
+     * Records the state changes from now on, e.g. from the reader thread, see {@link GateJournal}.
+     * @param journal null to stop recording
+     */
+    public void setJournal(GateJournal journal) {
+        mJournal = journal;
+    }
+
+    public GateJournal getJournal() {
+        return mJournal;
+    }
+
+    /**
+     * @return loop the service runs on, transports which connect on a pool of their own should use it too
+     */
+    public IoLoop getLoop() {
+        return mLoop;
+    }
+
+    /**
+     * @return start times of the connection phases of this session, e.g. to time the opening of the gate
+     */
+    public ConnectionPhases.Stopwatch getPhases() {
+        return mPhases;
+    }
+
+    /**
+     * @return counters, gauges and histograms of the service, e.g. to write them to a file
+     */
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Enables reconnecting automatically after the connection failed or was lost.
+     * @param backoff delays between the attempts, null to disable reconnecting
+     */
+    public synchronized void setReconnectBackoff(ReconnectBackoff backoff) {
+        mReconnectBackoff = backoff;
+        if (backoff == null)
+            cancelReconnect();
     }
 
-    public void connect(BluetoothDevice device, UUID deviceUUID) {
+    /**
+     * @return number of times the connection was recovered automatically
+     */
+    public synchronized int getReconnectCount() {
+        return mReconnects;
+    }
+
+    /**
+     * @param gates where the socket strategy which connected is remembered, and which one is tried first
+     */
+    public void connect(BluetoothDevice device, UUID deviceUUID, GateRegistry gates) {
         Log.d(TAG, "connect to: " + device);
+        connect(new BluetoothTransport(device, deviceUUID, gates, mLoop));
+    }
 
-        // Cancel any thread attempting to make a connection
-        if (mState == STATE_CONNECTING) {
-            if (mConnectThread != null) {mConnectThread.cancel(); mConnectThread = null;}
-        }
+    public synchronized void connect(Transport transport) {
+        Log.d(TAG, "connect to: " + transport.getName());
+
+        // A connect requested from outside starts a new series of attempts
+        cancelReconnect();
+        mTransport = transport;
+        startConnect();
+    }
+
+    private void startConnect() {
+        Transport transport = mTransport;
+
+        // Cancel any attempt to make a connection
+        if (mConnectTask != null) {mConnectTask.cancel(); mConnectTask = null;}
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {mConnectedThread.cancel(); mConnectedThread = null;}
+        // Cancel any connection currently running
+        if (mConnection != null) {mConnection.cancel(); mConnection = null;}
 
-        // Start the thread to connect with the given device
-        mConnectThread = new ConnectThread(device, deviceUUID);
-        mConnectThread.start();
+        // Connect with the given device on the blocking pool of the loop
+        mConnectTask = new ConnectTask(transport);
+        mConnectTask.start();
 
         setState(STATE_CONNECTING);
     }
 
-    private void manageConnectedSocket(BluetoothSocket socket, BluetoothDevice device){
-        Log.i(TAG, "ConnectThread 1");
+    private synchronized void manageConnectedSocket(ConnectTask connectTask, Transport transport){
+        Log.i(TAG, "manageConnectedSocket");
 
-        // Cancel the thread that completed the connection
-        if (mConnectThread != null) {
-//            mConnectThread.cancel();
-            mConnectThread = null;
+        if (mConnectTask != connectTask) {
+            // The attempt was cancelled or replaced while it was connecting
+            transport.close();
+            return;
         }
+        mConnectTask = null;
 
-        // Cancel any thread currently running a connection
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        // Cancel any connection currently running
+        if (mConnection != null) {
+            mConnection.cancel();
+            mConnection = null;
         }
 
-        // Start the thread to manage the connection and perform transmissions
-        mConnectedThread = new ConnectedThread(socket);
-        mConnectedThread.start();
-
         // Send the name of the connected device back to the UI Activity
-        Message msg = mHandler.obtainMessage(ActivityMain.MESSAGE_DEVICE_NAME);
-        Bundle bundle = new Bundle();
-        bundle.putString(ActivityMain.DEVICE_NAME, device.getName());
-        msg.setData(bundle);
-        mHandler.sendMessage(msg);
+        post(ActivityMain.MESSAGE_DEVICE_NAME, -1, -1, transport.getName());
 
+        // Connected before the first gate message can arrive and move the state further
         setState(STATE_CONNECTED);
 
-        Message msgConnected = mHandler.obtainMessage(ActivityMain.MESSAGE_CONNECTED);
-        msgConnected.sendToTarget();
+        // Manage the connection and perform transmissions
+        mConnection = new Connection(transport);
+        // Queue the login before anything else, it goes out right away on the blocking pool
+        byte[] login = mLoginCommand;
+        boolean loginSent = false;
+        if (login != null) {
+            mPhases.start(ConnectionPhases.PHASE_LOGIN);
+            loginSent = mConnection.write(login, null);
+        }
+        // Reported before the reader runs, the answer to the login must not overtake it
+        post(ActivityMain.MESSAGE_CONNECTED, loginSent ? CONNECTED_LOGIN_SENT : -1, -1, null);
+        mConnection.start();
+        mConnection.startHeartbeat(mHeartbeatIntervalMillis, mHeartbeatMissThreshold);
+
+        if (mRecoveringSince != NOT_RECOVERING) {
+            long recoveryMicros = (System.nanoTime() - mRecoveringSince) / 1000;
+            mReconnects++;
+            mReconnectsDone.increment();
+            Log.i(TAG, "Reconnected after " + (recoveryMicros / 1000) + " ms and "
+                    + (mReconnectBackoff != null ? mReconnectBackoff.getAttempts() : 0) + " attempts");
+            ConnectionPhases.getInstance().record(ConnectionPhases.PHASE_RECONNECT, recoveryMicros);
+            mRecoveringSince = NOT_RECOVERING;
+        }
+        if (mReconnectBackoff != null)
+            mReconnectBackoff.reset();
     }
 
     public synchronized void stop() {
         Log.d(TAG, "stop");
 
-        if (mConnectThread != null) {
-            mConnectThread.cancel();
-            mConnectThread = null;
+        cancelReconnect();
+
+        if (mConnectTask != null) {
+            mConnectTask.cancel();
+            mConnectTask = null;
         }
 
-        if (mConnectedThread != null) {
-            mConnectedThread.cancel();
-            mConnectedThread = null;
+        if (mConnection != null) {
+            mConnection.cancel();
+            mConnection = null;
         }
 
         setState(STATE_NONE);
     }
 
-    private void connectionFailed() {
+    private synchronized void connectionFailed(ConnectTask connectTask) {
+        if (mConnectTask != connectTask)
+            return; // The attempt was cancelled or replaced meanwhile
+        mConnectTask = null;
+        mConnectFailures.increment();
         setState(STATE_CONNECTION_FAILED);
+        scheduleReconnect();
     }
 
-    private void connectionLost() {
+    private synchronized void connectionLost(Connection connection) {
+        if (mConnection != connection)
+            return; // The connection was closed or replaced meanwhile
+        mConnection = null;
+        mConnectionsLost.increment();
+        // Closed like by cancel(), the commands it still had queued are not reported as failed
+        connection.mmCancelled = true;
+        connection.stopHeartbeat();
+        IoLoop.Registration registration = connection.mmRegistration;
+        if (registration != null)
+            registration.cancel();
+        connection.mmWriter.close();
+        connection.mmTransport.close();
         setState(STATE_CONNECTION_LOST);
+        scheduleReconnect();
+    }
+
+    private synchronized void linkDead(Connection connection) {
+        if (mConnection != connection)
+            return;
+        mDeadLinks++;
+        connectionLost(connection);
+    }
+
+    /**
+     * Schedules the next reconnect attempt after the backoff delay, or gives up when the attempt
+     * budget is spent. Must be called with the service lock held.
+     */
+    private void scheduleReconnect() {
+        if (mReconnectBackoff == null || mTransport == null)
+            return;
+        if (mRecoveringSince == NOT_RECOVERING)
+            mRecoveringSince = System.nanoTime();
+        long delay = mReconnectBackoff.nextDelayMillis();
+        if (delay == ReconnectBackoff.GIVE_UP) {
+            Log.i(TAG, "Giving up reconnecting after " + mReconnectBackoff.getAttempts() + " attempts");
+            mRecoveringSince = NOT_RECOVERING;
+            return;
+        }
+        Log.i(TAG, "Reconnect attempt " + mReconnectBackoff.getAttempts() + " in " + delay + " ms");
+        final IoLoop.Timer[] self = new IoLoop.Timer[1];
+        mPendingReconnect = self[0] = mLoop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (BluetoothService.this) {
+                    if (mPendingReconnect != self[0])
+                        return; // Cancelled just before it was run
+                    mPendingReconnect = null;
+                    startConnect();
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelReconnect() {
+        if (mPendingReconnect != null) {
+            mPendingReconnect.cancel();
+            mPendingReconnect = null;
+        }
+        mRecoveringSince = NOT_RECOVERING;
+        if (mReconnectBackoff != null)
+            mReconnectBackoff.reset();
+    }
+
+    /**
+     * Logs in as soon as a connection is up, queued by the task which connected, instead of waiting
+     * for the UI to react to {@link ActivityMain#MESSAGE_CONNECTED}. The message then has
+     * {@link #CONNECTED_LOGIN_SENT} as arg1. Also used for automatic reconnects.
+     * @param command encoded login, see {@link GateCommands#login(String, String)}; null to leave the login to the UI
+     */
+    public void setLoginCommand(byte[] command) {
+        mLoginCommand = command;
+    }
+
+    /**
+     * Sets how long a command waits for the gate to answer the one written before it, applies to
+     * the next connection. The default is {@link #COMMAND_PACING_MILLIS}.
+     * @param gapMillis 0 to write the commands back to back, e.g. to a gate which splits them on line breaks
+     */
+    public void setCommandPacing(long gapMillis) {
+        if (gapMillis < 0)
+            throw new IllegalArgumentException("gapMillis must not be negative: " + gapMillis);
+        mCommandPacingMillis = gapMillis;
+    }
+
+    /**
+     * Pings the gate every interval while connected, measuring the round-trip time, and closes
+     * the connection when it got no pong to the given number of pings in a row. Then it is
+     * reported as lost and reconnected like any other lost connection. Also applies to the
+     * current connection. Off by default, the gate has to answer "ping=n" with "pong=n".
+     * @param intervalMillis 0 to turn the heartbeat off
+     * @see Heartbeat
+     */
+    public synchronized void setHeartbeat(long intervalMillis, int missThreshold) {
+        if (intervalMillis < 0)
+            throw new IllegalArgumentException("intervalMillis must not be negative: " + intervalMillis);
+        if (intervalMillis == mHeartbeatIntervalMillis && missThreshold == mHeartbeatMissThreshold)
+            return;
+        mHeartbeatIntervalMillis = intervalMillis;
+        mHeartbeatMissThreshold = missThreshold;
+        if (mConnection != null)
+            mConnection.startHeartbeat(intervalMillis, missThreshold);
+    }
+
+    /**
+     * @return microseconds between a ping and its pong, across all connections
+     */
+    public LatencyHistogram getLinkRtt() {
+        return mLinkRtt;
+    }
+
+    /**
+     * @return smoothed round-trip time of the current connection in microseconds, -1 if it was not measured
+     */
+    public long getSmoothedRttMicros() {
+        Heartbeat heartbeat = getHeartbeat();
+        return heartbeat == null ? -1 : heartbeat.getSmoothedRttMicros();
+    }
+
+    /**
+     * @return how long to wait for the gate to respond to a command, from the round-trip time when it is measured
+     */
+    public long getCommandTimeoutMillis() {
+        Heartbeat heartbeat = getHeartbeat();
+        return heartbeat == null ? Heartbeat.INITIAL_COMMAND_TIMEOUT_MILLIS : heartbeat.getCommandTimeoutMillis();
+    }
+
+    /**
+     * @return number of connections closed because the gate stopped answering pings
+     */
+    public synchronized int getDeadLinkCount() {
+        return mDeadLinks;
+    }
+
+    private synchronized Heartbeat getHeartbeat() {
+        return mConnection == null ? null : mConnection.mmHeartbeat;
+    }
+
+    /**
+     * @return microseconds from a connection being up until its first command, usually the login, was written
+     */
+    public LatencyHistogram getConnectToLoginLatency() {
+        return mConnectToLogin;
+    }
+
+    /**
+     * @return microseconds from queueing a command until it was written, across all connections
+     */
+    public LatencyHistogram getWriteLatency() {
+        return mWriteLatency;
+    }
+
+    /**
+     * @return number of commands waiting to be written, sampled whenever a command is queued
+     */
+    public LatencyHistogram getWriteQueueDepth() {
+        return mWriteQueueDepth;
+    }
+
+    /**
+     * @return number of commands of the current connection waiting to be written
+     */
+    public int getPendingWrites() {
+        Connection r;
+        synchronized (this) {
+            r = mConnection;
+        }
+        return r == null ? 0 : r.mmWriter.getQueueDepth();
+    }
+
+    public boolean write(byte[] out) {
+        return write(out, null);
     }
 
     /**
-     * Write to the ConnectedThread in an unsynchronized manner
+     * Queues the bytes to be written by the writer of the connection, never blocks.
      * @param out The bytes to write
-     * @see ConnectedThread#write(byte[])
+     * @param callback gets the result of the write, may be null; not called if the bytes were not queued
+     * @return false if there is no connection or too many commands are waiting
+     * @see Connection#write(byte[], CommandWriter.WriteCallback)
      */
-    public void write(byte[] out) {
+    public boolean write(byte[] out, CommandWriter.WriteCallback callback) {
         // Create temporary object
-        ConnectedThread r;
-        // Synchronize a copy of the ConnectedThread
+        Connection r;
+        // Synchronize a copy of the Connection
         synchronized (this) {
-            if (mState != STATE_CONNECTED && mState != STATE_LOGGED_IN && mState != STATE_WRONG_DATA
-                    && mState != STATE_WRONG_PASSWORD && mState != STATE_WRONG_USERNAME
-                    && mState != STATE_GATE_OPENING && mState != STATE_GATE_CLOSING
-                    && mState != STATE_GATE_OPENED && mState != STATE_GATE_CLOSED
-                    && mState != STATE_OBSTACLE_REMOVED && mState != STATE_OBSTACLE_REMOVED_GATE_OPENED
-                    && mState != STATE_OBSTACLE_REMOVED_GATE_CLOSED) return;
-            r = mConnectedThread;
-        }
-        // Perform the write unsynchronized
-        r.write(out);
-    }
-
-    private class ConnectThread extends Thread {
-        private final String TAG = "BS ConnectThread";
-        private BluetoothSocket mmSocket;
-        private BluetoothDevice mmDevice;
-        private final BluetoothAdapter mBluetoothAdapter;
-
-        public ConnectThread(BluetoothDevice device, UUID deviceUUID) {
-            Log.i(TAG, "ConnectThread 1");
-            // Use a temporary object that is later assigned to mmSocket
-            // because mmSocket is final.
-            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            BluetoothSocket tmp = null;
-            mmDevice = device;
-
-//            try {
-                Log.i(TAG, "ConnectThread try 1");
-                // Get a BluetoothSocket to connect with the given BluetoothDevice.
-                // MY_UUID is the app's UUID string, also used in the server code.
-
-                try {
-                    Log.d(TAG, "Start Pairing...");
-//                    (BluetoothSocket)mmDevice.getClass().getMethod("createInsecureRfcommSocket", new Class[] { int.class }).invoke(mmDevice, 1);
-                    Method m = mmDevice.getClass().getMethod("createInsecureRfcommSocket", new Class[] { int.class });
-                    tmp = (BluetoothSocket)m.invoke(mmDevice, 1);
-                } catch (Exception e) {
-                    Log.e(TAG, e.getMessage());
-                }
+            if (!mState.is(ConnectionStateMachine.CAN_WRITE)) return false;
+            r = mConnection;
+        }
+        if (r == null) return false;
+        // Queue the write unsynchronized
+        return r.write(out, callback);
+    }
+
+    private class ConnectTask implements Runnable {
+        private final String TAG = "BS ConnectTask";
+        private final Transport mmTransport;
+        private volatile boolean mmCancelled;
+
+        public ConnectTask(Transport transport) {
+            mmTransport = transport;
+        }
 
-//                tmp = device.createInsecureRfcommSocketToServiceRecord(UUID.fromString("0000110E-0000-1000-8000-00805F9B34FB"));
-                Log.i(TAG, "ConnectThread try 2");
-//            } catch (IOException e) {
-//                Log.e(TAG, "Socket's create() method failed", e);
-//            }
-            mmSocket = tmp;
-            Log.i(TAG, "ConnectThread 2");
+        // Connecting blocks, it runs on the blocking pool and never on the loop
+        public void start() {
+            mLoop.getBlockingExecutor().execute(this);
         }
 
         public void run() {
             Log.i(TAG, "run");
-            // Cancel discovery because it otherwise slows down the connection.
-            if(mBluetoothAdapter.isDiscovering())
-                mBluetoothAdapter.cancelDiscovery();
-
+            if (mmCancelled)
+                return; // Replaced while it was waiting for a blocking thread
+            mConnectAttempts.increment();
             try {
-                // Connect to the remote device through the socket. This call blocks
+                // Connect to the remote device. This call blocks
                 // until it succeeds or throws an exception.
-                Log.i(TAG, "run try 1");
-                mmSocket.connect();
-
-//                mmSocket = (BluetoothSocket)mmDevice.getClass().getMethod("createInsecureRfcommSocket", new Class[] { int.class }).invoke(mmDevice, 1);
-
-                Log.i(TAG, "run try 2");
-            } catch (Exception exception){//IOException connectException) {
-                Log.i(TAG, "run catch 1");
+                mmTransport.connect(CONNECT_TIMEOUT);
+            } catch (IOException exception) {
+                Log.i(TAG, "The connection attempt failed.", exception);
                 // Unable to connect; close the socket and return.
-                connectionFailed();
-                Log.i(TAG, "run catch 2");
-                try {
-                    mmSocket.close();
-                } catch (IOException closeException) {
-                    Log.e(TAG, "Could not close the client socket", closeException);
-                }
-                Log.i(TAG, "The connection attempt failed.");
+                mmTransport.close();
+                if (!mmCancelled)
+                    connectionFailed(this);
                 return;
             }
 
-            // The connection attempt succeeded. Perform work associated with
-            // the connection in a separate thread.
+            // The connection attempt succeeded. A reader thread of the
+            // loop reads the connection from now on.
             Log.i(TAG, "The connection attempt succeeded.");
-            manageConnectedSocket(mmSocket, mmDevice);
+            manageConnectedSocket(this, mmTransport);
         }
 
-        // Closes the client socket and causes the thread to finish.
+        // Closes the client socket, which ends a connect in progress.
         public void cancel() {
             Log.i(TAG, "cancel");
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Could not close the client socket", e);
-            }
-            Log.i(TAG, "Client socket closed.");
+            mmCancelled = true;
+            mmTransport.close();
         }
     }
 
-    private class ConnectedThread extends Thread {
-        private final String TAG = "BS ConnectedThread";
-        private final BluetoothSocket mmSocket;
-        private final InputStream mmInStream;
-        private final OutputStream mmOutStream;
-        private final BluetoothAdapter mBluetoothAdapter;
-        private byte[] mmBuffer; // mmBuffer store for the stream
+    private class Connection implements IoLoop.ReadListener, FrameDecoder.FrameListener, CommandWriter.WriteCallback {
+        private final String TAG = "BS Connection";
+        private final Transport mmTransport;
+        private final CommandWriter mmWriter;
+        private final FrameDecoder mmDecoder = new FrameDecoder();
+        private volatile IoLoop.Registration mmRegistration; // set by start()
+        private volatile boolean mmCancelled;
+        private volatile long mmConnectedNanos = System.nanoTime(); // 0 once the first command was written
+        private volatile long mmLastFrameNanos;
+        private volatile Heartbeat mmHeartbeat;       // null when the heartbeat is off
+        private volatile byte[] mmLastPing;
+        private IoLoop.Timer mmHeartbeatTask;         // guarded by the service lock
+        private final Runnable mmTick = new Runnable() {
+            @Override
+            public void run() {
+                tick();
+            }
+        };
+
+        public Connection(Transport transport) {
+            mmTransport = transport;
+            // Written on the blocking pool, a write stalled by the link must not stop the loop
+            mmWriter = new CommandWriter(transport, CommandWriter.DEFAULT_CAPACITY, mWriteLatency, mWriteQueueDepth, this,
+                    mLoop);
+            // The login, a ping and a command written back to back would reach the gate as one wrong command
+            mmWriter.setPacing(mCommandPacingMillis);
+        }
 
-        public ConnectedThread(BluetoothSocket socket) {
-            Log.i(TAG, "ConnectedThread 1");
-            mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
-            mmSocket = socket;
-            InputStream tmpIn = null;
-            OutputStream tmpOut = null;
+        // Must be called with the service lock held
+        public void start() {
+            Log.i(TAG, "start");
+            mmRegistration = mLoop.register(mmTransport, this);
+        }
 
-            // Get the input and output streams; using temp objects because
-            // member streams are final.
-            try {
-                tmpIn = socket.getInputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "Error occurred when creating input stream", e);
+        // Called on the reader thread
+        @Override
+        public void onRead(byte[] buffer, int offset, int length) {
+            mBytesIn.add(length);
+            // Split the obtained bytes into messages, see onFrame()
+            mmDecoder.feed(buffer, offset, length, this);
+        }
+
+        // Called on the reader thread
+        @Override
+        public void onEnd(IOException error) {
+            Log.d(TAG, "Input stream was disconnected", error);
+            if (!mmCancelled)
+                connectionLost(this);
+            mmWriter.close();
+        }
+
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            mmLastFrameNanos = System.nanoTime();
+            mmWriter.onResponse();
+            mMessagesIn.increment();
+            // Interpret the message here, the UI activity gets only the resulting state
+            int event = GateResponseDecoder.decode(buffer, offset, length);
+            if (event == GateResponseDecoder.NO_EVENT) {
+                // Share the unknown message with the UI activity.
+                String str = new String(buffer, offset, length);
+                Log.i(TAG, "Unknown message: " + str);
+                post(ActivityMain.MESSAGE_READ, length, -1, str);
+                return;
             }
-            try {
-                tmpOut = socket.getOutputStream();
-            } catch (IOException e) {
-                Log.e(TAG, "Error occurred when creating output stream", e);
+            if (event == GateResponseDecoder.EVENT_SESSION) {
+                post(ActivityMain.MESSAGE_SESSION, -1, -1, new String(buffer, offset, length));
+                return;
+            }
+            if (event == GateResponseDecoder.EVENT_SESSION_EXPIRED) {
+                post(ActivityMain.MESSAGE_SESSION_EXPIRED, -1, -1, null);
+                return;
             }
+            if (event == GateResponseDecoder.EVENT_PONG) {
+                onPong(GateResponseDecoder.pongSequence(buffer, offset, length));
+                return;
+            }
+            int state = GateResponseDecoder.stateOf(event);
+            recordPhases(event, state);
+            if (GateResponseDecoder.isLoggedIn(event))
+                post(ActivityMain.MESSAGE_LOGGED_IN, -1, -1, null);
+            setState(state);
+        }
 
-            mmInStream = tmpIn;
-            mmOutStream = tmpOut;
-            Log.i(TAG, "ConnectedThread 2");
+        private void recordPhases(int event, int state) {
+            ConnectionPhases.Stopwatch phases = mPhases;
+            if (GateResponseDecoder.isLoggedIn(event) || state == STATE_WRONG_DATA
+                    || state == STATE_WRONG_USERNAME || state == STATE_WRONG_PASSWORD)
+                phases.end(ConnectionPhases.PHASE_LOGIN);
+            if (state >= STATE_GATE_OPENING && state <= STATE_OBSTACLE_REMOVED_GATE_CLOSED)
+                phases.end(ConnectionPhases.PHASE_FIRST_GATE_STATE);
+            if (state == STATE_GATE_OPENED || state == STATE_OBSTACLE_REMOVED_GATE_OPENED)
+                phases.end(ConnectionPhases.PHASE_GATE_OPEN);
         }
 
-        public void run() {
-            Log.i(TAG, "run 1");
-            mmBuffer = new byte[1024];
-            int numBytes; // bytes returned from read()
-            mBluetoothAdapter.cancelDiscovery();
-
-            // Keep listening to the InputStream until an exception occurs.
-            while (true) {
-                try {
-                    // Read from the InputStream.
-                    numBytes = mmInStream.read(mmBuffer);
-                    // Send the obtained bytes to the UI activity.
-                    String str = new String(mmBuffer, 0, numBytes).trim();
-                    Message readMsg = mHandler.obtainMessage(
-                            ActivityMain.MESSAGE_READ, numBytes, -1,
-                            str);
-                    readMsg.sendToTarget();
-                } catch (IOException e) {
-                    Log.d(TAG, "Input stream was disconnected", e);
-                    connectionLost();
-                    break;
-                }
+        // Must be called with the service lock held, replaces the running heartbeat
+        void startHeartbeat(long intervalMillis, int missThreshold) {
+            stopHeartbeat();
+            if (intervalMillis == 0 || mmCancelled)
+                return;
+            mmHeartbeat = new Heartbeat(intervalMillis, missThreshold, mLinkRtt);
+            mmHeartbeatTask = mLoop.scheduleAtFixedRate(mmTick, intervalMillis, intervalMillis,
+                    TimeUnit.MILLISECONDS);
+        }
+
+        // Must be called with the service lock held
+        void stopHeartbeat() {
+            mmHeartbeat = null;
+            if (mmHeartbeatTask != null) {
+                mmHeartbeatTask.cancel();
+                mmHeartbeatTask = null;
             }
-            Log.i(TAG, "run 2");
+        }
+
+        private void tick() {
+            Heartbeat heartbeat = mmHeartbeat;
+            if (heartbeat == null || mmCancelled)
+                return;
+            long sequence = heartbeat.onTick(System.nanoTime());
+            if (sequence == Heartbeat.DEAD) {
+                Log.w(TAG, "No pong to " + heartbeat.getMissThreshold() + " pings, the link is dead");
+                linkDead(this);
+                return;
+            }
+            byte[] ping = GateCommands.ping(sequence);
+            mmLastPing = ping;
+            write(ping, null);
+        }
+
+        private void onPong(long sequence) {
+            Heartbeat heartbeat = mmHeartbeat;
+            if (heartbeat == null || !heartbeat.onPong(sequence, System.nanoTime()))
+                return;
+            // Link quality for the UI activity
+            post(ActivityMain.MESSAGE_LINK_QUALITY, (int) Math.min(Integer.MAX_VALUE, heartbeat.getSmoothedRttMicros()),
+                    (int) heartbeat.getCommandTimeoutMillis(), null);
+        }
+
+        // Checks the link early when the gate does not respond to a command or ping within the timeout
+        private void watchResponse(final Heartbeat heartbeat, final long writtenNanos) {
+            final long timeout = heartbeat.getCommandTimeoutMillis();
+            mLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (mmHeartbeat != heartbeat || mmLastFrameNanos - writtenNanos >= 0)
+                        return;
+                    Log.w(TAG, "No response within " + timeout + " ms, checking the link");
+                    tick();
+                }
+            }, timeout, TimeUnit.MILLISECONDS);
         }
 
         // Call this from the main activity to send data to the remote device.
-        public void write(byte[] bytes) {
-            Log.i(TAG, "write 1");
-            try {
-                mmOutStream.write(bytes);
-                String str = new String(bytes).trim();
+        public boolean write(byte[] bytes, CommandWriter.WriteCallback callback) {
+            if (!mmWriter.offer(bytes, callback)) {
+                Log.e(TAG, "Write queue is full, dropping command");
+                return false;
+            }
+            return true;
+        }
 
-                // Share the sent message with the UI activity.
-                Message writtenMsg = mHandler.obtainMessage(
-                        ActivityMain.MESSAGE_WRITE, -1, -1, str);
-                writtenMsg.sendToTarget();
-            } catch (IOException e) {
-                Log.e(TAG, "Error occurred when sending data", e);
+        // Called on the blocking pool when a command was written or failed, before the callback of the command
+        @Override
+        public void onWriteDone(byte[] bytes, IOException error) {
+            if (error == null) {
+                mBytesOut.add(bytes.length);
+                mMessagesOut.increment();
+                Heartbeat heartbeat = mmHeartbeat;
+                if (heartbeat != null)
+                    watchResponse(heartbeat, System.nanoTime());
+                if (bytes == mmLastPing)
+                    return; // heartbeat, nobody else needs to know
+                long connectedNanos = mmConnectedNanos;
+                if (connectedNanos != 0) {
+                    mmConnectedNanos = 0;
+                    long micros = (System.nanoTime() - connectedNanos) / 1000;
+                    mConnectToLogin.record(micros);
+                    ConnectionPhases.getInstance().record(ConnectionPhases.PHASE_CONNECT_TO_LOGIN, micros);
+                }
+                // Share the sent message with the UI activity, it decodes the bytes only if it needs them
+                post(ActivityMain.MESSAGE_WRITE, bytes.length, -1, bytes);
+            } else if (!mmCancelled) {
+                // Commands still queued when the connection is closed fail as well, that is no error
+                Log.e(TAG, "Error occurred when sending data", error);
+                mWriteErrors.increment();
 
                 // Send a failure message back to the activity.
-                Message writeErrorMsg =
-                        mHandler.obtainMessage(ActivityMain.MESSAGE_TOAST);
-                Bundle bundle = new Bundle();
-                bundle.putString("toast",
-                        "Couldn't send data to the other device");
-                writeErrorMsg.setData(bundle);
-                mHandler.sendMessage(writeErrorMsg);
+                post(ActivityMain.MESSAGE_TOAST, -1, -1, "Couldn't send data to the other device");
+                // The link is gone, do not wait for the reader to notice
+                connectionLost(this);
             }
-            Log.i(TAG, "write 2");
         }
 
         // Call this method from the main activity to shut down the connection.
         public void cancel() {
             Log.i(TAG, "cancel 1");
-            try {
-                mmSocket.close();
-            } catch (IOException e) {
-                Log.e(TAG, "Could not close the connect socket", e);
-            }
+            mmCancelled = true;
+            stopHeartbeat();
+            IoLoop.Registration registration = mmRegistration;
+            if (registration != null)
+                registration.cancel();
+            mmWriter.close();
+            mmTransport.close();
             Log.i(TAG, "cancel 2");
         }
     }
+
+    /**
+     * Passes service events to the UI Activity Handler.
+     */
+    static class HandlerListener implements Listener {
+        private final Handler mHandler;
+
+        HandlerListener(Handler handler) {
+            mHandler = handler;
+        }
+
+        @Override
+        public void onServiceEvent(int what, int arg1, int arg2, Object obj) {
+            mHandler.obtainMessage(what, arg1, arg2, obj).sendToTarget();
+        }
+    }
 }
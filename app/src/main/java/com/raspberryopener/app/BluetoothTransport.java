@@ -0,0 +1,206 @@
+package com.raspberryopener.app;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over an insecure RFCOMM socket to a bonded Bluetooth device.
+ * <p>
+ * The socket can be opened on the fixed RFCOMM channel 1 or on the channel the device publishes for
+ * the service UUID over SDP; which one works depends on how the gate is set up. Both are raced with
+ * {@link ConnectRace}. The strategy which won last time for the device is remembered and started first
+ * with a head start, when nothing is known yet both start at once.
+ */
+public class BluetoothTransport implements Transport {
+    private static final String TAG = "BluetoothTransport";
+
+    public static final int STRATEGY_CHANNEL = 0;        // reflective createInsecureRfcommSocket(1)
+    public static final int STRATEGY_SERVICE_RECORD = 1; // createInsecureRfcommSocketToServiceRecord(uuid)
+    private static final int STRATEGY_COUNT = 2;
+    private static final String[] STRATEGY_NAMES = {"channel 1", "service record"};
+
+    private static final long WINNER_HEAD_START = 1500; // time the last winner connects alone
+
+    private final BluetoothDevice mDevice;
+    private final UUID mServiceUuid;
+    private final GateRegistry mGates;
+    private final IoLoop mLoop;
+    private volatile ConnectRace mRace;
+    private volatile BluetoothSocket mSocket;
+    private volatile boolean mClosed;
+    private InputStream mInStream;
+    private OutputStream mOutStream;
+
+    /**
+     * @param gates where the winning strategy is remembered per gate, may be null
+     * @param loop of the service which connects the transport, the attempts run on its connection threads
+     */
+    public BluetoothTransport(BluetoothDevice device, UUID serviceUuid, GateRegistry gates, IoLoop loop) {
+        mDevice = device;
+        mServiceUuid = serviceUuid;
+        mGates = gates;
+        mLoop = loop;
+    }
+
+    public BluetoothDevice getDevice() {
+        return mDevice;
+    }
+
+    @Override
+    public void connect(int timeoutMillis) throws IOException {
+        mClosed = false;
+        // Cancel discovery because it otherwise slows down the connection.
+        BluetoothAdapter adapter = BluetoothAdapter.getDefaultAdapter();
+        if (adapter != null && adapter.isDiscovering())
+            adapter.cancelDiscovery();
+
+        int preferred = getPreferredStrategy();
+        SocketAttempt[] attempts = new SocketAttempt[STRATEGY_COUNT];
+        attempts[0] = new SocketAttempt(preferred == STRATEGY_SERVICE_RECORD ? STRATEGY_SERVICE_RECORD : STRATEGY_CHANNEL);
+        attempts[1] = new SocketAttempt(preferred == STRATEGY_SERVICE_RECORD ? STRATEGY_CHANNEL : STRATEGY_SERVICE_RECORD);
+        // The attempts run on pooled threads, reconnecting again and again does not start new ones
+        ConnectRace race = new ConnectRace(attempts, preferred < 0 ? 0 : WINNER_HEAD_START,
+                mLoop.getConnectionExecutor());
+        mRace = race;
+        if (mClosed) {
+            // Closed while the race was being set up
+            race.cancel();
+        }
+
+        long started = System.nanoTime();
+        SocketAttempt winner;
+        try {
+            // This call blocks until a strategy succeeds or all of them fail.
+            winner = attempts[race.run(timeoutMillis)];
+        } finally {
+            mRace = null;
+        }
+        ConnectionPhases.getInstance().record(ConnectionPhases.PHASE_SOCKET_CONNECT, (System.nanoTime() - started) / 1000);
+        Log.i(TAG, "Connected using " + STRATEGY_NAMES[winner.mmStrategy]);
+
+        BluetoothSocket socket = winner.mmSocket;
+        mSocket = socket;
+        if (mClosed) {
+            closeQuietly(socket);
+            throw new IOException("Closed while connecting");
+        }
+        if (winner.mmStrategy != preferred)
+            setPreferredStrategy(winner.mmStrategy);
+        mInStream = socket.getInputStream();
+        mOutStream = socket.getOutputStream();
+    }
+
+    private int getPreferredStrategy() {
+        if (mGates == null)
+            return GateProfile.STRATEGY_UNKNOWN;
+        return mGates.getPreferredStrategy(Helpers.parseAddress(mDevice.getAddress()));
+    }
+
+    private void setPreferredStrategy(int strategy) {
+        if (mGates != null)
+            mGates.setPreferredStrategy(Helpers.parseAddress(mDevice.getAddress()), strategy);
+    }
+
+    private BluetoothSocket createSocket(int strategy) throws IOException {
+        try {
+            if (strategy == STRATEGY_SERVICE_RECORD) {
+                Log.d(TAG, "Create socket for service " + mServiceUuid);
+                return mDevice.createInsecureRfcommSocketToServiceRecord(mServiceUuid);
+            }
+            Log.d(TAG, "Create socket on channel 1");
+            Method m = mDevice.getClass().getMethod("createInsecureRfcommSocket", new Class[] { int.class });
+            return (BluetoothSocket) m.invoke(mDevice, 1);
+        } catch (Exception e) {
+            Log.e(TAG, "Socket's create() method failed", e);
+            throw new IOException("Cannot create socket: " + e.getMessage());
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mInStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mOutStream.write(buffer, offset, length);
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMillis) {
+        // RFCOMM sockets cannot time out reads
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        ConnectRace race = mRace;
+        if (race != null)
+            race.cancel();
+        BluetoothSocket socket = mSocket;
+        if (socket != null)
+            closeQuietly(socket);
+    }
+
+    @Override
+    public String getName() {
+        return mDevice.getName();
+    }
+
+    private static void closeQuietly(BluetoothSocket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            Log.e(TAG, "Could not close the client socket", e);
+        }
+    }
+
+    /**
+     * Connects a socket created by one strategy.
+     */
+    private class SocketAttempt implements ConnectRace.Attempt {
+        private final int mmStrategy;
+        private volatile BluetoothSocket mmSocket;
+        private volatile boolean mmAborted;
+
+        SocketAttempt(int strategy) {
+            mmStrategy = strategy;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            long started = System.nanoTime();
+            BluetoothSocket socket = createSocket(mmStrategy);
+            ConnectionPhases.getInstance().record(ConnectionPhases.PHASE_SOCKET_CREATE, (System.nanoTime() - started) / 1000);
+            mmSocket = socket;
+            if (mmAborted) {
+                // Aborted before the socket existed, abort() could not close it
+                closeQuietly(socket);
+                throw new IOException("Aborted");
+            }
+            try {
+                socket.connect();
+            } catch (IOException e) {
+                Log.i(TAG, "Connect using " + STRATEGY_NAMES[mmStrategy] + " failed", e);
+                closeQuietly(socket);
+                throw e;
+            }
+        }
+
+        @Override
+        public void abort() {
+            mmAborted = true;
+            BluetoothSocket socket = mmSocket;
+            if (socket != null)
+                closeQuietly(socket);
+        }
+    }
+}
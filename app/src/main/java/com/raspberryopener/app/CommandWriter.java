@@ -0,0 +1,366 @@
+package com.raspberryopener.app;
+
+import java.io.IOException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded queue of outgoing commands drained by a single writer thread.
+ * <p>
+ * Writing to an RFCOMM socket blocks when the link stalls, so callers only put commands into the
+ * queue and return at once; the writer thread writes them to the transport in order and reports
+ * every result to the callback of the command. When the queue is full the command is rejected
+ * instead of blocking the caller. Closing the writer fails the commands still waiting.
+ * <p>
+ * The queue is a ring of preallocated slots, so queueing and writing a command allocates nothing.
+ * <p>
+ * Instead of a thread of its own the writer can use an executor shared with other connections.
+ * It then takes a thread of the executor only while there are commands to write.
+ * <p>
+ * The gate takes every read as one command, two commands which reach it together are one wrong
+ * command. With {@link #setPacing(long)} the writer holds a command back until the gate answered
+ * the one before, see {@link #onResponse()}, or the pacing gap has passed. A writer on the blocking
+ * pool of an {@link IoLoop} does not wait on the pool meanwhile, a loop timer writes on at the end
+ * of the gap.
+ */
+public class CommandWriter {
+    public static final int DEFAULT_CAPACITY = 16;
+
+    /**
+     * Result of a queued write, called on the writer thread or on the thread which closed the writer.
+     */
+    public interface WriteCallback {
+        /**
+         * @param error null if the command was written
+         */
+        void onWriteDone(byte[] command, IOException error);
+    }
+
+    private final Transport mTransport;
+    private final WriteCallback mListener;
+    // Slots of the queued commands, guarded by mLock
+    private final Object mLock = new Object();
+    private final byte[][] mCommands;
+    private final WriteCallback[] mCallbacks;
+    private final long[] mQueuedAt;
+    private int mHead;
+    private int mCount;
+    private final LatencyHistogram mWriteLatency;
+    private final LatencyHistogram mQueueDepth;
+    private final Thread mThread;      // null when the executor writes
+    private final Executor mExecutor;
+    private final IoLoop mLoop;        // times the pacing gaps when the executor writes, may be null
+    private boolean mDraining;         // a drain task is scheduled on the executor or running, guarded by mLock
+    private final Runnable mDrainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+    private volatile boolean mClosed;
+    private final AtomicLong mRejected = new AtomicLong();
+    private volatile long mPacingNanos;  // 0 to write the commands back to back
+    private boolean mAnswered = true;    // the gate responded since the last write, guarded by mLock
+    private long mLastWriteNanos;        // guarded by mLock
+    private IoLoop.Timer mPacingTimer;   // drains when the pacing gap passed, guarded by mLock
+
+    /**
+     * @param writeLatency receives microseconds from queueing a command until it was written
+     * @param queueDepth receives number of commands waiting, sampled whenever a command is queued
+     */
+    public CommandWriter(Transport transport, int capacity, LatencyHistogram writeLatency, LatencyHistogram queueDepth) {
+        this(transport, capacity, writeLatency, queueDepth, null);
+    }
+
+    /**
+     * @param listener gets the result of every command before its own callback, may be null
+     */
+    public CommandWriter(Transport transport, int capacity, LatencyHistogram writeLatency, LatencyHistogram queueDepth,
+                         WriteCallback listener) {
+        this(transport, capacity, writeLatency, queueDepth, listener, null, null);
+    }
+
+    /**
+     * @param executor runs the writes while there are commands, null to write on a thread of the writer;
+     *                 the writer cannot be paced then
+     */
+    public CommandWriter(Transport transport, int capacity, LatencyHistogram writeLatency, LatencyHistogram queueDepth,
+                         WriteCallback listener, Executor executor) {
+        this(transport, capacity, writeLatency, queueDepth, listener, executor, null);
+    }
+
+    /**
+     * @param loop runs the writes on its blocking pool while there are commands and times the pacing gaps
+     */
+    public CommandWriter(Transport transport, int capacity, LatencyHistogram writeLatency, LatencyHistogram queueDepth,
+                         WriteCallback listener, IoLoop loop) {
+        this(transport, capacity, writeLatency, queueDepth, listener, loop.getBlockingExecutor(), loop);
+    }
+
+    private CommandWriter(Transport transport, int capacity, LatencyHistogram writeLatency, LatencyHistogram queueDepth,
+                          WriteCallback listener, Executor executor, IoLoop loop) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        mTransport = transport;
+        mListener = listener;
+        mCommands = new byte[capacity][];
+        mCallbacks = new WriteCallback[capacity];
+        mQueuedAt = new long[capacity];
+        mWriteLatency = writeLatency;
+        mQueueDepth = queueDepth;
+        mExecutor = executor;
+        mLoop = loop;
+        if (executor != null) {
+            mThread = null;
+            return;
+        }
+        mThread = new Thread(mDrainTask, "CommandWriter " + transport.getName());
+        mThread.setDaemon(true);
+    }
+
+    public void start() {
+        if (mThread != null)
+            mThread.start();
+    }
+
+    /**
+     * Queues a command without blocking.
+     * @param callback may be null
+     * @return false if the command was rejected because the queue is full or the writer is closed
+     */
+    public boolean offer(byte[] command, WriteCallback callback) {
+        int depth;
+        boolean schedule = false;
+        synchronized (mLock) {
+            if (mClosed || mCount == mCommands.length) {
+                mRejected.incrementAndGet();
+                return false;
+            }
+            int slot = (mHead + mCount) % mCommands.length;
+            mCommands[slot] = command;
+            mCallbacks[slot] = callback;
+            mQueuedAt[slot] = System.nanoTime();
+            depth = ++mCount;
+            if (mExecutor == null) {
+                mLock.notify();
+            } else if (!mDraining) {
+                mDraining = true;
+                schedule = true;
+            }
+        }
+        mQueueDepth.record(depth);
+        if (schedule)
+            scheduleDrain();
+        return true;
+    }
+
+    private void scheduleDrain() {
+        try {
+            mExecutor.execute(mDrainTask);
+        } catch (RejectedExecutionException e) {
+            // The executor was shut down, nothing will write the commands any more
+            close();
+        }
+    }
+
+    /**
+     * Holds every command back until the gate responded to the one written before it, at most for
+     * the given time, as the gate may not answer every command.
+     * @param gapMillis 0 to write the commands back to back
+     * @throws IllegalStateException if the writer was given an executor without a loop
+     */
+    public void setPacing(long gapMillis) {
+        if (gapMillis != 0 && mExecutor != null && mLoop == null)
+            throw new IllegalStateException("Pacing needs the loop of the executor");
+        mPacingNanos = gapMillis * 1000000L;
+    }
+
+    /**
+     * Tells the writer that the gate responded, the next command may go out at once when paced.
+     */
+    public void onResponse() {
+        if (mPacingNanos == 0)
+            return;
+        IoLoop.Timer timer;
+        synchronized (mLock) {
+            if (mAnswered)
+                return;
+            mAnswered = true;
+            mLock.notifyAll();
+            timer = mPacingTimer;
+            mPacingTimer = null;
+        }
+        // The drain waiting for the gap writes on at once
+        if (timer != null) {
+            timer.cancel();
+            scheduleDrain();
+        }
+    }
+
+    /**
+     * @return number of commands waiting to be written
+     */
+    public int getQueueDepth() {
+        synchronized (mLock) {
+            return mCount;
+        }
+    }
+
+    /**
+     * @return number of commands rejected since the writer was created
+     */
+    public long getRejectedCount() {
+        return mRejected.get();
+    }
+
+    /**
+     * Stops the writer thread and fails the commands which were not written. Does not close the
+     * transport, a write blocked in it ends only when the transport is closed.
+     */
+    public void close() {
+        IoLoop.Timer timer;
+        synchronized (mLock) {
+            if (mClosed)
+                return;
+            mClosed = true;
+            mLock.notifyAll();
+            timer = mPacingTimer;
+            mPacingTimer = null;
+        }
+        if (timer != null)
+            timer.cancel();
+        // Ends a write blocked in a transport which reacts to interrupts
+        if (mThread != null)
+            mThread.interrupt();
+        failPending();
+    }
+
+    private void drain() {
+        while (true) {
+            byte[] command;
+            WriteCallback callback;
+            long queuedAt;
+            synchronized (mLock) {
+                while (mCount == 0 && !mClosed && mExecutor == null) {
+                    try {
+                        mLock.wait();
+                    } catch (InterruptedException e) {
+                        break;
+                    }
+                }
+                if (mLoop == null)
+                    awaitPacing();
+                else if (schedulePacedDrain())
+                    return; // mDraining stays set, the timer drains on
+                if (mClosed || mCount == 0) {
+                    // On the executor the task ends when the queue is empty, the next offer schedules it again
+                    mDraining = false;
+                    break;
+                }
+                command = mCommands[mHead];
+                callback = mCallbacks[mHead];
+                queuedAt = mQueuedAt[mHead];
+                removeHead();
+                mAnswered = false;
+            }
+            IOException error = null;
+            try {
+                mTransport.write(command, 0, command.length);
+                long written = System.nanoTime();
+                mWriteLatency.record((written - queuedAt) / 1000);
+                if (mPacingNanos != 0) {
+                    synchronized (mLock) {
+                        mLastWriteNanos = written;
+                    }
+                }
+            } catch (IOException e) {
+                error = e;
+            }
+            report(command, callback, error);
+        }
+        // Only a closed writer fails the rest, an idle executor task may be followed by a new one at once
+        if (mClosed)
+            failPending();
+    }
+
+    // Called with mLock held, waits until the gate responded to the last command or the gap passed
+    private void awaitPacing() {
+        long remaining;
+        while ((remaining = getPacingRemaining()) > 0) {
+            try {
+                mLock.wait(remaining / 1000000L, (int) (remaining % 1000000L));
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    // Called with mLock held on the executor, waiting there would keep a thread the other connections
+    // write and connect on; returns false if the next command can be written now
+    private boolean schedulePacedDrain() {
+        long remaining = getPacingRemaining();
+        if (remaining <= 0)
+            return false;
+        final IoLoop.Timer[] self = new IoLoop.Timer[1];
+        try {
+            mPacingTimer = self[0] = mLoop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (mLock) {
+                        // A response or close() took the timer over
+                        if (mPacingTimer != self[0])
+                            return;
+                        mPacingTimer = null;
+                    }
+                    scheduleDrain();
+                }
+            }, remaining, TimeUnit.NANOSECONDS);
+        } catch (IllegalStateException e) {
+            // The loop was shut down, write without pacing
+            return false;
+        }
+        return true;
+    }
+
+    // Called with mLock held, nanoseconds until the next command may be written
+    private long getPacingRemaining() {
+        if (mPacingNanos == 0 || mAnswered || mCount == 0 || mClosed)
+            return 0;
+        return mLastWriteNanos + mPacingNanos - System.nanoTime();
+    }
+
+    private void failPending() {
+        IOException error = null;
+        while (true) {
+            byte[] command;
+            WriteCallback callback;
+            synchronized (mLock) {
+                if (mCount == 0)
+                    return;
+                command = mCommands[mHead];
+                callback = mCallbacks[mHead];
+                removeHead();
+            }
+            if (error == null)
+                error = new IOException("Connection closed");
+            report(command, callback, error);
+        }
+    }
+
+    // Called with mLock held, drops the references so that the slot does not keep the command alive
+    private void removeHead() {
+        mCommands[mHead] = null;
+        mCallbacks[mHead] = null;
+        mHead = (mHead + 1) % mCommands.length;
+        mCount--;
+    }
+
+    private void report(byte[] command, WriteCallback callback, IOException error) {
+        if (mListener != null)
+            mListener.onWriteDone(command, error);
+        if (callback != null)
+            callback.onWriteDone(command, error);
+    }
+}
@@ -0,0 +1,167 @@
+package com.raspberryopener.app;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.Executor;
+
+/**
+ * Runs several ways of connecting to the same device at once and keeps the first one that succeeds.
+ * <p>
+ * Attempts are started in the given order, each on a thread of its own or of the given executor. The next attempt starts once the
+ * head start of the previous one has passed, or right away when all started attempts have failed, so
+ * with no head start all of them run in parallel. As soon as one attempt connects, all the others are
+ * aborted; an attempt which connects after the race is decided aborts itself.
+ * <p>
+ * A race can be run only once.
+ */
+public class ConnectRace {
+
+    public interface Attempt {
+        /**
+         * Connects, blocking until it succeeds or fails.
+         */
+        void connect() throws IOException;
+
+        /**
+         * Closes whatever the attempt has opened, making a running {@link #connect()} fail.
+         * Can be called from any thread, also before connect() starts or after it has finished.
+         */
+        void abort();
+    }
+
+    private static final int NO_WINNER = -1;
+
+    private final Attempt[] mAttempts;
+    private final long mHeadStartMillis;
+    private final Executor mExecutor; // null to start a thread for every attempt
+    private int mStarted;
+    private int mFailed;
+    private int mWinner = NO_WINNER;
+    private boolean mCancelled;
+    private IOException mLastError;
+
+    /**
+     * @param attempts attempts in the order they should be started, the most promising first
+     * @param headStartMillis how long an attempt runs alone before the next one is started
+     */
+    public ConnectRace(Attempt[] attempts, long headStartMillis) {
+        this(attempts, headStartMillis, null);
+    }
+
+    /**
+     * @param executor runs the attempts, it must be able to run all of them at once, e.g.
+     *                 {@link IoLoop#getConnectionExecutor()}; null to start a thread for every attempt
+     */
+    public ConnectRace(Attempt[] attempts, long headStartMillis, Executor executor) {
+        if (attempts.length == 0)
+            throw new IllegalArgumentException("Nothing to race");
+        mAttempts = attempts;
+        mHeadStartMillis = headStartMillis;
+        mExecutor = executor;
+    }
+
+    /**
+     * Runs the race, blocking until an attempt connects.
+     * @return index of the attempt which connected, the others are aborted
+     * @throws SocketTimeoutException if no attempt connected in time
+     * @throws IOException error of the last failed attempt if all of them failed, or if the race was cancelled
+     */
+    public int run(long timeoutMillis) throws IOException {
+        long now = System.nanoTime() / 1000000L;
+        long deadline = timeoutMillis > 0 ? now + timeoutMillis : Long.MAX_VALUE;
+        long nextStart = now;
+        int winner;
+        IOException error = null;
+        synchronized (this) {
+            while (true) {
+                if (mWinner != NO_WINNER || mCancelled)
+                    break;
+                if (mFailed == mAttempts.length) {
+                    error = mLastError;
+                    break;
+                }
+                now = System.nanoTime() / 1000000L;
+                if (now >= deadline) {
+                    error = new SocketTimeoutException("Connect timed out after " + timeoutMillis + " ms");
+                    break;
+                }
+                if (mStarted < mAttempts.length && (now >= nextStart || mFailed == mStarted)) {
+                    startAttempt(mStarted++);
+                    nextStart = now + mHeadStartMillis;
+                    continue;
+                }
+                long wakeUp = mStarted < mAttempts.length ? Math.min(deadline, nextStart) : deadline;
+                try {
+                    wait(Math.max(1, wakeUp - now));
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    mCancelled = true;
+                    error = new InterruptedIOException("Connect interrupted");
+                }
+            }
+            if (mWinner == NO_WINNER) {
+                // Attempts which connect from now on lose
+                mCancelled = true;
+                if (error == null)
+                    error = new IOException("Connect cancelled");
+            }
+            winner = mWinner;
+        }
+        // Abort outside of the lock, closing a socket may block
+        for (int i = 0; i < mAttempts.length; i++) {
+            if (i != winner)
+                mAttempts[i].abort();
+        }
+        if (winner == NO_WINNER)
+            throw error;
+        return winner;
+    }
+
+    /**
+     * Aborts all attempts, a running {@link #run(long)} throws an IOException.
+     */
+    public void cancel() {
+        synchronized (this) {
+            mCancelled = true;
+            notifyAll();
+        }
+        for (Attempt attempt : mAttempts)
+            attempt.abort();
+    }
+
+    private void startAttempt(final int index) {
+        Runnable attempt = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    mAttempts[index].connect();
+                } catch (IOException e) {
+                    synchronized (ConnectRace.this) {
+                        mFailed++;
+                        mLastError = e;
+                        ConnectRace.this.notifyAll();
+                    }
+                    return;
+                }
+                boolean won;
+                synchronized (ConnectRace.this) {
+                    won = mWinner == NO_WINNER && !mCancelled;
+                    if (won) {
+                        mWinner = index;
+                        ConnectRace.this.notifyAll();
+                    }
+                }
+                if (!won)
+                    mAttempts[index].abort();
+            }
+        };
+        if (mExecutor != null) {
+            mExecutor.execute(attempt);
+            return;
+        }
+        Thread thread = new Thread(attempt, "ConnectRace attempt " + index);
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
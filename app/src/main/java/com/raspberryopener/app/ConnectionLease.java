@@ -0,0 +1,129 @@
+package com.raspberryopener.app;
+
+/**
+ * Reference counted lease on the gate connection.
+ * <p>
+ * Every consumer of the connection acquires the lease while it needs the connection
+ * and releases it afterwards. When the last holder releases it, the connection is not
+ * torn down at once but kept for an idle window, so that coming back to the app
+ * shortly after does not need a new Bluetooth power-up, connect and login. The owner
+ * of the lease calls {@link #evictIfIdle()} once {@link #getMillisUntilEviction()} has
+ * passed, which runs the eviction callback if nobody acquired the lease meanwhile.
+ */
+public class ConnectionLease {
+
+    /**
+     * Monotonic time source, replaced by a fake one in tests.
+     */
+    public interface Clock {
+        long uptimeMillis();
+    }
+
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long uptimeMillis() {
+            return System.nanoTime() / 1000000L;
+        }
+    };
+
+    private static final long NOT_IDLE = -1;
+
+    private final Clock mClock;
+    private long mIdleMillis;
+    private Runnable mOnEvict;
+    private int mHolders;
+    private long mIdleSince = NOT_IDLE;
+
+    /**
+     * @param idleMillis how long the connection is kept after the last holder released it
+     */
+    public ConnectionLease(Clock clock, long idleMillis) {
+        mClock = clock;
+        setIdleMillis(idleMillis);
+    }
+
+    /**
+     * @param onEvict called when the idle window has passed, it tears the connection down
+     */
+    public synchronized void setOnEvictListener(Runnable onEvict) {
+        mOnEvict = onEvict;
+    }
+
+    public synchronized void setIdleMillis(long idleMillis) {
+        if (idleMillis < 0)
+            throw new IllegalArgumentException("Idle window cannot be negative: " + idleMillis);
+        mIdleMillis = idleMillis;
+    }
+
+    public synchronized long getIdleMillis() {
+        return mIdleMillis;
+    }
+
+    public synchronized void acquire() {
+        mHolders++;
+        mIdleSince = NOT_IDLE;
+    }
+
+    public synchronized void release() {
+        if (mHolders == 0)
+            throw new IllegalStateException("Lease released more times than acquired");
+        if (--mHolders == 0)
+            mIdleSince = mClock.uptimeMillis();
+    }
+
+    public synchronized int getHolders() {
+        return mHolders;
+    }
+
+    /**
+     * @return true if nobody holds the lease and the connection has not been evicted yet
+     */
+    public synchronized boolean isIdle() {
+        return mIdleSince != NOT_IDLE;
+    }
+
+    /**
+     * @return time left until the idle connection should be evicted, 0 if it should be evicted now,
+     *         -1 if the lease is held or there is nothing to evict
+     */
+    public synchronized long getMillisUntilEviction() {
+        if (mIdleSince == NOT_IDLE)
+            return -1;
+        return Math.max(0, mIdleSince + mIdleMillis - mClock.uptimeMillis());
+    }
+
+    /**
+     * Evicts the connection if it has been idle for the whole idle window.
+     * @return true if the connection was evicted
+     */
+    public boolean evictIfIdle() {
+        Runnable onEvict;
+        synchronized (this) {
+            if (mIdleSince == NOT_IDLE || mClock.uptimeMillis() - mIdleSince < mIdleMillis)
+                return false;
+            mIdleSince = NOT_IDLE;
+            onEvict = mOnEvict;
+        }
+        // Run outside of the lock, tearing the connection down may take a while
+        if (onEvict != null)
+            onEvict.run();
+        return true;
+    }
+
+    /**
+     * Evicts the connection right away if nobody holds the lease, e.g. when the app is finishing.
+     * @return true if the connection was evicted
+     */
+    public boolean evict() {
+        Runnable onEvict;
+        synchronized (this) {
+            if (mHolders > 0)
+                return false;
+            mIdleSince = NOT_IDLE;
+            onEvict = mOnEvict;
+        }
+        if (onEvict != null)
+            onEvict.run();
+        return true;
+    }
+}
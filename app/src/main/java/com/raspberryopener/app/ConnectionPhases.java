@@ -0,0 +1,267 @@
+package com.raspberryopener.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Latencies of the phases the app goes through between being opened and the gate moving.
+ * <p>
+ * A phase is started and ended from wherever it begins and finishes, which may be different
+ * threads; the time between is taken from the monotonic {@link System#nanoTime()} clock and
+ * recorded in microseconds into the histogram of the phase. Ending a phase which was not started,
+ * or was already ended, records nothing. The histograms are saved to a file so that they
+ * accumulate across sessions.
+ * <p>
+ * Phases of a connection, like the login, are timed by a {@link Stopwatch} of the session, so that
+ * sessions which are up at the same time do not end each other's phases. Only the durations go
+ * into the shared histograms. The start methods of this class are for the phases of the app.
+ */
+public class ConnectionPhases {
+    public static final int PHASE_DISCOVERY = 0;        // discovery started -> gate device found
+    public static final int PHASE_BONDING = 1;          // bonding requested -> device bonded
+    public static final int PHASE_SOCKET_CREATE = 2;    // RFCOMM socket created
+    public static final int PHASE_SOCKET_CONNECT = 3;   // RFCOMM socket connected
+    public static final int PHASE_LOGIN = 4;            // login sent -> login status received
+    public static final int PHASE_FIRST_GATE_STATE = 5; // app opened without connection -> first gate state received
+    public static final int PHASE_GATE_OPEN = 6;        // open command sent -> gate opened
+    public static final int PHASE_RECONNECT = 7;        // connection failed or lost -> connected again automatically
+    public static final int PHASE_COLD_START = 8;       // activity created -> first connect attempt
+    public static final int PHASE_CONNECT_TO_LOGIN = 9; // socket connected -> login written
+    public static final int PHASE_COUNT = 10;
+
+    public static final String FILE_NAME = "connection_phases.bin";
+
+    private static final String[] PHASE_NAMES = {
+            "discovery", "bonding", "socket_create", "socket_connect", "login", "first_gate_state", "gate_open",
+            "reconnect", "cold_start", "connect_to_login"
+    };
+    private static final int FILE_MAGIC = 0x43504831;
+    private static final long NOT_STARTED = Long.MIN_VALUE;
+
+    private static final ConnectionPhases sInstance = new ConnectionPhases();
+
+    private final LatencyHistogram[] mHistograms = new LatencyHistogram[PHASE_COUNT];
+    private final Stopwatch mStopwatch = new Stopwatch(); // phases of the app
+    private boolean mLoaded;
+    private long mSavedCount; // durations recorded when last saved
+
+    /**
+     * Start times of the phases of one session, the durations are recorded into the histograms of
+     * the {@link ConnectionPhases} which created it.
+     */
+    public class Stopwatch {
+        private final AtomicLongArray mmStartedNanos = new AtomicLongArray(PHASE_COUNT);
+
+        Stopwatch() {
+            cancelAll();
+        }
+
+        public void start(int phase) {
+            mmStartedNanos.set(phase, System.nanoTime());
+        }
+
+        public void cancel(int phase) {
+            mmStartedNanos.set(phase, NOT_STARTED);
+        }
+
+        public boolean isStarted(int phase) {
+            return mmStartedNanos.get(phase) != NOT_STARTED;
+        }
+
+        /**
+         * Ends the phase and records how long it took.
+         * @return duration of the phase in microseconds, -1 if the phase was not started
+         */
+        public long end(int phase) {
+            long started = mmStartedNanos.getAndSet(phase, NOT_STARTED);
+            if (started == NOT_STARTED)
+                return -1;
+            long micros = (System.nanoTime() - started) / 1000;
+            mHistograms[phase].record(micros);
+            return micros;
+        }
+
+        void cancelAll() {
+            for (int i = 0; i < PHASE_COUNT; i++)
+                mmStartedNanos.set(i, NOT_STARTED);
+        }
+    }
+
+    public static ConnectionPhases getInstance() {
+        return sInstance;
+    }
+
+    ConnectionPhases() {
+        for (int i = 0; i < PHASE_COUNT; i++)
+            mHistograms[i] = new LatencyHistogram();
+    }
+
+    public static String getPhaseName(int phase) {
+        return PHASE_NAMES[phase];
+    }
+
+    /**
+     * @return start times for the phases of a new session
+     */
+    public Stopwatch newStopwatch() {
+        return new Stopwatch();
+    }
+
+    public void start(int phase) {
+        mStopwatch.start(phase);
+    }
+
+    public void cancel(int phase) {
+        mStopwatch.cancel(phase);
+    }
+
+    public boolean isStarted(int phase) {
+        return mStopwatch.isStarted(phase);
+    }
+
+    /**
+     * Ends a phase of the app and records how long it took.
+     * @return duration of the phase in microseconds, -1 if the phase was not started
+     */
+    public long end(int phase) {
+        return mStopwatch.end(phase);
+    }
+
+    /**
+     * Records a phase measured by the caller, e.g. around a single blocking call.
+     */
+    public void record(int phase, long micros) {
+        mHistograms[phase].record(micros);
+    }
+
+    public LatencyHistogram getHistogram(int phase) {
+        return mHistograms[phase];
+    }
+
+    public void reset() {
+        for (int i = 0; i < PHASE_COUNT; i++)
+            mHistograms[i].reset();
+        mStopwatch.cancelAll();
+    }
+
+    /**
+     * @return e.g. "count 12, p50 820 ms, p90 1.4 s, p99 2.1 s, max 2.1 s"
+     */
+    public String summarize(int phase) {
+        LatencyHistogram.Snapshot snapshot = mHistograms[phase].snapshot();
+        if (snapshot.getCount() == 0)
+            return "No data";
+        return "count " + snapshot.getCount()
+                + ", p50 " + formatMicros(snapshot.getPercentile(0.5))
+                + ", p90 " + formatMicros(snapshot.getPercentile(0.9))
+                + ", p99 " + formatMicros(snapshot.getPercentile(0.99))
+                + ", max " + formatMicros(snapshot.getMax());
+    }
+
+    /**
+     * @return all phases as CSV with milliseconds, one line per phase
+     */
+    public String exportCsv() {
+        StringBuilder csv = new StringBuilder("phase,count,mean_ms,p50_ms,p90_ms,p99_ms,max_ms\n");
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            LatencyHistogram.Snapshot snapshot = mHistograms[i].snapshot();
+            csv.append(PHASE_NAMES[i]).append(',').append(snapshot.getCount())
+                    .append(',').append(toMillis((long) snapshot.getMean()))
+                    .append(',').append(toMillis(snapshot.getPercentile(0.5)))
+                    .append(',').append(toMillis(snapshot.getPercentile(0.9)))
+                    .append(',').append(toMillis(snapshot.getPercentile(0.99)))
+                    .append(',').append(toMillis(snapshot.getMax()))
+                    .append('\n');
+        }
+        return csv.toString();
+    }
+
+    /**
+     * Adds the histograms saved by {@link #save(File)} to the current ones. Only the first call
+     * reads the file, so that the saved values are not counted twice when the activity is recreated.
+     */
+    public synchronized void load(File file) throws IOException {
+        if (mLoaded)
+            return;
+        mLoaded = true;
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            // Nothing saved yet
+            return;
+        }
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a connection phases file: " + file);
+            int phases = in.readUnsignedByte();
+            LatencyHistogram.Snapshot[] snapshots = new LatencyHistogram.Snapshot[phases];
+            for (int i = 0; i < phases; i++)
+                snapshots[i] = LatencyHistogram.Snapshot.readFrom(in);
+            // Phases added by a newer version are skipped, missing ones stay empty
+            for (int i = 0; i < Math.min(phases, PHASE_COUNT); i++) {
+                mHistograms[i].add(snapshots[i]);
+                // What came from the file does not have to be saved again
+                mSavedCount += snapshots[i].getCount();
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * @return true if durations were recorded or reset since the last {@link #save(File)}
+     */
+    public synchronized boolean isDirty() {
+        return getRecordCount() != mSavedCount;
+    }
+
+    private long getRecordCount() {
+        long count = 0;
+        for (int i = 0; i < PHASE_COUNT; i++)
+            count += mHistograms[i].getCount();
+        return count;
+    }
+
+    /**
+     * Saves the histograms, the file is replaced only after it has been written completely.
+     */
+    public synchronized void save(File file) throws IOException {
+        // Durations recorded while writing keep the phases dirty
+        long count = getRecordCount();
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeByte(PHASE_COUNT);
+            for (int i = 0; i < PHASE_COUNT; i++)
+                mHistograms[i].snapshot().writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        mSavedCount = count;
+    }
+
+    private static String formatMicros(long micros) {
+        if (micros < 1000)
+            return micros + " us";
+        if (micros < 1000000)
+            return (micros / 1000) + " ms";
+        return String.format(Locale.US, "%.1f s", micros / 1000000.0);
+    }
+
+    private static String toMillis(long micros) {
+        return String.format(Locale.US, "%.1f", micros / 1000.0);
+    }
+}
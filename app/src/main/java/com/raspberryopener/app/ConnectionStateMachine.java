@@ -0,0 +1,203 @@
+package com.raspberryopener.app;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Lock-free holder of the {@link ServiceStates} state of the connection.
+ * <p>
+ * Every state has a bit in a 64-bit mask, so a check like "may the app write in this state" is a
+ * single AND. Each state has a mask of the states it may move to; a transition outside of it is
+ * refused and counted, as it means an event arrived from a thread whose connection is already gone.
+ * <p>
+ * The state is kept together with a sequence number in one {@link AtomicLong} and changed by
+ * compare-and-set, so every applied transition increments the sequence exactly once and concurrent
+ * writers can neither overwrite each other unnoticed nor see a half-written state.
+ */
+public class ConnectionStateMachine implements ServiceStates {
+
+    // Bit index of every state, the state values are not contiguous
+    private static final int[] STATES = {
+            STATE_BLUETOOTH_NOT_SUPPORTED, STATE_BLUETOOTH_OFF, STATE_BLUETOOTH_ON_SEARCH,
+            STATE_NONE, STATE_LISTEN, STATE_CONNECTING, STATE_CONNECTED, STATE_CONNECTION_FAILED,
+            STATE_CONNECTION_LOST, STATE_LOGGED_IN, STATE_WRONG_DATA, STATE_WRONG_USERNAME,
+            STATE_WRONG_PASSWORD, STATE_GATE_OPENING, STATE_GATE_CLOSING, STATE_GATE_OPENED,
+            STATE_GATE_CLOSED, STATE_OBSTACLE, STATE_OBSTACLE_REMOVED, STATE_OBSTACLE_REMOVED_GATE_OPENED,
+            STATE_OBSTACLE_REMOVED_GATE_CLOSED,
+    };
+    private static final String[] NAMES = {
+            "bluetooth_not_supported", "bluetooth_off", "bluetooth_on_search",
+            "none", "listen", "connecting", "connected", "connection_failed",
+            "connection_lost", "logged_in", "wrong_data", "wrong_username",
+            "wrong_password", "gate_opening", "gate_closing", "gate_opened",
+            "gate_closed", "obstacle", "obstacle_removed", "obstacle_removed_gate_opened",
+            "obstacle_removed_gate_closed",
+    };
+    public static final int STATE_COUNT = STATES.length;
+    private static final int MIN_STATE = STATE_BLUETOOTH_NOT_SUPPORTED;
+    private static final int[] INDEX = new int[STATE_OBSTACLE_REMOVED_GATE_CLOSED - MIN_STATE + 1];
+
+    static {
+        for (int i = 0; i < INDEX.length; i++)
+            INDEX[i] = -1;
+        for (int i = 0; i < STATES.length; i++)
+            INDEX[STATES[i] - MIN_STATE] = i;
+    }
+
+    // Not connected to the gate
+    public static final long IDLE = bits(STATE_BLUETOOTH_NOT_SUPPORTED, STATE_BLUETOOTH_OFF, STATE_BLUETOOTH_ON_SEARCH,
+            STATE_NONE, STATE_LISTEN, STATE_CONNECTION_FAILED, STATE_CONNECTION_LOST);
+
+    // Connected to the gate, the states gate messages lead to
+    public static final long SESSION = bits(STATE_CONNECTED, STATE_LOGGED_IN, STATE_WRONG_DATA, STATE_WRONG_USERNAME,
+            STATE_WRONG_PASSWORD, STATE_GATE_OPENING, STATE_GATE_CLOSING, STATE_GATE_OPENED, STATE_GATE_CLOSED,
+            STATE_OBSTACLE, STATE_OBSTACLE_REMOVED, STATE_OBSTACLE_REMOVED_GATE_OPENED, STATE_OBSTACLE_REMOVED_GATE_CLOSED);
+
+    // Commands can be sent to the gate, not while it reports an obstacle
+    public static final long CAN_WRITE = SESSION & ~bits(STATE_OBSTACLE);
+
+    // States reachable from every state: stopping, the adapter going away and a new connect
+    private static final long ALWAYS = bits(STATE_NONE, STATE_BLUETOOTH_OFF, STATE_BLUETOOTH_NOT_SUPPORTED, STATE_CONNECTING);
+
+    private static final long[] ALLOWED = new long[STATES.length];
+
+    static {
+        for (int i = 0; i < STATES.length; i++) {
+            int state = STATES[i];
+            long allowed = ALWAYS | bits(state);
+            if ((bits(state) & IDLE) != 0)
+                allowed |= IDLE;
+            else if (state == STATE_CONNECTING)
+                allowed |= bits(STATE_CONNECTED, STATE_CONNECTION_FAILED, STATE_BLUETOOTH_ON_SEARCH);
+            else if ((bits(state) & SESSION) != 0)
+                allowed |= SESSION & ~bits(STATE_CONNECTED) | bits(STATE_CONNECTION_LOST);
+            ALLOWED[i] = allowed;
+        }
+    }
+
+    private static final long STATE_MASK = 0xFFFFFFFFL;
+
+    // Returned by moveTo() for a refused transition, -1 is STATE_BLUETOOTH_NOT_SUPPORTED
+    public static final int REFUSED = Integer.MIN_VALUE;
+
+    private final AtomicLong mValue; // sequence number in the high half, state in the low half
+    private final AtomicLong mIllegal = new AtomicLong();
+    private final AtomicLong mContended = new AtomicLong();
+
+    public ConnectionStateMachine(int initialState) {
+        bit(initialState);
+        mValue = new AtomicLong(initialState & STATE_MASK);
+    }
+
+    public int get() {
+        return (int) mValue.get();
+    }
+
+    /**
+     * @return number of transitions applied so far
+     */
+    public long getSequence() {
+        return mValue.get() >>> 32;
+    }
+
+    /**
+     * @return true if the current state is one of the states in the mask
+     */
+    public boolean is(long mask) {
+        return (bit(get()) & mask) != 0;
+    }
+
+    public static boolean isAllowed(int from, int to) {
+        return (ALLOWED[indexOf(from)] & bit(to)) != 0;
+    }
+
+    /**
+     * Moves to the state from whatever the current state is, if the transition table allows it.
+     * @return the state which was left, read by the same compare-and-set which changed it; {@link #REFUSED}
+     *         if the transition is not allowed from the current state, it is counted as illegal
+     */
+    public int moveTo(int state) {
+        long targetBit = bit(state);
+        while (true) {
+            long value = mValue.get();
+            if ((ALLOWED[indexOf((int) value)] & targetBit) == 0) {
+                mIllegal.incrementAndGet();
+                return REFUSED;
+            }
+            if (mValue.compareAndSet(value, next(value, state)))
+                return (int) value;
+            // Another thread changed the state meanwhile, check the transition again from the new state
+            mContended.incrementAndGet();
+        }
+    }
+
+    /**
+     * Moves from the given state to the new one, only if the state has not changed meanwhile.
+     * @return false if the current state is not {@code from} or the transition is not allowed
+     */
+    public boolean transition(int from, int to) {
+        if (!isAllowed(from, to)) {
+            mIllegal.incrementAndGet();
+            return false;
+        }
+        while (true) {
+            long value = mValue.get();
+            if ((int) value != from) {
+                mContended.incrementAndGet();
+                return false;
+            }
+            if (mValue.compareAndSet(value, next(value, to)))
+                return true;
+        }
+    }
+
+    /**
+     * @return number of refused transitions which the table does not allow
+     */
+    public long getIllegalCount() {
+        return mIllegal.get();
+    }
+
+    /**
+     * @return number of times a transition raced with another one and had to be checked again or was refused
+     */
+    public long getContendedCount() {
+        return mContended.get();
+    }
+
+    public static long bits(int... states) {
+        long mask = 0;
+        for (int state : states)
+            mask |= bit(state);
+        return mask;
+    }
+
+    private static long bit(int state) {
+        return 1L << indexOf(state);
+    }
+
+    /**
+     * @return position of the state among all states, from 0 to {@link #STATE_COUNT} - 1
+     */
+    public static int indexOf(int state) {
+        int offset = state - MIN_STATE;
+        int index = offset >= 0 && offset < INDEX.length ? INDEX[offset] : -1;
+        if (index < 0)
+            throw new IllegalArgumentException("Unknown state " + state);
+        return index;
+    }
+
+    public static int stateAt(int index) {
+        return STATES[index];
+    }
+
+    /**
+     * @return short lower case name of the state, e.g. for metrics
+     */
+    public static String nameOf(int state) {
+        return NAMES[indexOf(state)];
+    }
+
+    private static long next(long value, int state) {
+        return ((value >>> 32) + 1) << 32 | (state & STATE_MASK);
+    }
+}
@@ -5,11 +5,9 @@ import android.bluetooth.BluetoothDevice;
 import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.SharedPreferences;
 import android.os.Handler;
 import android.os.Message;
 import android.os.ParcelUuid;
-import android.preference.PreferenceManager;
 import android.util.Log;
 
 import java.lang.reflect.Method;
@@ -20,15 +18,29 @@ public class DeviceReceiver extends BroadcastReceiver {
 
     private Handler mhandle;
     public boolean pairedDeviceNotExists;
+    private volatile LongIndexMap mGateAddresses = new LongIndexMap(); // parsed when a search starts
     public static final int MSG_BLUETOOTH_DEVICE = 1;
     public static final int MSG_STATE_CHANGED = 2;
     public static final int MSG_BLUETOOTH_DEVICE_PAIRED = 3;
+    public static final int MSG_DISCOVERY_FINISHED = 4;
 
     public DeviceReceiver(Handler mhandle, boolean pairedDeviceNotExists) {
         this.mhandle = mhandle;
         this.pairedDeviceNotExists = pairedDeviceNotExists;
     }
 
+    /**
+     * Takes the addresses of the known gates for the next search, so that a found device is
+     * matched without the registry and its lock.
+     */
+    public void setGates(GateRegistry gates) {
+        mGateAddresses = gates.copyAddresses();
+    }
+
+    boolean isGate(String address) {
+        return mGateAddresses.get(Helpers.parseAddress(address)) != LongIndexMap.NOT_FOUND;
+    }
+
     @Override
     public void onReceive(Context context, Intent intent) {
         String action = intent.getAction();
@@ -37,21 +49,17 @@ public class DeviceReceiver extends BroadcastReceiver {
             // Discovery has found a device. Get the BluetoothDevice
             // object and its info from the Intent.
             BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
-            String deviceName = device.getName();
             String deviceHardwareAddress = device.getAddress(); // MAC address
-            ParcelUuid[] deviceUUIDs = device.getUuids(); // MAC address
-            SharedPreferences sharedPref = PreferenceManager.getDefaultSharedPreferences(context);
-            if(sharedPref.contains("device_address")) {
-                String requiredHardwareAddress = sharedPref.getString("device_address", "").toUpperCase();
-                String requiredOk = "WRONG";
-                if (deviceHardwareAddress.equals(requiredHardwareAddress)) {
-                    Message msg = new Message();
-                    msg.obj = device;
-                    msg.what = MSG_BLUETOOTH_DEVICE;
-                    mhandle.sendMessage(msg);
-                    requiredOk = "OK, UUIDs: " + deviceUUIDs;
-                }
-                Log.i(TAG, deviceName + ", " + deviceHardwareAddress + " - " + requiredOk);
+            // Runs for every nearby device, the address is parsed and probed in the addresses taken for the search
+            if (isGate(deviceHardwareAddress)) {
+                Message msg = new Message();
+                msg.obj = device;
+                msg.what = MSG_BLUETOOTH_DEVICE;
+                mhandle.sendMessage(msg);
+                ParcelUuid[] deviceUUIDs = device.getUuids();
+                Log.i(TAG, device.getName() + ", " + deviceHardwareAddress + " - OK, UUIDs: " + deviceUUIDs);
+            } else if (Log.isLoggable(TAG, Log.DEBUG)) {
+                Log.d(TAG, device.getName() + ", " + deviceHardwareAddress + " - WRONG");
             }
         }else if (BluetoothAdapter.ACTION_STATE_CHANGED.equals(action)) {
             // Bluetooth was turned on, turned off...
@@ -60,6 +68,9 @@ public class DeviceReceiver extends BroadcastReceiver {
             msg.obj = state;
             msg.what = MSG_STATE_CHANGED;
             mhandle.sendMessage(msg);
+        }else if (BluetoothAdapter.ACTION_DISCOVERY_FINISHED.equals(action)) {
+            // The inquiry ended by itself or was cancelled
+            mhandle.sendEmptyMessage(MSG_DISCOVERY_FINISHED);
         }else if(BluetoothDevice.ACTION_PAIRING_REQUEST.equals(action)){
             Log.d(TAG, "ACTION_PAIRING_REQUEST");
             BluetoothDevice pairedDevice = null;
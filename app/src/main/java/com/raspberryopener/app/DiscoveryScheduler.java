@@ -0,0 +1,209 @@
+package com.raspberryopener.app;
+
+import java.util.Random;
+
+/**
+ * Searches for the gate with Bluetooth discovery in bounded scans.
+ * <p>
+ * A scan is cancelled as soon as the gate is found, since a running inquiry slows down the RFCOMM
+ * connection which follows, and otherwise after the scan window if the inquiry does not finish by
+ * itself before. While the gate is not in range the scans are repeated with pauses which grow up
+ * to a maximum, so an absent gate costs a bounded share of radio time. The time from starting the
+ * search until the gate was found is recorded.
+ * <p>
+ * Not thread safe, all methods and the callbacks posted to the {@link Clock} run on one thread,
+ * the main thread in the app.
+ */
+public class DiscoveryScheduler {
+    public static final long DEFAULT_SCAN_WINDOW_MILLIS = 12000;  // a standard inquiry takes about 10.24 s
+    public static final long DEFAULT_MIN_PAUSE_MILLIS = 2000;
+    public static final long DEFAULT_MAX_PAUSE_MILLIS = 60000;
+
+    private static final int STATE_IDLE = 0;
+    private static final int STATE_SCANNING = 1;
+    private static final int STATE_PAUSED = 2;
+
+    /**
+     * Bluetooth adapter, e.g. BluetoothAdapter.
+     */
+    public interface Radio {
+        /**
+         * @return false if discovery could not be started
+         */
+        boolean startDiscovery();
+
+        void cancelDiscovery();
+    }
+
+    /**
+     * Time and delayed callbacks, e.g. SystemClock with a Handler.
+     */
+    public interface Clock {
+        long elapsedMillis();
+
+        void postDelayed(Runnable runnable, long delayMillis);
+
+        void removeCallbacks(Runnable runnable);
+    }
+
+    private final Radio mRadio;
+    private final Clock mClock;
+    private final long mScanWindowMillis;
+    private final ReconnectBackoff mPauses;
+    private final LatencyHistogram mTimeToFind = new LatencyHistogram(); // microseconds, as the other latencies
+
+    private int mState = STATE_IDLE;
+    private long mSearchStartedMillis;
+    private long mScanStartedMillis;
+    private int mSearchScans;       // scans of the current search
+    private long mScans;
+    private long mScanMillis;       // radio time of all scans
+    private long mCancelledOnMatch; // scans cut short because the gate was found
+
+    private final Runnable mEndScan = new Runnable() {
+        @Override
+        public void run() {
+            if (mState != STATE_SCANNING)
+                return;
+            // The inquiry did not finish by itself within the window
+            mRadio.cancelDiscovery();
+            endScan();
+            pause();
+        }
+    };
+
+    private final Runnable mNextScan = new Runnable() {
+        @Override
+        public void run() {
+            if (mState == STATE_PAUSED)
+                scan();
+        }
+    };
+
+    public DiscoveryScheduler(Radio radio, Clock clock) {
+        this(radio, clock, DEFAULT_SCAN_WINDOW_MILLIS, new ReconnectBackoff(DEFAULT_MIN_PAUSE_MILLIS,
+                DEFAULT_MAX_PAUSE_MILLIS, ReconnectBackoff.DEFAULT_MULTIPLIER, 0.2, 0, new Random()));
+    }
+
+    /**
+     * @param pauses pauses between scans while the gate is not found, reset for every search
+     */
+    public DiscoveryScheduler(Radio radio, Clock clock, long scanWindowMillis, ReconnectBackoff pauses) {
+        if (scanWindowMillis <= 0)
+            throw new IllegalArgumentException("scanWindowMillis must be positive: " + scanWindowMillis);
+        mRadio = radio;
+        mClock = clock;
+        mScanWindowMillis = scanWindowMillis;
+        mPauses = pauses;
+    }
+
+    /**
+     * Starts searching for the gate, does nothing if a search is running already.
+     */
+    public void start() {
+        if (mState != STATE_IDLE)
+            return;
+        mPauses.reset();
+        mSearchStartedMillis = mClock.elapsedMillis();
+        mSearchScans = 0;
+        scan();
+    }
+
+    /**
+     * Stops the search, the running scan is cancelled.
+     */
+    public void stop() {
+        if (mState == STATE_SCANNING) {
+            mRadio.cancelDiscovery();
+            endScan();
+        }
+        mClock.removeCallbacks(mNextScan);
+        mState = STATE_IDLE;
+    }
+
+    public boolean isSearching() {
+        return mState != STATE_IDLE;
+    }
+
+    /**
+     * Called when discovery found the gate. Ends the search and cancels the running scan.
+     * @return false if there was no search, e.g. the gate was reported once more
+     */
+    public boolean onTargetFound() {
+        if (mState == STATE_IDLE)
+            return false;
+        boolean scanning = mState == STATE_SCANNING;
+        stop();
+        if (scanning)
+            mCancelledOnMatch++;
+        mTimeToFind.record((mClock.elapsedMillis() - mSearchStartedMillis) * 1000);
+        return true;
+    }
+
+    /**
+     * Called when the inquiry finished, by itself or cancelled.
+     */
+    public void onDiscoveryFinished() {
+        if (mState != STATE_SCANNING)
+            return; // cancelled by the scheduler, which already moved on
+        endScan();
+        pause();
+    }
+
+    private void scan() {
+        mScans++;
+        mSearchScans++;
+        mScanStartedMillis = mClock.elapsedMillis();
+        if (!mRadio.startDiscovery()) {
+            // E.g. Bluetooth is turning off, try again after a pause
+            pause();
+            return;
+        }
+        mState = STATE_SCANNING;
+        mClock.postDelayed(mEndScan, mScanWindowMillis);
+    }
+
+    private void endScan() {
+        mClock.removeCallbacks(mEndScan);
+        mScanMillis += mClock.elapsedMillis() - mScanStartedMillis;
+    }
+
+    private void pause() {
+        long delay = mPauses.nextDelayMillis();
+        if (delay == ReconnectBackoff.GIVE_UP) {
+            mState = STATE_IDLE;
+            return;
+        }
+        mState = STATE_PAUSED;
+        mClock.postDelayed(mNextScan, delay);
+    }
+
+    /**
+     * @return microseconds from starting a search until the gate was found, for searches which found it
+     */
+    public LatencyHistogram getTimeToFind() {
+        return mTimeToFind;
+    }
+
+    public long getScanCount() {
+        return mScans;
+    }
+
+    /**
+     * @return scans of the running or last search
+     */
+    public int getSearchScanCount() {
+        return mSearchScans;
+    }
+
+    /**
+     * @return milliseconds the radio spent in discovery started by the scheduler
+     */
+    public long getScanMillis() {
+        return mScanMillis;
+    }
+
+    public long getCancelledOnMatchCount() {
+        return mCancelledOnMatch;
+    }
+}
@@ -0,0 +1,213 @@
+package com.raspberryopener.app;
+
+import android.content.Context;
+import android.content.SharedPreferences;
+import android.os.AsyncTask;
+import android.preference.PreferenceManager;
+import android.util.Log;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+
+/**
+ * Connects the {@link GateRegistry} with the app preferences.
+ * <p>
+ * The settings still edit one gate with {@code device_address} and {@code uuid_service}, the selected
+ * gate. That gate is kept in the registry next to the other ones: it is imported on the first start,
+ * which also moves the socket strategies remembered per device into the registry, and added or
+ * updated whenever the preferences change. Editing the address adds a gate, the previous one stays.
+ * <p>
+ * More gates are added with {@link #importGates(Context, InputStream)} and one of them is made the
+ * edited one with {@link #selectGate(SharedPreferences, GateProfile)}.
+ */
+public class GatePreferences implements SharedPreferences.OnSharedPreferenceChangeListener {
+    private static final String TAG = "GatePreferences";
+
+    public static final String PREF_DEVICE_ADDRESS = "device_address";
+    public static final String PREF_SERVICE_UUID = "uuid_service";
+    static final String PREF_STRATEGY_PREFIX = "rfcomm_strategy_";
+    private static final String PREF_USERNAME = "username";
+    private static final String PREF_PASSWORD = "password";
+
+    private static GatePreferences sInstance;
+
+    private final GateRegistry mRegistry;
+
+    /**
+     * @return registry of the application, loaded on the first call
+     */
+    public static synchronized GateRegistry getRegistry(Context context) {
+        if (sInstance == null) {
+            Context application = context.getApplicationContext();
+            SharedPreferences preferences = PreferenceManager.getDefaultSharedPreferences(application);
+            GateRegistry registry = new GateRegistry();
+            File file = new File(application.getFilesDir(), GateRegistry.FILE_NAME);
+            boolean loaded = false;
+            try {
+                loaded = registry.load(file);
+            } catch (IOException e) {
+                Log.e(TAG, "Cannot load gates, importing them from preferences again", e);
+            }
+            // The default of the settings used to be separated by en dashes, which is not a UUID
+            String uuid = preferences.getString(PREF_SERVICE_UUID, "");
+            if (uuid.indexOf('\u2013') >= 0)
+                preferences.edit().putString(PREF_SERVICE_UUID, uuid.replace('\u2013', '-')).commit();
+            sInstance = new GatePreferences(registry, preferences, !loaded);
+            // Preferences keep listeners weakly, the instance is held by the static field
+            preferences.registerOnSharedPreferenceChangeListener(sInstance);
+            if (!loaded)
+                save(context);
+        }
+        return sInstance.mRegistry;
+    }
+
+    /**
+     * Saves the registry of the application in the background if it changed.
+     */
+    public static void save(Context context) {
+        final GateRegistry registry;
+        synchronized (GatePreferences.class) {
+            if (sInstance == null)
+                return;
+            registry = sInstance.mRegistry;
+        }
+        if (!registry.isDirty())
+            return;
+        final Context appContext = context.getApplicationContext();
+        AsyncTask.SERIAL_EXECUTOR.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    registry.save(new File(appContext.getFilesDir(), GateRegistry.FILE_NAME));
+                } catch (IOException e) {
+                    Log.e(TAG, "Cannot save gates", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * @param migrate true to import the gate of the settings together with its remembered socket strategy
+     */
+    GatePreferences(GateRegistry registry, SharedPreferences preferences, boolean migrate) {
+        mRegistry = registry;
+        if (migrate)
+            migrate(registry, preferences);
+    }
+
+    /**
+     * Adds the gate of the settings to the registry with the socket strategy remembered for it.
+     * @return false if the settings do not describe a gate
+     */
+    static boolean migrate(GateRegistry registry, SharedPreferences preferences) {
+        GateProfile profile = readEditedGate(preferences);
+        if (profile == null)
+            return false;
+        String addressKey = PREF_STRATEGY_PREFIX + preferences.getString(PREF_DEVICE_ADDRESS, "");
+        int strategy = preferences.getInt(addressKey, GateProfile.STRATEGY_UNKNOWN);
+        registry.put(profile.withPreferredStrategy(strategy));
+        return true;
+    }
+
+    @Override
+    public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
+        if (!PREF_DEVICE_ADDRESS.equals(key) && !PREF_SERVICE_UUID.equals(key))
+            return;
+        GateProfile profile = readEditedGate(preferences);
+        if (profile == null) {
+            Log.w(TAG, "Ignoring gate settings which are not an address and a service UUID");
+            return;
+        }
+        // A new service UUID keeps the account and the strategy, it depends on how the device is set up
+        GateProfile previous = mRegistry.find(profile.getAddress());
+        if (previous != null)
+            profile = new GateProfile(profile.getAddress(), profile.getServiceUuid(), previous.getAccount(), previous.getPreferredStrategy());
+        if (!profile.equals(previous))
+            mRegistry.put(profile);
+    }
+
+    /**
+     * @return address of the gate edited in the settings, {@link Helpers#NO_ADDRESS} if there is none
+     */
+    public static long getSelectedAddress(SharedPreferences preferences) {
+        return Helpers.parseAddress(preferences.getString(PREF_DEVICE_ADDRESS, ""));
+    }
+
+    /**
+     * Makes a gate of the registry the one edited in the settings. The app connects to it when it comes
+     * to the foreground next time.
+     */
+    public static void selectGate(SharedPreferences preferences, GateProfile gate) {
+        // Both values in one edit, so the listener never sees the address with the UUID of another gate
+        preferences.edit()
+                .putString(PREF_DEVICE_ADDRESS, Helpers.formatAddress(gate.getAddress()))
+                .putString(PREF_SERVICE_UUID, gate.getServiceUuid().toString().toUpperCase())
+                .apply();
+    }
+
+    /**
+     * Adds the gates listed in a text file to the registry of the application and saves it.
+     * @see #importGates(GateRegistry, BufferedReader)
+     */
+    public static int importGates(Context context, InputStream in) throws IOException {
+        int imported = importGates(getRegistry(context), new BufferedReader(new InputStreamReader(in, "UTF-8")));
+        save(context);
+        return imported;
+    }
+
+    /**
+     * Reads one gate per line: the address, the service UUID and optionally the account, separated by
+     * spaces, tabs or commas. Empty lines and lines starting with {@code #} are skipped, so are lines
+     * which are not a gate. A gate already in the registry gets the new UUID and account but keeps
+     * its socket strategy.
+     * @return number of gates added or updated
+     */
+    static int importGates(GateRegistry registry, BufferedReader reader) throws IOException {
+        int imported = 0;
+        String line;
+        while ((line = reader.readLine()) != null) {
+            line = line.trim();
+            if (line.length() == 0 || line.startsWith("#"))
+                continue;
+            String[] fields = line.split("[\\s,]+");
+            long address = Helpers.parseAddress(fields[0]);
+            if (fields.length < 2 || fields.length > 3 || address == Helpers.NO_ADDRESS || !Helpers.isUuid(fields[1])) {
+                Log.w(TAG, "Skipping line which is not a gate: " + line);
+                continue;
+            }
+            String account = fields.length > 2 ? fields[2] : GateProfile.DEFAULT_ACCOUNT;
+            registry.put(new GateProfile(address, Helpers.makeUuid(fields[1]), account,
+                    registry.getPreferredStrategy(address)));
+            imported++;
+        }
+        return imported;
+    }
+
+    private static GateProfile readEditedGate(SharedPreferences preferences) {
+        if (!preferences.contains(PREF_DEVICE_ADDRESS) || !preferences.contains(PREF_SERVICE_UUID))
+            return null;
+        long address = Helpers.parseAddress(preferences.getString(PREF_DEVICE_ADDRESS, ""));
+        String uuid = preferences.getString(PREF_SERVICE_UUID, "");
+        if (address == Helpers.NO_ADDRESS || !Helpers.isUuid(uuid))
+            return null;
+        return new GateProfile(address, Helpers.makeUuid(uuid), GateProfile.DEFAULT_ACCOUNT, GateProfile.STRATEGY_UNKNOWN);
+    }
+
+    public static String getUsername(SharedPreferences preferences, GateProfile gate) {
+        return preferences.getString(accountKey(PREF_USERNAME, gate), "");
+    }
+
+    public static String getPassword(SharedPreferences preferences, GateProfile gate) {
+        return preferences.getString(accountKey(PREF_PASSWORD, gate), "");
+    }
+
+    // Credentials of other accounts than the default one are stored with the account name appended
+    private static String accountKey(String key, GateProfile gate) {
+        if (gate == null || GateProfile.DEFAULT_ACCOUNT.equals(gate.getAccount()))
+            return key;
+        return key + "_" + gate.getAccount();
+    }
+}
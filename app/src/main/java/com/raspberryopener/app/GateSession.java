@@ -0,0 +1,146 @@
+package com.raspberryopener.app;
+
+/**
+ * Client side of the optional session resumption.
+ * <p>
+ * A gate which supports it follows every successful login with {@code session=<token>&ttl=<seconds>}.
+ * While the token is valid, a new connection does not log in; the app behaves as logged in and sends
+ * the token together with its first command as {@code resume=<token>&<command>}. The gate confirms a
+ * valid token with a new session message and runs the command, or answers {@code sessionExpired}
+ * without running it. Then the app logs in with the credentials and resends the command once the
+ * login succeeds.
+ * <p>
+ * Gates without session support never send a token, so the app always logs in with them.
+ */
+public class GateSession {
+    private static final String SESSION_PREFIX = "session=";
+    private static final String TTL_SEPARATOR = "&ttl=";
+    private static final int MAX_TOKEN_LENGTH = 64;
+    // The token must still be valid when the command reaches the gate
+    static final long EXPIRY_MARGIN_MILLIS = 2000;
+    // A command is resent after a fallback login only shortly after the user gave it
+    static final long PENDING_COMMAND_TIMEOUT_MILLIS = 10000;
+
+    private final ConnectionLease.Clock mClock;
+    private byte[] mToken;
+    private long mExpiresAt;
+    private boolean mResuming;       // connected with the token, the first command has to carry it
+    private byte[] mPendingCommand;  // command sent with the token, resent if the token is refused
+    private long mPendingSince;
+
+    public GateSession(ConnectionLease.Clock clock) {
+        mClock = clock;
+    }
+
+    /**
+     * Stores the token from a {@code session=<token>&ttl=<seconds>} message. The gate sends it after a
+     * login and to confirm a resumed session, so the command sent with the token was accepted.
+     * @return false if the message is malformed, the token is then forgotten
+     */
+    public synchronized boolean onSessionMessage(String message) {
+        mPendingCommand = null;
+        int ttlAt = message.indexOf(TTL_SEPARATOR);
+        if (!message.startsWith(SESSION_PREFIX) || ttlAt < 0) {
+            invalidate();
+            return false;
+        }
+        String token = message.substring(SESSION_PREFIX.length(), ttlAt);
+        long ttlSeconds;
+        try {
+            ttlSeconds = Long.parseLong(message.substring(ttlAt + TTL_SEPARATOR.length()));
+        } catch (NumberFormatException e) {
+            invalidate();
+            return false;
+        }
+        if (!isValidToken(token) || ttlSeconds <= 0) {
+            invalidate();
+            return false;
+        }
+        mToken = token.getBytes();
+        mExpiresAt = mClock.uptimeMillis() + ttlSeconds * 1000;
+        return true;
+    }
+
+    public synchronized boolean hasValidToken() {
+        return mToken != null && mClock.uptimeMillis() < mExpiresAt - EXPIRY_MARGIN_MILLIS;
+    }
+
+    /**
+     * Called when a new connection is up.
+     * @return true if the connection resumes the session and needs no login
+     */
+    public synchronized boolean startResume() {
+        mResuming = hasValidToken();
+        mPendingCommand = null;
+        return mResuming;
+    }
+
+    /**
+     * Prepares a command for sending. The first command of a resumed connection carries the token.
+     * @return bytes to send, or null if the token expired meanwhile; the app has to log in then
+     *         and the command is kept for {@link #onLoggedIn()}
+     */
+    public synchronized byte[] wrap(byte[] command) {
+        if (!mResuming)
+            return command;
+        mResuming = false;
+        setPendingCommand(command);
+        if (!hasValidToken()) {
+            mToken = null;
+            return null;
+        }
+        return GateCommands.resume(mToken, command);
+    }
+
+    /**
+     * The gate refused the token, the app has to log in. The command sent with it is kept for
+     * {@link #onLoggedIn()}.
+     */
+    public synchronized void onSessionExpired() {
+        mToken = null;
+        mResuming = false;
+    }
+
+    /**
+     * @return command to resend after a fallback login, null if there is none
+     */
+    public synchronized byte[] onLoggedIn() {
+        mResuming = false;
+        byte[] command = mPendingCommand;
+        mPendingCommand = null;
+        if (command != null && mClock.uptimeMillis() - mPendingSince > PENDING_COMMAND_TIMEOUT_MILLIS)
+            return null;
+        return command;
+    }
+
+    /**
+     * Forgets the command waiting for a login, e.g. when the connection went down.
+     */
+    public synchronized void clearPendingCommand() {
+        mPendingCommand = null;
+        mResuming = false;
+    }
+
+    public synchronized void invalidate() {
+        mToken = null;
+        mResuming = false;
+        mPendingCommand = null;
+    }
+
+    private void setPendingCommand(byte[] command) {
+        mPendingCommand = command;
+        mPendingSince = mClock.uptimeMillis();
+    }
+
+    // The token is put into a command, it must not contain the command separators
+    private static boolean isValidToken(String token) {
+        if (token.isEmpty() || token.length() > MAX_TOKEN_LENGTH)
+            return false;
+        for (int i = 0; i < token.length(); i++) {
+            char c = token.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c >= '0' && c <= '9' || c == '-' || c == '_'))
+                return false;
+        }
+        return true;
+    }
+}
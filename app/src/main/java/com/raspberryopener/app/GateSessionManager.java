@@ -0,0 +1,167 @@
+package com.raspberryopener.app;
+
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sessions with several gates at the same time, e.g. the two barriers of one entrance.
+ * <p>
+ * Every session is a {@link BluetoothService} of its own with its own state, write queue,
+ * metrics and reconnects, keyed by the address of its gate. All of them run on one {@link IoLoop}
+ * instead of threads per session: the loop thread runs their timers, a connected session keeps one
+ * reader thread, and connecting and writing take a blocking thread only while they run. The loop
+ * has a blocking thread and the connection threads for every allowed session, so a session is never
+ * starved by the others and the threads do not grow beyond them.
+ * <p>
+ * A session which connects to different gates over time, like the one of {@link ActivityMain} which
+ * follows the selected gate, is made with {@link #create(BluetoothService.Listener)}. It runs on the
+ * same loop and counts against the maximum, but is not looked up by address.
+ */
+public class GateSessionManager {
+    private static final String TAG = "GateSessionManager";
+
+    public static final int DEFAULT_MAX_SESSIONS = 4;
+
+    private final int mMaxSessions;
+    private final IoLoop mLoop;
+    private final Map<Long, BluetoothService> mSessions = new HashMap<>();
+    private final List<BluetoothService> mUnboundSessions = new ArrayList<>(); // made by create()
+    private boolean mShutdown;
+
+    public GateSessionManager() {
+        this(DEFAULT_MAX_SESSIONS);
+    }
+
+    public GateSessionManager(int maxSessions) {
+        if (maxSessions <= 0)
+            throw new IllegalArgumentException("maxSessions must be positive: " + maxSessions);
+        mMaxSessions = maxSessions;
+        mLoop = new IoLoop("Gate sessions", maxSessions, maxSessions);
+    }
+
+    public int getMaxSessions() {
+        return mMaxSessions;
+    }
+
+    /**
+     * Connects to a gate. A gate which already has a session is connected again with the new
+     * transport, keeping its state and metrics.
+     * @param backoff reconnects of the session, null to not reconnect
+     * @throws IllegalStateException if the manager already has the maximum number of sessions or is shut down
+     */
+    public BluetoothService open(long address, Transport transport, BluetoothService.Listener listener,
+                                 ReconnectBackoff backoff) {
+        BluetoothService session;
+        synchronized (this) {
+            if (mShutdown)
+                throw new IllegalStateException("Session manager is shut down");
+            session = mSessions.get(address);
+            if (session == null) {
+                checkSessionLimit();
+                session = new BluetoothService(listener, mLoop);
+                mSessions.put(address, session);
+            }
+            Log.i(TAG, "Session with " + Helpers.formatAddress(address) + ", " + getSessionCount() + " open");
+        }
+        // Outside of the lock, the listener of a session may look up sessions while it is connecting
+        session.setListener(listener);
+        session.setReconnectBackoff(backoff);
+        session.connect(transport);
+        return session;
+    }
+
+    /**
+     * Makes a session which is not tied to one gate, it is connected with {@link BluetoothService#connect(Transport)}
+     * on the transports made for {@link BluetoothService#getLoop()}. It is stopped by {@link #shutdown()}.
+     * @throws IllegalStateException if the manager already has the maximum number of sessions or is shut down
+     */
+    public synchronized BluetoothService create(BluetoothService.Listener listener) {
+        if (mShutdown)
+            throw new IllegalStateException("Session manager is shut down");
+        checkSessionLimit();
+        BluetoothService session = new BluetoothService(listener, mLoop);
+        mUnboundSessions.add(session);
+        return session;
+    }
+
+    // Called with the lock held
+    private void checkSessionLimit() {
+        if (getSessionCount() >= mMaxSessions)
+            throw new IllegalStateException("Already " + getSessionCount() + " gate sessions");
+    }
+
+    /**
+     * @return session with the gate, null if there is none
+     */
+    public synchronized BluetoothService get(long address) {
+        return mSessions.get(address);
+    }
+
+    public synchronized int getSessionCount() {
+        return mSessions.size() + mUnboundSessions.size();
+    }
+
+    /**
+     * @return sessions in no particular order, the ones made by {@link #create(BluetoothService.Listener)} included
+     */
+    public synchronized List<BluetoothService> getSessions() {
+        List<BluetoothService> sessions = new ArrayList<>(mSessions.values());
+        sessions.addAll(mUnboundSessions);
+        return sessions;
+    }
+
+    /**
+     * Disconnects from the gate and forgets its session.
+     * @return false if there was no session with the gate
+     */
+    public boolean close(long address) {
+        BluetoothService session;
+        synchronized (this) {
+            session = mSessions.remove(address);
+        }
+        if (session == null)
+            return false;
+        session.stop();
+        return true;
+    }
+
+    /**
+     * @return number of blocking threads which exist now, at most {@link #getMaxSessions()}; the loop and the reader threads not counted
+     */
+    public int getPoolSize() {
+        return mLoop.getBlockingPoolSize();
+    }
+
+    public int getLargestPoolSize() {
+        return mLoop.getLargestBlockingPoolSize();
+    }
+
+    /**
+     * Closes all sessions and stops the loop, the manager cannot be used afterwards.
+     */
+    public void shutdown() {
+        List<BluetoothService> sessions;
+        synchronized (this) {
+            mShutdown = true;
+            sessions = getSessions();
+            mSessions.clear();
+            mUnboundSessions.clear();
+        }
+        for (BluetoothService session : sessions)
+            session.stop();
+        mLoop.shutdown();
+    }
+
+    /**
+     * Waits until the tasks of the closed sessions have ended after {@link #shutdown()}.
+     * @return false if they did not end in time
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return mLoop.awaitTermination(timeout, unit);
+    }
+}
@@ -0,0 +1,130 @@
+package com.raspberryopener.app;
+
+/**
+ * Ping/pong heartbeat of a connection, which measures the round-trip time and detects a dead link.
+ * <p>
+ * A read from a link whose gate walked out of range may block for a long time before the socket
+ * reports an error. With the heartbeat a numbered ping is sent every interval, and the link is
+ * declared dead when the given number of pings in a row got no pong. As the ping after the last
+ * pong is sent at most one interval later, a dead link is detected at most
+ * (miss threshold + 1) intervals after it went silent. A ping or command which got no response
+ * within the command timeout brings the next tick forward, so it is usually noticed sooner.
+ * <p>
+ * Round-trip times are smoothed like TCP does (RFC 6298), which also gives the timeout for
+ * waiting on the response to a command. Thread safe, ticks and pongs usually arrive on
+ * different threads.
+ */
+public class Heartbeat {
+    public static final long DEFAULT_INTERVAL_MILLIS = 5000;
+    public static final int DEFAULT_MISS_THRESHOLD = 3;
+
+    public static final long DEAD = -1; // returned by onTick() when the link is dead
+
+    static final long INITIAL_COMMAND_TIMEOUT_MILLIS = 1000; // before the first round trip was measured, as RFC 6298
+    static final long MIN_COMMAND_TIMEOUT_MILLIS = 200;
+    static final long MAX_COMMAND_TIMEOUT_MILLIS = 10000;
+
+    private final long mIntervalMillis;
+    private final int mMissThreshold;
+    private final LatencyHistogram mRtt; // microseconds
+
+    private long mSequence;
+    private long mSentNanos;
+    private boolean mOutstanding; // last ping has no pong yet
+    private int mMisses;          // pings in a row without pong
+    private long mMissedTotal;
+    private long mSmoothedNanos = -1;
+    private long mVariationNanos;
+
+    /**
+     * @param rtt gets every measured round-trip time in microseconds, e.g. shared by all connections
+     */
+    public Heartbeat(long intervalMillis, int missThreshold, LatencyHistogram rtt) {
+        if (intervalMillis <= 0)
+            throw new IllegalArgumentException("intervalMillis must be positive: " + intervalMillis);
+        if (missThreshold <= 0)
+            throw new IllegalArgumentException("missThreshold must be positive: " + missThreshold);
+        mIntervalMillis = intervalMillis;
+        mMissThreshold = missThreshold;
+        mRtt = rtt;
+    }
+
+    public long getIntervalMillis() {
+        return mIntervalMillis;
+    }
+
+    public int getMissThreshold() {
+        return mMissThreshold;
+    }
+
+    /**
+     * Called every interval, and early when a command or ping got no response in time.
+     * @param nowNanos {@link System#nanoTime()}
+     * @return sequence number of the ping to send, or {@link #DEAD}
+     */
+    public synchronized long onTick(long nowNanos) {
+        if (mOutstanding) {
+            mMisses++;
+            mMissedTotal++;
+            if (mMisses >= mMissThreshold)
+                return DEAD;
+        }
+        mSequence++;
+        mSentNanos = nowNanos;
+        mOutstanding = true;
+        return mSequence;
+    }
+
+    /**
+     * @param sequence number the gate echoed
+     * @return true if the pong answered the last ping and a round trip was measured
+     */
+    public synchronized boolean onPong(long sequence, long nowNanos) {
+        if (sequence <= 0 || sequence > mSequence)
+            return false;
+        // Even a late pong shows that the link is alive
+        mMisses = 0;
+        if (!mOutstanding || sequence != mSequence)
+            return false;
+        mOutstanding = false;
+        long rtt = nowNanos - mSentNanos;
+        if (mSmoothedNanos < 0) {
+            mSmoothedNanos = rtt;
+            mVariationNanos = rtt / 2;
+        } else {
+            mVariationNanos += (Math.abs(mSmoothedNanos - rtt) - mVariationNanos) / 4;
+            mSmoothedNanos += (rtt - mSmoothedNanos) / 8;
+        }
+        if (mRtt != null)
+            mRtt.record(rtt / 1000);
+        return true;
+    }
+
+    /**
+     * @return smoothed round-trip time in microseconds, -1 before the first pong
+     */
+    public synchronized long getSmoothedRttMicros() {
+        return mSmoothedNanos < 0 ? -1 : mSmoothedNanos / 1000;
+    }
+
+    /**
+     * @return how long to wait for the response to a command before the link is checked
+     */
+    public synchronized long getCommandTimeoutMillis() {
+        if (mSmoothedNanos < 0)
+            return INITIAL_COMMAND_TIMEOUT_MILLIS;
+        long millis = (mSmoothedNanos + 4 * mVariationNanos) / 1000000;
+        return Math.max(MIN_COMMAND_TIMEOUT_MILLIS, Math.min(MAX_COMMAND_TIMEOUT_MILLIS, millis));
+    }
+
+    /**
+     * @return pings in a row which got no pong yet
+     */
+    public synchronized int getMisses() {
+        return mMisses;
+    }
+
+    public synchronized long getMissedTotal() {
+        return mMissedTotal;
+    }
+}
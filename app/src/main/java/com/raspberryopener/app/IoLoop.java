@@ -0,0 +1,537 @@
+package com.raspberryopener.app;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * One long-lived thread which runs the timers of every connection of the app and the tasks posted
+ * to it, plus pooled threads for the calls which block.
+ * <p>
+ * The loop thread sleeps until the next timer is due or a task is posted, it does not wake up
+ * while there is nothing to do. Every registered transport is read by a blocking reader on a thread
+ * of its own, only a blocking read notices that an RFCOMM link went away; the reader threads are
+ * kept when a connection ends and reused for the next one. Connecting and writing, which blocks on
+ * an RFCOMM socket when the link stalls, run on a pool of at most the given number of threads.
+ * <p>
+ * However many sessions, reconnects and timers there are, the app has the loop thread, at most the
+ * given number of blocking threads and {@value #THREADS_PER_CONNECTION} connection threads for each
+ * of the given number of connections: a connection is read by one, connecting races its attempts on
+ * two. A transport registered while they are all busy is read once a connection ends. Pooled threads
+ * end after {@value #IDLE_SECONDS} s without work. Tasks on the loop must not block, every other
+ * connection waits for them.
+ * <p>
+ * The pools wait on a monitor instead of being a {@link java.util.concurrent.ThreadPoolExecutor},
+ * whose queue allocates a node for every task: a command writer hands a task to the blocking pool
+ * for nearly every command, see {@link CommandWriter}.
+ */
+public class IoLoop {
+    private final String TAG = "IoLoop";
+
+    public static final int DEFAULT_BLOCKING_THREADS = 2;
+    public static final int DEFAULT_CONNECTIONS = 4;
+    static final int THREADS_PER_CONNECTION = 2; // the reader, or the attempts of a ConnectRace
+    private static final int READ_BUFFER_SIZE = 1024;
+    private static final long IDLE_SECONDS = 30;
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private static IoLoop sDefault;
+
+    /**
+     * Receives what was read from a transport, on the reader thread of the transport.
+     */
+    public interface ReadListener {
+        /**
+         * The bytes are only valid until the method returns.
+         */
+        void onRead(byte[] buffer, int offset, int length);
+
+        /**
+         * Called once when the stream ended or failed, the transport is not read any more.
+         * @param error null at the end of the stream
+         */
+        void onEnd(IOException error);
+    }
+
+    /**
+     * Transport read by a reader thread until it is cancelled or its stream ends.
+     */
+    public class Registration implements Runnable {
+        private final Transport mmTransport;
+        private final ReadListener mmListener;
+        private final byte[] mmBuffer = new byte[READ_BUFFER_SIZE];
+        private volatile boolean mmCancelled;
+
+        Registration(Transport transport, ReadListener listener) {
+            mmTransport = transport;
+            mmListener = listener;
+        }
+
+        /**
+         * Stops calling the listener. Does not close the transport, which has to be closed to
+         * end a read in progress and free the reader thread.
+         */
+        public void cancel() {
+            mmCancelled = true;
+        }
+
+        public boolean isCancelled() {
+            return mmCancelled;
+        }
+
+        // Runs on a reader thread
+        @Override
+        public void run() {
+            IOException error = null;
+            try {
+                while (!mmCancelled) {
+                    int n = mmTransport.read(mmBuffer, 0, mmBuffer.length);
+                    if (n < 0)
+                        break;
+                    if (mmCancelled)
+                        break;
+                    mmListener.onRead(mmBuffer, 0, n);
+                }
+            } catch (IOException e) {
+                error = e;
+            } catch (RuntimeException e) {
+                // The connection cannot be read on, end it like a failed read
+                Log.e(TAG, "Reading " + mmTransport.getName() + " failed", e);
+                error = new IOException(e.toString());
+            } finally {
+                synchronized (mLock) {
+                    mRegistrations--;
+                }
+            }
+            if (mmCancelled)
+                return;
+            mmCancelled = true;
+            try {
+                mmListener.onEnd(error);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Ending " + mmTransport.getName() + " failed", e);
+            }
+        }
+    }
+
+    /**
+     * Task which the loop runs after a delay, once or at a fixed rate.
+     */
+    public class Timer implements Comparable<Timer> {
+        private final Runnable mmTask;
+        private final long mmPeriodNanos; // 0 to run once
+        private final long mmSequence;    // keeps timers due at the same time in order
+        private long mmDueNanos;          // guarded by mLock
+        private volatile boolean mmCancelled;
+
+        Timer(Runnable task, long dueNanos, long periodNanos, long sequence) {
+            mmTask = task;
+            mmDueNanos = dueNanos;
+            mmPeriodNanos = periodNanos;
+            mmSequence = sequence;
+        }
+
+        /**
+         * @return false if the timer already ran or was cancelled; it may also be running just now
+         */
+        public boolean cancel() {
+            synchronized (mLock) {
+                if (mmCancelled)
+                    return false;
+                mmCancelled = true;
+                return mTimers.remove(this);
+            }
+        }
+
+        public boolean isCancelled() {
+            return mmCancelled;
+        }
+
+        @Override
+        public int compareTo(Timer other) {
+            if (mmDueNanos != other.mmDueNanos)
+                return mmDueNanos - other.mmDueNanos < 0 ? -1 : 1;
+            return mmSequence < other.mmSequence ? -1 : mmSequence == other.mmSequence ? 0 : 1;
+        }
+    }
+
+    private final String mName;
+    private final BlockingPool mBlockingPool;
+    private final BlockingPool mReaderPool; // readers and connect attempts, a connection which is up keeps its reader
+
+    // Guarded by mLock
+    private final Object mLock = new Object();
+    private final ArrayDeque<Runnable> mTasks = new ArrayDeque<>();
+    private final PriorityQueue<Timer> mTimers = new PriorityQueue<>();
+    private int mRegistrations;
+    private long mTimerSequence;
+    private Thread mThread;
+    private boolean mShutdown;
+
+    private volatile boolean mSignalled;
+
+    /**
+     * @return loop shared by the services which were not given one of their own
+     */
+    public static synchronized IoLoop getDefault() {
+        if (sDefault == null)
+            sDefault = new IoLoop("BS IoLoop", DEFAULT_BLOCKING_THREADS);
+        return sDefault;
+    }
+
+    /**
+     * Loop for at most {@value #DEFAULT_CONNECTIONS} connections at the same time.
+     * @param name of the loop thread, the blocking threads are numbered after it
+     * @param blockingThreads maximum number of connects and writes which block at the same time
+     */
+    public IoLoop(String name, int blockingThreads) {
+        this(name, blockingThreads, DEFAULT_CONNECTIONS);
+    }
+
+    /**
+     * @param maxConnections number of connections which are up or being connected at the same time
+     *                       the loop has threads for
+     */
+    public IoLoop(String name, int blockingThreads, int maxConnections) {
+        if (blockingThreads <= 0)
+            throw new IllegalArgumentException("blockingThreads must be positive: " + blockingThreads);
+        if (maxConnections <= 0)
+            throw new IllegalArgumentException("maxConnections must be positive: " + maxConnections);
+        mName = name;
+        mBlockingPool = new BlockingPool(name + " blocking ", blockingThreads);
+        mReaderPool = new BlockingPool(name + " reader ", maxConnections * THREADS_PER_CONNECTION);
+    }
+
+    /**
+     * @return runs the calls which may block, e.g. connecting, in the order they were given; never
+     *         the loop thread. Throws {@link RejectedExecutionException} after {@link #shutdown()}.
+     */
+    public Executor getBlockingExecutor() {
+        return mBlockingPool;
+    }
+
+    /**
+     * @return runs calls which wait as long as a connection or an attempt at one, e.g. the attempts
+     *         of a {@link ConnectRace}; the threads are shared with the readers and bounded with them
+     */
+    public Executor getConnectionExecutor() {
+        return mReaderPool;
+    }
+
+    /**
+     * Runs the task on the loop thread, after the tasks posted before it.
+     */
+    public void execute(Runnable task) {
+        synchronized (mLock) {
+            checkRunning();
+            mTasks.add(task);
+        }
+        signal();
+    }
+
+    public Timer schedule(Runnable task, long delay, TimeUnit unit) {
+        return addTimer(task, unit.toNanos(delay), 0);
+    }
+
+    /**
+     * Runs the task every period, the first time after the initial delay. A run which is late
+     * does not move the following ones.
+     */
+    public Timer scheduleAtFixedRate(Runnable task, long initialDelay, long period, TimeUnit unit) {
+        if (period <= 0)
+            throw new IllegalArgumentException("period must be positive: " + period);
+        return addTimer(task, unit.toNanos(initialDelay), unit.toNanos(period));
+    }
+
+    private Timer addTimer(Runnable task, long delayNanos, long periodNanos) {
+        Timer timer;
+        synchronized (mLock) {
+            checkRunning();
+            timer = new Timer(task, System.nanoTime() + Math.max(0, delayNanos), periodNanos, mTimerSequence++);
+            mTimers.add(timer);
+        }
+        signal();
+        return timer;
+    }
+
+    /**
+     * Starts reading the transport on a reader thread, it has to be connected. When the maximum
+     * number of connections is being read, reading starts once one of them ends.
+     */
+    public Registration register(Transport transport, ReadListener listener) {
+        Registration registration = new Registration(transport, listener);
+        synchronized (mLock) {
+            if (mShutdown)
+                throw new IllegalStateException(mName + " is shut down");
+            mRegistrations++;
+        }
+        mReaderPool.execute(registration);
+        return registration;
+    }
+
+    /**
+     * @return true when called from the loop thread
+     */
+    public boolean inLoop() {
+        return Thread.currentThread() == mThread;
+    }
+
+    /**
+     * @return number of transports being read
+     */
+    public int getRegistrationCount() {
+        synchronized (mLock) {
+            return mRegistrations;
+        }
+    }
+
+    /**
+     * @return number of blocking threads which exist now
+     */
+    public int getBlockingPoolSize() {
+        synchronized (mBlockingPool) {
+            return mBlockingPool.mmThreads;
+        }
+    }
+
+    public int getLargestBlockingPoolSize() {
+        synchronized (mBlockingPool) {
+            return mBlockingPool.mmLargest;
+        }
+    }
+
+    /**
+     * @return number of reader threads which exist now, reading or waiting for the next connection
+     */
+    public int getReaderPoolSize() {
+        synchronized (mReaderPool) {
+            return mReaderPool.mmThreads;
+        }
+    }
+
+    public int getLargestReaderPoolSize() {
+        synchronized (mReaderPool) {
+            return mReaderPool.mmLargest;
+        }
+    }
+
+    /**
+     * Stops the loop and the pools. Timers which are not due are dropped, blocking calls which were
+     * already submitted still run. The transports are not closed, their readers end when they are.
+     */
+    public void shutdown() {
+        synchronized (mLock) {
+            mShutdown = true;
+        }
+        signal();
+        mBlockingPool.shutdown();
+        mReaderPool.shutdown();
+    }
+
+    /**
+     * @return false if the loop, a blocking call or a reader did not end in time after {@link #shutdown()}
+     */
+    public boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        Thread thread;
+        synchronized (mLock) {
+            thread = mThread;
+        }
+        if (thread != null) {
+            long millis = TimeUnit.NANOSECONDS.toMillis(deadline - System.nanoTime());
+            if (millis > 0)
+                thread.join(millis);
+            if (thread.isAlive())
+                return false;
+        }
+        return mBlockingPool.awaitTermination(deadline) && mReaderPool.awaitTermination(deadline);
+    }
+
+    // Called with mLock held, starts the loop thread with the first work
+    private void checkRunning() {
+        if (mShutdown)
+            throw new IllegalStateException(mName + " is shut down");
+        if (mThread == null) {
+            mThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    loop();
+                }
+            }, mName);
+            mThread.setDaemon(true);
+            mThread.start();
+        }
+    }
+
+    private void signal() {
+        mSignalled = true;
+        Thread thread = mThread;
+        if (thread != null)
+            LockSupport.unpark(thread);
+    }
+
+    private void loop() {
+        while (true) {
+            synchronized (mLock) {
+                if (mShutdown)
+                    break;
+            }
+            mSignalled = false;
+            runTasks();
+            long nextTimer = runTimers();
+            if (mSignalled)
+                continue;
+            // Nothing to do until the next timer or task, the thread does not wake up before
+            if (nextTimer == NEVER)
+                LockSupport.park(this);
+            else
+                LockSupport.parkNanos(this, nextTimer - System.nanoTime());
+        }
+        Log.i(TAG, mName + " ended");
+    }
+
+    private void runTasks() {
+        while (true) {
+            Runnable task;
+            synchronized (mLock) {
+                task = mTasks.poll();
+            }
+            if (task == null)
+                return;
+            run(task);
+        }
+    }
+
+    // Runs the due timers, returns when the next one is due
+    private long runTimers() {
+        while (true) {
+            Timer timer;
+            synchronized (mLock) {
+                timer = mTimers.peek();
+                if (timer == null)
+                    return NEVER;
+                long now = System.nanoTime();
+                if (timer.mmDueNanos - now > 0)
+                    return timer.mmDueNanos;
+                mTimers.poll();
+                if (timer.mmPeriodNanos != 0) {
+                    // Fixed rate, queued again before it runs so that it can cancel itself
+                    timer.mmDueNanos += timer.mmPeriodNanos;
+                    mTimers.add(timer);
+                }
+            }
+            if (!timer.mmCancelled)
+                run(timer.mmTask);
+        }
+    }
+
+    private void run(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            // One failing task must not stop the loop for every connection
+            Log.e(TAG, "Task failed on " + mName, e);
+        }
+    }
+
+    /**
+     * Threads which are started when a task finds none waiting, and end when they had nothing to
+     * do for {@value #IDLE_SECONDS} s.
+     */
+    private class BlockingPool implements Executor {
+        private final String mmPrefix;
+        private final int mmMaxThreads;
+        // Guarded by this
+        private final ArrayDeque<Runnable> mmQueue = new ArrayDeque<>();
+        private int mmThreads;
+        private int mmWaiting;
+        private int mmLargest;
+        private int mmStarted;
+        private boolean mmShutdown;
+        private final Runnable mmWorker = new Runnable() {
+            @Override
+            public void run() {
+                work();
+            }
+        };
+
+        BlockingPool(String prefix, int maxThreads) {
+            mmPrefix = prefix;
+            mmMaxThreads = maxThreads;
+        }
+
+        @Override
+        public void execute(Runnable task) {
+            int number;
+            synchronized (this) {
+                if (mmShutdown)
+                    throw new RejectedExecutionException(mName + " is shut down");
+                mmQueue.add(task);
+                // Every waiting thread which was not woken up yet takes one task
+                if (mmWaiting >= mmQueue.size()) {
+                    notify();
+                    return;
+                }
+                if (mmThreads == mmMaxThreads)
+                    return; // Runs when a thread is free
+                mmThreads++;
+                mmLargest = Math.max(mmLargest, mmThreads);
+                number = ++mmStarted;
+            }
+            Thread thread = new Thread(mmWorker, mmPrefix + number);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        private void work() {
+            while (true) {
+                Runnable task;
+                synchronized (this) {
+                    long idleUntil = System.nanoTime() + TimeUnit.SECONDS.toNanos(IDLE_SECONDS);
+                    while (mmQueue.isEmpty()) {
+                        long remaining = TimeUnit.NANOSECONDS.toMillis(idleUntil - System.nanoTime());
+                        if (mmShutdown || remaining <= 0) {
+                            mmThreads--;
+                            notifyAll(); // for awaitTermination()
+                            return;
+                        }
+                        mmWaiting++;
+                        try {
+                            wait(remaining);
+                        } catch (InterruptedException e) {
+                            // Only the idle time ends the thread
+                        } finally {
+                            mmWaiting--;
+                        }
+                    }
+                    task = mmQueue.poll();
+                }
+                run(task);
+            }
+        }
+
+        void shutdown() {
+            synchronized (this) {
+                mmShutdown = true;
+                notifyAll();
+            }
+        }
+
+        // Waits until every thread ended, the queued tasks run before
+        synchronized boolean awaitTermination(long deadlineNanos) throws InterruptedException {
+            while (mmThreads > 0) {
+                long millis = TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime());
+                if (millis <= 0)
+                    return false;
+                wait(millis);
+            }
+            return true;
+        }
+    }
+}
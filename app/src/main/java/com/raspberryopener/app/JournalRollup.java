@@ -0,0 +1,291 @@
+package com.raspberryopener.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.TimeZone;
+
+/**
+ * Daily totals of the {@link GateJournal}: gate openings per hour, obstacles and failed logins.
+ * <p>
+ * The rollup remembers up to which record it has counted, so {@link #update(GateJournal)} reads
+ * only the records appended since, and it is saved together with that number. Days are local
+ * days of the time zone, kept by day number in the way {@link GateRegistry} keeps gates. Only
+ * the newest {@link #MAX_DAYS} days are kept.
+ */
+public class JournalRollup {
+    public static final String FILE_NAME = "journal_rollup.bin";
+    public static final int MAX_DAYS = 366;
+
+    private static final int FILE_MAGIC = 0x4A525531;
+    private static final int FILE_VERSION = 1;
+    private static final long DAY_MILLIS = 24 * 60 * 60 * 1000L;
+    private static final long HOUR_MILLIS = 60 * 60 * 1000L;
+
+    /**
+     * Totals of one day.
+     */
+    public static class Day {
+        private final long mDay;
+        private final int[] mOpens = new int[24];
+        private int mObstacles;
+        private int mLoginFailures;
+
+        Day(long day) {
+            mDay = day;
+        }
+
+        /**
+         * @return local days since 1970-01-01
+         */
+        public long getDay() {
+            return mDay;
+        }
+
+        /**
+         * @param hour local hour of the day, 0 to 23
+         */
+        public int getOpens(int hour) {
+            return mOpens[hour];
+        }
+
+        public int getOpens() {
+            int opens = 0;
+            for (int count : mOpens)
+                opens += count;
+            return opens;
+        }
+
+        public int getObstacles() {
+            return mObstacles;
+        }
+
+        public int getLoginFailures() {
+            return mLoginFailures;
+        }
+    }
+
+    private final TimeZone mTimeZone;
+    private Day[] mDays = new Day[8];
+    private int mSize;
+    private final LongIndexMap mIndex = new LongIndexMap();
+    private long mCounted; // number of the next journal record to count
+
+    private final GateJournal.Visitor mCounter = new GateJournal.Visitor() {
+        @Override
+        public void onEvent(long number, long timeMillis, int fromState, int toState) {
+            count(timeMillis, toState);
+        }
+    };
+
+    public JournalRollup() {
+        this(TimeZone.getDefault());
+    }
+
+    public JournalRollup(TimeZone timeZone) {
+        mTimeZone = timeZone;
+    }
+
+    /**
+     * Counts the records appended to the journal since the last update.
+     * @return number of records counted
+     */
+    public synchronized long update(GateJournal journal) {
+        if (mCounted > journal.getEventCount()) {
+            // The journal was started anew, count it from the beginning
+            clear();
+        }
+        long from = Math.max(mCounted, journal.getFirstNumber());
+        mCounted = journal.read(from, mCounter);
+        return mCounted - from;
+    }
+
+    private void count(long timeMillis, int state) {
+        boolean open = state == ServiceStates.STATE_GATE_OPENING;
+        boolean obstacle = state == ServiceStates.STATE_OBSTACLE;
+        boolean loginFailure = state == ServiceStates.STATE_WRONG_PASSWORD || state == ServiceStates.STATE_WRONG_USERNAME
+                || state == ServiceStates.STATE_WRONG_DATA;
+        if (!open && !obstacle && !loginFailure)
+            return;
+        long local = timeMillis + mTimeZone.getOffset(timeMillis);
+        if (local < 0)
+            return; // clock was not set
+        long dayNumber = local / DAY_MILLIS;
+        Day day = getOrAdd(dayNumber);
+        if (day == null)
+            return; // older than every day kept
+        if (open)
+            day.mOpens[(int) ((local - dayNumber * DAY_MILLIS) / HOUR_MILLIS)]++;
+        if (obstacle)
+            day.mObstacles++;
+        if (loginFailure)
+            day.mLoginFailures++;
+    }
+
+    private Day getOrAdd(long dayNumber) {
+        int index = mIndex.get(dayNumber);
+        if (index != LongIndexMap.NOT_FOUND)
+            return mDays[index];
+        if (mSize == MAX_DAYS) {
+            int oldest = oldestIndex();
+            if (mDays[oldest].mDay > dayNumber)
+                return null;
+            remove(oldest);
+        }
+        if (mSize == mDays.length) {
+            Day[] days = new Day[mSize * 2];
+            System.arraycopy(mDays, 0, days, 0, mSize);
+            mDays = days;
+        }
+        Day day = new Day(dayNumber);
+        mDays[mSize] = day;
+        mIndex.put(dayNumber, mSize);
+        mSize++;
+        return day;
+    }
+
+    private int oldestIndex() {
+        int oldest = 0;
+        for (int i = 1; i < mSize; i++) {
+            if (mDays[i].mDay < mDays[oldest].mDay)
+                oldest = i;
+        }
+        return oldest;
+    }
+
+    // Moves the last day into the gap, so that the array stays dense
+    private void remove(int index) {
+        mIndex.remove(mDays[index].mDay);
+        int last = --mSize;
+        if (index != last) {
+            mDays[index] = mDays[last];
+            mIndex.put(mDays[index].mDay, index);
+        }
+        mDays[last] = null;
+    }
+
+    /**
+     * @param dayNumber local days since 1970-01-01, see {@link #dayOf(long)}
+     * @return totals of the day, null if nothing was counted that day
+     */
+    public synchronized Day getDay(long dayNumber) {
+        int index = mIndex.get(dayNumber);
+        return index == LongIndexMap.NOT_FOUND ? null : mDays[index];
+    }
+
+    /**
+     * @return local day of the time, for {@link #getDay(long)}
+     */
+    public long dayOf(long timeMillis) {
+        return (timeMillis + mTimeZone.getOffset(timeMillis)) / DAY_MILLIS;
+    }
+
+    public synchronized int getDayCount() {
+        return mSize;
+    }
+
+    /**
+     * @return number of the next journal record which will be counted
+     */
+    public synchronized long getCountedNumber() {
+        return mCounted;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mSize; i++)
+            mDays[i] = null;
+        mSize = 0;
+        mIndex.clear();
+        mCounted = 0;
+    }
+
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeByte(FILE_VERSION);
+        out.writeLong(mCounted);
+        out.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            Day day = mDays[i];
+            out.writeLong(day.mDay);
+            for (int opens : day.mOpens)
+                out.writeInt(opens);
+            out.writeInt(day.mObstacles);
+            out.writeInt(day.mLoginFailures);
+        }
+    }
+
+    /**
+     * Replaces the totals by the ones written by {@link #writeTo(DataOutputStream)}.
+     */
+    public synchronized void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC)
+            throw new IOException("Not a journal rollup");
+        int version = in.readUnsignedByte();
+        if (version != FILE_VERSION)
+            throw new IOException("Unknown journal rollup version " + version);
+        long counted = in.readLong();
+        int count = in.readInt();
+        if (counted < 0 || count < 0 || count > MAX_DAYS)
+            throw new IOException("Wrong journal rollup " + counted + "/" + count);
+        // Read everything first, a damaged file leaves the rollup unchanged
+        Day[] days = new Day[count];
+        for (int i = 0; i < count; i++) {
+            days[i] = new Day(in.readLong());
+            for (int hour = 0; hour < 24; hour++)
+                days[i].mOpens[hour] = in.readInt();
+            days[i].mObstacles = in.readInt();
+            days[i].mLoginFailures = in.readInt();
+        }
+        clear();
+        for (Day day : days) {
+            if (mSize == mDays.length) {
+                Day[] grown = new Day[mSize * 2];
+                System.arraycopy(mDays, 0, grown, 0, mSize);
+                mDays = grown;
+            }
+            mIndex.put(day.mDay, mSize);
+            mDays[mSize++] = day;
+        }
+        mCounted = counted;
+    }
+
+    /**
+     * Loads the totals saved by {@link #save(File)}.
+     * @return false if nothing was saved yet, the rollup is left unchanged then
+     */
+    public synchronized boolean load(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            readFrom(in);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Saves the totals, the file is replaced only after it has been written completely.
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+    }
+}
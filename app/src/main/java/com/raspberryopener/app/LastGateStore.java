@@ -0,0 +1,99 @@
+package com.raspberryopener.app;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+/**
+ * Address of the gate the app connected to last, so that a cold start can connect to it right
+ * away instead of scanning the bonded devices first.
+ * <p>
+ * The record is a few bytes in a file of its own. It is written only when the gate changes, so
+ * connecting to the same gate again writes nothing.
+ */
+public class LastGateStore {
+    public static final String FILE_NAME = "last_gate.bin";
+
+    private static final int FILE_MAGIC = 0x4C475431;
+
+    private final File mFile;
+    private long mAddress = Helpers.NO_ADDRESS;
+    private boolean mLoaded;
+
+    public LastGateStore(File file) {
+        mFile = file;
+    }
+
+    /**
+     * @return address of the last gate, {@link Helpers#NO_ADDRESS} if there is none. Only the
+     * first call reads the file.
+     */
+    public synchronized long getAddress() throws IOException {
+        if (!mLoaded) {
+            mLoaded = true;
+            mAddress = read(mFile);
+        }
+        return mAddress;
+    }
+
+    /**
+     * @param address {@link Helpers#NO_ADDRESS} to forget the gate, e.g. when it is not bonded anymore
+     * @return true if the gate changed and has to be saved
+     */
+    public synchronized boolean set(long address) {
+        mLoaded = true;
+        if (address == mAddress)
+            return false;
+        mAddress = address;
+        return true;
+    }
+
+    /**
+     * Saves the gate, the file is replaced only after it has been written completely.
+     */
+    public void save() throws IOException {
+        long address;
+        synchronized (this) {
+            address = mAddress;
+        }
+        if (address == Helpers.NO_ADDRESS) {
+            if (mFile.exists() && !mFile.delete())
+                throw new IOException("Cannot delete " + mFile);
+            return;
+        }
+        File temp = new File(mFile.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temp));
+        try {
+            out.writeInt(FILE_MAGIC);
+            out.writeLong(address);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(mFile))
+            throw new IOException("Cannot replace " + mFile);
+    }
+
+    private static long read(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return Helpers.NO_ADDRESS;
+        }
+        try {
+            if (in.readInt() != FILE_MAGIC)
+                throw new IOException("Not a last gate file: " + file);
+            long address = in.readLong();
+            if (address < 0 || address > Helpers.MAX_ADDRESS)
+                throw new IOException("Wrong gate address " + address);
+            return address;
+        } finally {
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,194 @@
+package com.raspberryopener.app;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Log-linear histogram of latencies.
+ * <p>
+ * Values below 16 have a bucket each, every following power of two range is split
+ * into 16 equal buckets, so a value is reported with at most 1/16 relative error
+ * while the whole long range fits into less than a thousand counters. Recording is
+ * lock-free and can be done from any thread; percentiles are computed from a
+ * {@link Snapshot}, which does not block recording threads.
+ * <p>
+ * The unit of the values is up to the caller, the app records microseconds.
+ */
+public class LatencyHistogram {
+    private static final int SUB_BITS = 4;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    static final int BUCKETS = (64 - SUB_BITS) * SUB_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    public void record(long value) {
+        if (value < 0)
+            value = 0;
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+        long max;
+        while (value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+            // Retry, another thread has just raised the maximum
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++)
+            mCounts.set(i, 0);
+        mCount.set(0);
+        mSum.set(0);
+        mMax.set(0);
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        // Count is taken from the buckets so that percentiles stay consistent with them
+        return new Snapshot(counts, count, mSum.get(), mMax.get());
+    }
+
+    /**
+     * Adds all values recorded in the given snapshot, used to restore a saved histogram.
+     */
+    public void add(Snapshot snapshot) {
+        for (int i = 0; i < BUCKETS; i++) {
+            if (snapshot.mCounts[i] != 0)
+                mCounts.addAndGet(i, snapshot.mCounts[i]);
+        }
+        mCount.addAndGet(snapshot.mCount);
+        mSum.addAndGet(snapshot.mSum);
+        long max;
+        while (snapshot.mMax > (max = mMax.get()) && !mMax.compareAndSet(max, snapshot.mMax)) {
+            // Retry, another thread has just raised the maximum
+        }
+    }
+
+    static int bucketOf(long value) {
+        if (value < SUB_COUNT)
+            return (int) value;
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return ((shift + 1) << SUB_BITS) | (int) ((value >>> shift) & (SUB_COUNT - 1));
+    }
+
+    /**
+     * @return highest value which falls into the given bucket
+     */
+    static long bucketUpperBound(int bucket) {
+        if (bucket < SUB_COUNT)
+            return bucket;
+        int shift = (bucket >>> SUB_BITS) - 1;
+        long lower = (long) (SUB_COUNT + (bucket & (SUB_COUNT - 1))) << shift;
+        return lower + (1L << shift) - 1;
+    }
+
+    /**
+     * Immutable copy of a histogram.
+     */
+    public static class Snapshot {
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getSum() {
+            return mSum;
+        }
+
+        public long getMax() {
+            return mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param quantile e.g. 0.99 for the 99th percentile
+         * @return value below or at which the given part of recorded values lies, 0 if nothing was recorded
+         */
+        public long getPercentile(double quantile) {
+            if (mCount == 0)
+                return 0;
+            long rank = (long) Math.ceil(quantile * mCount);
+            if (rank < 1)
+                rank = 1;
+            long seen = 0;
+            for (int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if (seen >= rank)
+                    return Math.min(bucketUpperBound(i), mMax);
+            }
+            return mMax;
+        }
+
+        /**
+         * @return number of values recorded into the bucket with the given upper bound and all lower buckets
+         */
+        public long getCountAtOrBelow(long value) {
+            int last = bucketOf(Math.max(0, value));
+            long seen = 0;
+            for (int i = 0; i <= last; i++)
+                seen += mCounts[i];
+            return seen;
+        }
+
+        public void writeTo(DataOutputStream out) throws IOException {
+            int used = 0;
+            for (long count : mCounts) {
+                if (count != 0)
+                    used++;
+            }
+            out.writeLong(mSum);
+            out.writeLong(mMax);
+            out.writeShort(used);
+            for (int i = 0; i < mCounts.length; i++) {
+                if (mCounts[i] != 0) {
+                    out.writeShort(i);
+                    out.writeLong(mCounts[i]);
+                }
+            }
+        }
+
+        public static Snapshot readFrom(DataInputStream in) throws IOException {
+            long sum = in.readLong();
+            long max = in.readLong();
+            int used = in.readUnsignedShort();
+            long[] counts = new long[BUCKETS];
+            long count = 0;
+            for (int i = 0; i < used; i++) {
+                int bucket = in.readUnsignedShort();
+                if (bucket >= BUCKETS)
+                    throw new IOException("Corrupted histogram, bucket " + bucket);
+                counts[bucket] = in.readLong();
+                count += counts[bucket];
+            }
+            return new Snapshot(counts, count, sum, max);
+        }
+    }
+}
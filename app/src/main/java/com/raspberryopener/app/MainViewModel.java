@@ -5,8 +5,15 @@ import android.util.Log;
 
 public class MainViewModel extends ViewModel {
     private final String TAG = "MainViewModel";
+    public static final long DEFAULT_CONNECTION_IDLE_MILLIS = 30000;
     private BluetoothService bluetoothService;
+    private final GateSessionManager sessionManager = new GateSessionManager();
+    private final ConnectionLease connectionLease = new ConnectionLease(ConnectionLease.SYSTEM_CLOCK, DEFAULT_CONNECTION_IDLE_MILLIS);
+    private final GateSession gateSession = new GateSession(ConnectionLease.SYSTEM_CLOCK);
+    private boolean sessionResume = false;
     private boolean isLogin = false;
+    private String username;
+    private String password;
 
     public BluetoothService getBluetoothService() {
         return bluetoothService;
@@ -14,6 +21,18 @@ public class MainViewModel extends ViewModel {
 
     public void setBluetoothService(BluetoothService BluetoothService) {
         this.bluetoothService = BluetoothService;
+        updateLoginCommand();
+    }
+
+    /**
+     * @return sessions of the app, they end with the view model
+     */
+    public GateSessionManager getSessionManager() {
+        return sessionManager;
+    }
+
+    public ConnectionLease getConnectionLease() {
+        return connectionLease;
     }
 
     public boolean isLogin() {
@@ -22,26 +41,119 @@ public class MainViewModel extends ViewModel {
 
     public void setLogin(boolean isLogin) {
         this.isLogin = isLogin;
+        if (!isLogin) {
+            // Never run a command given for a connection which is gone
+            gateSession.clearPendingCommand();
+        }
+    }
+
+    /**
+     * @param sessionResume true to resume sessions with a token instead of logging in, see {@link GateSession}
+     */
+    public void setSessionResume(boolean sessionResume) {
+        this.sessionResume = sessionResume;
+        if (!sessionResume)
+            gateSession.invalidate();
+        updateLoginCommand();
+    }
+
+    /**
+     * Keeps the credentials for the next connections. Without session resume every connection logs
+     * in with them, so the service sends the login itself as soon as it is connected.
+     */
+    public void setCredentials(String username, String password) {
+        this.username = username;
+        this.password = password;
+        updateLoginCommand();
+    }
+
+    @Override
+    protected void onCleared() {
+        super.onCleared();
+        // Nothing acquires the lease again, the connection does not wait for the idle window
+        connectionLease.setOnEvictListener(null);
+        connectionLease.evict();
+        gateSession.invalidate();
+        sessionManager.shutdown();
+        bluetoothService = null;
+    }
+
+    private void updateLoginCommand() {
+        if (bluetoothService == null)
+            return;
+        // With session resume the token may spare the login, which is only known when connected
+        boolean loginOnConnect = !sessionResume && username != null && password != null;
+        bluetoothService.setLoginCommand(loginOnConnect ? GateCommands.login(username, password) : null);
+    }
+
+    /**
+     * Called when the connection is up.
+     * @param loginSent true if the service already sent the login, see {@link BluetoothService#setLoginCommand(byte[])}
+     */
+    public void onConnected(boolean loginSent) {
+        if (loginSent) {
+            Log.i(TAG,"login sent on connect");
+            return;
+        }
+        login(username, password);
     }
 
     public void login(String username, String password){
         Log.i(TAG,"login");
-        String msg = "login=" + username + "&pass=" + password;
-        byte[] msgByte = msg.getBytes();
-        bluetoothService.write(msgByte);
+        this.username = username;
+        this.password = password;
+        if (sessionResume && gateSession.startResume()) {
+            // The token goes with the first command, no need to wait for a login round-trip
+            Log.i(TAG,"resume session");
+            setLogin(true);
+            bluetoothService.setState(BluetoothService.STATE_LOGGED_IN);
+            return;
+        }
+        sendLogin();
+    }
+
+    private void sendLogin() {
+        bluetoothService.getPhases().start(ConnectionPhases.PHASE_LOGIN);
+        bluetoothService.write(GateCommands.login(username, password));
+    }
+
+    public void onLoggedIn() {
+        setLogin(true);
+        // A command refused together with an expired token is sent again now
+        byte[] pendingCommand = gateSession.onLoggedIn();
+        if (pendingCommand != null)
+            bluetoothService.write(pendingCommand);
+    }
+
+    public void onSessionGranted(String message) {
+        if (sessionResume && !gateSession.onSessionMessage(message))
+            Log.i(TAG,"malformed session: " + message);
+    }
+
+    public void onSessionExpired() {
+        Log.i(TAG,"session expired, log in");
+        gateSession.onSessionExpired();
+        sendLogin();
     }
 
     public void openGate(){
         Log.i(TAG,"openGate");
-        String msg = "openGate";
-        byte[] msgByte = msg.getBytes();
-        bluetoothService.write(msgByte);
+        bluetoothService.getPhases().start(ConnectionPhases.PHASE_GATE_OPEN);
+        send(GateCommands.openGate());
     }
 
     public void closeGate(){
         Log.i(TAG,"closeGate");
-        String msg = "closeGate";
-        byte[] msgByte = msg.getBytes();
-        bluetoothService.write(msgByte);
+        send(GateCommands.closeGate());
+    }
+
+    private void send(byte[] command) {
+        byte[] msg = gateSession.wrap(command);
+        if (msg == null) {
+            // Token expired before the first command, log in and send the command afterwards
+            sendLogin();
+            return;
+        }
+        bluetoothService.write(msg);
     }
 }
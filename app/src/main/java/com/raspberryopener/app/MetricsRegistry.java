@@ -0,0 +1,239 @@
+package com.raspberryopener.app;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Named counters, gauges and latency histograms of the app, e.g. of a {@link BluetoothService}.
+ * <p>
+ * Metrics are registered once and then updated by the threads which own them: counters are
+ * {@link StripedCounter}s and histograms {@link LatencyHistogram}s, both lock-free. Writing the
+ * registry takes snapshots of them without blocking the updating threads. The output is the
+ * Prometheus text exposition format, histograms are written as summaries with quantiles.
+ * <p>
+ * A metric has a name and optionally labels, e.g. {@code state="connected"}; metrics with the
+ * same name and different labels are written as one family.
+ */
+public class MetricsRegistry {
+    public static final String FILE_NAME = "metrics.prom";
+
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private static final int TYPE_COUNTER = 0;
+    private static final int TYPE_GAUGE = 1;
+    private static final int TYPE_SUMMARY = 2;
+    private static final String[] TYPE_NAMES = {"counter", "gauge", "summary"};
+
+    /**
+     * Value read when the registry is written, e.g. the depth of a queue.
+     */
+    public interface Gauge {
+        long getValue();
+    }
+
+    private static class Metric {
+        final String mName;
+        final String mLabels;
+        final String mHelp;
+        final int mType;
+        final Object mValue;
+
+        Metric(String name, String labels, String help, int type, Object value) {
+            mName = name;
+            mLabels = labels;
+            mHelp = help;
+            mType = type;
+            mValue = value;
+        }
+    }
+
+    private final List<Metric> mMetrics = new ArrayList<>();
+    private volatile long mWrittenUpdates = -1; // updates when last written to a file
+
+    public StripedCounter counter(String name, String help) {
+        return counter(name, null, help);
+    }
+
+    /**
+     * @param labels e.g. {@code state="connected"}, null for none
+     * @return counter registered under the name and labels, it is created the first time
+     */
+    public StripedCounter counter(String name, String labels, String help) {
+        return (StripedCounter) register(name, labels, help, TYPE_COUNTER, new StripedCounter());
+    }
+
+    /**
+     * Registers a histogram which already exists, e.g. one kept by the service before.
+     * @return the histogram registered under the name first
+     */
+    public LatencyHistogram histogram(String name, String help, LatencyHistogram histogram) {
+        return (LatencyHistogram) register(name, null, help, TYPE_SUMMARY, histogram);
+    }
+
+    public LatencyHistogram histogram(String name, String help) {
+        return histogram(name, help, new LatencyHistogram());
+    }
+
+    public void gauge(String name, String help, Gauge gauge) {
+        register(name, null, help, TYPE_GAUGE, gauge);
+    }
+
+    private synchronized Object register(String name, String labels, String help, int type, Object value) {
+        checkName(name);
+        for (Metric metric : mMetrics) {
+            if (!metric.mName.equals(name))
+                continue;
+            if (metric.mType != type)
+                throw new IllegalArgumentException(name + " is already a " + TYPE_NAMES[metric.mType]);
+            if (labels == null ? metric.mLabels == null : labels.equals(metric.mLabels))
+                return metric.mValue;
+        }
+        mMetrics.add(new Metric(name, labels, help, type, value));
+        return value;
+    }
+
+    private static void checkName(String name) {
+        if (name.isEmpty())
+            throw new IllegalArgumentException("Empty metric name");
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (!(c >= 'a' && c <= 'z' || c >= 'A' && c <= 'Z' || c == '_' || c == ':' || i > 0 && c >= '0' && c <= '9'))
+                throw new IllegalArgumentException("Wrong metric name " + name);
+        }
+    }
+
+    /**
+     * @return value of the counter or gauge, -1 if there is none with the name and labels
+     */
+    public long getValue(String name, String labels) {
+        Metric metric = find(name, labels);
+        if (metric == null || metric.mType == TYPE_SUMMARY)
+            return -1;
+        return metric.mType == TYPE_COUNTER ? ((StripedCounter) metric.mValue).get() : ((Gauge) metric.mValue).getValue();
+    }
+
+    public long getValue(String name) {
+        return getValue(name, null);
+    }
+
+    private synchronized Metric find(String name, String labels) {
+        for (Metric metric : mMetrics) {
+            if (metric.mName.equals(name) && (labels == null ? metric.mLabels == null : labels.equals(metric.mLabels)))
+                return metric;
+        }
+        return null;
+    }
+
+    /**
+     * Writes all metrics in the text exposition format, families in the order they were registered.
+     */
+    public void writeText(Writer out) throws IOException {
+        Map<String, List<Metric>> families = new LinkedHashMap<>();
+        synchronized (this) {
+            for (Metric metric : mMetrics) {
+                List<Metric> family = families.get(metric.mName);
+                if (family == null) {
+                    family = new ArrayList<>();
+                    families.put(metric.mName, family);
+                }
+                family.add(metric);
+            }
+        }
+        for (List<Metric> family : families.values()) {
+            Metric first = family.get(0);
+            out.write("# HELP " + first.mName + " " + escapeHelp(first.mHelp) + "\n");
+            out.write("# TYPE " + first.mName + " " + TYPE_NAMES[first.mType] + "\n");
+            for (Metric metric : family)
+                writeMetric(out, metric);
+        }
+        out.flush();
+    }
+
+    private static void writeMetric(Writer out, Metric metric) throws IOException {
+        switch (metric.mType) {
+            case TYPE_COUNTER:
+                writeSample(out, metric.mName, metric.mLabels, null, ((StripedCounter) metric.mValue).get());
+                break;
+            case TYPE_GAUGE:
+                writeSample(out, metric.mName, metric.mLabels, null, ((Gauge) metric.mValue).getValue());
+                break;
+            default:
+                LatencyHistogram.Snapshot snapshot = ((LatencyHistogram) metric.mValue).snapshot();
+                for (double quantile : QUANTILES)
+                    writeSample(out, metric.mName, metric.mLabels, "quantile=\"" + quantile + "\"",
+                            snapshot.getPercentile(quantile));
+                writeSample(out, metric.mName + "_sum", metric.mLabels, null, snapshot.getSum());
+                writeSample(out, metric.mName + "_count", metric.mLabels, null, snapshot.getCount());
+                break;
+        }
+    }
+
+    private static void writeSample(Writer out, String name, String labels, String extraLabel, long value)
+            throws IOException {
+        out.write(name);
+        if (labels != null || extraLabel != null) {
+            out.write('{');
+            if (labels != null)
+                out.write(labels);
+            if (labels != null && extraLabel != null)
+                out.write(',');
+            if (extraLabel != null)
+                out.write(extraLabel);
+            out.write('}');
+        }
+        out.write(' ');
+        out.write(Long.toString(value));
+        out.write('\n');
+    }
+
+    private static String escapeHelp(String help) {
+        return help.replace("\\", "\\\\").replace("\n", "\\n");
+    }
+
+    /**
+     * @return number of counter increments and recorded latencies, gauges are not counted
+     */
+    public synchronized long getUpdateCount() {
+        long updates = 0;
+        for (Metric metric : mMetrics) {
+            if (metric.mType == TYPE_COUNTER)
+                updates += ((StripedCounter) metric.mValue).get();
+            else if (metric.mType == TYPE_SUMMARY)
+                updates += ((LatencyHistogram) metric.mValue).getCount();
+        }
+        return updates;
+    }
+
+    /**
+     * @return true if counters or histograms were updated since the last {@link #writeText(File)}
+     */
+    public boolean isDirty() {
+        return getUpdateCount() != mWrittenUpdates;
+    }
+
+    /**
+     * Saves the metrics, the file is replaced only after it has been written completely.
+     */
+    public void writeText(File file) throws IOException {
+        // Updates while writing keep the registry dirty
+        long updates = getUpdateCount();
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            writeText(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        mWrittenUpdates = updates;
+    }
+}
@@ -0,0 +1,188 @@
+package com.raspberryopener.app;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory {@link Transport}. Client ends connect to a {@link Listener}, which hands
+ * out the matching server ends, the same way sockets connect to a server socket.
+ * Used to run {@link BluetoothService} against a gate stand-in without any radio or network.
+ */
+public class PipeTransport implements Transport {
+    public static final int PIPE_CAPACITY = 4096;
+
+    /**
+     * In-memory counterpart of a server socket.
+     */
+    public static class Listener {
+        private final String mName;
+        private final LinkedBlockingQueue<PipeTransport> mPending = new LinkedBlockingQueue<>();
+        private volatile boolean mClosed;
+
+        public Listener(String name) {
+            mName = name;
+        }
+
+        /**
+         * @return connected server end of the next client connection
+         * @throws SocketTimeoutException if no client connected in time
+         */
+        public PipeTransport accept(long timeoutMillis) throws IOException {
+            if (mClosed)
+                throw new IOException("Listener closed");
+            try {
+                PipeTransport transport = mPending.poll(timeoutMillis, TimeUnit.MILLISECONDS);
+                if (transport == null)
+                    throw new SocketTimeoutException("No connection within " + timeoutMillis + " ms");
+                return transport;
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Accept interrupted");
+            }
+        }
+
+        public void close() {
+            mClosed = true;
+        }
+
+        public String getName() {
+            return mName;
+        }
+    }
+
+    private final Listener mListener; // null for server ends
+    private final String mName;
+    private volatile Pipe mIn;
+    private volatile Pipe mOut;
+    private int mReadTimeout;
+
+    /**
+     * Creates a client end which connects to the given listener.
+     */
+    public PipeTransport(Listener listener) {
+        mListener = listener;
+        mName = listener.getName();
+    }
+
+    private PipeTransport(String name, Pipe in, Pipe out) {
+        mListener = null;
+        mName = name;
+        mIn = in;
+        mOut = out;
+    }
+
+    @Override
+    public void connect(int timeoutMillis) throws IOException {
+        if (mListener == null)
+            throw new IOException("Server end cannot connect");
+        if (mListener.mClosed)
+            throw new ConnectException("Connection refused by " + mName);
+        Pipe toServer = new Pipe();
+        Pipe toClient = new Pipe();
+        mIn = toClient;
+        mOut = toServer;
+        mListener.mPending.add(new PipeTransport(mName + " (server end)", toServer, toClient));
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        Pipe in = mIn;
+        if (in == null)
+            throw new IOException("Not connected");
+        return in.read(buffer, offset, length, mReadTimeout);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        Pipe out = mOut;
+        if (out == null)
+            throw new IOException("Not connected");
+        out.write(buffer, offset, length);
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMillis) {
+        mReadTimeout = timeoutMillis;
+    }
+
+    @Override
+    public void close() {
+        Pipe in = mIn;
+        Pipe out = mOut;
+        if (in != null)
+            in.close();
+        if (out != null)
+            out.close();
+    }
+
+    @Override
+    public String getName() {
+        return mName;
+    }
+
+    /**
+     * Bounded byte queue between the two ends, closing it ends the stream in both directions.
+     */
+    private static class Pipe {
+        private final byte[] mBuffer = new byte[PIPE_CAPACITY];
+        private int mHead;
+        private int mCount;
+        private boolean mClosed;
+
+        synchronized int read(byte[] buffer, int offset, int length, int timeoutMillis) throws IOException {
+            long deadline = timeoutMillis > 0 ? System.nanoTime() + timeoutMillis * 1000000L : 0;
+            try {
+                while (mCount == 0 && !mClosed) {
+                    if (deadline == 0) {
+                        wait();
+                    } else {
+                        long remaining = (deadline - System.nanoTime()) / 1000000L;
+                        if (remaining <= 0)
+                            throw new SocketTimeoutException("Read timed out");
+                        wait(remaining);
+                    }
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Read interrupted");
+            }
+            if (mCount == 0)
+                return -1;
+            int n = Math.min(length, mCount);
+            int first = Math.min(n, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, buffer, offset, first);
+            System.arraycopy(mBuffer, 0, buffer, offset + first, n - first);
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            try {
+                while (length > 0) {
+                    while (mCount == mBuffer.length && !mClosed)
+                        wait();
+                    if (mClosed)
+                        throw new IOException("Pipe closed");
+                    int tail = (mHead + mCount) % mBuffer.length;
+                    int n = Math.min(length, Math.min(mBuffer.length - mCount, mBuffer.length - tail));
+                    System.arraycopy(buffer, offset, mBuffer, tail, n);
+                    mCount += n;
+                    offset += n;
+                    length -= n;
+                    notifyAll();
+                }
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException("Write interrupted");
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.raspberryopener.app;
+
+import java.util.Random;
+
+/**
+ * Delays between automatic reconnect attempts.
+ * <p>
+ * The delay grows exponentially from the base delay up to the maximum one. Each delay is shortened
+ * by a random part of up to {@code jitter} of it, so that clients which lost the gate at the same
+ * time do not come back at the same time. After the attempt budget is spent no more delays are
+ * given until the backoff is reset, which the owner does once a connection succeeds.
+ */
+public class ReconnectBackoff {
+    public static final long DEFAULT_BASE_MILLIS = 500;
+    public static final long DEFAULT_MAX_MILLIS = 30000;
+    public static final double DEFAULT_MULTIPLIER = 2;
+    public static final double DEFAULT_JITTER = 0.5;
+    public static final int DEFAULT_MAX_ATTEMPTS = 8;
+
+    public static final long GIVE_UP = -1;
+
+    private final long mBaseMillis;
+    private final long mMaxMillis;
+    private final double mMultiplier;
+    private final double mJitter;
+    private final int mMaxAttempts;
+    private final Random mRandom;
+    private int mAttempts;
+
+    public ReconnectBackoff() {
+        this(DEFAULT_BASE_MILLIS, DEFAULT_MAX_MILLIS, DEFAULT_MULTIPLIER, DEFAULT_JITTER, DEFAULT_MAX_ATTEMPTS, new Random());
+    }
+
+    /**
+     * @param jitter part of every delay which is random, from 0 (none) to 1 (delay is anything up to the full one)
+     * @param maxAttempts number of attempts after which the backoff gives up, 0 for no limit
+     * @param random source of the jitter, seeded in tests
+     */
+    public ReconnectBackoff(long baseMillis, long maxMillis, double multiplier, double jitter, int maxAttempts, Random random) {
+        if (baseMillis <= 0 || maxMillis < baseMillis)
+            throw new IllegalArgumentException("Wrong delays: base " + baseMillis + ", max " + maxMillis);
+        if (multiplier < 1)
+            throw new IllegalArgumentException("Multiplier must not shrink delays: " + multiplier);
+        if (jitter < 0 || jitter > 1)
+            throw new IllegalArgumentException("Jitter must be between 0 and 1: " + jitter);
+        if (maxAttempts < 0)
+            throw new IllegalArgumentException("Attempt budget cannot be negative: " + maxAttempts);
+        mBaseMillis = baseMillis;
+        mMaxMillis = maxMillis;
+        mMultiplier = multiplier;
+        mJitter = jitter;
+        mMaxAttempts = maxAttempts;
+        mRandom = random;
+    }
+
+    /**
+     * Spends one attempt of the budget.
+     * @return how long to wait before the attempt, or {@link #GIVE_UP} if the budget is spent
+     */
+    public synchronized long nextDelayMillis() {
+        if (mMaxAttempts > 0 && mAttempts >= mMaxAttempts)
+            return GIVE_UP;
+        double delay = Math.min(mMaxMillis, mBaseMillis * Math.pow(mMultiplier, mAttempts));
+        mAttempts++;
+        delay -= delay * mJitter * mRandom.nextDouble();
+        return Math.round(delay);
+    }
+
+    /**
+     * @return number of attempts since the last reset
+     */
+    public synchronized int getAttempts() {
+        return mAttempts;
+    }
+
+    public synchronized void reset() {
+        mAttempts = 0;
+    }
+}
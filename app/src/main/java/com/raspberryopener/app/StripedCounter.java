@@ -0,0 +1,38 @@
+package com.raspberryopener.app;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counter which many threads can add to without contending on one memory location.
+ * <p>
+ * The count is split into stripes on separate cache lines and every thread adds to the stripe
+ * of its thread id, so the I/O threads of a connection do not slow each other down. Reading
+ * sums the stripes, it sees every addition which completed before.
+ */
+public class StripedCounter {
+    private static final int STRIPES = 8;       // power of two
+    private static final int PADDING = 8;       // longs per stripe, 64 bytes
+
+    private final AtomicLongArray mCells = new AtomicLongArray(STRIPES * PADDING);
+
+    public void increment() {
+        add(1);
+    }
+
+    public void add(long delta) {
+        int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+        mCells.getAndAdd(stripe * PADDING, delta);
+    }
+
+    public long get() {
+        long sum = 0;
+        for (int i = 0; i < STRIPES; i++)
+            sum += mCells.get(i * PADDING);
+        return sum;
+    }
+
+    public void reset() {
+        for (int i = 0; i < STRIPES; i++)
+            mCells.set(i * PADDING, 0);
+    }
+}
@@ -0,0 +1,87 @@
+package com.raspberryopener.app;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * {@link Transport} over a TCP socket, used to talk to a gate simulator instead of a real gate.
+ */
+public class TcpTransport implements Transport {
+    private final String mHost;
+    private final int mPort;
+    private volatile Socket mSocket;
+    private InputStream mInStream;
+    private OutputStream mOutStream;
+    private int mReadTimeout;
+
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    /**
+     * Wraps a socket which is already connected, e.g. accepted by a server socket.
+     */
+    public TcpTransport(Socket socket) throws IOException {
+        mHost = socket.getInetAddress().getHostAddress();
+        mPort = socket.getPort();
+        mSocket = socket;
+        socket.setTcpNoDelay(true);
+        mInStream = socket.getInputStream();
+        mOutStream = socket.getOutputStream();
+    }
+
+    @Override
+    public void connect(int timeoutMillis) throws IOException {
+        Socket socket = new Socket();
+        mSocket = socket;
+        try {
+            socket.setTcpNoDelay(true);
+            socket.setSoTimeout(mReadTimeout);
+            socket.connect(new InetSocketAddress(mHost, mPort), timeoutMillis);
+            mInStream = socket.getInputStream();
+            mOutStream = socket.getOutputStream();
+        } catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        return mInStream.read(buffer, offset, length);
+    }
+
+    @Override
+    public void write(byte[] buffer, int offset, int length) throws IOException {
+        mOutStream.write(buffer, offset, length);
+    }
+
+    @Override
+    public void setReadTimeout(int timeoutMillis) throws IOException {
+        mReadTimeout = timeoutMillis;
+        Socket socket = mSocket;
+        if (socket != null)
+            socket.setSoTimeout(timeoutMillis);
+    }
+
+    @Override
+    public void close() {
+        Socket socket = mSocket;
+        if (socket != null) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Nothing more can be done with the socket
+            }
+        }
+    }
+
+    @Override
+    public String getName() {
+        return mHost + ":" + mPort;
+    }
+}
@@ -0,0 +1,43 @@
+package com.raspberryopener.app;
+
+import java.io.IOException;
+
+/**
+ * Byte stream connection to a gate which {@link BluetoothService} runs on.
+ * <p>
+ * A transport may be connected again after it has been closed, every
+ * {@link #connect(int)} opens a new underlying connection.
+ */
+public interface Transport {
+    /**
+     * Opens the connection. Blocks until the connection is established.
+     * @param timeoutMillis maximum time to wait, 0 waits as long as the underlying connection allows
+     * @throws java.net.SocketTimeoutException if the connection was not established in time
+     */
+    void connect(int timeoutMillis) throws IOException;
+
+    /**
+     * Reads available bytes, blocks until at least one byte is available.
+     * @return number of bytes read or -1 at the end of the stream
+     * @throws java.net.SocketTimeoutException if the read timeout elapsed without any data
+     */
+    int read(byte[] buffer, int offset, int length) throws IOException;
+
+    void write(byte[] buffer, int offset, int length) throws IOException;
+
+    /**
+     * @param timeoutMillis maximum time {@link #read} blocks, 0 blocks until data arrives.
+     *                      Transports which cannot time out reads ignore it.
+     */
+    void setReadTimeout(int timeoutMillis) throws IOException;
+
+    /**
+     * Closes the connection and unblocks pending reads and writes. Safe to call at any time.
+     */
+    void close();
+
+    /**
+     * @return human readable name of the remote end
+     */
+    String getName();
+}
@@ -0,0 +1,178 @@
+package com.raspberryopener.app;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Counts the bytes the reader thread and the writing threads allocate while gate messages are received
+ * and commands are sent, once the connection is up and warmed up.
+ */
+public class BluetoothServiceAllocationTest {
+    private static final int MESSAGES = 100000;
+    private static final int WARMUP = 20000;
+    // Near zero, a few objects may still come from class loading or the first slow path of a lock
+    private static final long MAX_BYTES = 64 * 1024;
+
+    private static final byte[] GATE_CYCLE = "openingGate\ngateIsOpened\nclosingGate\ngateIsClosed\n".getBytes();
+    private static final int MESSAGES_PER_READ = 4;
+
+    /**
+     * Transport which repeats the gate cycle for every read and measures the reading thread itself.
+     */
+    private static class RepeatingTransport implements Transport {
+        final CountDownLatch warmedUp = new CountDownLatch(1);
+        final CountDownLatch finished = new CountDownLatch(1);
+        final AtomicLong written = new AtomicLong();
+        volatile long readerAllocatedAtWarmup;
+        volatile long readerAllocatedAtEnd;
+        // Commands are written on the blocking pool, by whichever of its threads is free
+        final long[] writerThreadIds = new long[8];
+        volatile int writerThreads;
+        private int reads;
+        private boolean closed;
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) throws IOException {
+            int messages = reads++ * MESSAGES_PER_READ;
+            if (messages == WARMUP) {
+                readerAllocatedAtWarmup = allocatedBytes(Thread.currentThread().getId());
+                warmedUp.countDown();
+            } else if (messages == WARMUP + MESSAGES) {
+                readerAllocatedAtEnd = allocatedBytes(Thread.currentThread().getId());
+                finished.countDown();
+                awaitClose();
+                throw new IOException("Closed");
+            }
+            System.arraycopy(GATE_CYCLE, 0, buffer, offset, GATE_CYCLE.length);
+            return GATE_CYCLE.length;
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length) {
+            // One drain at a time, so the writes do not race
+            long id = Thread.currentThread().getId();
+            int count = writerThreads;
+            boolean known = false;
+            for (int i = 0; i < count; i++)
+                known |= writerThreadIds[i] == id;
+            if (!known && count < writerThreadIds.length) {
+                writerThreadIds[count] = id;
+                writerThreads = count + 1;
+            }
+            written.incrementAndGet();
+        }
+
+        private synchronized void awaitClose() {
+            while (!closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void connect(int timeoutMillis) {
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMillis) {
+        }
+
+        @Override
+        public String getName() {
+            return "repeating";
+        }
+    }
+
+    private static long allocatedBytes(long threadId) {
+        return ((com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean()).getThreadAllocatedBytes(threadId);
+    }
+
+    private static long allocatedBytes(long[] threadIds, int count) {
+        long bytes = 0;
+        for (int i = 0; i < count; i++)
+            bytes += Math.max(0, allocatedBytes(threadIds[i]));
+        return bytes;
+    }
+
+    @Test
+    public void steadyState_allocatesNearlyNothing() throws Exception {
+        Assume.assumeTrue(ManagementFactory.getThreadMXBean() instanceof com.sun.management.ThreadMXBean);
+        Assume.assumeTrue(allocatedBytes(Thread.currentThread().getId()) >= 0);
+
+        final AtomicLong stateChanges = new AtomicLong();
+        BluetoothService service = new BluetoothService(new BluetoothService.Listener() {
+            @Override
+            public void onServiceEvent(int what, int arg1, int arg2, Object obj) {
+                if (what == ActivityMain.MESSAGE_STATE_CHANGE)
+                    stateChanges.incrementAndGet();
+            }
+        });
+        // Nothing answers the commands, they must not wait for a response
+        service.setCommandPacing(0);
+        RepeatingTransport transport = new RepeatingTransport();
+        try {
+            service.connect(transport);
+            assertTrue(transport.warmedUp.await(10, TimeUnit.SECONDS));
+
+            // Warm up the send path as well, then measure the caller and the writing threads
+            byte[] command = GateCommands.openGate();
+            send(service, command, WARMUP);
+            awaitWritten(transport, WARMUP);
+            long callerId = Thread.currentThread().getId();
+            int writers = transport.writerThreads;
+            long callerBefore = allocatedBytes(callerId);
+            long writerBefore = allocatedBytes(transport.writerThreadIds, writers);
+            send(service, command, MESSAGES);
+            awaitWritten(transport, WARMUP + MESSAGES);
+            long writerAllocated = allocatedBytes(transport.writerThreadIds, writers) - writerBefore;
+            long callerAllocated = allocatedBytes(callerId) - callerBefore;
+
+            assertTrue(transport.finished.await(30, TimeUnit.SECONDS));
+            long readerAllocated = transport.readerAllocatedAtEnd - transport.readerAllocatedAtWarmup;
+            String allocated = String.format(Locale.US,
+                    "bytes allocated for %,d messages: reader %,d, caller %,d, writer %,d, allowed are %,d each",
+                    MESSAGES, readerAllocated, callerAllocated, writerAllocated, MAX_BYTES);
+
+            assertTrue(stateChanges.get() >= WARMUP + MESSAGES);
+            assertTrue(allocated, readerAllocated < MAX_BYTES);
+            assertTrue(allocated, callerAllocated < MAX_BYTES);
+            assertTrue(allocated, writerAllocated < MAX_BYTES);
+        } finally {
+            service.stop();
+        }
+    }
+
+    private static void send(BluetoothService service, byte[] command, int count) {
+        for (int i = 0; i < count; i++) {
+            // The queue is bounded, wait for the writer when it is full
+            while (!service.write(command))
+                Thread.yield();
+        }
+    }
+
+    private static void awaitWritten(RepeatingTransport transport, long count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+        while (transport.written.get() < count) {
+            assertTrue(System.nanoTime() < deadline);
+            Thread.sleep(1);
+        }
+    }
+}
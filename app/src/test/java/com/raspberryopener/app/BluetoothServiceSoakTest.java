@@ -0,0 +1,94 @@
+package com.raspberryopener.app;
+
+import com.raspberryopener.simulator.GateSimulator;
+import com.raspberryopener.simulator.SimulatorConfig;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Soak of the connect, login, open, close and stop cycle, see {@link SoakHarness}. The default
+ * cycle count keeps the unit tests quick, run thousands with -Dsoak.cycles=5000 (or
+ * ./gradlew :app:testDebugUnitTest -PsoakCycles=5000) before changing how connections are run.
+ */
+public class BluetoothServiceSoakTest {
+    @Test
+    public void soak_overPipe() throws Exception {
+        TestGate gate = new TestGate("user", "secret");
+        final PipeTransport.Listener pipeListener = new PipeTransport.Listener("test gate");
+        gate.servePipe(pipeListener);
+        try {
+            SoakHarness.Result result = new SoakHarness("pipe", new SoakHarness.TransportFactory() {
+                @Override
+                public Transport create() {
+                    return new PipeTransport(pipeListener);
+                }
+            }, SoakHarness.cyclesFromProperty()).run();
+            result.check();
+        } finally {
+            pipeListener.close();
+            gate.close();
+        }
+    }
+
+    @Test
+    public void soak_overTcpAgainstSimulator() throws Exception {
+        GateSimulator simulator = new GateSimulator(new SimulatorConfig().setMotorMillis(0, 0));
+        final int port = simulator.start(0);
+        try {
+            SoakHarness.Result result = new SoakHarness("tcp", new SoakHarness.TransportFactory() {
+                @Override
+                public Transport create() {
+                    return new TcpTransport("127.0.0.1", port);
+                }
+            }, SoakHarness.cyclesFromProperty()).run();
+            result.check();
+            assertEquals(0, simulator.getFailedLoginCount());
+        } finally {
+            simulator.stop();
+        }
+    }
+
+    @Test
+    public void leakedConnectionThread_failsCheck() throws Exception {
+        // A thread named like a connection thread which does not end stands for one which was never stopped
+        final Object never = new Object();
+        Thread stuck = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (never) {
+                    try {
+                        never.wait(10000);
+                    } catch (InterruptedException e) {
+                        // Test over
+                    }
+                }
+            }
+        }, "BS ConnectedThread");
+        stuck.start();
+        TestGate gate = new TestGate("user", "secret");
+        final PipeTransport.Listener pipeListener = new PipeTransport.Listener("test gate");
+        gate.servePipe(pipeListener);
+        try {
+            SoakHarness.Result result = new SoakHarness("pipe", new SoakHarness.TransportFactory() {
+                @Override
+                public Transport create() {
+                    return new PipeTransport(pipeListener);
+                }
+            }, 5).run();
+            assertEquals(1, result.getServiceThreadsAfter());
+            try {
+                result.check();
+                fail("Leaked thread not detected");
+            } catch (AssertionError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("BS ConnectedThread"));
+            }
+        } finally {
+            stuck.interrupt();
+            stuck.join();
+            pipeListener.close();
+            gate.close();
+        }
+    }
+}
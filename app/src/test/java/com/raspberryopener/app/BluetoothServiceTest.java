@@ -0,0 +1,473 @@
+package com.raspberryopener.app;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringWriter;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Runs BluetoothService on plain JVM against {@link TestGate} over in-memory and TCP transports.
+ */
+public class BluetoothServiceTest {
+    private static final long TIMEOUT = 5000;
+
+    private TestGate gate;
+    private PipeTransport.Listener pipeListener;
+    private MainViewModel viewModel;
+    private BluetoothService service;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        gate = new TestGate("user", "secret");
+        pipeListener = new PipeTransport.Listener("test gate");
+        gate.servePipe(pipeListener);
+
+        viewModel = new MainViewModel();
+        listener = new RecordingListener() {
+            @Override
+            protected void onEvent(int what, int arg1) {
+                // Same as ActivityMain does after the connection is established
+                if (what == ActivityMain.MESSAGE_CONNECTED)
+                    viewModel.login("user", "secret");
+            }
+        };
+        service = new BluetoothService(listener);
+        viewModel.setBluetoothService(service);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.stop();
+        pipeListener.close();
+        gate.close();
+    }
+
+    @Test
+    public void connectLoginOpenClose_overPipe() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertLoginOpenClose();
+        assertEquals("test gate", listener.getDeviceName());
+    }
+
+    @Test
+    public void connectLoginOpenClose_overTcp() throws Exception {
+        ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+        try {
+            gate.serveTcp(serverSocket);
+            service.connect(new TcpTransport("127.0.0.1", serverSocket.getLocalPort()));
+            assertLoginOpenClose();
+        } finally {
+            serverSocket.close();
+        }
+    }
+
+    private void assertLoginOpenClose() throws Exception {
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTED, TIMEOUT));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+
+        viewModel.openGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENING, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+
+        viewModel.closeGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSING, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+    }
+
+    @Test
+    public void commandsWrittenBackToBack_reachGateOneByOne() throws Exception {
+        listener = new RecordingListener() {
+            @Override
+            protected void onEvent(int what, int arg1) {
+                // Queued right behind the login, without waiting for any response
+                if (what == ActivityMain.MESSAGE_CONNECTED) {
+                    viewModel.login("user", "secret");
+                    viewModel.openGate();
+                    viewModel.closeGate();
+                }
+            }
+        };
+        service.setListener(listener);
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertFalse(listener.getStates().contains(BluetoothService.STATE_WRONG_DATA));
+    }
+
+    @Test
+    public void wrongPassword_isReported() throws Exception {
+        listener = new RecordingListener() {
+            @Override
+            protected void onEvent(int what, int arg1) {
+                if (what == ActivityMain.MESSAGE_CONNECTED)
+                    viewModel.login("user", "wrong");
+            }
+        };
+        service.setListener(listener);
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_WRONG_PASSWORD, TIMEOUT));
+    }
+
+    @Test
+    public void refusedConnection_isReportedAsFailed() throws Exception {
+        pipeListener.close();
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_FAILED, TIMEOUT));
+    }
+
+    @Test
+    public void stop_doesNotReportQueuedCommandsAsFailed() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        // Without answers the commands wait for the pacing gap, so they are still queued
+        gate.setSilent(true);
+        for (int i = 0; i < 3; i++)
+            assertTrue(service.write(GateCommands.ping(i)));
+        service.stop();
+        assertTrue(listener.awaitState(BluetoothService.STATE_NONE, TIMEOUT));
+        assertFalse(listener.awaitMessage(ActivityMain.MESSAGE_TOAST, 300));
+        assertEquals(0, service.getMetrics().getValue("gate_write_errors_total"));
+    }
+
+    @Test
+    public void searchState_isRefusedUntilSessionIsStopped() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertFalse(service.setState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH));
+        assertEquals(BluetoothService.STATE_GATE_CLOSED, service.getState());
+        // What ActivityMain does before searching again
+        service.stop();
+        assertTrue(service.setState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH));
+        assertTrue(listener.awaitState(BluetoothService.STATE_BLUETOOTH_ON_SEARCH, TIMEOUT));
+    }
+
+    @Test
+    public void droppedConnection_isReportedAsLost() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        gate.dropConnections();
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+    }
+
+    @Test
+    public void stop_isNotReportedAsLost() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        service.stop();
+        assertTrue(listener.awaitState(BluetoothService.STATE_NONE, TIMEOUT));
+        Thread.sleep(100);
+        assertFalse(listener.getStates().contains(BluetoothService.STATE_CONNECTION_LOST));
+    }
+
+    @Test
+    public void droppedConnection_isRecoveredAutomatically() throws Exception {
+        service.setReconnectBackoff(new ReconnectBackoff(10, 100, 2, 0.5, 5, new Random(1)));
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+
+        for (int i = 1; i <= 3; i++) {
+            gate.dropConnections();
+            assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+            assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTED, TIMEOUT));
+            assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+            assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+            assertEquals(i, service.getReconnectCount());
+        }
+        // Logged in again, so the gate can be used without user interaction
+        viewModel.openGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+    }
+
+    @Test
+    public void unreachableGate_givesUpAfterBudget() throws Exception {
+        pipeListener.close();
+        service.setReconnectBackoff(new ReconnectBackoff(10, 20, 2, 0, 3, new Random(1)));
+        service.connect(new PipeTransport(pipeListener));
+        // First attempt and three reconnects fail
+        for (int i = 0; i < 4; i++)
+            assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_FAILED, TIMEOUT));
+        Thread.sleep(200);
+        listener.clear();
+        Thread.sleep(200);
+        assertTrue(listener.getStates().isEmpty());
+        assertEquals(0, service.getReconnectCount());
+    }
+
+    @Test
+    public void stop_cancelsPendingReconnect() throws Exception {
+        service.setReconnectBackoff(new ReconnectBackoff(300, 300, 2, 0, 5, new Random(1)));
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        gate.dropConnections();
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+        service.stop();
+        listener.clear();
+        Thread.sleep(600);
+        assertFalse(listener.getStates().contains(BluetoothService.STATE_CONNECTING));
+        assertEquals(0, gate.getConnectionCount());
+    }
+
+    @Test
+    public void write_reportsResultToCallback() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        final CountDownLatch written = new CountDownLatch(1);
+        assertTrue(service.write(GateCommands.openGate(), new CommandWriter.WriteCallback() {
+            @Override
+            public void onWriteDone(byte[] command, IOException error) {
+                if (error == null)
+                    written.countDown();
+            }
+        }));
+        assertTrue(written.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        assertTrue(service.getWriteLatency().getCount() >= 2);
+
+        service.stop();
+        assertFalse(service.write(GateCommands.closeGate()));
+    }
+
+    /**
+     * Logs in only if the service did not, like ActivityMain. With uiThread the reaction goes
+     * through that executor first, as messages go through the main looper.
+     */
+    private RecordingListener connectedListener(final ExecutorService uiThread, final AtomicInteger connectedArg) {
+        return new RecordingListener() {
+            @Override
+            protected void onEvent(final int what, final int arg1) {
+                if (what != ActivityMain.MESSAGE_CONNECTED)
+                    return;
+                connectedArg.set(arg1);
+                Runnable onConnected = new Runnable() {
+                    @Override
+                    public void run() {
+                        viewModel.onConnected(arg1 == BluetoothService.CONNECTED_LOGIN_SENT);
+                    }
+                };
+                if (uiThread != null)
+                    uiThread.execute(onConnected);
+                else
+                    onConnected.run();
+            }
+        };
+    }
+
+    @Test
+    public void loginOnConnect_isSentByService() throws Exception {
+        AtomicInteger connectedArg = new AtomicInteger();
+        listener = connectedListener(null, connectedArg);
+        service.setListener(listener);
+        service.setReconnectBackoff(new ReconnectBackoff(10, 100, 2, 0.5, 5, new Random(1)));
+        viewModel.setCredentials("user", "secret");
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertEquals(BluetoothService.CONNECTED_LOGIN_SENT, connectedArg.get());
+        assertEquals(1, awaitCount(service.getConnectToLoginLatency(), 1));
+
+        // An automatic reconnect logs in the same way
+        gate.dropConnections();
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertEquals(2, awaitCount(service.getConnectToLoginLatency(), 2));
+
+        viewModel.openGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+    }
+
+    @Test
+    public void sessionResume_leavesLoginToUi() throws Exception {
+        AtomicInteger connectedArg = new AtomicInteger();
+        listener = connectedListener(null, connectedArg);
+        service.setListener(listener);
+        viewModel.setSessionResume(true);
+        viewModel.setCredentials("user", "secret");
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertNotEquals(BluetoothService.CONNECTED_LOGIN_SENT, connectedArg.get());
+    }
+
+    @Test
+    public void loginOnConnect_shortensConnectToLogin() throws Exception {
+        ExecutorService uiThread = Executors.newSingleThreadExecutor();
+        try {
+            long throughUi = measureConnectToLogin(uiThread, false);
+            long onConnect = measureConnectToLogin(null, true);
+            // Sent on connect the login skips the hop to the UI thread and back
+            assertTrue("connect to login p50: through the UI thread " + throughUi + " us, on connect " + onConnect
+                    + " us", onConnect <= throughUi);
+        } finally {
+            uiThread.shutdown();
+        }
+    }
+
+    private long measureConnectToLogin(ExecutorService uiThread, boolean loginOnConnect) throws Exception {
+        BluetoothService measured = new BluetoothService(listener);
+        viewModel.setBluetoothService(measured);
+        viewModel.setCredentials("user", "secret");
+        if (!loginOnConnect)
+            measured.setLoginCommand(null); // as before, the UI logs in once it hears about the connection
+        AtomicInteger connectedArg = new AtomicInteger();
+        listener = connectedListener(uiThread, connectedArg);
+        measured.setListener(listener);
+        try {
+            for (int i = 0; i < 20; i++) {
+                measured.connect(new PipeTransport(pipeListener));
+                assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+                assertEquals(loginOnConnect, connectedArg.get() == BluetoothService.CONNECTED_LOGIN_SENT);
+                measured.stop();
+                assertTrue(listener.awaitState(BluetoothService.STATE_NONE, TIMEOUT));
+            }
+        } finally {
+            measured.stop();
+        }
+        assertEquals(20, awaitCount(measured.getConnectToLoginLatency(), 20));
+        return measured.getConnectToLoginLatency().snapshot().getPercentile(0.5);
+    }
+
+    // The latency is recorded once the login was written, the gate may have answered it already
+    private static long awaitCount(LatencyHistogram histogram, long count) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + TIMEOUT;
+        while (histogram.getCount() < count && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        return histogram.getCount();
+    }
+
+    @Test
+    public void heartbeat_measuresRoundTrip() throws Exception {
+        service.setHeartbeat(20, Heartbeat.DEFAULT_MISS_THRESHOLD);
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LINK_QUALITY, TIMEOUT));
+        assertTrue(service.getSmoothedRttMicros() >= 0);
+        assertTrue(service.getLinkRtt().getCount() >= 1);
+        assertTrue(service.getCommandTimeoutMillis() >= Heartbeat.MIN_COMMAND_TIMEOUT_MILLIS);
+        assertTrue(service.getCommandTimeoutMillis() <= Heartbeat.MAX_COMMAND_TIMEOUT_MILLIS);
+
+        // Pings do not disturb the commands
+        viewModel.openGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        assertEquals(0, service.getDeadLinkCount());
+    }
+
+    @Test
+    public void silentGate_isDeclaredDeadWithinBound() throws Exception {
+        long interval = 50;
+        int threshold = 3;
+        service.setHeartbeat(interval, threshold);
+        service.setReconnectBackoff(new ReconnectBackoff(10, 100, 2, 0.5, 5, new Random(1)));
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LINK_QUALITY, TIMEOUT));
+
+        // The connection stays open, only a read timeout or the heartbeat can notice
+        gate.setSilent(true);
+        long silentNanos = System.nanoTime();
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+        long detectMillis = (System.nanoTime() - silentNanos) / 1000000;
+        assertTrue("Detected after " + detectMillis + " ms", detectMillis <= interval * (threshold + 1) + 100);
+        assertEquals(1, service.getDeadLinkCount());
+
+        // Reconnected like after any other lost connection once the gate answers again
+        gate.setSilent(false);
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertEquals(1, service.getReconnectCount());
+    }
+
+    @Test
+    public void unansweredCommand_checksLinkEarly() throws Exception {
+        // Ticks are too rare to notice the silent gate within the test, the command timeout does
+        service.setHeartbeat(60000, 1);
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        gate.setSilent(true);
+        long sentNanos = System.nanoTime();
+        viewModel.openGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT + Heartbeat.INITIAL_COMMAND_TIMEOUT_MILLIS));
+        long detectMillis = (System.nanoTime() - sentNanos) / 1000000;
+        // No round trip was measured yet, so the initial timeout is waited twice: for the command and its ping
+        assertTrue("Detected after " + detectMillis + " ms", detectMillis < 2 * Heartbeat.INITIAL_COMMAND_TIMEOUT_MILLIS + 500);
+        assertEquals(1, service.getDeadLinkCount());
+    }
+
+    @Test
+    public void stateChanges_areJournaled() throws Exception {
+        File file = File.createTempFile("journal", ".bin");
+        GateJournal journal = GateJournal.open(file, 64);
+        try {
+            service.setJournal(journal);
+            service.connect(new PipeTransport(pipeListener));
+            assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+            viewModel.openGate();
+            assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+
+            final List<Integer> states = new ArrayList<>();
+            journal.read(0, new GateJournal.Visitor() {
+                @Override
+                public void onEvent(long number, long timeMillis, int fromState, int toState) {
+                    states.add(toState);
+                }
+            });
+            assertEquals(listener.getStates(), states);
+        } finally {
+            service.setJournal(null);
+            journal.close();
+            file.delete();
+        }
+    }
+
+    @Test
+    public void traffic_isCounted() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        // The writer counts a command only after the write, which may be after the gate answered
+        final CountDownLatch written = new CountDownLatch(1);
+        assertTrue(service.write(GateCommands.openGate(), new CommandWriter.WriteCallback() {
+            @Override
+            public void onWriteDone(byte[] command, IOException error) {
+                written.countDown();
+            }
+        }));
+        assertTrue(written.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        service.stop();
+
+        MetricsRegistry metrics = service.getMetrics();
+        assertEquals(1, metrics.getValue("gate_connect_attempts_total"));
+        assertEquals(0, metrics.getValue("gate_connect_failures_total"));
+        // Login and openGate out, login status, openingGate and gateIsOpened in
+        assertEquals(2, metrics.getValue("gate_sent_commands_total"));
+        assertEquals(3, metrics.getValue("gate_received_messages_total"));
+        assertEquals(GateCommands.login("user", "secret").length + GateCommands.openGate().length,
+                metrics.getValue("gate_sent_bytes_total"));
+        assertEquals("loginStatus=1&gateIsClosed\nopeningGate\ngateIsOpened\n".length(),
+                metrics.getValue("gate_received_bytes_total"));
+        assertTrue(metrics.getValue("gate_state_micros_total", "state=\"gate_closed\"") > 0);
+        assertEquals(BluetoothService.STATE_NONE, metrics.getValue("gate_state"));
+
+        StringWriter text = new StringWriter();
+        metrics.writeText(text);
+        assertTrue(text.toString().contains("gate_write_latency_micros_count 2\n"));
+    }
+}
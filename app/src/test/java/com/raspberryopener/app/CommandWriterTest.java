@@ -0,0 +1,297 @@
+package com.raspberryopener.app;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class CommandWriterTest {
+
+    /**
+     * Transport whose writes block while it is stalled, like an RFCOMM socket with a full send window.
+     */
+    private static class StallingTransport implements Transport {
+        final ByteArrayOutputStream written = new ByteArrayOutputStream();
+        private boolean stalled;
+        private boolean closed;
+
+        synchronized void setStalled(boolean stalled) {
+            this.stalled = stalled;
+            notifyAll();
+        }
+
+        @Override
+        public synchronized void write(byte[] buffer, int offset, int length) throws IOException {
+            while (stalled && !closed) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new IOException("Interrupted");
+                }
+            }
+            if (closed)
+                throw new IOException("Closed");
+            written.write(buffer, offset, length);
+        }
+
+        synchronized String getWritten() {
+            return written.toString();
+        }
+
+        @Override
+        public synchronized void close() {
+            closed = true;
+            notifyAll();
+        }
+
+        @Override
+        public void connect(int timeoutMillis) {
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length) {
+            return -1;
+        }
+
+        @Override
+        public void setReadTimeout(int timeoutMillis) {
+        }
+
+        @Override
+        public String getName() {
+            return "stalling";
+        }
+    }
+
+    private static class RecordingCallback implements CommandWriter.WriteCallback {
+        final List<String> done = Collections.synchronizedList(new ArrayList<String>());
+        final List<String> failed = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch latch;
+
+        RecordingCallback(int expected) {
+            latch = new CountDownLatch(expected);
+        }
+
+        @Override
+        public void onWriteDone(byte[] command, IOException error) {
+            (error == null ? done : failed).add(new String(command));
+            latch.countDown();
+        }
+    }
+
+    private StallingTransport transport;
+    private LatencyHistogram latency;
+    private LatencyHistogram depth;
+    private CommandWriter writer;
+
+    @Before
+    public void setUp() throws Exception {
+        transport = new StallingTransport();
+        latency = new LatencyHistogram();
+        depth = new LatencyHistogram();
+        writer = new CommandWriter(transport, 4, latency, depth);
+        writer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        writer.close();
+        transport.close();
+    }
+
+    @Test
+    public void commands_areWrittenInOrder() throws Exception {
+        RecordingCallback callback = new RecordingCallback(3);
+        assertTrue(writer.offer("a".getBytes(), callback));
+        assertTrue(writer.offer("b".getBytes(), callback));
+        assertTrue(writer.offer("c".getBytes(), callback));
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("abc", transport.getWritten());
+        assertEquals(3, callback.done.size());
+        assertEquals(3, latency.getCount());
+        assertEquals(3, depth.getCount());
+    }
+
+    @Test
+    public void pacedCommands_waitForResponseOrGap() throws Exception {
+        writer.setPacing(300);
+        RecordingCallback callback = new RecordingCallback(3);
+        long started = System.nanoTime();
+        assertTrue(writer.offer("a".getBytes(), callback));
+        assertTrue(writer.offer("b".getBytes(), callback));
+        assertTrue(writer.offer("c".getBytes(), callback));
+        Thread.sleep(50);
+        assertEquals("a", transport.getWritten());
+
+        // A response lets the next command go out at once
+        writer.onResponse();
+        long deadline = System.currentTimeMillis() + 150;
+        while (!transport.getWritten().equals("ab") && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals("ab", transport.getWritten());
+
+        // Without a response the last one waits for the gap
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("abc", transport.getWritten());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 300);
+    }
+
+    @Test
+    public void pacedCommandsOnLoop_doNotHoldBlockingThread() throws Exception {
+        IoLoop loop = new IoLoop("Writer test", 1);
+        CommandWriter paced = new CommandWriter(transport, 4, latency, depth, null, loop);
+        try {
+            paced.setPacing(300);
+            RecordingCallback callback = new RecordingCallback(3);
+            long started = System.nanoTime();
+            assertTrue(paced.offer("a".getBytes(), callback));
+            assertTrue(paced.offer("b".getBytes(), callback));
+            assertTrue(paced.offer("c".getBytes(), callback));
+            Thread.sleep(50);
+            assertEquals("a", transport.getWritten());
+
+            // The only blocking thread is free while the commands wait for the gap
+            final CountDownLatch ran = new CountDownLatch(1);
+            loop.getBlockingExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    ran.countDown();
+                }
+            });
+            assertTrue(ran.await(100, TimeUnit.MILLISECONDS));
+            assertEquals("a", transport.getWritten());
+
+            paced.onResponse();
+            long deadline = System.currentTimeMillis() + 150;
+            while (!transport.getWritten().equals("ab") && System.currentTimeMillis() < deadline)
+                Thread.sleep(1);
+            assertEquals("ab", transport.getWritten());
+
+            assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+            assertEquals("abc", transport.getWritten());
+            assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 300);
+            assertEquals(1, loop.getLargestBlockingPoolSize());
+        } finally {
+            paced.close();
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    public void closedPacedWriter_failsWaitingCommands() throws Exception {
+        IoLoop loop = new IoLoop("Writer test", 1);
+        CommandWriter paced = new CommandWriter(transport, 4, latency, depth, null, loop);
+        try {
+            paced.setPacing(10000);
+            RecordingCallback callback = new RecordingCallback(2);
+            assertTrue(paced.offer("a".getBytes(), callback));
+            assertTrue(paced.offer("b".getBytes(), callback));
+            Thread.sleep(50);
+            paced.close();
+            assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+            assertEquals(Collections.singletonList("a"), callback.done);
+            assertEquals(Collections.singletonList("b"), callback.failed);
+        } finally {
+            loop.shutdown();
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void pacingOnExecutorWithoutLoop_isRefused() throws Exception {
+        CommandWriter pooled = new CommandWriter(transport, 4, latency, depth, null, Executors.newSingleThreadExecutor());
+        pooled.setPacing(100);
+    }
+
+    @Test
+    public void stalledTransport_doesNotBlockCaller() throws Exception {
+        transport.setStalled(true);
+        RecordingCallback callback = new RecordingCallback(5);
+        long started = System.nanoTime();
+        // One command is taken by the blocked writer thread, four more fill the queue
+        for (int i = 0; i < 5; i++) {
+            assertTrue(writer.offer(("" + i).getBytes(), callback));
+            Thread.sleep(i == 0 ? 50 : 0);
+        }
+        assertFalse(writer.offer("x".getBytes(), callback));
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(1));
+        assertEquals(4, writer.getQueueDepth());
+        assertEquals(1, writer.getRejectedCount());
+
+        transport.setStalled(false);
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertEquals("01234", transport.getWritten());
+    }
+
+    @Test
+    public void close_failsWaitingCommands() throws Exception {
+        transport.setStalled(true);
+        RecordingCallback callback = new RecordingCallback(3);
+        writer.offer("a".getBytes(), callback);
+        Thread.sleep(50);
+        writer.offer("b".getBytes(), callback);
+        writer.offer("c".getBytes(), callback);
+        writer.close();
+        // The write blocked in the transport fails once the transport is closed
+        transport.close();
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(3, callback.failed.size());
+        assertFalse(writer.offer("d".getBytes(), callback));
+    }
+
+    @Test
+    public void failedWrite_isReported() throws Exception {
+        transport.close();
+        RecordingCallback callback = new RecordingCallback(1);
+        writer.offer("a".getBytes(), callback);
+        assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+        assertEquals(Collections.singletonList("a"), callback.failed);
+        assertEquals(0, latency.getCount());
+    }
+
+    @Test
+    public void sharedExecutor_writesEachWriterInOrder() throws Exception {
+        ThreadPoolExecutor executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(2);
+        StallingTransport other = new StallingTransport();
+        CommandWriter first = new CommandWriter(other, 4, latency, depth, null, executor);
+        CommandWriter second = new CommandWriter(transport, 4, latency, depth, null, executor);
+        try {
+            RecordingCallback callback = new RecordingCallback(200);
+            for (int i = 0; i < 100; i++) {
+                while (!first.offer(("" + i % 10).getBytes(), callback))
+                    Thread.yield();
+                while (!second.offer(("" + (9 - i % 10)).getBytes(), callback))
+                    Thread.yield();
+            }
+            assertTrue(callback.latch.await(5, TimeUnit.SECONDS));
+            StringBuilder expectedFirst = new StringBuilder();
+            StringBuilder expectedSecond = new StringBuilder();
+            for (int i = 0; i < 100; i++) {
+                expectedFirst.append(i % 10);
+                expectedSecond.append(9 - i % 10);
+            }
+            assertEquals(expectedFirst.toString(), other.getWritten());
+            assertEquals(expectedSecond.toString(), transport.getWritten());
+            assertEquals(200, callback.done.size());
+
+            // No pool thread is kept once the queues are empty
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+            while (executor.getActiveCount() > 0)
+                assertTrue(System.nanoTime() < deadline);
+        } finally {
+            first.close();
+            second.close();
+            executor.shutdown();
+        }
+    }
+}
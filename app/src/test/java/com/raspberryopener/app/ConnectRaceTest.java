@@ -0,0 +1,164 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class ConnectRaceTest {
+
+    /**
+     * Attempt which connects or fails after a delay, or blocks until it is aborted.
+     */
+    private static class FakeAttempt implements ConnectRace.Attempt {
+        static final long FOREVER = -1;
+
+        final long delayMillis;
+        final boolean fails;
+        final CountDownLatch aborted = new CountDownLatch(1);
+        volatile long startedAt = -1;
+        volatile boolean connected;
+
+        FakeAttempt(long delayMillis, boolean fails) {
+            this.delayMillis = delayMillis;
+            this.fails = fails;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            startedAt = System.nanoTime() / 1000000L;
+            try {
+                if (delayMillis == FOREVER) {
+                    aborted.await();
+                    throw new IOException("aborted");
+                }
+                if (aborted.await(delayMillis, TimeUnit.MILLISECONDS))
+                    throw new IOException("aborted");
+            } catch (InterruptedException e) {
+                throw new IOException(e.toString());
+            }
+            if (fails)
+                throw new IOException("refused");
+            connected = true;
+        }
+
+        @Override
+        public void abort() {
+            aborted.countDown();
+        }
+
+        boolean isAborted() {
+            return aborted.getCount() == 0;
+        }
+    }
+
+    @Test
+    public void fastestAttempt_wins() throws Exception {
+        FakeAttempt slow = new FakeAttempt(FakeAttempt.FOREVER, false);
+        FakeAttempt fast = new FakeAttempt(20, false);
+        ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{slow, fast}, 0);
+        assertEquals(1, race.run(5000));
+        assertTrue(fast.connected);
+        assertFalse(fast.isAborted());
+        assertTrue(slow.isAborted());
+    }
+
+    @Test
+    public void attempts_runOnExecutor() throws Exception {
+        IoLoop loop = new IoLoop("Race test", 1);
+        try {
+            for (int i = 0; i < 5; i++) {
+                FakeAttempt slow = new FakeAttempt(FakeAttempt.FOREVER, false);
+                FakeAttempt fast = new FakeAttempt(5, false);
+                ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{slow, fast}, 0,
+                        loop.getConnectionExecutor());
+                assertEquals(1, race.run(5000));
+                assertTrue(slow.isAborted());
+                // Give the aborted attempt the time to end and free its thread
+                Thread.sleep(50);
+            }
+            // Both attempts ran at once, the threads were reused by the following races
+            assertEquals(2, loop.getLargestReaderPoolSize());
+        } finally {
+            loop.shutdown();
+        }
+    }
+
+    @Test
+    public void failedAttempt_startsNextWithoutWaitingForHeadStart() throws Exception {
+        FakeAttempt failing = new FakeAttempt(10, true);
+        FakeAttempt second = new FakeAttempt(10, false);
+        long started = System.nanoTime() / 1000000L;
+        ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{failing, second}, 10000);
+        assertEquals(1, race.run(5000));
+        assertTrue(System.nanoTime() / 1000000L - started < 5000);
+    }
+
+    @Test
+    public void headStart_delaysNextAttempt() throws Exception {
+        FakeAttempt preferred = new FakeAttempt(FakeAttempt.FOREVER, false);
+        FakeAttempt other = new FakeAttempt(0, false);
+        long started = System.nanoTime() / 1000000L;
+        ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{preferred, other}, 200);
+        assertEquals(1, race.run(5000));
+        assertTrue(other.startedAt - started >= 200);
+        assertTrue(preferred.isAborted());
+    }
+
+    @Test
+    public void winnerWithinHeadStart_neverStartsOthers() throws Exception {
+        FakeAttempt preferred = new FakeAttempt(10, false);
+        FakeAttempt other = new FakeAttempt(0, false);
+        ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{preferred, other}, 5000);
+        assertEquals(0, race.run(5000));
+        assertEquals(-1, other.startedAt);
+    }
+
+    @Test
+    public void allFailed_throwsLastError() throws Exception {
+        ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{
+                new FakeAttempt(10, true), new FakeAttempt(20, true)}, 0);
+        try {
+            race.run(5000);
+            fail();
+        } catch (SocketTimeoutException e) {
+            fail();
+        } catch (IOException e) {
+            assertEquals("refused", e.getMessage());
+        }
+    }
+
+    @Test(expected = SocketTimeoutException.class)
+    public void noAttemptConnected_timesOut() throws Exception {
+        ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{
+                new FakeAttempt(FakeAttempt.FOREVER, false), new FakeAttempt(FakeAttempt.FOREVER, false)}, 0);
+        race.run(100);
+    }
+
+    @Test
+    public void cancel_abortsRunningRace() throws Exception {
+        final FakeAttempt attempt = new FakeAttempt(FakeAttempt.FOREVER, false);
+        final ConnectRace race = new ConnectRace(new ConnectRace.Attempt[]{attempt}, 0);
+        new Thread() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                } catch (InterruptedException e) {
+                    return;
+                }
+                race.cancel();
+            }
+        }.start();
+        try {
+            race.run(5000);
+            fail();
+        } catch (IOException e) {
+            assertTrue(attempt.isAborted());
+        }
+    }
+}
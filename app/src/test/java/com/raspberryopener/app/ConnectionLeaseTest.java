@@ -0,0 +1,122 @@
+package com.raspberryopener.app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ConnectionLeaseTest {
+    private static class FakeClock implements ConnectionLease.Clock {
+        long now = 1000;
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+    }
+
+    private FakeClock clock;
+    private ConnectionLease lease;
+    private int evictions;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new FakeClock();
+        lease = new ConnectionLease(clock, 30000);
+        lease.setOnEvictListener(new Runnable() {
+            @Override
+            public void run() {
+                evictions++;
+            }
+        });
+    }
+
+    @Test
+    public void heldLease_isNeverEvicted() throws Exception {
+        lease.acquire();
+        clock.now += 1000000;
+        assertFalse(lease.evictIfIdle());
+        assertFalse(lease.evict());
+        assertEquals(-1, lease.getMillisUntilEviction());
+        assertEquals(0, evictions);
+    }
+
+    @Test
+    public void releasedLease_isEvictedAfterIdleWindow() throws Exception {
+        lease.acquire();
+        lease.release();
+        assertTrue(lease.isIdle());
+        assertEquals(30000, lease.getMillisUntilEviction());
+
+        clock.now += 29999;
+        assertEquals(1, lease.getMillisUntilEviction());
+        assertFalse(lease.evictIfIdle());
+
+        clock.now += 1;
+        assertEquals(0, lease.getMillisUntilEviction());
+        assertTrue(lease.evictIfIdle());
+        assertEquals(1, evictions);
+
+        // Evicted only once
+        clock.now += 30000;
+        assertFalse(lease.evictIfIdle());
+        assertFalse(lease.isIdle());
+        assertEquals(1, evictions);
+    }
+
+    @Test
+    public void acquireWithinIdleWindow_keepsConnection() throws Exception {
+        lease.acquire();
+        lease.release();
+        clock.now += 10000;
+        lease.acquire();
+        clock.now += 60000;
+        assertFalse(lease.evictIfIdle());
+
+        // Idle window starts again from the last release
+        lease.release();
+        clock.now += 20000;
+        assertFalse(lease.evictIfIdle());
+        clock.now += 10000;
+        assertTrue(lease.evictIfIdle());
+        assertEquals(1, evictions);
+    }
+
+    @Test
+    public void leaseIsReferenceCounted() throws Exception {
+        lease.acquire();
+        lease.acquire();
+        lease.release();
+        assertEquals(1, lease.getHolders());
+        clock.now += 60000;
+        assertFalse(lease.evictIfIdle());
+        lease.release();
+        assertEquals(0, lease.getHolders());
+        clock.now += 30000;
+        assertTrue(lease.evictIfIdle());
+    }
+
+    @Test
+    public void zeroIdleWindow_evictsImmediately() throws Exception {
+        lease.setIdleMillis(0);
+        lease.acquire();
+        lease.release();
+        assertEquals(0, lease.getMillisUntilEviction());
+        assertTrue(lease.evictIfIdle());
+        assertEquals(1, evictions);
+    }
+
+    @Test
+    public void evict_skipsIdleWindowWhenNotHeld() throws Exception {
+        lease.acquire();
+        lease.release();
+        assertTrue(lease.evict());
+        assertEquals(1, evictions);
+        assertFalse(lease.evictIfIdle());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void unbalancedRelease_throws() throws Exception {
+        lease.release();
+    }
+}
@@ -0,0 +1,118 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.io.File;
+
+import static org.junit.Assert.*;
+
+public class ConnectionPhasesTest {
+
+    @Test
+    public void endedPhase_isRecordedOnce() throws Exception {
+        ConnectionPhases phases = new ConnectionPhases();
+        phases.start(ConnectionPhases.PHASE_LOGIN);
+        assertTrue(phases.isStarted(ConnectionPhases.PHASE_LOGIN));
+        Thread.sleep(5);
+        long micros = phases.end(ConnectionPhases.PHASE_LOGIN);
+        assertTrue(micros >= 5000);
+        assertEquals(-1, phases.end(ConnectionPhases.PHASE_LOGIN));
+        assertEquals(1, phases.getHistogram(ConnectionPhases.PHASE_LOGIN).getCount());
+        assertEquals(0, phases.getHistogram(ConnectionPhases.PHASE_DISCOVERY).getCount());
+    }
+
+    @Test
+    public void cancelledPhase_isNotRecorded() throws Exception {
+        ConnectionPhases phases = new ConnectionPhases();
+        phases.start(ConnectionPhases.PHASE_DISCOVERY);
+        phases.cancel(ConnectionPhases.PHASE_DISCOVERY);
+        assertEquals(-1, phases.end(ConnectionPhases.PHASE_DISCOVERY));
+        assertEquals(0, phases.getHistogram(ConnectionPhases.PHASE_DISCOVERY).getCount());
+    }
+
+    @Test
+    public void sessionStopwatches_doNotEndEachOthersPhases() throws Exception {
+        ConnectionPhases phases = new ConnectionPhases();
+        ConnectionPhases.Stopwatch first = phases.newStopwatch();
+        ConnectionPhases.Stopwatch second = phases.newStopwatch();
+        first.start(ConnectionPhases.PHASE_LOGIN);
+        Thread.sleep(20);
+        // The second session logs in while the first one still waits for its login status
+        second.start(ConnectionPhases.PHASE_LOGIN);
+        assertFalse(phases.isStarted(ConnectionPhases.PHASE_LOGIN));
+        long secondMicros = second.end(ConnectionPhases.PHASE_LOGIN);
+        long firstMicros = first.end(ConnectionPhases.PHASE_LOGIN);
+        assertTrue(firstMicros >= 20000);
+        assertTrue(secondMicros < firstMicros);
+        assertEquals(-1, second.end(ConnectionPhases.PHASE_LOGIN));
+        assertEquals(2, phases.getHistogram(ConnectionPhases.PHASE_LOGIN).getCount());
+    }
+
+    @Test
+    public void savedPhases_areAddedOnLoad() throws Exception {
+        File file = File.createTempFile("phases", ".bin");
+        try {
+            ConnectionPhases phases = new ConnectionPhases();
+            phases.record(ConnectionPhases.PHASE_SOCKET_CONNECT, 850000);
+            phases.record(ConnectionPhases.PHASE_SOCKET_CONNECT, 1200000);
+            phases.record(ConnectionPhases.PHASE_GATE_OPEN, 300000);
+            phases.save(file);
+
+            ConnectionPhases nextSession = new ConnectionPhases();
+            nextSession.record(ConnectionPhases.PHASE_SOCKET_CONNECT, 900000);
+            nextSession.load(file);
+            // Loading again, e.g. after the activity was recreated, does not count the file twice
+            nextSession.load(file);
+            assertEquals(3, nextSession.getHistogram(ConnectionPhases.PHASE_SOCKET_CONNECT).getCount());
+            assertEquals(1200000, nextSession.getHistogram(ConnectionPhases.PHASE_SOCKET_CONNECT).snapshot().getMax());
+            assertEquals(1, nextSession.getHistogram(ConnectionPhases.PHASE_GATE_OPEN).getCount());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void phases_areDirtyUntilSaved() throws Exception {
+        File file = File.createTempFile("phases", ".bin");
+        try {
+            ConnectionPhases phases = new ConnectionPhases();
+            assertFalse(phases.isDirty());
+            phases.record(ConnectionPhases.PHASE_LOGIN, 250000);
+            assertTrue(phases.isDirty());
+            phases.save(file);
+            assertFalse(phases.isDirty());
+
+            // The loaded durations are already in the file, only the new one makes it dirty
+            ConnectionPhases nextSession = new ConnectionPhases();
+            nextSession.load(file);
+            assertFalse(nextSession.isDirty());
+            nextSession.record(ConnectionPhases.PHASE_LOGIN, 300000);
+            assertTrue(nextSession.isDirty());
+            nextSession.save(file);
+            assertFalse(nextSession.isDirty());
+            nextSession.reset();
+            assertTrue(nextSession.isDirty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void missingFile_loadsNothing() throws Exception {
+        ConnectionPhases phases = new ConnectionPhases();
+        phases.load(new File("does-not-exist.bin"));
+        for (int i = 0; i < ConnectionPhases.PHASE_COUNT; i++)
+            assertEquals(0, phases.getHistogram(i).getCount());
+    }
+
+    @Test
+    public void export_hasLinePerPhase() throws Exception {
+        ConnectionPhases phases = new ConnectionPhases();
+        phases.record(ConnectionPhases.PHASE_LOGIN, 250000);
+        String[] lines = phases.exportCsv().split("\n");
+        assertEquals(ConnectionPhases.PHASE_COUNT + 1, lines.length);
+        assertEquals("login,1,250.0,250.0,250.0,250.0,250.0", lines[1 + ConnectionPhases.PHASE_LOGIN]);
+        assertEquals("No data", phases.summarize(ConnectionPhases.PHASE_BONDING));
+        assertEquals("count 1, p50 250 ms, p90 250 ms, p99 250 ms, max 250 ms", phases.summarize(ConnectionPhases.PHASE_LOGIN));
+    }
+}
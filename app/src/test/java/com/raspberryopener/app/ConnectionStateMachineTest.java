@@ -0,0 +1,172 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateMachineTest implements ServiceStates {
+
+    @Test
+    public void canWrite_matchesConnectedStatesWithoutObstacle() throws Exception {
+        int[] writable = {STATE_CONNECTED, STATE_LOGGED_IN, STATE_WRONG_DATA, STATE_WRONG_PASSWORD,
+                STATE_WRONG_USERNAME, STATE_GATE_OPENING, STATE_GATE_CLOSING, STATE_GATE_OPENED,
+                STATE_GATE_CLOSED, STATE_OBSTACLE_REMOVED, STATE_OBSTACLE_REMOVED_GATE_OPENED,
+                STATE_OBSTACLE_REMOVED_GATE_CLOSED};
+        assertEquals(ConnectionStateMachine.bits(writable), ConnectionStateMachine.CAN_WRITE);
+
+        for (int state : new int[] {STATE_NONE, STATE_CONNECTING, STATE_CONNECTION_LOST, STATE_OBSTACLE, STATE_BLUETOOTH_OFF})
+            assertFalse(new ConnectionStateMachine(state).is(ConnectionStateMachine.CAN_WRITE));
+        for (int state : writable)
+            assertTrue(new ConnectionStateMachine(state).is(ConnectionStateMachine.CAN_WRITE));
+    }
+
+    @Test
+    public void table_allowsConnectionLifecycle() throws Exception {
+        int[] lifecycle = {STATE_NONE, STATE_BLUETOOTH_ON_SEARCH, STATE_CONNECTING, STATE_CONNECTED,
+                STATE_LOGGED_IN, STATE_GATE_OPENING, STATE_GATE_OPENED, STATE_OBSTACLE, STATE_OBSTACLE_REMOVED,
+                STATE_GATE_CLOSING, STATE_GATE_CLOSED, STATE_CONNECTION_LOST, STATE_CONNECTING,
+                STATE_CONNECTION_FAILED, STATE_CONNECTING, STATE_CONNECTED, STATE_NONE};
+        ConnectionStateMachine machine = new ConnectionStateMachine(lifecycle[0]);
+        for (int i = 1; i < lifecycle.length; i++) {
+            assertEquals(lifecycle[i - 1] + " -> " + lifecycle[i], lifecycle[i - 1], machine.moveTo(lifecycle[i]));
+            assertEquals(lifecycle[i], machine.get());
+        }
+        assertEquals(lifecycle.length - 1, machine.getSequence());
+        assertEquals(0, machine.getIllegalCount());
+    }
+
+    @Test
+    public void illegalTransition_isCountedAndNotApplied() throws Exception {
+        ConnectionStateMachine machine = new ConnectionStateMachine(STATE_NONE);
+        // A gate message from a connection which was already stopped
+        assertEquals(ConnectionStateMachine.REFUSED, machine.moveTo(STATE_GATE_OPENED));
+        assertEquals(ConnectionStateMachine.REFUSED, machine.moveTo(STATE_CONNECTED));
+        assertEquals(STATE_NONE, machine.get());
+        assertEquals(0, machine.getSequence());
+        assertEquals(2, machine.getIllegalCount());
+
+        assertFalse(ConnectionStateMachine.isAllowed(STATE_CONNECTION_LOST, STATE_GATE_CLOSED));
+        assertFalse(ConnectionStateMachine.isAllowed(STATE_GATE_OPENED, STATE_CONNECTED));
+        assertTrue(ConnectionStateMachine.isAllowed(STATE_GATE_OPENED, STATE_NONE));
+    }
+
+    @Test
+    public void leftState_isNotMistakenForRefusal() throws Exception {
+        // The state without Bluetooth is -1, a refusal must be told apart from leaving it
+        ConnectionStateMachine machine = new ConnectionStateMachine(STATE_BLUETOOTH_NOT_SUPPORTED);
+        assertEquals(STATE_BLUETOOTH_NOT_SUPPORTED, machine.moveTo(STATE_NONE));
+        assertEquals(STATE_NONE, machine.moveTo(STATE_BLUETOOTH_NOT_SUPPORTED));
+        assertEquals(ConnectionStateMachine.REFUSED, machine.moveTo(STATE_GATE_CLOSED));
+        assertEquals(STATE_BLUETOOTH_NOT_SUPPORTED, machine.get());
+    }
+
+    @Test
+    public void transition_failsWhenStateChangedMeanwhile() throws Exception {
+        ConnectionStateMachine machine = new ConnectionStateMachine(STATE_CONNECTING);
+        assertTrue(machine.transition(STATE_CONNECTING, STATE_CONNECTED));
+        assertFalse(machine.transition(STATE_CONNECTING, STATE_CONNECTION_FAILED));
+        assertEquals(STATE_CONNECTED, machine.get());
+        assertEquals(1, machine.getContendedCount());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void unknownState_isRejected() throws Exception {
+        new ConnectionStateMachine(STATE_NONE).moveTo(1000);
+    }
+
+    @Test
+    public void concurrentTransitions_areNeitherLostNorTorn() throws Exception {
+        // Every thread tries to advance the same cycle, each step can be won by only one of them
+        final int[] cycle = {STATE_GATE_OPENING, STATE_GATE_OPENED, STATE_GATE_CLOSING, STATE_GATE_CLOSED};
+        final int steps = 200000;
+        final ConnectionStateMachine machine = new ConnectionStateMachine(cycle[0]);
+        final AtomicLong applied = new AtomicLong();
+        final AtomicLong torn = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    long won = 0;
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    while (machine.getSequence() < steps) {
+                        int state = machine.get();
+                        int position = positionOf(cycle, state);
+                        if (position < 0) {
+                            torn.incrementAndGet();
+                            break;
+                        }
+                        if (machine.transition(state, cycle[(position + 1) % cycle.length]))
+                            won++;
+                    }
+                    applied.addAndGet(won);
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(20000);
+
+        assertEquals(0, torn.get());
+        assertEquals(0, machine.getIllegalCount());
+        long sequence = machine.getSequence();
+        assertEquals(sequence, applied.get());
+        assertEquals(cycle[(int) (sequence % cycle.length)], machine.get());
+    }
+
+    @Test
+    public void concurrentMoves_countEveryAppliedTransition() throws Exception {
+        final int[] targets = {STATE_NONE, STATE_CONNECTING, STATE_CONNECTED, STATE_LOGGED_IN,
+                STATE_GATE_OPENED, STATE_CONNECTION_LOST, STATE_CONNECTION_FAILED};
+        final ConnectionStateMachine machine = new ConnectionStateMachine(STATE_NONE);
+        final AtomicLong applied = new AtomicLong();
+        final AtomicLong refused = new AtomicLong();
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            final Random random = new Random(t);
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < 50000; i++) {
+                        if (machine.moveTo(targets[random.nextInt(targets.length)]) != ConnectionStateMachine.REFUSED)
+                            applied.incrementAndGet();
+                        else
+                            refused.incrementAndGet();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        start.countDown();
+        for (Thread thread : threads)
+            thread.join(20000);
+
+        assertEquals(applied.get(), machine.getSequence());
+        assertEquals(refused.get(), machine.getIllegalCount());
+        assertEquals(4 * 50000, applied.get() + refused.get());
+        assertTrue(positionOf(targets, machine.get()) >= 0);
+    }
+
+    private static int positionOf(int[] states, int state) {
+        for (int i = 0; i < states.length; i++)
+            if (states[i] == state)
+                return i;
+        return -1;
+    }
+}
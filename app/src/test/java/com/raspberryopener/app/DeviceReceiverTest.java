@@ -0,0 +1,33 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class DeviceReceiverTest {
+
+    @Test
+    public void foundDevices_areMatchedAgainstGatesOfSearch() throws Exception {
+        GateRegistry gates = new GateRegistry();
+        gates.put(new GateProfile(Helpers.parseAddress("A4:5E:60:0F:12:9B"), UUID.randomUUID(),
+                GateProfile.DEFAULT_ACCOUNT, GateProfile.STRATEGY_UNKNOWN));
+        DeviceReceiver receiver = new DeviceReceiver(null, true);
+        assertFalse(receiver.isGate("A4:5E:60:0F:12:9B"));
+
+        receiver.setGates(gates);
+        assertTrue(receiver.isGate("A4:5E:60:0F:12:9B"));
+        assertTrue(receiver.isGate("a4:5e:60:0f:12:9b"));
+        assertFalse(receiver.isGate("A4:5E:60:0F:12:9C"));
+        assertFalse(receiver.isGate("gate"));
+        assertFalse(receiver.isGate(null));
+
+        // A gate added during a search is matched from the next one on
+        gates.put(new GateProfile(Helpers.parseAddress("00:11:22:AA:BB:CC"), UUID.randomUUID(),
+                GateProfile.DEFAULT_ACCOUNT, GateProfile.STRATEGY_UNKNOWN));
+        assertFalse(receiver.isGate("00:11:22:AA:BB:CC"));
+        receiver.setGates(gates);
+        assertTrue(receiver.isGate("00:11:22:AA:BB:CC"));
+    }
+}
@@ -0,0 +1,239 @@
+package com.raspberryopener.app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Plays scripted discovery event streams against the scheduler on a fake clock.
+ */
+public class DiscoverySchedulerTest {
+    private static final long WINDOW = 12000;
+    private static final long MIN_PAUSE = 2000;
+    private static final long MAX_PAUSE = 60000;
+
+    /**
+     * Clock whose time only moves when the test advances it, running the callbacks which come due.
+     */
+    private static class FakeClock implements DiscoveryScheduler.Clock {
+        private final List<Runnable> mRunnables = new ArrayList<>();
+        private final List<Long> mDueMillis = new ArrayList<>();
+        long now = 1000000;
+
+        @Override
+        public long elapsedMillis() {
+            return now;
+        }
+
+        @Override
+        public void postDelayed(Runnable runnable, long delayMillis) {
+            mRunnables.add(runnable);
+            mDueMillis.add(now + delayMillis);
+        }
+
+        @Override
+        public void removeCallbacks(Runnable runnable) {
+            for (int i = mRunnables.size() - 1; i >= 0; i--) {
+                if (mRunnables.get(i) == runnable) {
+                    mRunnables.remove(i);
+                    mDueMillis.remove(i);
+                }
+            }
+        }
+
+        void advance(long millis) {
+            long until = now + millis;
+            while (true) {
+                int next = -1;
+                for (int i = 0; i < mDueMillis.size(); i++) {
+                    if (mDueMillis.get(i) <= until && (next < 0 || mDueMillis.get(i) < mDueMillis.get(next)))
+                        next = i;
+                }
+                if (next < 0)
+                    break;
+                now = mDueMillis.remove(next);
+                mRunnables.remove(next).run();
+            }
+            now = until;
+        }
+
+        int getPending() {
+            return mRunnables.size();
+        }
+    }
+
+    /**
+     * Adapter which records the calls; a real inquiry reports its end, here the test does.
+     */
+    private static class ScriptedRadio implements DiscoveryScheduler.Radio {
+        final List<Long> startedAt = new ArrayList<>();
+        int cancels;
+        boolean discovering;
+        boolean refuse;
+        FakeClock clock;
+
+        @Override
+        public boolean startDiscovery() {
+            if (refuse)
+                return false;
+            startedAt.add(clock.now);
+            discovering = true;
+            return true;
+        }
+
+        @Override
+        public void cancelDiscovery() {
+            cancels++;
+            discovering = false;
+        }
+    }
+
+    private FakeClock clock;
+    private ScriptedRadio radio;
+    private DiscoveryScheduler scheduler;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new FakeClock();
+        radio = new ScriptedRadio();
+        radio.clock = clock;
+        scheduler = new DiscoveryScheduler(radio, clock, WINDOW,
+                new ReconnectBackoff(MIN_PAUSE, MAX_PAUSE, 2, 0, 0, new Random(1)));
+    }
+
+    private void awaitNextScan() {
+        int scans = radio.startedAt.size();
+        while (radio.startedAt.size() == scans) {
+            assertTrue(scheduler.isSearching());
+            clock.advance(100);
+        }
+    }
+
+    @Test
+    public void foundGate_cancelsInquiryAtOnce() throws Exception {
+        scheduler.start();
+        assertTrue(radio.discovering);
+        clock.advance(1500);
+        assertTrue(scheduler.onTargetFound());
+
+        assertFalse(radio.discovering);
+        assertEquals(1, radio.cancels);
+        assertEquals(1, scheduler.getCancelledOnMatchCount());
+        assertFalse(scheduler.isSearching());
+        assertEquals(0, clock.getPending());
+        assertEquals(1500, scheduler.getScanMillis());
+        assertEquals(1, scheduler.getTimeToFind().getCount());
+        assertEquals(1500000, scheduler.getTimeToFind().snapshot().getMax());
+
+        // The finished broadcast of the cancelled inquiry and repeated matches change nothing
+        scheduler.onDiscoveryFinished();
+        assertFalse(scheduler.onTargetFound());
+        clock.advance(10 * MAX_PAUSE);
+        assertEquals(1, radio.startedAt.size());
+    }
+
+    @Test
+    public void absentGate_isScannedWithGrowingPauses() throws Exception {
+        scheduler.start();
+        // Every inquiry finishes by itself after 10 s without the gate
+        for (int i = 0; i < 12; i++) {
+            clock.advance(10000);
+            radio.discovering = false;
+            scheduler.onDiscoveryFinished();
+            awaitNextScan();
+        }
+        List<Long> started = radio.startedAt;
+        assertEquals(13, started.size());
+        long previousGap = 0;
+        for (int i = 1; i < started.size(); i++) {
+            long pause = started.get(i) - started.get(i - 1) - 10000;
+            assertTrue("pause " + pause, pause >= previousGap && pause <= MAX_PAUSE);
+            previousGap = pause;
+        }
+        assertEquals(MIN_PAUSE, started.get(1) - started.get(0) - 10000);
+        assertEquals(MAX_PAUSE, previousGap);
+        assertEquals(0, radio.cancels);
+        assertEquals(0, scheduler.getTimeToFind().getCount());
+
+        // Once the pauses are at their maximum the radio scans at most a sixth of the time
+        long firstAtMax = started.get(6);
+        long lastStart = started.get(started.size() - 1);
+        long scanned = 10000L * 6;
+        assertTrue(scanned * 6 <= lastStart - firstAtMax + 10000);
+    }
+
+    @Test
+    public void longInquiry_isCutAtWindow() throws Exception {
+        scheduler.start();
+        clock.advance(WINDOW);
+        assertFalse(radio.discovering);
+        assertEquals(1, radio.cancels);
+        assertEquals(WINDOW, scheduler.getScanMillis());
+        // The finished broadcast of the cancelled inquiry does not start the next scan early
+        scheduler.onDiscoveryFinished();
+        assertEquals(1, radio.startedAt.size());
+        clock.advance(MIN_PAUSE);
+        assertEquals(2, radio.startedAt.size());
+    }
+
+    @Test
+    public void gateFoundLater_endsSearchAfterSeveralScans() throws Exception {
+        scheduler.start();
+        clock.advance(10000);
+        scheduler.onDiscoveryFinished();
+        clock.advance(MIN_PAUSE);
+        clock.advance(10000);
+        scheduler.onDiscoveryFinished();
+        clock.advance(2 * MIN_PAUSE);
+        clock.advance(3000);
+        assertTrue(scheduler.onTargetFound());
+
+        assertEquals(3, scheduler.getSearchScanCount());
+        assertEquals((10000 + MIN_PAUSE + 10000 + 2 * MIN_PAUSE + 3000) * 1000,
+                scheduler.getTimeToFind().snapshot().getMax());
+        assertEquals(23000, scheduler.getScanMillis());
+
+        // A new search starts with the shortest pause again
+        scheduler.start();
+        clock.advance(10000);
+        scheduler.onDiscoveryFinished();
+        clock.advance(MIN_PAUSE);
+        assertEquals(5, radio.startedAt.size());
+    }
+
+    @Test
+    public void refusedStart_isRetriedAfterPause() throws Exception {
+        radio.refuse = true;
+        scheduler.start();
+        assertTrue(scheduler.isSearching());
+        assertTrue(radio.startedAt.isEmpty());
+        radio.refuse = false;
+        clock.advance(MIN_PAUSE);
+        assertEquals(1, radio.startedAt.size());
+    }
+
+    @Test
+    public void stop_cancelsScanAndPendingRetries() throws Exception {
+        scheduler.start();
+        scheduler.start();
+        assertEquals(1, radio.startedAt.size());
+        clock.advance(4000);
+        scheduler.stop();
+        assertFalse(radio.discovering);
+        assertEquals(0, clock.getPending());
+
+        scheduler.start();
+        clock.advance(10000);
+        scheduler.onDiscoveryFinished();
+        scheduler.stop();
+        assertEquals(0, clock.getPending());
+        clock.advance(10 * MAX_PAUSE);
+        assertEquals(2, radio.startedAt.size());
+        assertEquals(14000, scheduler.getScanMillis());
+    }
+}
@@ -0,0 +1,140 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.io.BufferedReader;
+import java.io.StringReader;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GatePreferencesTest {
+    private static final String UUID_TEXT = "00001101-0000-1000-8000-00805F9B34FB";
+
+    private static MemoryPreferences gatePreferences(String address) {
+        MemoryPreferences preferences = new MemoryPreferences();
+        preferences.values.put(GatePreferences.PREF_DEVICE_ADDRESS, address);
+        preferences.values.put(GatePreferences.PREF_SERVICE_UUID, UUID_TEXT);
+        return preferences;
+    }
+
+    @Test
+    public void firstStart_importsGateWithRememberedStrategy() throws Exception {
+        MemoryPreferences preferences = gatePreferences("a4:5e:60:0f:12:9b");
+        preferences.values.put(GatePreferences.PREF_STRATEGY_PREFIX + "a4:5e:60:0f:12:9b", BluetoothTransport.STRATEGY_SERVICE_RECORD);
+        GateRegistry registry = new GateRegistry();
+        new GatePreferences(registry, preferences, true);
+
+        assertEquals(1, registry.size());
+        GateProfile gate = registry.find("A4:5E:60:0F:12:9B");
+        assertNotNull(gate);
+        assertEquals(Helpers.makeUuid(UUID_TEXT), gate.getServiceUuid());
+        assertEquals(BluetoothTransport.STRATEGY_SERVICE_RECORD, gate.getPreferredStrategy());
+    }
+
+    @Test
+    public void incompleteSettings_importNothing() throws Exception {
+        MemoryPreferences preferences = new MemoryPreferences();
+        preferences.values.put(GatePreferences.PREF_DEVICE_ADDRESS, "A4:5E:60:0F:12:9B");
+        assertFalse(GatePreferences.migrate(new GateRegistry(), preferences));
+        preferences.values.put(GatePreferences.PREF_SERVICE_UUID, "wrong");
+        assertFalse(GatePreferences.migrate(new GateRegistry(), preferences));
+        assertFalse(GatePreferences.migrate(new GateRegistry(), gatePreferences("gate")));
+    }
+
+    @Test
+    public void editedAddress_addsGateAndKeepsOthers() throws Exception {
+        MemoryPreferences preferences = gatePreferences("A4:5E:60:0F:12:9B");
+        GateRegistry registry = new GateRegistry();
+        GatePreferences gates = new GatePreferences(registry, preferences, true);
+        registry.setPreferredStrategy(Helpers.parseAddress("A4:5E:60:0F:12:9B"), BluetoothTransport.STRATEGY_CHANNEL);
+        GateProfile other = new GateProfile(7, Helpers.makeUuid(UUID_TEXT), "barrier", GateProfile.STRATEGY_UNKNOWN);
+        registry.put(other);
+
+        preferences.values.put(GatePreferences.PREF_DEVICE_ADDRESS, "00:11:22:AA:BB:CC");
+        gates.onSharedPreferenceChanged(preferences, "username");
+        assertNull(registry.find("00:11:22:AA:BB:CC"));
+        gates.onSharedPreferenceChanged(preferences, GatePreferences.PREF_DEVICE_ADDRESS);
+
+        assertEquals(3, registry.size());
+        assertEquals(BluetoothTransport.STRATEGY_CHANNEL, registry.find("A4:5E:60:0F:12:9B").getPreferredStrategy());
+        assertEquals(GateProfile.STRATEGY_UNKNOWN, registry.find("00:11:22:AA:BB:CC").getPreferredStrategy());
+        assertSame(other, registry.find(7));
+    }
+
+    @Test
+    public void malformedUuid_isIgnored() throws Exception {
+        MemoryPreferences preferences = gatePreferences("A4:5E:60:0F:12:9B");
+        GateRegistry registry = new GateRegistry();
+        GatePreferences gates = new GatePreferences(registry, preferences, true);
+        GateProfile gate = registry.find("A4:5E:60:0F:12:9B");
+
+        // As long as the text, but not hex, like a UUID being typed over
+        preferences.values.put(GatePreferences.PREF_SERVICE_UUID, "0000110X-0000-1000-8000-00805F9B34FB");
+        gates.onSharedPreferenceChanged(preferences, GatePreferences.PREF_SERVICE_UUID);
+        assertEquals(1, registry.size());
+        assertSame(gate, registry.find("A4:5E:60:0F:12:9B"));
+        assertFalse(GatePreferences.migrate(new GateRegistry(), preferences));
+    }
+
+    @Test
+    public void selectedGate_keepsItsUuidAccountAndStrategy() throws Exception {
+        MemoryPreferences preferences = gatePreferences("A4:5E:60:0F:12:9B");
+        GateRegistry registry = new GateRegistry();
+        GatePreferences gates = new GatePreferences(registry, preferences, true);
+        GateProfile barrier = new GateProfile(7, UUID.fromString("8CE255C0-200A-11E0-AC64-0800200C9A66"), "barrier",
+                BluetoothTransport.STRATEGY_SERVICE_RECORD);
+        registry.put(barrier);
+
+        // The values selectGate() writes
+        preferences.values.put(GatePreferences.PREF_DEVICE_ADDRESS, Helpers.formatAddress(7));
+        preferences.values.put(GatePreferences.PREF_SERVICE_UUID, barrier.getServiceUuid().toString().toUpperCase());
+        gates.onSharedPreferenceChanged(preferences, GatePreferences.PREF_DEVICE_ADDRESS);
+        gates.onSharedPreferenceChanged(preferences, GatePreferences.PREF_SERVICE_UUID);
+
+        assertEquals(7, GatePreferences.getSelectedAddress(preferences));
+        assertEquals(2, registry.size());
+        assertSame(barrier, registry.find(7));
+        assertNotNull(registry.find("A4:5E:60:0F:12:9B"));
+    }
+
+    @Test
+    public void importedGates_areAddedOrUpdated() throws Exception {
+        GateRegistry registry = new GateRegistry();
+        registry.put(new GateProfile(Helpers.parseAddress("A4:5E:60:0F:12:9B"), Helpers.makeUuid(UUID_TEXT),
+                GateProfile.DEFAULT_ACCOUNT, BluetoothTransport.STRATEGY_CHANNEL));
+        String file = "# address, service UUID, account\n"
+                + "a4:5e:60:0f:12:9b, 00001101-0000-1000-8000-00805F9B34FB, resident\n"
+                + "\n"
+                + "00:11:22:AA:BB:CC\t00001101-0000-1000-8000-00805f9b34fb\n"
+                + "00:11:22:AA:BB:CD 00001101-0000-1000-8000-00805F9B34FX\n"
+                + "gate 00001101-0000-1000-8000-00805F9B34FB\n"
+                + "00:11:22:AA:BB:CE\n";
+
+        assertEquals(2, GatePreferences.importGates(registry, new BufferedReader(new StringReader(file))));
+        assertEquals(2, registry.size());
+        GateProfile updated = registry.find("A4:5E:60:0F:12:9B");
+        assertEquals("resident", updated.getAccount());
+        assertEquals(BluetoothTransport.STRATEGY_CHANNEL, updated.getPreferredStrategy());
+        GateProfile added = registry.find("00:11:22:AA:BB:CC");
+        assertEquals(Helpers.makeUuid(UUID_TEXT), added.getServiceUuid());
+        assertEquals(GateProfile.DEFAULT_ACCOUNT, added.getAccount());
+    }
+
+    @Test
+    public void credentials_areReadForAccountOfGate() throws Exception {
+        MemoryPreferences preferences = new MemoryPreferences();
+        preferences.values.put("username", "resident");
+        preferences.values.put("password", "secret");
+        preferences.values.put("username_barrier", "staff");
+        preferences.values.put("password_barrier", "barrier secret");
+        GateProfile gate = new GateProfile(1, Helpers.makeUuid(UUID_TEXT), GateProfile.DEFAULT_ACCOUNT, GateProfile.STRATEGY_UNKNOWN);
+        GateProfile barrier = new GateProfile(2, Helpers.makeUuid(UUID_TEXT), "barrier", GateProfile.STRATEGY_UNKNOWN);
+
+        assertEquals("resident", GatePreferences.getUsername(preferences, gate));
+        assertEquals("secret", GatePreferences.getPassword(preferences, gate));
+        assertEquals("staff", GatePreferences.getUsername(preferences, barrier));
+        assertEquals("barrier secret", GatePreferences.getPassword(preferences, barrier));
+        assertEquals("resident", GatePreferences.getUsername(preferences, null));
+    }
+}
@@ -0,0 +1,155 @@
+package com.raspberryopener.app;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class GateRegistryTest {
+    private static final UUID SERIAL_PORT = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static GateProfile gate(long address) {
+        return new GateProfile(address, SERIAL_PORT, GateProfile.DEFAULT_ACCOUNT, GateProfile.STRATEGY_UNKNOWN);
+    }
+
+    private static GateRegistry registryOf(int count) {
+        GateRegistry registry = new GateRegistry();
+        for (int i = 0; i < count; i++)
+            registry.put(new GateProfile(0xA45E60000000L + i * 7919L, new UUID(i, -i), i % 3 == 0 ? "" : "site" + i, i % 2));
+        return registry;
+    }
+
+    @Test
+    public void gates_areFoundByAddress() throws Exception {
+        GateRegistry registry = registryOf(500);
+        assertEquals(500, registry.size());
+        for (int i = 0; i < 500; i++) {
+            GateProfile profile = registry.find(0xA45E60000000L + i * 7919L);
+            assertNotNull(profile);
+            assertEquals(new UUID(i, -i), profile.getServiceUuid());
+        }
+        assertNull(registry.find(0xA45E60000001L));
+        GateProfile first = registry.get(0);
+        assertSame(first, registry.find(Helpers.formatAddress(first.getAddress()).toLowerCase()));
+        assertNull(registry.find("not an address"));
+    }
+
+    @Test
+    public void put_replacesGateWithSameAddress() throws Exception {
+        GateRegistry registry = new GateRegistry();
+        registry.put(gate(1));
+        registry.put(new GateProfile(1, SERIAL_PORT, "barrier", GateProfile.STRATEGY_UNKNOWN));
+        assertEquals(1, registry.size());
+        assertEquals("barrier", registry.find(1).getAccount());
+    }
+
+    @Test
+    public void remove_keepsOtherGatesReachable() throws Exception {
+        GateRegistry registry = registryOf(100);
+        for (int i = 0; i < 100; i += 2)
+            assertTrue(registry.remove(0xA45E60000000L + i * 7919L));
+        assertFalse(registry.remove(0xA45E60000000L));
+        assertEquals(50, registry.size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i % 2 == 1, registry.contains(0xA45E60000000L + i * 7919L));
+        for (int i = 0; i < registry.size(); i++)
+            assertSame(registry.get(i), registry.find(registry.get(i).getAddress()));
+    }
+
+    @Test
+    public void preferredStrategy_isKeptPerGate() throws Exception {
+        GateRegistry registry = new GateRegistry();
+        registry.put(gate(1));
+        registry.put(gate(2));
+        registry.setPreferredStrategy(2, BluetoothTransport.STRATEGY_SERVICE_RECORD);
+        registry.setPreferredStrategy(3, BluetoothTransport.STRATEGY_SERVICE_RECORD);
+        assertEquals(GateProfile.STRATEGY_UNKNOWN, registry.getPreferredStrategy(1));
+        assertEquals(BluetoothTransport.STRATEGY_SERVICE_RECORD, registry.getPreferredStrategy(2));
+        assertEquals(GateProfile.STRATEGY_UNKNOWN, registry.getPreferredStrategy(3));
+        assertFalse(registry.contains(3));
+    }
+
+    @Test
+    public void saveAndLoad_keepsAllGates() throws Exception {
+        GateRegistry registry = registryOf(300);
+        assertTrue(registry.isDirty());
+        File file = new File(folder.getRoot(), GateRegistry.FILE_NAME);
+        registry.save(file);
+        assertFalse(registry.isDirty());
+        // Address, UUID and strategy take 25 bytes, the account name 2 more and its characters
+        assertTrue(file.length() < 300 * 34);
+
+        GateRegistry loaded = new GateRegistry();
+        assertTrue(loaded.load(file));
+        assertFalse(loaded.isDirty());
+        assertEquals(300, loaded.size());
+        for (int i = 0; i < registry.size(); i++)
+            assertEquals(registry.get(i), loaded.find(registry.get(i).getAddress()));
+    }
+
+    @Test
+    public void missingFile_isNotLoaded() throws Exception {
+        GateRegistry registry = registryOf(1);
+        assertFalse(registry.load(new File(folder.getRoot(), "missing.bin")));
+        assertEquals(1, registry.size());
+    }
+
+    @Test
+    public void damagedFile_leavesRegistryUnchanged() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        registryOf(10).writeTo(new DataOutputStream(bytes));
+        byte[] truncated = new byte[bytes.size() - 5];
+        System.arraycopy(bytes.toByteArray(), 0, truncated, 0, truncated.length);
+
+        GateRegistry registry = registryOf(3);
+        try {
+            registry.readFrom(new DataInputStream(new ByteArrayInputStream(truncated)));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void firstVersionFile_isNotLoaded() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        registryOf(10).writeTo(new DataOutputStream(bytes));
+        byte[] file = bytes.toByteArray();
+        // The version follows the magic number, the UUIDs of version 1 were read wrong
+        file[4] = 1;
+
+        GateRegistry registry = registryOf(3);
+        try {
+            registry.readFrom(new DataInputStream(new ByteArrayInputStream(file)));
+            fail();
+        } catch (IOException expected) {
+        }
+        assertEquals(3, registry.size());
+    }
+
+    @Test
+    public void copiedAddresses_doNotFollowChanges() throws Exception {
+        GateRegistry registry = registryOf(20);
+        LongIndexMap addresses = registry.copyAddresses();
+        assertEquals(20, addresses.size());
+        for (int i = 0; i < registry.size(); i++)
+            assertEquals(i, addresses.get(registry.get(i).getAddress()));
+
+        registry.put(gate(7));
+        registry.remove(registry.get(0).getAddress());
+        assertEquals(LongIndexMap.NOT_FOUND, addresses.get(7));
+        assertEquals(20, addresses.size());
+    }
+}
@@ -0,0 +1,212 @@
+package com.raspberryopener.app;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Many {@link TestGate}s served in parallel by one {@link GateSessionManager}.
+ */
+public class GateSessionManagerTest {
+    private static final long TIMEOUT = 10000;
+    private static final int GATES = 32;
+    private static final long FIRST_ADDRESS = 0xB827EB000000L;
+
+    private TestGate[] gates;
+    private PipeTransport.Listener[] pipeListeners;
+    private RecordingListener[] listeners;
+    private GateSessionManager manager;
+
+    /**
+     * Logs in to its gate like ActivityMain does, through the manager.
+     */
+    private class LoginListener extends RecordingListener {
+        private final long mmAddress;
+
+        LoginListener(long address) {
+            mmAddress = address;
+        }
+
+        @Override
+        protected void onEvent(int what, int arg1) {
+            if (what == ActivityMain.MESSAGE_CONNECTED)
+                manager.get(mmAddress).write(GateCommands.login("user", "secret"));
+        }
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        gates = new TestGate[GATES];
+        pipeListeners = new PipeTransport.Listener[GATES];
+        listeners = new RecordingListener[GATES];
+        for (int i = 0; i < GATES; i++) {
+            gates[i] = new TestGate("user", "secret");
+            pipeListeners[i] = new PipeTransport.Listener("gate " + i);
+            gates[i].servePipe(pipeListeners[i]);
+            listeners[i] = new LoginListener(FIRST_ADDRESS + i);
+        }
+        manager = new GateSessionManager(GATES);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        manager.shutdown();
+        for (int i = 0; i < GATES; i++) {
+            pipeListeners[i].close();
+            gates[i].close();
+        }
+    }
+
+    private BluetoothService open(int gate) {
+        return manager.open(FIRST_ADDRESS + gate, new PipeTransport(pipeListeners[gate]), listeners[gate], null);
+    }
+
+    @Test
+    public void sessions_runInParallelOnBoundedPool() throws Exception {
+        BluetoothService[] sessions = new BluetoothService[GATES];
+        for (int i = 0; i < GATES; i++)
+            sessions[i] = open(i);
+        assertEquals(GATES, manager.getSessionCount());
+        for (int i = 0; i < GATES; i++)
+            assertTrue("gate " + i, listeners[i].awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+
+        // Every gate moves on its own, half of them are opened
+        for (int i = 0; i < GATES; i += 2)
+            assertTrue(sessions[i].write(GateCommands.openGate()));
+        for (int i = 0; i < GATES; i += 2)
+            assertTrue("gate " + i, listeners[i].awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        for (int i = 0; i < GATES; i++) {
+            assertEquals(i % 2 == 0 ? BluetoothService.STATE_GATE_OPENED : BluetoothService.STATE_GATE_CLOSED,
+                    sessions[i].getState());
+            assertSame(sessions[i], manager.get(FIRST_ADDRESS + i));
+        }
+
+        // Each session measures its own writes: the login, and the open command for half of them
+        for (int i = 0; i < GATES; i++)
+            assertEquals(i % 2 == 0 ? 2 : 1, sessions[i].getWriteLatency().getCount());
+        assertTrue(manager.getLargestPoolSize() <= GATES);
+    }
+
+    @Test
+    public void droppedGate_reconnectsWithoutDisturbingOthers() throws Exception {
+        BluetoothService dropped = manager.open(FIRST_ADDRESS, new PipeTransport(pipeListeners[0]), listeners[0],
+                new ReconnectBackoff(10, 100, 2, 0, 5, new Random(1)));
+        BluetoothService other = open(1);
+        assertTrue(listeners[0].awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertTrue(listeners[1].awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        listeners[1].clear();
+
+        gates[0].dropConnections();
+        assertTrue(listeners[0].awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+        assertTrue(listeners[0].awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertEquals(1, dropped.getReconnectCount());
+        assertEquals(0, other.getReconnectCount());
+        assertTrue(listeners[1].getStates().isEmpty());
+        assertEquals(BluetoothService.STATE_GATE_CLOSED, other.getState());
+    }
+
+    @Test
+    public void threads_areBoundedBySessionCount() throws Exception {
+        manager.shutdown();
+        assertTrue(manager.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+        int sessions = 4;
+        manager = new GateSessionManager(sessions);
+        int before = countThreads("Gate sessions");
+        for (int i = 0; i < sessions; i++)
+            manager.open(FIRST_ADDRESS + i, new PipeTransport(pipeListeners[i]), listeners[i],
+                    new ReconnectBackoff(10, 100, 2, 0, 5, new Random(i)));
+        int most = 0;
+        for (int round = 0; round < 5; round++) {
+            for (int i = 0; i < sessions; i++)
+                assertTrue("gate " + i, listeners[i].awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+            most = Math.max(most, countThreads("Gate sessions"));
+            for (int i = 0; i < sessions; i++) {
+                listeners[i].clear();
+                gates[i].dropConnections();
+            }
+        }
+        // The loop thread, a blocking thread and the connection threads for every session
+        int started = most - before;
+        assertTrue("threads " + started, started <= 1 + sessions + sessions * IoLoop.THREADS_PER_CONNECTION);
+        assertTrue(manager.getLargestPoolSize() <= sessions);
+    }
+
+    private static int countThreads(String prefix) {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && thread.getName().startsWith(prefix))
+                count++;
+        }
+        return count;
+    }
+
+    @Test
+    public void sessionLimit_isEnforced() throws Exception {
+        manager.shutdown();
+        manager = new GateSessionManager(2);
+        manager.open(FIRST_ADDRESS, new PipeTransport(pipeListeners[0]), listeners[0], null);
+        BluetoothService second = manager.open(FIRST_ADDRESS + 1, new PipeTransport(pipeListeners[1]), listeners[1], null);
+        try {
+            manager.open(FIRST_ADDRESS + 2, new PipeTransport(pipeListeners[2]), listeners[2], null);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        // Connecting a gate again reuses its session
+        assertTrue(listeners[1].awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertSame(second, manager.open(FIRST_ADDRESS + 1, new PipeTransport(pipeListeners[1]), listeners[1], null));
+
+        assertTrue(manager.close(FIRST_ADDRESS));
+        assertFalse(manager.close(FIRST_ADDRESS));
+        assertTrue(listeners[0].awaitState(BluetoothService.STATE_NONE, TIMEOUT));
+        manager.open(FIRST_ADDRESS + 2, new PipeTransport(pipeListeners[2]), listeners[2], null);
+        assertEquals(2, manager.getSessionCount());
+    }
+
+    @Test
+    public void createdSession_runsOnManagerLoopWithinLimit() throws Exception {
+        manager.shutdown();
+        manager = new GateSessionManager(2);
+        RecordingListener appListener = new RecordingListener();
+        BluetoothService app = manager.create(appListener);
+        manager.open(FIRST_ADDRESS + 1, new PipeTransport(pipeListeners[1]), listeners[1], null);
+        assertEquals(2, manager.getSessionCount());
+        assertTrue(manager.getSessions().contains(app));
+        try {
+            manager.create(new RecordingListener());
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+
+        // Connected on transports of its own, any gate
+        app.setLoginCommand(GateCommands.login("user", "secret"));
+        app.connect(new PipeTransport(pipeListeners[0]));
+        assertTrue(appListener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertNull(manager.get(FIRST_ADDRESS));
+
+        manager.shutdown();
+        assertTrue(appListener.awaitState(BluetoothService.STATE_NONE, TIMEOUT));
+        assertTrue(manager.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, manager.getSessionCount());
+    }
+
+    @Test
+    public void shutdown_endsAllSessionTasks() throws Exception {
+        for (int i = 0; i < 4; i++)
+            open(i);
+        for (int i = 0; i < 4; i++)
+            assertTrue(listeners[i].awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        manager.shutdown();
+        assertTrue(manager.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertEquals(0, manager.getSessionCount());
+        try {
+            open(0);
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+    }
+}
@@ -0,0 +1,99 @@
+package com.raspberryopener.app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GateSessionTest {
+    private static class FakeClock implements ConnectionLease.Clock {
+        long now = 1000;
+
+        @Override
+        public long uptimeMillis() {
+            return now;
+        }
+    }
+
+    private FakeClock clock;
+    private GateSession session;
+
+    @Before
+    public void setUp() throws Exception {
+        clock = new FakeClock();
+        session = new GateSession(clock);
+    }
+
+    @Test
+    public void noToken_needsLogin() throws Exception {
+        assertFalse(session.startResume());
+        assertArrayEquals("openGate".getBytes(), session.wrap("openGate".getBytes()));
+    }
+
+    @Test
+    public void validToken_goesWithFirstCommandOnly() throws Exception {
+        assertTrue(session.onSessionMessage("session=abc_1-2&ttl=60"));
+        assertTrue(session.startResume());
+        assertArrayEquals("resume=abc_1-2&openGate".getBytes(), session.wrap("openGate".getBytes()));
+        assertArrayEquals("closeGate".getBytes(), session.wrap("closeGate".getBytes()));
+    }
+
+    @Test
+    public void token_expiresWithMargin() throws Exception {
+        session.onSessionMessage("session=abc&ttl=10");
+        clock.now += 10000 - GateSession.EXPIRY_MARGIN_MILLIS - 1;
+        assertTrue(session.hasValidToken());
+        clock.now += 1;
+        assertFalse(session.hasValidToken());
+        assertFalse(session.startResume());
+    }
+
+    @Test
+    public void tokenExpiredBeforeFirstCommand_keepsCommandForLogin() throws Exception {
+        session.onSessionMessage("session=abc&ttl=10");
+        assertTrue(session.startResume());
+        clock.now += 10000;
+        assertNull(session.wrap("openGate".getBytes()));
+        assertArrayEquals("openGate".getBytes(), session.onLoggedIn());
+        assertNull(session.onLoggedIn());
+    }
+
+    @Test
+    public void refusedToken_resendsCommandAfterLogin() throws Exception {
+        session.onSessionMessage("session=abc&ttl=60");
+        session.startResume();
+        session.wrap("openGate".getBytes());
+        session.onSessionExpired();
+        assertFalse(session.hasValidToken());
+        assertArrayEquals("openGate".getBytes(), session.onLoggedIn());
+    }
+
+    @Test
+    public void acceptedToken_dropsPendingCommand() throws Exception {
+        session.onSessionMessage("session=abc&ttl=60");
+        session.startResume();
+        session.wrap("openGate".getBytes());
+        session.onSessionMessage("session=def&ttl=60");
+        assertNull(session.onLoggedIn());
+    }
+
+    @Test
+    public void oldPendingCommand_isNotResent() throws Exception {
+        session.onSessionMessage("session=abc&ttl=60");
+        session.startResume();
+        session.wrap("openGate".getBytes());
+        session.onSessionExpired();
+        clock.now += GateSession.PENDING_COMMAND_TIMEOUT_MILLIS + 1;
+        assertNull(session.onLoggedIn());
+    }
+
+    @Test
+    public void malformedSessions_areRejected() throws Exception {
+        String[] messages = {"session=&ttl=60", "session=abc", "session=abc&ttl=x", "session=abc&ttl=0",
+                "session=a&b&ttl=60", "session=a=b&ttl=60"};
+        for (String message : messages) {
+            assertFalse(message, session.onSessionMessage(message));
+            assertFalse(message, session.hasValidToken());
+        }
+    }
+}
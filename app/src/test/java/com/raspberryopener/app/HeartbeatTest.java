@@ -0,0 +1,86 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class HeartbeatTest {
+    private static final long MS = 1000000; // nanoseconds
+
+    @Test
+    public void pong_measuresRoundTrip() throws Exception {
+        LatencyHistogram rtt = new LatencyHistogram();
+        Heartbeat heartbeat = new Heartbeat(1000, 3, rtt);
+        assertEquals(-1, heartbeat.getSmoothedRttMicros());
+        assertEquals(Heartbeat.INITIAL_COMMAND_TIMEOUT_MILLIS, heartbeat.getCommandTimeoutMillis());
+
+        long sequence = heartbeat.onTick(0);
+        assertEquals(1, sequence);
+        assertTrue(heartbeat.onPong(sequence, 100 * MS));
+        assertEquals(100000, heartbeat.getSmoothedRttMicros());
+        assertEquals(1, rtt.getCount());
+        // First sample: 100 ms + 4 * 50 ms variation
+        assertEquals(300, heartbeat.getCommandTimeoutMillis());
+        assertFalse(heartbeat.onPong(sequence, 110 * MS)); // duplicate
+    }
+
+    @Test
+    public void steadyRoundTrip_shrinksTimeoutToMinimum() throws Exception {
+        Heartbeat heartbeat = new Heartbeat(1000, 3, null);
+        long now = 0;
+        for (int i = 0; i < 50; i++) {
+            long sequence = heartbeat.onTick(now);
+            assertTrue(heartbeat.onPong(sequence, now + 30 * MS));
+            now += 1000 * MS;
+        }
+        assertEquals(30000, heartbeat.getSmoothedRttMicros());
+        assertEquals(Heartbeat.MIN_COMMAND_TIMEOUT_MILLIS, heartbeat.getCommandTimeoutMillis());
+    }
+
+    @Test
+    public void slowLink_raisesTimeoutUpToMaximum() throws Exception {
+        Heartbeat heartbeat = new Heartbeat(1000, 3, null);
+        long sequence = heartbeat.onTick(0);
+        heartbeat.onPong(sequence, 100 * MS);
+        long fast = heartbeat.getCommandTimeoutMillis();
+        sequence = heartbeat.onTick(1000 * MS);
+        heartbeat.onPong(sequence, 2000 * MS);
+        assertTrue(heartbeat.getCommandTimeoutMillis() > fast);
+
+        sequence = heartbeat.onTick(0);
+        heartbeat.onPong(sequence, 60000 * MS);
+        assertEquals(Heartbeat.MAX_COMMAND_TIMEOUT_MILLIS, heartbeat.getCommandTimeoutMillis());
+    }
+
+    @Test
+    public void missedPongs_declareLinkDead() throws Exception {
+        Heartbeat heartbeat = new Heartbeat(1000, 3, null);
+        assertEquals(1, heartbeat.onTick(0));
+        assertEquals(2, heartbeat.onTick(1000 * MS));
+        assertEquals(3, heartbeat.onTick(2000 * MS));
+        assertEquals(2, heartbeat.getMisses());
+        assertEquals(Heartbeat.DEAD, heartbeat.onTick(3000 * MS));
+        assertEquals(3, heartbeat.getMissedTotal());
+    }
+
+    @Test
+    public void latePong_keepsLinkAlive() throws Exception {
+        Heartbeat heartbeat = new Heartbeat(1000, 2, null);
+        heartbeat.onTick(0);
+        long sequence = heartbeat.onTick(1000 * MS);
+        assertEquals(1, heartbeat.getMisses());
+        // The answer to the first ping arrives after the second one was sent
+        assertFalse(heartbeat.onPong(sequence - 1, 1500 * MS));
+        assertEquals(0, heartbeat.getMisses());
+        assertEquals(-1, heartbeat.getSmoothedRttMicros());
+        assertNotEquals(Heartbeat.DEAD, heartbeat.onTick(2000 * MS));
+        // Pongs to pings which were never sent are ignored
+        assertFalse(heartbeat.onPong(99, 2100 * MS));
+        assertEquals(1, heartbeat.getMisses());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void zeroThreshold_isRefused() throws Exception {
+        new Heartbeat(1000, 0, null);
+    }
+}
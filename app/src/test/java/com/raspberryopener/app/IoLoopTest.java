@@ -0,0 +1,305 @@
+package com.raspberryopener.app;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class IoLoopTest {
+    private static final long TIMEOUT = 5;
+
+    private IoLoop loop;
+
+    @Before
+    public void setUp() throws Exception {
+        loop = new IoLoop("Test IoLoop", 2, 5);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        loop.shutdown();
+        assertTrue(loop.awaitTermination(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    /**
+     * Listener which keeps what was read as text.
+     */
+    private static class ReadRecorder implements IoLoop.ReadListener {
+        final ByteArrayOutputStream read = new ByteArrayOutputStream();
+        final CountDownLatch ended = new CountDownLatch(1);
+        volatile IOException error;
+        volatile int ends;
+
+        @Override
+        public synchronized void onRead(byte[] buffer, int offset, int length) {
+            read.write(buffer, offset, length);
+        }
+
+        @Override
+        public void onEnd(IOException error) {
+            this.error = error;
+            ends++;
+            ended.countDown();
+        }
+
+        synchronized String getRead() {
+            return read.toString();
+        }
+    }
+
+    private static PipeTransport[] connectPipe() throws IOException {
+        PipeTransport.Listener listener = new PipeTransport.Listener("pipe");
+        PipeTransport client = new PipeTransport(listener);
+        client.connect(1000);
+        return new PipeTransport[] {client, listener.accept(1000)};
+    }
+
+    @Test
+    public void tasksAndTimers_runOnLoopInOrder() throws Exception {
+        final List<String> runs = Collections.synchronizedList(new ArrayList<String>());
+        final CountDownLatch done = new CountDownLatch(4);
+        final AtomicInteger inLoop = new AtomicInteger();
+        for (final String name : new String[] {"late", "early", "same time"}) {
+            loop.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    runs.add(name);
+                    if (loop.inLoop())
+                        inLoop.incrementAndGet();
+                    done.countDown();
+                }
+            }, name.equals("late") ? 60 : 20, TimeUnit.MILLISECONDS);
+        }
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                runs.add("task");
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals("[task, early, same time, late]", runs.toString());
+        assertEquals(3, inLoop.get());
+        assertFalse(loop.inLoop());
+    }
+
+    @Test
+    public void cancelledTimer_doesNotRun() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        IoLoop.Timer timer = loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        }, 50, TimeUnit.MILLISECONDS);
+        assertTrue(timer.cancel());
+        assertFalse(timer.cancel());
+        assertTrue(timer.isCancelled());
+        Thread.sleep(100);
+        assertEquals(0, runs.get());
+    }
+
+    @Test
+    public void fixedRateTimer_repeatsUntilCancelled() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final IoLoop.Timer[] timer = new IoLoop.Timer[1];
+        final CountDownLatch done = new CountDownLatch(1);
+        timer[0] = loop.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                // A timer may cancel itself while it runs
+                if (runs.incrementAndGet() == 5) {
+                    timer[0].cancel();
+                    done.countDown();
+                }
+            }
+        }, 0, 5, TimeUnit.MILLISECONDS);
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        Thread.sleep(50);
+        assertEquals(5, runs.get());
+    }
+
+    @Test
+    public void failingTask_doesNotStopLoop() throws Exception {
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                throw new IllegalStateException("Task failure expected by the test");
+            }
+        });
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+                done.countDown();
+            }
+        });
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void registeredTransport_isReadUntilEnd() throws Exception {
+        PipeTransport[] pipe = connectPipe();
+        ReadRecorder recorder = new ReadRecorder();
+        loop.register(pipe[0], recorder);
+        assertEquals(1, loop.getRegistrationCount());
+
+        pipe[1].write("gateIsOpened\n".getBytes(), 0, 13);
+        long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (!recorder.getRead().equals("gateIsOpened\n") && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals("gateIsOpened\n", recorder.getRead());
+
+        // The server end closing is the end of the stream
+        pipe[1].close();
+        assertTrue(recorder.ended.await(TIMEOUT, TimeUnit.SECONDS));
+        assertNull(recorder.error);
+        Thread.sleep(50);
+        assertEquals(1, recorder.ends);
+    }
+
+    @Test
+    public void cancelledRegistration_doesNotCallListener() throws Exception {
+        PipeTransport[] pipe = connectPipe();
+        ReadRecorder recorder = new ReadRecorder();
+        IoLoop.Registration registration = loop.register(pipe[0], recorder);
+        registration.cancel();
+        assertTrue(registration.isCancelled());
+        // Closing the transport ends the read in progress
+        pipe[0].close();
+        long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (loop.getRegistrationCount() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals(0, loop.getRegistrationCount());
+        assertEquals("", recorder.getRead());
+        assertEquals(0, recorder.ends);
+    }
+
+    @Test
+    public void readerThreads_areReusedByNextConnections() throws Exception {
+        int connections = 10;
+        for (int round = 0; round < 3; round++) {
+            PipeTransport[][] pipes = new PipeTransport[connections][];
+            ReadRecorder[] recorders = new ReadRecorder[connections];
+            for (int i = 0; i < connections; i++) {
+                pipes[i] = connectPipe();
+                recorders[i] = new ReadRecorder();
+                loop.register(pipes[i][0], recorders[i]);
+            }
+            for (int i = 0; i < connections; i++) {
+                byte[] message = ("pong=" + i + "\n").getBytes();
+                pipes[i][1].write(message, 0, message.length);
+                pipes[i][1].close();
+            }
+            for (int i = 0; i < connections; i++) {
+                assertTrue(recorders[i].ended.await(TIMEOUT, TimeUnit.SECONDS));
+                assertEquals("pong=" + i + "\n", recorders[i].getRead());
+            }
+            // Give the readers the time to go back to the pool
+            Thread.sleep(50);
+        }
+        // A reader for every connection which was up at the same time, not for every connection
+        assertEquals(connections, loop.getLargestReaderPoolSize());
+        assertEquals(0, loop.getBlockingPoolSize());
+    }
+
+    @Test
+    public void connectionsBeyondMaximum_waitForReader() throws Exception {
+        loop.shutdown();
+        loop = new IoLoop("Test IoLoop", 2, 1);
+        PipeTransport[][] pipes = new PipeTransport[3][];
+        ReadRecorder[] recorders = new ReadRecorder[3];
+        for (int i = 0; i < 3; i++) {
+            pipes[i] = connectPipe();
+            recorders[i] = new ReadRecorder();
+            loop.register(pipes[i][0], recorders[i]);
+            byte[] message = ("pong=" + i + "\n").getBytes();
+            pipes[i][1].write(message, 0, message.length);
+        }
+        Thread.sleep(50);
+        assertEquals(IoLoop.THREADS_PER_CONNECTION, loop.getReaderPoolSize());
+        assertEquals("", recorders[2].getRead());
+
+        // The first connection ending frees a reader for the last one
+        pipes[0][1].close();
+        assertTrue(recorders[0].ended.await(TIMEOUT, TimeUnit.SECONDS));
+        long deadline = System.currentTimeMillis() + TIMEOUT * 1000;
+        while (!recorders[2].getRead().equals("pong=2\n") && System.currentTimeMillis() < deadline)
+            Thread.sleep(1);
+        assertEquals("pong=2\n", recorders[2].getRead());
+        assertEquals("pong=1\n", recorders[1].getRead());
+        assertEquals(IoLoop.THREADS_PER_CONNECTION, loop.getLargestReaderPoolSize());
+        for (int i = 1; i < 3; i++)
+            pipes[i][1].close();
+    }
+
+    @Test
+    public void idleLoop_parksUntilNextTimer() throws Exception {
+        final AtomicInteger runs = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(1);
+        loop.schedule(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+                done.countDown();
+            }
+        }, 200, TimeUnit.MILLISECONDS);
+        PipeTransport[] pipe = connectPipe();
+        loop.register(pipe[0], new ReadRecorder());
+        long started = System.nanoTime();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 150);
+        assertEquals(1, runs.get());
+        pipe[0].close();
+    }
+
+    @Test
+    public void blockingCalls_areBoundedByPool() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(10);
+        final AtomicInteger running = new AtomicInteger();
+        final AtomicInteger mostRunning = new AtomicInteger();
+        for (int i = 0; i < 10; i++) {
+            loop.getBlockingExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    int now = running.incrementAndGet();
+                    while (mostRunning.get() < now)
+                        mostRunning.compareAndSet(mostRunning.get(), now);
+                    try {
+                        release.await(TIMEOUT, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    running.decrementAndGet();
+                    done.countDown();
+                }
+            });
+        }
+        Thread.sleep(50);
+        release.countDown();
+        assertTrue(done.await(TIMEOUT, TimeUnit.SECONDS));
+        assertEquals(2, mostRunning.get());
+        assertEquals(2, loop.getLargestBlockingPoolSize());
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shutDownLoop_rejectsWork() throws Exception {
+        loop.shutdown();
+        loop.execute(new Runnable() {
+            @Override
+            public void run() {
+            }
+        });
+    }
+}
@@ -0,0 +1,109 @@
+package com.raspberryopener.app;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.util.TimeZone;
+
+import static org.junit.Assert.*;
+
+public class JournalRollupTest {
+    private static final long HOUR = 60 * 60 * 1000L;
+    private static final long DAY = 24 * HOUR;
+    private static final long START = 20000 * DAY; // midnight in UTC
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private GateJournal openJournal() throws Exception {
+        return GateJournal.open(new File(folder.getRoot(), GateJournal.FILE_NAME), 256);
+    }
+
+    private static void open(GateJournal journal, long time) {
+        journal.append(time, ServiceStates.STATE_GATE_CLOSED, ServiceStates.STATE_GATE_OPENING);
+        journal.append(time + 1000, ServiceStates.STATE_GATE_OPENING, ServiceStates.STATE_GATE_OPENED);
+    }
+
+    @Test
+    public void opens_areCountedPerHour() throws Exception {
+        GateJournal journal = openJournal();
+        open(journal, START + 8 * HOUR);
+        open(journal, START + 8 * HOUR + 30 * 60000);
+        open(journal, START + 17 * HOUR);
+        journal.append(START + 17 * HOUR + 5000, ServiceStates.STATE_GATE_OPENED, ServiceStates.STATE_OBSTACLE);
+        journal.append(START + DAY + HOUR, ServiceStates.STATE_CONNECTED, ServiceStates.STATE_WRONG_PASSWORD);
+
+        JournalRollup rollup = new JournalRollup(TimeZone.getTimeZone("UTC"));
+        assertEquals(8, rollup.update(journal));
+        JournalRollup.Day day = rollup.getDay(rollup.dayOf(START + 12 * HOUR));
+        assertEquals(2, day.getOpens(8));
+        assertEquals(1, day.getOpens(17));
+        assertEquals(3, day.getOpens());
+        assertEquals(1, day.getObstacles());
+        assertEquals(1, rollup.getDay(rollup.dayOf(START + DAY)).getLoginFailures());
+        assertEquals(2, rollup.getDayCount());
+        journal.close();
+    }
+
+    @Test
+    public void update_readsOnlyNewEvents() throws Exception {
+        GateJournal journal = openJournal();
+        JournalRollup rollup = new JournalRollup(TimeZone.getTimeZone("UTC"));
+        open(journal, START);
+        assertEquals(2, rollup.update(journal));
+        assertEquals(0, rollup.update(journal));
+        open(journal, START + HOUR);
+        assertEquals(2, rollup.update(journal));
+        assertEquals(2, rollup.getDay(rollup.dayOf(START)).getOpens());
+        journal.close();
+    }
+
+    @Test
+    public void localTime_decidesDayAndHour() throws Exception {
+        GateJournal journal = openJournal();
+        open(journal, START + 23 * HOUR); // 01:00 of the next day in UTC+2
+        JournalRollup rollup = new JournalRollup(TimeZone.getTimeZone("GMT+02:00"));
+        rollup.update(journal);
+        JournalRollup.Day day = rollup.getDay(20001);
+        assertNotNull(day);
+        assertEquals(1, day.getOpens(1));
+        journal.close();
+    }
+
+    @Test
+    public void savedRollup_continuesWhereItStopped() throws Exception {
+        File file = new File(folder.getRoot(), JournalRollup.FILE_NAME);
+        GateJournal journal = openJournal();
+        open(journal, START);
+        JournalRollup rollup = new JournalRollup(TimeZone.getTimeZone("UTC"));
+        rollup.update(journal);
+        rollup.save(file);
+
+        open(journal, START + HOUR);
+        JournalRollup loaded = new JournalRollup(TimeZone.getTimeZone("UTC"));
+        assertTrue(loaded.load(file));
+        assertEquals(2, loaded.getCountedNumber());
+        assertEquals(2, loaded.update(journal));
+        assertEquals(2, loaded.getDay(20000).getOpens());
+        journal.close();
+    }
+
+    @Test
+    public void newJournal_isCountedAgain() throws Exception {
+        GateJournal journal = openJournal();
+        for (int i = 0; i < 5; i++)
+            open(journal, START + i * HOUR);
+        JournalRollup rollup = new JournalRollup(TimeZone.getTimeZone("UTC"));
+        rollup.update(journal);
+        journal.close();
+
+        // A journal of another capacity is started anew
+        journal = GateJournal.open(new File(folder.getRoot(), GateJournal.FILE_NAME), 512);
+        open(journal, START);
+        assertEquals(2, rollup.update(journal));
+        assertEquals(1, rollup.getDay(20000).getOpens());
+        journal.close();
+    }
+}
@@ -0,0 +1,74 @@
+package com.raspberryopener.app;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class LastGateStoreTest {
+    private static final long GATE = 0xB827EB123456L;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void nothingSaved_hasNoGate() throws Exception {
+        LastGateStore store = new LastGateStore(new File(folder.getRoot(), LastGateStore.FILE_NAME));
+        assertEquals(Helpers.NO_ADDRESS, store.getAddress());
+    }
+
+    @Test
+    public void savedGate_isLoadedAgain() throws Exception {
+        File file = new File(folder.getRoot(), LastGateStore.FILE_NAME);
+        LastGateStore store = new LastGateStore(file);
+        assertTrue(store.set(GATE));
+        store.save();
+        assertEquals(GATE, new LastGateStore(file).getAddress());
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+    }
+
+    @Test
+    public void sameGate_needsNoSave() throws Exception {
+        File file = new File(folder.getRoot(), LastGateStore.FILE_NAME);
+        LastGateStore store = new LastGateStore(file);
+        store.set(GATE);
+        store.save();
+
+        LastGateStore reloaded = new LastGateStore(file);
+        assertEquals(GATE, reloaded.getAddress());
+        assertFalse(reloaded.set(GATE));
+        assertTrue(reloaded.set(GATE + 1));
+    }
+
+    @Test
+    public void forgottenGate_deletesFile() throws Exception {
+        File file = new File(folder.getRoot(), LastGateStore.FILE_NAME);
+        LastGateStore store = new LastGateStore(file);
+        store.set(GATE);
+        store.save();
+        assertTrue(store.set(Helpers.NO_ADDRESS));
+        store.save();
+        assertFalse(file.exists());
+        assertEquals(Helpers.NO_ADDRESS, new LastGateStore(file).getAddress());
+    }
+
+    @Test
+    public void damagedFile_isRejected() throws Exception {
+        File file = new File(folder.getRoot(), LastGateStore.FILE_NAME);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+        out.writeInt(0x12345678);
+        out.writeLong(GATE);
+        out.close();
+        try {
+            new LastGateStore(file).getAddress();
+            fail();
+        } catch (IOException expected) {
+        }
+    }
+}
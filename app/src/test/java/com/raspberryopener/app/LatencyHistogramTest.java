@@ -0,0 +1,112 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LatencyHistogramTest {
+
+    @Test
+    public void emptyHistogram_reportsZero() throws Exception {
+        LatencyHistogram.Snapshot snapshot = new LatencyHistogram().snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getPercentile(0.5));
+        assertEquals(0, snapshot.getMax());
+    }
+
+    @Test
+    public void smallValues_areExact() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 1; i <= 10; i++)
+            histogram.record(i);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10, snapshot.getCount());
+        assertEquals(5, snapshot.getPercentile(0.5));
+        assertEquals(9, snapshot.getPercentile(0.9));
+        assertEquals(10, snapshot.getPercentile(0.99));
+        assertEquals(10, snapshot.getMax());
+        assertEquals(5.5, snapshot.getMean(), 0.0);
+    }
+
+    @Test
+    public void buckets_coverWholeRange() throws Exception {
+        int previous = -1;
+        for (long value : new long[]{0, 1, 15, 16, 17, 31, 32, 1000, 1L << 40, Long.MAX_VALUE}) {
+            int bucket = LatencyHistogram.bucketOf(value);
+            assertTrue(bucket > previous);
+            assertTrue(bucket < LatencyHistogram.BUCKETS);
+            assertTrue(LatencyHistogram.bucketUpperBound(bucket) >= value);
+            previous = bucket;
+        }
+        for (int bucket = 0; bucket < LatencyHistogram.BUCKETS - 1; bucket++)
+            assertEquals(bucket + 1, LatencyHistogram.bucketOf(LatencyHistogram.bucketUpperBound(bucket) + 1));
+    }
+
+    @Test
+    public void percentiles_areWithinRelativeError() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        Random random = new Random(42);
+        long[] values = new long[10000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = 1000 + random.nextInt(5000000);
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        for (double quantile : new double[]{0.5, 0.9, 0.99}) {
+            long exact = values[(int) Math.ceil(quantile * values.length) - 1];
+            long reported = snapshot.getPercentile(quantile);
+            assertTrue(reported >= exact);
+            assertTrue(reported <= exact + exact / 16);
+        }
+        assertEquals(values[values.length - 1], snapshot.getMax());
+    }
+
+    @Test
+    public void snapshot_survivesSerialization() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (int i = 0; i < 100; i++)
+            histogram.record(i * 12345);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        histogram.snapshot().writeTo(new DataOutputStream(bytes));
+
+        LatencyHistogram restored = new LatencyHistogram();
+        restored.record(7);
+        restored.add(LatencyHistogram.Snapshot.readFrom(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))));
+
+        LatencyHistogram.Snapshot expected = histogram.snapshot();
+        LatencyHistogram.Snapshot actual = restored.snapshot();
+        assertEquals(expected.getCount() + 1, actual.getCount());
+        assertEquals(expected.getSum() + 7, actual.getSum());
+        assertEquals(expected.getMax(), actual.getMax());
+        assertEquals(expected.getPercentile(0.9), actual.getPercentile(0.9));
+    }
+
+    @Test
+    public void concurrentRecording_losesNothing() throws Exception {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        Thread[] threads = new Thread[4];
+        for (int t = 0; t < threads.length; t++) {
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 100000; i++)
+                        histogram.record(i);
+                }
+            };
+            threads[t].start();
+        }
+        for (Thread thread : threads)
+            thread.join();
+        assertEquals(400000, histogram.getCount());
+        assertEquals(400000, histogram.snapshot().getCount());
+        assertEquals(99999, histogram.snapshot().getMax());
+    }
+}
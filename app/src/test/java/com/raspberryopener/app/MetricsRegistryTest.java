@@ -0,0 +1,141 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    private static String text(MetricsRegistry registry) throws Exception {
+        StringWriter out = new StringWriter();
+        registry.writeText(out);
+        return out.toString();
+    }
+
+    @Test
+    public void counters_areWrittenWithHelpAndType() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        StripedCounter counter = registry.counter("gate_sent_bytes_total", "Bytes sent");
+        counter.add(42);
+        counter.increment();
+        assertEquals("# HELP gate_sent_bytes_total Bytes sent\n"
+                + "# TYPE gate_sent_bytes_total counter\n"
+                + "gate_sent_bytes_total 43\n", text(registry));
+        assertEquals(43, registry.getValue("gate_sent_bytes_total"));
+    }
+
+    @Test
+    public void labelledCounters_formOneFamily() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("state_micros_total", "state=\"connected\"", "Time per state").add(5);
+        registry.counter("other_total", "Other").add(1);
+        registry.counter("state_micros_total", "state=\"none\"", "Time per state").add(7);
+        // Registering again gives the same counter
+        registry.counter("state_micros_total", "state=\"connected\"", "Time per state").add(1);
+        assertEquals("# HELP state_micros_total Time per state\n"
+                + "# TYPE state_micros_total counter\n"
+                + "state_micros_total{state=\"connected\"} 6\n"
+                + "state_micros_total{state=\"none\"} 7\n"
+                + "# HELP other_total Other\n"
+                + "# TYPE other_total counter\n"
+                + "other_total 1\n", text(registry));
+    }
+
+    @Test
+    public void histograms_areWrittenAsSummaries() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        LatencyHistogram histogram = registry.histogram("write_micros", "Write latency");
+        for (int i = 1; i <= 10; i++)
+            histogram.record(i);
+        registry.gauge("queue_depth", "Queued commands", new MetricsRegistry.Gauge() {
+            @Override
+            public long getValue() {
+                return 3;
+            }
+        });
+        assertEquals("# HELP write_micros Write latency\n"
+                + "# TYPE write_micros summary\n"
+                + "write_micros{quantile=\"0.5\"} 5\n"
+                + "write_micros{quantile=\"0.9\"} 9\n"
+                + "write_micros{quantile=\"0.99\"} 10\n"
+                + "write_micros_sum 55\n"
+                + "write_micros_count 10\n"
+                + "# HELP queue_depth Queued commands\n"
+                + "# TYPE queue_depth gauge\n"
+                + "queue_depth 3\n", text(registry));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void sameNameOtherType_isRefused() throws Exception {
+        MetricsRegistry registry = new MetricsRegistry();
+        registry.counter("value", "Value");
+        registry.histogram("value", "Value");
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void wrongName_isRefused() throws Exception {
+        new MetricsRegistry().counter("gate-bytes", "Bytes");
+    }
+
+    @Test
+    public void registry_isDirtyUntilWritten() throws Exception {
+        File file = File.createTempFile("metrics", ".prom");
+        try {
+            MetricsRegistry registry = new MetricsRegistry();
+            StripedCounter counter = registry.counter("gate_sent_bytes_total", "Bytes sent");
+            LatencyHistogram histogram = registry.histogram("write_micros", "Write latency");
+            registry.gauge("queue_depth", "Queued commands", new MetricsRegistry.Gauge() {
+                @Override
+                public long getValue() {
+                    return System.nanoTime();
+                }
+            });
+            assertTrue(registry.isDirty());
+            registry.writeText(file);
+            // A gauge changing alone does not make it dirty
+            assertFalse(registry.isDirty());
+            counter.add(3);
+            histogram.record(120);
+            assertEquals(4, registry.getUpdateCount());
+            assertTrue(registry.isDirty());
+            registry.writeText(file);
+            assertFalse(registry.isDirty());
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void stripedCounter_countsEveryThread() throws Exception {
+        final StripedCounter counter = new StripedCounter();
+        final int threads = 8;
+        final int perThread = 100000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] adders = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            adders[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++)
+                        counter.increment();
+                }
+            });
+            adders[t].start();
+        }
+        start.countDown();
+        for (Thread adder : adders)
+            adder.join();
+        assertEquals(threads * perThread, counter.get());
+        counter.reset();
+        assertEquals(0, counter.get());
+    }
+}
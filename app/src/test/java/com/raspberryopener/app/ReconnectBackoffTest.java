@@ -0,0 +1,55 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class ReconnectBackoffTest {
+
+    @Test
+    public void delays_growUpToMaximum() throws Exception {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, 2, 0, 0, new Random(1));
+        long[] expected = {100, 200, 400, 800, 1000, 1000, 1000};
+        for (long delay : expected)
+            assertEquals(delay, backoff.nextDelayMillis());
+        assertEquals(expected.length, backoff.getAttempts());
+    }
+
+    @Test
+    public void jitter_shortensDelaysWithinBounds() throws Exception {
+        ReconnectBackoff backoff = new ReconnectBackoff(1000, 1000, 2, 0.5, 0, new Random(7));
+        boolean varies = false;
+        long first = backoff.nextDelayMillis();
+        for (int i = 0; i < 1000; i++) {
+            long delay = backoff.nextDelayMillis();
+            assertTrue(delay >= 500 && delay <= 1000);
+            varies |= delay != first;
+        }
+        assertTrue(varies);
+    }
+
+    @Test
+    public void sameSeed_givesSameDelays() throws Exception {
+        ReconnectBackoff a = new ReconnectBackoff(100, 30000, 2, 1, 0, new Random(3));
+        ReconnectBackoff b = new ReconnectBackoff(100, 30000, 2, 1, 0, new Random(3));
+        for (int i = 0; i < 20; i++)
+            assertEquals(a.nextDelayMillis(), b.nextDelayMillis());
+    }
+
+    @Test
+    public void spentBudget_givesUpUntilReset() throws Exception {
+        ReconnectBackoff backoff = new ReconnectBackoff(100, 1000, 2, 0, 3, new Random(1));
+        for (int i = 0; i < 3; i++)
+            assertNotEquals(ReconnectBackoff.GIVE_UP, backoff.nextDelayMillis());
+        assertEquals(ReconnectBackoff.GIVE_UP, backoff.nextDelayMillis());
+        backoff.reset();
+        assertEquals(100, backoff.nextDelayMillis());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void jitterAboveOne_isRejected() throws Exception {
+        new ReconnectBackoff(100, 1000, 2, 1.5, 0, new Random(1));
+    }
+}
@@ -0,0 +1,82 @@
+package com.raspberryopener.app;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects {@link BluetoothService} events so that tests can wait for them.
+ */
+class RecordingListener implements BluetoothService.Listener {
+    private final LinkedBlockingQueue<int[]> mEvents = new LinkedBlockingQueue<>();
+    private final List<Integer> mStates = new ArrayList<>();
+    private volatile String mDeviceName;
+
+    @Override
+    public void onServiceEvent(int what, int arg1, int arg2, Object obj) {
+        if (what == ActivityMain.MESSAGE_DEVICE_NAME)
+            mDeviceName = (String) obj;
+        if (what == ActivityMain.MESSAGE_STATE_CHANGE) {
+            synchronized (mStates) {
+                mStates.add(arg1);
+            }
+        }
+        mEvents.add(new int[] {what, arg1});
+        onEvent(what, arg1, obj);
+    }
+
+    /**
+     * Hook called on the reporting thread with the object of the event.
+     */
+    protected void onEvent(int what, int arg1, Object obj) {
+        onEvent(what, arg1);
+    }
+
+    /**
+     * Hook called on the reporting thread, e.g. to log in when connected.
+     */
+    protected void onEvent(int what, int arg1) {
+    }
+
+    /**
+     * Waits until the service reports the given state, skipping other events.
+     * @return false if the state was not reported in time
+     */
+    boolean awaitState(int state, long timeoutMillis) throws InterruptedException {
+        return await(ActivityMain.MESSAGE_STATE_CHANGE, state, timeoutMillis);
+    }
+
+    boolean awaitMessage(int what, long timeoutMillis) throws InterruptedException {
+        return await(what, Integer.MIN_VALUE, timeoutMillis);
+    }
+
+    private boolean await(int what, int arg1, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        while (true) {
+            long remaining = deadline - System.currentTimeMillis();
+            int[] event = mEvents.poll(Math.max(remaining, 0), TimeUnit.MILLISECONDS);
+            if (event == null)
+                return false;
+            if (event[0] == what && (arg1 == Integer.MIN_VALUE || event[1] == arg1))
+                return true;
+        }
+    }
+
+    List<Integer> getStates() {
+        synchronized (mStates) {
+            return new ArrayList<>(mStates);
+        }
+    }
+
+    String getDeviceName() {
+        return mDeviceName;
+    }
+
+    void clear() {
+        mEvents.clear();
+        synchronized (mStates) {
+            mStates.clear();
+        }
+    }
+}
@@ -0,0 +1,160 @@
+package com.raspberryopener.app;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Session resumption between {@link MainViewModel} and {@link SessionTestGate}.
+ */
+public class SessionResumeTest {
+    private static final long TIMEOUT = 5000;
+
+    private SessionTestGate gate;
+    private PipeTransport.Listener pipeListener;
+    private MainViewModel viewModel;
+    private BluetoothService service;
+    private RecordingListener listener;
+
+    @Before
+    public void setUp() throws Exception {
+        gate = new SessionTestGate("user", "secret", 60);
+        pipeListener = new PipeTransport.Listener("session gate");
+        gate.servePipe(pipeListener);
+
+        viewModel = new MainViewModel();
+        viewModel.setSessionResume(true);
+        viewModel.setCredentials("user", "secret");
+        listener = new RecordingListener() {
+            @Override
+            protected void onEvent(int what, int arg1, Object obj) {
+                // Same as ActivityMain does
+                if (what == ActivityMain.MESSAGE_CONNECTED)
+                    viewModel.onConnected(arg1 == BluetoothService.CONNECTED_LOGIN_SENT);
+                else if (what == ActivityMain.MESSAGE_LOGGED_IN)
+                    viewModel.onLoggedIn();
+                else if (what == ActivityMain.MESSAGE_SESSION)
+                    viewModel.onSessionGranted((String) obj);
+                else if (what == ActivityMain.MESSAGE_SESSION_EXPIRED)
+                    viewModel.onSessionExpired();
+            }
+        };
+        service = new BluetoothService(listener);
+        service.setReconnectBackoff(new ReconnectBackoff(10, 100, 2, 0, 5, new Random(1)));
+        viewModel.setBluetoothService(service);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        service.stop();
+        pipeListener.close();
+        gate.close();
+    }
+
+    private void connectAndLogIn() throws Exception {
+        service.connect(new PipeTransport(pipeListener));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_SESSION, TIMEOUT));
+        assertEquals(1, gate.getLoginCount());
+    }
+
+    private void dropAndReconnect() throws Exception {
+        gate.dropConnections();
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTED, TIMEOUT));
+    }
+
+    @Test
+    public void reconnect_resumesWithoutLogin() throws Exception {
+        connectAndLogIn();
+        dropAndReconnect();
+
+        // Logged in right away, the token goes with the first command
+        assertTrue(listener.awaitState(BluetoothService.STATE_LOGGED_IN, TIMEOUT));
+        assertTrue(viewModel.isLogin());
+        viewModel.openGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        assertEquals(1, gate.getLoginCount());
+        assertEquals(1, gate.getResumeCount());
+
+        // Later commands go without the token
+        viewModel.closeGate();
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, TIMEOUT));
+        assertEquals(1, gate.getResumeCount());
+    }
+
+    @Test
+    public void expiredSession_fallsBackToLoginAndResendsCommand() throws Exception {
+        connectAndLogIn();
+        gate.expireSessions();
+        dropAndReconnect();
+
+        assertTrue(listener.awaitState(BluetoothService.STATE_LOGGED_IN, TIMEOUT));
+        viewModel.openGate();
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_SESSION_EXPIRED, TIMEOUT));
+        assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        assertEquals(2, gate.getLoginCount());
+        assertEquals(0, gate.getResumeCount());
+    }
+
+    @Test
+    public void disabledResume_alwaysLogsIn() throws Exception {
+        connectAndLogIn();
+        viewModel.setSessionResume(false);
+        dropAndReconnect();
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+        // The gate counts the login after answering it, the session follows the count
+        assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_SESSION, TIMEOUT));
+        assertEquals(2, gate.getLoginCount());
+    }
+
+    @Test
+    public void clearedViewModel_releasesConnectionAndSessions() throws Exception {
+        connectAndLogIn();
+        final int[] evictions = new int[1];
+        ConnectionLease lease = viewModel.getConnectionLease();
+        lease.setOnEvictListener(new Runnable() {
+            @Override
+            public void run() {
+                evictions[0]++;
+            }
+        });
+        lease.acquire();
+        lease.release();
+        assertTrue(lease.isIdle());
+        GateSessionManager sessionManager = viewModel.getSessionManager();
+        sessionManager.create(new RecordingListener());
+
+        viewModel.onCleared();
+        // The activity which listened for the eviction is gone, nothing waits for the idle window
+        assertFalse(lease.isIdle());
+        assertEquals(0, evictions[0]);
+        assertEquals(0, sessionManager.getSessionCount());
+        assertTrue(sessionManager.awaitTermination(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertNull(viewModel.getBluetoothService());
+    }
+
+    @Test
+    public void gateWithoutSessions_isLoggedInEveryTime() throws Exception {
+        TestGate plainGate = new TestGate("user", "secret");
+        PipeTransport.Listener plainListener = new PipeTransport.Listener("plain gate");
+        plainGate.servePipe(plainListener);
+        try {
+            service.connect(new PipeTransport(plainListener));
+            assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+            plainGate.dropConnections();
+            assertTrue(listener.awaitState(BluetoothService.STATE_CONNECTION_LOST, TIMEOUT));
+            assertTrue(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, TIMEOUT));
+            viewModel.openGate();
+            assertTrue(listener.awaitState(BluetoothService.STATE_GATE_OPENED, TIMEOUT));
+        } finally {
+            plainListener.close();
+            plainGate.close();
+        }
+    }
+}
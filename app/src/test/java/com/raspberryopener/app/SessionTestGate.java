@@ -0,0 +1,95 @@
+package com.raspberryopener.app;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Reference gate side of the session resumption, see {@link GateSession}. Unlike {@link TestGate}
+ * it runs gate commands only on connections which logged in or resumed a session.
+ */
+class SessionTestGate extends TestGate {
+    private final long mTtlSeconds;
+    private final Map<String, Long> mSessions = new HashMap<>(); // token -> expiry time
+    private final Set<Transport> mAuthenticated = Collections.newSetFromMap(new ConcurrentHashMap<Transport, Boolean>());
+    private final AtomicInteger mLogins = new AtomicInteger();
+    private final AtomicInteger mResumes = new AtomicInteger();
+    private int mNextToken;
+
+    SessionTestGate(String username, String password, long ttlSeconds) {
+        super(username, password);
+        mTtlSeconds = ttlSeconds;
+    }
+
+    @Override
+    protected void handle(Transport transport, String command) throws IOException {
+        if (command.startsWith("resume=")) {
+            int separator = command.indexOf('&');
+            String token = command.substring(7, separator < 0 ? command.length() : separator);
+            if (!isValid(token)) {
+                // The command is not run, the client logs in and sends it again
+                send(transport, "sessionExpired");
+                return;
+            }
+            mResumes.incrementAndGet();
+            mAuthenticated.add(transport);
+            grantSession(transport);
+            if (separator >= 0 && separator + 1 < command.length())
+                handle(transport, command.substring(separator + 1));
+        } else if ((command.equals("openGate") || command.equals("closeGate")) && !mAuthenticated.contains(transport)) {
+            send(transport, "wrongUserData");
+        } else {
+            super.handle(transport, command);
+        }
+    }
+
+    @Override
+    protected void onLoggedIn(Transport transport) throws IOException {
+        mLogins.incrementAndGet();
+        mAuthenticated.add(transport);
+        grantSession(transport);
+    }
+
+    private void grantSession(Transport transport) throws IOException {
+        String token;
+        synchronized (mSessions) {
+            token = "t" + (++mNextToken) + "-" + Long.toHexString(System.nanoTime());
+            mSessions.put(token, System.currentTimeMillis() + mTtlSeconds * 1000);
+        }
+        send(transport, "session=" + token + "&ttl=" + mTtlSeconds);
+    }
+
+    private boolean isValid(String token) {
+        synchronized (mSessions) {
+            Long expiresAt = mSessions.get(token);
+            return expiresAt != null && System.currentTimeMillis() < expiresAt;
+        }
+    }
+
+    /**
+     * Makes every issued token invalid, as if the gate restarted.
+     */
+    void expireSessions() {
+        synchronized (mSessions) {
+            mSessions.clear();
+        }
+    }
+
+    @Override
+    void dropConnections() {
+        mAuthenticated.clear();
+        super.dropConnections();
+    }
+
+    int getLoginCount() {
+        return mLogins.get();
+    }
+
+    int getResumeCount() {
+        return mResumes.get();
+    }
+}
@@ -0,0 +1,295 @@
+package com.raspberryopener.app;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Drives {@link BluetoothService} and {@link MainViewModel} through connect, login, openGate,
+ * closeGate and stop cycles like the activity does, and watches what the cycles leave behind.
+ * <p>
+ * Every step is timed into a histogram. Live threads are sampled after every cycle and the heap
+ * after garbage collection at the start and the end of the measured cycles; the first cycles warm
+ * up and are not measured. A connection which is stopped must not leave its threads running, so
+ * {@link Result#check()} fails when service threads are still alive after the run, when the
+ * thread count kept growing or when the heap grew more than a connection per cycle would explain.
+ * It also fails when the cycles started threads of their own or a step was slow at the median.
+ */
+class SoakHarness {
+    static final String CYCLES_PROPERTY = "soak.cycles";
+    static final int DEFAULT_CYCLES = 300;
+
+    static final int STEP_CONNECT = 0;  // connect() until connected
+    static final int STEP_LOGIN = 1;    // connected until logged in
+    static final int STEP_OPEN = 2;     // openGate() until opened
+    static final int STEP_CLOSE = 3;    // closeGate() until closed
+    static final int STEP_STOP = 4;     // stop() until the service is idle
+    private static final String[] STEP_NAMES = {"connect", "login", "open", "close", "stop"};
+
+    private static final long STEP_TIMEOUT = 5000;
+    private static final long SETTLE_MILLIS = 2000;
+    // Allowed growth: a few megabytes of caches and class data, but far less than a connection per cycle
+    private static final long HEAP_SLACK_BYTES = 4 * 1024 * 1024;
+    private static final long HEAP_BYTES_PER_CYCLE = 256;
+    private static final int THREAD_SLACK = 4;
+    // Far below the step timeout: a median step this slow waits on a timer or a poll instead of the gate
+    private static final long STEP_P50_LIMIT_MICROS = 100 * 1000;
+    // The gate's thread per connection, the connections themselves run on the pool of the service
+    private static final double THREADS_STARTED_PER_CYCLE_LIMIT = 4;
+
+    /**
+     * Creates the transport to the stand-in gate for every cycle.
+     */
+    interface TransportFactory {
+        Transport create() throws Exception;
+    }
+
+    private final String mName;
+    private final TransportFactory mFactory;
+    private final int mCycles;
+    private final int mWarmupCycles;
+
+    /**
+     * @param cycles measured cycles, see {@link #cyclesFromProperty()}
+     */
+    SoakHarness(String name, TransportFactory factory, int cycles) {
+        mName = name;
+        mFactory = factory;
+        mCycles = cycles;
+        mWarmupCycles = Math.max(10, cycles / 10);
+    }
+
+    /**
+     * @return cycles given with -Dsoak.cycles, e.g. thousands for a long soak
+     */
+    static int cyclesFromProperty() {
+        return Integer.getInteger(CYCLES_PROPERTY, DEFAULT_CYCLES);
+    }
+
+    Result run() throws Exception {
+        final MainViewModel viewModel = new MainViewModel();
+        RecordingListener listener = new RecordingListener() {
+            @Override
+            protected void onEvent(int what, int arg1) {
+                // Same as ActivityMain does
+                if (what == ActivityMain.MESSAGE_CONNECTED)
+                    viewModel.onConnected(arg1 == BluetoothService.CONNECTED_LOGIN_SENT);
+                else if (what == ActivityMain.MESSAGE_LOGGED_IN)
+                    viewModel.onLoggedIn();
+            }
+        };
+        BluetoothService service = new BluetoothService(listener);
+        viewModel.setBluetoothService(service);
+        viewModel.setCredentials("user", "secret");
+
+        Result result = new Result(mName);
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        try {
+            for (int i = 0; i < mWarmupCycles; i++)
+                cycle(service, viewModel, listener, null, i);
+
+            result.mHeapBefore = usedHeapAfterGc();
+            result.mThreadsBefore = threads.getThreadCount();
+            result.mThreadsPeak = result.mThreadsBefore;
+            long startedBefore = threads.getTotalStartedThreadCount();
+            long start = System.nanoTime();
+            for (int i = 0; i < mCycles; i++) {
+                cycle(service, viewModel, listener, result, i);
+                result.mThreadsPeak = Math.max(result.mThreadsPeak, threads.getThreadCount());
+                result.mServiceThreadsPeak = Math.max(result.mServiceThreadsPeak, countServiceThreads());
+            }
+            result.mElapsedNanos = System.nanoTime() - start;
+            result.mThreadsStarted = threads.getTotalStartedThreadCount() - startedBefore;
+            result.mCycles = mCycles;
+        } finally {
+            service.stop();
+        }
+        // Stopped connections finish on their own threads, give them the time to do so
+        long deadline = System.currentTimeMillis() + SETTLE_MILLIS;
+        while (countServiceThreads() > 0 && System.currentTimeMillis() < deadline)
+            Thread.sleep(10);
+        result.mServiceThreadsAfter = countServiceThreads();
+        result.mThreadsAfter = threads.getThreadCount();
+        result.mHeapAfter = usedHeapAfterGc();
+        return result;
+    }
+
+    private void cycle(BluetoothService service, MainViewModel viewModel, RecordingListener listener, Result result,
+                       int cycle) throws Exception {
+        long start = System.nanoTime();
+        service.connect(mFactory.create());
+        await(listener.awaitMessage(ActivityMain.MESSAGE_CONNECTED, STEP_TIMEOUT), listener, STEP_CONNECT, cycle);
+        long connected = record(result, STEP_CONNECT, start);
+        await(listener.awaitMessage(ActivityMain.MESSAGE_LOGGED_IN, STEP_TIMEOUT), listener, STEP_LOGIN, cycle);
+        record(result, STEP_LOGIN, connected);
+
+        start = System.nanoTime();
+        viewModel.openGate();
+        await(listener.awaitState(BluetoothService.STATE_GATE_OPENED, STEP_TIMEOUT), listener, STEP_OPEN, cycle);
+        record(result, STEP_OPEN, start);
+
+        start = System.nanoTime();
+        viewModel.closeGate();
+        await(listener.awaitState(BluetoothService.STATE_GATE_CLOSED, STEP_TIMEOUT), listener, STEP_CLOSE, cycle);
+        record(result, STEP_CLOSE, start);
+
+        start = System.nanoTime();
+        service.stop();
+        viewModel.setLogin(false);
+        await(listener.awaitState(BluetoothService.STATE_NONE, STEP_TIMEOUT), listener, STEP_STOP, cycle);
+        record(result, STEP_STOP, start);
+        listener.clear();
+    }
+
+    private static void await(boolean reached, RecordingListener listener, int step, int cycle) {
+        if (!reached)
+            throw new AssertionError("Cycle " + cycle + " did not " + STEP_NAMES[step] + " within " + STEP_TIMEOUT
+                    + " ms, states " + listener.getStates());
+    }
+
+    private static long record(Result result, int step, long startNanos) {
+        long now = System.nanoTime();
+        if (result != null)
+            result.mSteps[step].record((now - startNanos) / 1000);
+        return now;
+    }
+
+    /**
+     * @return live threads the service started for connections, the timer of the service excluded
+     */
+    static int countServiceThreads() {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet()) {
+            if (thread.isAlive() && isServiceThread(thread.getName()))
+                count++;
+        }
+        return count;
+    }
+
+    private static boolean isServiceThread(String name) {
+        return name.startsWith("BS Connect") || name.startsWith("CommandWriter ");
+    }
+
+    private static long usedHeapAfterGc() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        long used = Long.MAX_VALUE;
+        // Several rounds, a single System.gc() may leave garbage behind
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(20);
+            used = Math.min(used, runtime.totalMemory() - runtime.freeMemory());
+        }
+        return used;
+    }
+
+    static class Result {
+        private final String mName;
+        private final LatencyHistogram[] mSteps = new LatencyHistogram[STEP_NAMES.length];
+        private int mCycles;
+        private long mElapsedNanos;
+        private int mThreadsBefore;
+        private int mThreadsPeak;
+        private int mThreadsAfter;
+        private long mThreadsStarted;
+        private int mServiceThreadsPeak;
+        private int mServiceThreadsAfter;
+        private long mHeapBefore;
+        private long mHeapAfter;
+
+        Result(String name) {
+            mName = name;
+            for (int i = 0; i < mSteps.length; i++)
+                mSteps[i] = new LatencyHistogram();
+        }
+
+        double getCyclesPerSecond() {
+            return mCycles * 1e9 / mElapsedNanos;
+        }
+
+        LatencyHistogram.Snapshot getStep(int step) {
+            return mSteps[step].snapshot();
+        }
+
+        /**
+         * @return threads started in the whole JVM per cycle, the stand-in gate's included
+         */
+        double getThreadsStartedPerCycle() {
+            return (double) mThreadsStarted / mCycles;
+        }
+
+        int getServiceThreadsPeak() {
+            return mServiceThreadsPeak;
+        }
+
+        int getServiceThreadsAfter() {
+            return mServiceThreadsAfter;
+        }
+
+        long getHeapGrowth() {
+            return mHeapAfter - mHeapBefore;
+        }
+
+        /**
+         * @throws AssertionError if the run leaked threads or memory, started threads for every cycle or its
+         *         steps were slow; the message ends with the report of the run
+         */
+        void check() {
+            for (int i = 0; i < mSteps.length; i++) {
+                LatencyHistogram.Snapshot step = mSteps[i].snapshot();
+                if (step.getCount() != mCycles)
+                    fail(step.getCount() + " " + STEP_NAMES[i] + " steps measured in " + mCycles + " cycles");
+                if (step.getPercentile(0.5) > STEP_P50_LIMIT_MICROS)
+                    fail(STEP_NAMES[i] + " p50 " + step.getPercentile(0.5) + " us, allowed are "
+                            + STEP_P50_LIMIT_MICROS + " us");
+            }
+            if (mServiceThreadsAfter > 0)
+                fail(mServiceThreadsAfter + " connection threads still alive " + SETTLE_MILLIS + " ms after stop"
+                        + describeServiceThreads());
+            if (mThreadsAfter > mThreadsBefore + THREAD_SLACK)
+                fail(mThreadsAfter + " threads after the run, " + mThreadsBefore + " before");
+            if (getThreadsStartedPerCycle() > THREADS_STARTED_PER_CYCLE_LIMIT)
+                fail(getThreadsStartedPerCycle() + " threads started per cycle, allowed are "
+                        + THREADS_STARTED_PER_CYCLE_LIMIT);
+            long allowed = HEAP_SLACK_BYTES + HEAP_BYTES_PER_CYCLE * mCycles;
+            if (getHeapGrowth() > allowed)
+                fail("heap grew by " + getHeapGrowth() + " bytes in " + mCycles + " cycles, allowed are " + allowed);
+        }
+
+        private void fail(String message) {
+            throw new AssertionError(mName + ": " + message + "\n" + this);
+        }
+
+        private static String describeServiceThreads() {
+            StringBuilder names = new StringBuilder();
+            for (Map.Entry<Thread, StackTraceElement[]> entry : Thread.getAllStackTraces().entrySet()) {
+                String name = entry.getKey().getName();
+                if (isServiceThread(name)) {
+                    StackTraceElement[] stack = entry.getValue();
+                    names.append("\n  ").append(name).append(stack.length > 0 ? " at " + stack[0] : "");
+                }
+            }
+            return names.toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder report = new StringBuilder();
+            report.append(String.format(Locale.US, "Soak %s: %d cycles in %.1f s, %,.0f cycles/sec%n", mName, mCycles,
+                    mElapsedNanos / 1e9, getCyclesPerSecond()));
+            for (int i = 0; i < mSteps.length; i++) {
+                LatencyHistogram.Snapshot step = mSteps[i].snapshot();
+                report.append(String.format(Locale.US, "  %-8s p50 %,7d  p90 %,7d  p99 %,7d  max %,8d us%n",
+                        STEP_NAMES[i], step.getPercentile(0.5), step.getPercentile(0.9), step.getPercentile(0.99),
+                        step.getMax()));
+            }
+            report.append(String.format(Locale.US,
+                    "  threads  %d before, %d peak, %d after, %.1f started per cycle, connection threads %d peak, %d after%n",
+                    mThreadsBefore, mThreadsPeak, mThreadsAfter, getThreadsStartedPerCycle(), mServiceThreadsPeak,
+                    mServiceThreadsAfter));
+            report.append(String.format(Locale.US, "  heap     %,d KB before, %,d KB after, %+,d KB growth",
+                    mHeapBefore / 1024, mHeapAfter / 1024, getHeapGrowth() / 1024));
+            return report.toString();
+        }
+    }
+}
@@ -0,0 +1,156 @@
+package com.raspberryopener.app;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Minimal stand-in for the Raspberry Pi gate server used by the tests. Every read is
+ * treated as one command (split further on line breaks), like the gate does.
+ */
+class TestGate {
+    private final String mUsername;
+    private final String mPassword;
+    private final List<Transport> mConnections = new CopyOnWriteArrayList<>();
+    private final List<Thread> mThreads = new CopyOnWriteArrayList<>();
+    private volatile boolean mClosed;
+    private volatile boolean mGateOpened;
+    private volatile boolean mSilent;
+
+    TestGate(String username, String password) {
+        mUsername = username;
+        mPassword = password;
+    }
+
+    void servePipe(final PipeTransport.Listener listener) {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                while (!mClosed) {
+                    try {
+                        serve(listener.accept(100));
+                    } catch (IOException e) {
+                        // Nobody connected in time, check whether the gate is still running
+                    }
+                }
+            }
+        }, "TestGate pipe listener");
+    }
+
+    void serveTcp(final ServerSocket serverSocket) {
+        start(new Runnable() {
+            @Override
+            public void run() {
+                while (!mClosed) {
+                    try {
+                        Socket socket = serverSocket.accept();
+                        serve(new TcpTransport(socket));
+                    } catch (IOException e) {
+                        return;
+                    }
+                }
+            }
+        }, "TestGate tcp listener");
+    }
+
+    void serve(final Transport transport) {
+        mConnections.add(transport);
+        start(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[1024];
+                try {
+                    int n;
+                    while ((n = transport.read(buffer, 0, buffer.length)) >= 0) {
+                        for (String command : new String(buffer, 0, n).split("[\\r\\n]+")) {
+                            command = command.trim();
+                            if (!command.isEmpty() && !mSilent)
+                                handle(transport, command);
+                        }
+                    }
+                } catch (IOException e) {
+                    // Client went away
+                } finally {
+                    transport.close();
+                    mConnections.remove(transport);
+                    // Nothing left to join, long soaks must not pile up finished threads
+                    mThreads.remove(Thread.currentThread());
+                }
+            }
+        }, "TestGate connection");
+    }
+
+    protected void handle(Transport transport, String command) throws IOException {
+        if (command.startsWith("login=")) {
+            int pass = command.indexOf("&pass=");
+            String username = pass < 0 ? "" : command.substring(6, pass);
+            String password = pass < 0 ? "" : command.substring(pass + 6);
+            if (!mUsername.equals(username))
+                send(transport, "loginStatus=-2");
+            else if (!mPassword.equals(password))
+                send(transport, "loginStatus=-1");
+            else {
+                send(transport, mGateOpened ? "loginStatus=1&gateIsOpened" : "loginStatus=1&gateIsClosed");
+                onLoggedIn(transport);
+            }
+        } else if (command.startsWith("ping=")) {
+            send(transport, "pong=" + command.substring(5));
+        } else if (command.equals("openGate")) {
+            send(transport, "openingGate");
+            mGateOpened = true;
+            send(transport, "gateIsOpened");
+        } else if (command.equals("closeGate")) {
+            send(transport, "closingGate");
+            mGateOpened = false;
+            send(transport, "gateIsClosed");
+        } else {
+            send(transport, "wrongUserData");
+        }
+    }
+
+    /**
+     * Called after a successful login, before the next command is handled.
+     */
+    protected void onLoggedIn(Transport transport) throws IOException {
+    }
+
+    protected void send(Transport transport, String message) throws IOException {
+        byte[] bytes = (message + "\n").getBytes();
+        transport.write(bytes, 0, bytes.length);
+    }
+
+    /**
+     * Keeps the connections open but stops answering, like a gate which went out of range.
+     */
+    void setSilent(boolean silent) {
+        mSilent = silent;
+    }
+
+    /**
+     * Closes every open connection, the gate keeps accepting new ones.
+     */
+    void dropConnections() {
+        for (Transport transport : mConnections)
+            transport.close();
+    }
+
+    int getConnectionCount() {
+        return mConnections.size();
+    }
+
+    void close() throws InterruptedException {
+        mClosed = true;
+        dropConnections();
+        for (Thread thread : mThreads)
+            thread.join(1000);
+    }
+
+    private void start(Runnable runnable, String name) {
+        Thread thread = new Thread(runnable, name);
+        thread.setDaemon(true);
+        mThreads.add(thread);
+        thread.start();
+    }
+}
@@ -0,0 +1,36 @@
+package com.raspberryopener.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding the commands MainViewModel sends to the gate.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class CommandEncodingBenchmark {
+    public String username = "jan.kowalski";
+    public String password = "s3cret-Passw0rd";
+
+    @Benchmark
+    public byte[] login() {
+        return GateCommands.login(username, password);
+    }
+
+    @Benchmark
+    public byte[] openGate() {
+        return GateCommands.openGate();
+    }
+
+    @Benchmark
+    public byte[] closeGate() {
+        return GateCommands.closeGate();
+    }
+}
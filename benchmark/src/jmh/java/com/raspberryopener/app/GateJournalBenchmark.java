@@ -0,0 +1,43 @@
+package com.raspberryopener.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of journaling one state change, as the reading thread pays it in setState().
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class GateJournalBenchmark {
+
+    private File file;
+    private GateJournal journal;
+
+    @Setup
+    public void setUp() throws IOException {
+        file = File.createTempFile("journal", ".bin");
+        journal = GateJournal.open(file, GateJournal.DEFAULT_CAPACITY);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        journal.close();
+        file.delete();
+    }
+
+    @Benchmark
+    public void append() {
+        journal.append(ServiceStates.STATE_GATE_OPENING, ServiceStates.STATE_GATE_OPENED);
+    }
+}
@@ -0,0 +1,82 @@
+package com.raspberryopener.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of loading the gate registry and of looking up discovered devices in it, and in the addresses
+ * DeviceReceiver copies from it for every search and probes for every ACTION_FOUND. A tenth of the
+ * devices are known gates.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class GateRegistryBenchmark {
+    private static final int DEVICES = 1000;
+
+    @Param({"10", "500"})
+    public int gates;
+
+    private GateRegistry registry;
+    private LongIndexMap addresses;
+    private byte[] saved;
+    private String[] deviceAddresses;
+
+    @Setup
+    public void setUp() throws IOException {
+        Random random = new Random(42);
+        registry = new GateRegistry();
+        deviceAddresses = new String[DEVICES];
+        for (int i = 0; i < DEVICES; i++) {
+            // Most gates of a site come from one vendor and share the upper bytes
+            long address = 0xB827EB000000L | random.nextInt(1 << 24);
+            deviceAddresses[i] = Helpers.formatAddress(address);
+            if (i % 10 == 0 && registry.size() < gates)
+                registry.put(new GateProfile(address, new UUID(random.nextLong(), random.nextLong()), "site" + i, i % 2));
+        }
+        while (registry.size() < gates)
+            registry.put(new GateProfile(random.nextLong() & Helpers.MAX_ADDRESS, UUID.randomUUID(), "", -1));
+        addresses = registry.copyAddresses();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        registry.writeTo(new DataOutputStream(bytes));
+        saved = bytes.toByteArray();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DEVICES)
+    public void findDiscoveredDevice(Blackhole bh) {
+        for (String address : deviceAddresses)
+            bh.consume(registry.find(address));
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(DEVICES)
+    public void matchDiscoveredDevice(Blackhole bh) {
+        for (String address : deviceAddresses)
+            bh.consume(addresses.get(Helpers.parseAddress(address)) != LongIndexMap.NOT_FOUND);
+    }
+
+    @Benchmark
+    public GateRegistry load() throws IOException {
+        GateRegistry loaded = new GateRegistry();
+        loaded.readFrom(new DataInputStream(new ByteArrayInputStream(saved)));
+        return loaded;
+    }
+}
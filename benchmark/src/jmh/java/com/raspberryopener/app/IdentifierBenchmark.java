@@ -0,0 +1,27 @@
+package com.raspberryopener.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of parsing the service UUID preference. Matching discovered devices against the known
+ * gates, as DeviceReceiver does for every ACTION_FOUND, is measured by {@link GateRegistryBenchmark}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class IdentifierBenchmark {
+    public String uuid = "00001101-0000-1000-8000-00805F9B34FB";
+
+    @Benchmark
+    public UUID makeUuid() {
+        return Helpers.makeUuid(uuid);
+    }
+}
@@ -0,0 +1,110 @@
+package com.raspberryopener.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of turning bytes read by the I/O loop into gate states, reported per message.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class ReceivePathBenchmark {
+    static final String[] MESSAGES = {
+            "loginStatus=1&gateIsClosed", "openingGate", "gateIsOpened", "closingGate", "gateIsClosed",
+            "obstacle", "obstacleRemoved&gateIsOpened", "loginStatus=-1", "wrongUserData"
+    };
+    private static final int STREAM_MESSAGES = 1024;
+
+    /**
+     * Size of a single read, messages are split or coalesced accordingly.
+     */
+    @Param({"7", "64", "1024"})
+    public int readSize;
+
+    private byte[] stream;
+    private byte[][] frames;
+    private String[] strings;
+    private FrameDecoder decoder;
+    private Blackhole blackhole;
+    private final FrameDecoder.FrameListener framingListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            blackhole.consume(length);
+        }
+    };
+    private final FrameDecoder.FrameListener decodingListener = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            blackhole.consume(GateResponseDecoder.decode(buffer, offset, length));
+        }
+    };
+
+    @Setup
+    public void setUp() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < STREAM_MESSAGES; i++)
+            sb.append(MESSAGES[i % MESSAGES.length]).append('\n');
+        stream = sb.toString().getBytes();
+        frames = new byte[STREAM_MESSAGES][];
+        strings = new String[STREAM_MESSAGES];
+        for (int i = 0; i < STREAM_MESSAGES; i++) {
+            strings[i] = MESSAGES[i % MESSAGES.length] + "\n";
+            frames[i] = strings[i].getBytes();
+        }
+        decoder = new FrameDecoder();
+    }
+
+    /**
+     * Framing alone of a stream read in chunks of {@link #readSize} bytes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(STREAM_MESSAGES)
+    public void frame(Blackhole bh) {
+        blackhole = bh;
+        for (int offset = 0; offset < stream.length; offset += readSize)
+            decoder.feed(stream, offset, Math.min(readSize, stream.length - offset), framingListener);
+    }
+
+    /**
+     * Framing and table decoding of a stream read in chunks of {@link #readSize} bytes.
+     */
+    @Benchmark
+    @OperationsPerInvocation(STREAM_MESSAGES)
+    public void frameAndDecode(Blackhole bh) {
+        blackhole = bh;
+        for (int offset = 0; offset < stream.length; offset += readSize)
+            decoder.feed(stream, offset, Math.min(readSize, stream.length - offset), decodingListener);
+    }
+
+    /**
+     * The old path: one read per message turned into a trimmed String and parsed by the if/else chain.
+     * It cannot handle split or coalesced reads, so it always gets one message per read.
+     */
+    @Benchmark
+    @OperationsPerInvocation(STREAM_MESSAGES)
+    public void legacyStringChain(Blackhole bh) {
+        for (byte[] frame : frames)
+            bh.consume(LegacyResponseParser.parse(new String(frame, 0, frame.length).trim()));
+    }
+
+    /**
+     * Table decoding alone, one message per read like {@link #legacyStringChain}.
+     */
+    @Benchmark
+    @OperationsPerInvocation(STREAM_MESSAGES)
+    public void tableDecode(Blackhole bh) {
+        for (byte[] frame : frames)
+            bh.consume(GateResponseDecoder.decode(frame, 0, frame.length - 1));
+    }
+}
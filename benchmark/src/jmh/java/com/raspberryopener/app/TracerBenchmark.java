@@ -0,0 +1,39 @@
+package com.raspberryopener.app;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of one traced section, a begin and an end, as the startup code pays it with tracing
+ * switched off and on.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class TracerBenchmark {
+
+    @Param({"false", "true"})
+    public boolean enabled;
+
+    private Tracer tracer;
+
+    @Setup
+    public void setUp() {
+        tracer = new Tracer(Tracer.DEFAULT_CAPACITY);
+        tracer.setEnabled(enabled);
+    }
+
+    @Benchmark
+    public void section() {
+        tracer.begin("registerReceiver");
+        tracer.end();
+    }
+}
@@ -0,0 +1,145 @@
+package com.raspberryopener.app;
+
+/**
+ * Incremental decoder which splits the byte stream received from the gate into
+ * complete messages.
+ * <p>
+ * The gate terminates every message with a line break, so a single read may
+ * contain several messages or only a part of one. Bytes of an unfinished
+ * message are kept in a reusable ring buffer until its delimiter arrives.
+ * Leading and trailing whitespace is stripped from every message and empty
+ * messages are skipped, the same way the old per-read {@code String.trim()} did.
+ * <p>
+ * The decoder is not thread safe, it is meant to be owned by a single reading thread.
+ */
+public class FrameDecoder {
+
+    public interface FrameListener {
+        /**
+         * Called for every complete message. The bytes are only valid until the
+         * method returns, they must be copied if they are needed later.
+         */
+        void onFrame(byte[] buffer, int offset, int length);
+    }
+
+    public static final int DEFAULT_CAPACITY = 1024;
+
+    private final byte[] mRing;
+    private final byte[] mFrame; // used to return a message which wraps around the ring end
+    private final int mMask;
+    private int mHead;           // index of the first pending byte
+    private int mCount;          // number of pending bytes
+    private boolean mDiscarding; // message was too long, skip bytes until the next delimiter
+    private long mDroppedFrames;
+
+    public FrameDecoder() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param capacity maximum length of a single message, rounded up to a power of two
+     */
+    public FrameDecoder(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mRing = new byte[size];
+        mFrame = new byte[size];
+        mMask = size - 1;
+    }
+
+    public int getCapacity() {
+        return mRing.length;
+    }
+
+    /**
+     * @return number of bytes of an unfinished message waiting for its delimiter
+     */
+    public int getPendingBytes() {
+        return mCount;
+    }
+
+    /**
+     * @return number of messages dropped because they did not fit into the buffer
+     */
+    public long getDroppedFrames() {
+        return mDroppedFrames;
+    }
+
+    public void reset() {
+        mHead = 0;
+        mCount = 0;
+        mDiscarding = false;
+    }
+
+    /**
+     * Feeds bytes just read from the stream and reports every message they complete.
+     */
+    public void feed(byte[] data, int offset, int length, FrameListener listener) {
+        int end = offset + length;
+        int start = offset;
+        for (int i = offset; i < end; i++) {
+            if (!isDelimiter(data[i]))
+                continue;
+            if (mCount == 0 && !mDiscarding) {
+                // Whole message is inside this read, no need to copy it
+                emit(data, start, i - start, listener);
+            } else {
+                append(data, start, i - start);
+                if (!mDiscarding)
+                    emitPending(listener);
+                mHead = (mHead + mCount) & mMask;
+                mCount = 0;
+                mDiscarding = false;
+            }
+            start = i + 1;
+        }
+        append(data, start, end - start);
+    }
+
+    private void append(byte[] data, int offset, int length) {
+        if (length == 0 || mDiscarding)
+            return;
+        if (mCount + length > mRing.length) {
+            // Message longer than the buffer, drop it and resynchronize on the next delimiter
+            mDroppedFrames++;
+            mDiscarding = true;
+            mHead = 0;
+            mCount = 0;
+            return;
+        }
+        int tail = (mHead + mCount) & mMask;
+        int first = Math.min(length, mRing.length - tail);
+        System.arraycopy(data, offset, mRing, tail, first);
+        if (first < length)
+            System.arraycopy(data, offset + first, mRing, 0, length - first);
+        mCount += length;
+    }
+
+    private void emitPending(FrameListener listener) {
+        if (mHead + mCount <= mRing.length) {
+            emit(mRing, mHead, mCount, listener);
+        } else {
+            int first = mRing.length - mHead;
+            System.arraycopy(mRing, mHead, mFrame, 0, first);
+            System.arraycopy(mRing, 0, mFrame, first, mCount - first);
+            emit(mFrame, 0, mCount, listener);
+        }
+    }
+
+    private static void emit(byte[] buffer, int offset, int length, FrameListener listener) {
+        int end = offset + length;
+        while (offset < end && (buffer[offset] & 0xff) <= ' ')
+            offset++;
+        while (end > offset && (buffer[end - 1] & 0xff) <= ' ')
+            end--;
+        if (end > offset)
+            listener.onFrame(buffer, offset, end - offset);
+    }
+
+    private static boolean isDelimiter(byte b) {
+        return b == '\n' || b == '\r' || b == 0;
+    }
+}
@@ -0,0 +1,57 @@
+package com.raspberryopener.app;
+
+/**
+ * Encodes the commands the app sends to the gate.
+ * <p>
+ * Commands without parameters are encoded once and the same array is returned every time,
+ * so it must not be modified.
+ */
+public final class GateCommands {
+    private static final byte[] OPEN_GATE = "openGate".getBytes();
+    private static final byte[] CLOSE_GATE = "closeGate".getBytes();
+    private static final byte[] RESUME_PREFIX = "resume=".getBytes();
+    private static final byte[] PING_PREFIX = "ping=".getBytes();
+
+    private GateCommands() {
+    }
+
+    public static byte[] login(String username, String password) {
+        String msg = "login=" + username + "&pass=" + password;
+        return msg.getBytes();
+    }
+
+    public static byte[] openGate() {
+        return OPEN_GATE;
+    }
+
+    public static byte[] closeGate() {
+        return CLOSE_GATE;
+    }
+
+    /**
+     * Heartbeat, the gate answers with "pong=" and the same number, see {@code Heartbeat}.
+     */
+    public static byte[] ping(long sequence) {
+        return concat(PING_PREFIX, Long.toString(sequence).getBytes());
+    }
+
+    /**
+     * Prefixes a command with a session token, so that the gate runs it without a login.
+     */
+    public static byte[] resume(byte[] token, byte[] command) {
+        byte[] prefix = RESUME_PREFIX;
+        byte[] msg = new byte[prefix.length + token.length + 1 + command.length];
+        System.arraycopy(prefix, 0, msg, 0, prefix.length);
+        System.arraycopy(token, 0, msg, prefix.length, token.length);
+        msg[prefix.length + token.length] = '&';
+        System.arraycopy(command, 0, msg, prefix.length + token.length + 1, command.length);
+        return msg;
+    }
+
+    private static byte[] concat(byte[] prefix, byte[] value) {
+        byte[] msg = new byte[prefix.length + value.length];
+        System.arraycopy(prefix, 0, msg, 0, prefix.length);
+        System.arraycopy(value, 0, msg, prefix.length, value.length);
+        return msg;
+    }
+}
@@ -0,0 +1,260 @@
+package com.raspberryopener.app;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Persistent record of the state changes of the connection, e.g. when the gate opened, an
+ * obstacle was reported or a login failed.
+ * <p>
+ * The journal is a file of fixed size with a ring of 16 byte records, which is memory-mapped,
+ * so an append only claims a record with an atomic counter and writes it into the mapping,
+ * without locking, allocating or a system call. The pages belong to the kernel, so what was
+ * appended survives the death of the process; {@link #flush()} also writes them to the storage.
+ * A record carries its number and a check over its fields, records which were torn by a crash
+ * are skipped when the journal is opened again. The oldest records are overwritten when the
+ * ring is full.
+ * <p>
+ * Records are numbered in the order they were appended and their wall clock times are expected
+ * to grow with the numbers, which {@link #query(long, long, Visitor)} uses to find a time range
+ * with a binary search.
+ */
+public class GateJournal {
+    public static final String FILE_NAME = "journal.bin";
+    public static final int DEFAULT_CAPACITY = 16384; // records, 256 KB
+
+    static final int RECORD_SIZE = 16;
+    private static final int HEADER_SIZE = 16;
+    private static final int FILE_MAGIC = 0x474A4E31;
+    private static final int FILE_VERSION = 1;
+
+    // Fields of a record
+    private static final int TIME = 0;    // long, System.currentTimeMillis()
+    private static final int NUMBER = 8;  // int, number of the record plus one, 0 while it is written
+    private static final int FROM = 12;   // byte, state before
+    private static final int TO = 13;     // byte, state after
+    private static final int CHECK = 14;  // short, over the other fields
+
+    /**
+     * Receives records read from the journal.
+     */
+    public interface Visitor {
+        void onEvent(long number, long timeMillis, int fromState, int toState);
+    }
+
+    private final RandomAccessFile mFile;
+    private final MappedByteBuffer mBuffer;
+    private final int mMask;
+    private final AtomicIntegerArray mWritten; // NUMBER of every record, published for readers of this process
+    private final AtomicLong mNext;
+    private final long mRecovered; // records before were found when the journal was opened
+
+    private static final int VISITED = 0;
+    private static final int SKIPPED = 1; // torn by a crash or overwritten meanwhile
+    private static final int PENDING = 2; // still being written
+
+    /**
+     * Opens the journal, or creates it if the file does not exist. A file which is damaged or has
+     * another capacity is started anew.
+     * @param capacity number of records kept, rounded up to a power of two
+     */
+    public static GateJournal open(File file, int capacity) throws IOException {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        return new GateJournal(new RandomAccessFile(file, "rw"), size);
+    }
+
+    private GateJournal(RandomAccessFile file, int capacity) throws IOException {
+        mFile = file;
+        long length = HEADER_SIZE + (long) capacity * RECORD_SIZE;
+        try {
+            boolean fresh = file.length() != length;
+            if (fresh)
+                file.setLength(length);
+            mBuffer = file.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+            if (fresh || mBuffer.getInt(0) != FILE_MAGIC || mBuffer.getInt(4) != FILE_VERSION
+                    || mBuffer.getInt(8) != capacity)
+                format(capacity);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+        mMask = capacity - 1;
+        mWritten = new AtomicIntegerArray(capacity);
+        mRecovered = recover();
+        mNext = new AtomicLong(mRecovered);
+    }
+
+    private void format(int capacity) {
+        for (int i = 0, end = mBuffer.capacity(); i < end; i += 8)
+            mBuffer.putLong(i, 0);
+        mBuffer.putInt(0, FILE_MAGIC);
+        mBuffer.putInt(4, FILE_VERSION);
+        mBuffer.putInt(8, capacity);
+    }
+
+    // Finds the records which were written completely, returns the number of the next one
+    private long recover() {
+        long last = 0;
+        for (int slot = 0; slot <= mMask; slot++) {
+            int offset = offsetOf(slot);
+            long number = (mBuffer.getInt(offset + NUMBER) & 0xFFFFFFFFL) - 1;
+            if (number < 0 || ((int) number & mMask) != slot || mBuffer.getShort(offset + CHECK)
+                    != check(mBuffer.getLong(offset + TIME), number, mBuffer.get(offset + FROM), mBuffer.get(offset + TO)))
+                continue;
+            mWritten.set(slot, (int) (number + 1));
+            last = Math.max(last, number + 1);
+        }
+        // Older records which survived in slots the ring has passed already are not valid anymore
+        for (int slot = 0; slot <= mMask; slot++) {
+            long number = (mWritten.get(slot) & 0xFFFFFFFFL) - 1;
+            if (number >= 0 && number < last - getCapacity())
+                mWritten.set(slot, 0);
+        }
+        return last;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Records a state change, from any thread.
+     */
+    public void append(int fromState, int toState) {
+        append(System.currentTimeMillis(), fromState, toState);
+    }
+
+    public void append(long timeMillis, int fromState, int toState) {
+        long number = mNext.getAndIncrement();
+        int slot = (int) number & mMask;
+        int offset = offsetOf(slot);
+        mWritten.set(slot, 0);
+        mBuffer.putInt(offset + NUMBER, 0);
+        mBuffer.putLong(offset + TIME, timeMillis);
+        mBuffer.put(offset + FROM, (byte) fromState);
+        mBuffer.put(offset + TO, (byte) toState);
+        mBuffer.putShort(offset + CHECK, check(timeMillis, number, (byte) fromState, (byte) toState));
+        mBuffer.putInt(offset + NUMBER, (int) (number + 1));
+        mWritten.lazySet(slot, (int) (number + 1));
+    }
+
+    /**
+     * @return number of records appended since the journal was created, including overwritten ones
+     */
+    public long getEventCount() {
+        return mNext.get();
+    }
+
+    /**
+     * @return number of the oldest record which is still kept
+     */
+    public long getFirstNumber() {
+        return Math.max(0, mNext.get() - getCapacity());
+    }
+
+    /**
+     * Reads the records from the given number on, oldest first, up to the first one which is still
+     * being written. Records torn by a crash are left out.
+     * @return number of the record to read next time
+     */
+    public long read(long fromNumber, Visitor visitor) {
+        long next = mNext.get();
+        long number = Math.max(fromNumber, Math.max(0, next - getCapacity()));
+        for (; number < next; number++) {
+            if (visit(number, visitor) == PENDING)
+                break;
+        }
+        return number;
+    }
+
+    /**
+     * Reads the records with times in [fromMillis, toMillis), oldest first.
+     * @return number of records read
+     */
+    public int query(long fromMillis, long toMillis, Visitor visitor) {
+        long next = mNext.get();
+        // First record not older than fromMillis, records still being written count as newest
+        long low = Math.max(0, next - getCapacity());
+        long high = next;
+        while (low < high) {
+            long middle = (low + high) >>> 1;
+            long time = timeOf(middle);
+            if (time != Long.MAX_VALUE && time < fromMillis)
+                low = middle + 1;
+            else
+                high = middle;
+        }
+        int count = 0;
+        for (long number = low; number < next; number++) {
+            long time = timeOf(number);
+            if (time != Long.MAX_VALUE && time >= toMillis)
+                break;
+            int result = visit(number, visitor);
+            if (result == PENDING)
+                break;
+            if (result == VISITED)
+                count++;
+        }
+        return count;
+    }
+
+    // Long.MAX_VALUE if the record is being written or was overwritten
+    private long timeOf(long number) {
+        int slot = (int) number & mMask;
+        int written = (int) (number + 1);
+        if (mWritten.get(slot) != written)
+            return Long.MAX_VALUE;
+        long time = mBuffer.getLong(offsetOf(slot) + TIME);
+        return mWritten.get(slot) == written ? time : Long.MAX_VALUE;
+    }
+
+    private int visit(long number, Visitor visitor) {
+        int slot = (int) number & mMask;
+        int written = (int) (number + 1);
+        if (mWritten.get(slot) == written) {
+            int offset = offsetOf(slot);
+            long time = mBuffer.getLong(offset + TIME);
+            int from = mBuffer.get(offset + FROM);
+            int to = mBuffer.get(offset + TO);
+            if (mWritten.get(slot) == written) {
+                visitor.onEvent(number, time, from, to);
+                return VISITED;
+            }
+        }
+        if (number < mRecovered)
+            return SKIPPED;
+        // A newer record in the slot means the reader was overtaken, an older one or none that the
+        // writer has not published yet
+        return (mWritten.get(slot) & 0xFFFFFFFFL) > (written & 0xFFFFFFFFL) ? SKIPPED : PENDING;
+    }
+
+    /**
+     * Writes the appended records to the storage, so that they also survive a power loss.
+     */
+    public void flush() {
+        mBuffer.force();
+    }
+
+    public void close() throws IOException {
+        mFile.close();
+    }
+
+    private static int offsetOf(int slot) {
+        return HEADER_SIZE + slot * RECORD_SIZE;
+    }
+
+    private static short check(long timeMillis, long number, byte fromState, byte toState) {
+        long h = (timeMillis * 31 + (int) (number + 1)) * 31 + ((fromState & 0xFF) << 8 | (toState & 0xFF));
+        h *= 0x9E3779B97F4A7C15L;
+        return (short) (h >>> 48);
+    }
+}
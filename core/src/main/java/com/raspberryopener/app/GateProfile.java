@@ -0,0 +1,72 @@
+package com.raspberryopener.app;
+
+import java.util.UUID;
+
+/**
+ * One gate the app can connect to, kept in the {@link GateRegistry}.
+ */
+public class GateProfile {
+    public static final int STRATEGY_UNKNOWN = -1;
+    public static final String DEFAULT_ACCOUNT = ""; // the username and password preferences
+
+    private final long mAddress;
+    private final UUID mServiceUuid;
+    private final String mAccount;
+    private final int mPreferredStrategy;
+
+    /**
+     * @param address Bluetooth address parsed by {@link Helpers#parseAddress(String)}
+     * @param account name of the account whose credentials log in to the gate, see {@link #DEFAULT_ACCOUNT}
+     * @param preferredStrategy socket strategy of {@code BluetoothTransport} which connected last time,
+     *                          {@link #STRATEGY_UNKNOWN} if none did yet
+     */
+    public GateProfile(long address, UUID serviceUuid, String account, int preferredStrategy) {
+        if (address < 0 || address > Helpers.MAX_ADDRESS)
+            throw new IllegalArgumentException("Not an address: " + address);
+        if (serviceUuid == null || account == null)
+            throw new IllegalArgumentException("Service UUID and account are required");
+        mAddress = address;
+        mServiceUuid = serviceUuid;
+        mAccount = account;
+        mPreferredStrategy = preferredStrategy;
+    }
+
+    public long getAddress() {
+        return mAddress;
+    }
+
+    public UUID getServiceUuid() {
+        return mServiceUuid;
+    }
+
+    public String getAccount() {
+        return mAccount;
+    }
+
+    public int getPreferredStrategy() {
+        return mPreferredStrategy;
+    }
+
+    public GateProfile withPreferredStrategy(int strategy) {
+        return new GateProfile(mAddress, mServiceUuid, mAccount, strategy);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof GateProfile))
+            return false;
+        GateProfile other = (GateProfile) o;
+        return mAddress == other.mAddress && mServiceUuid.equals(other.mServiceUuid)
+                && mAccount.equals(other.mAccount) && mPreferredStrategy == other.mPreferredStrategy;
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (mAddress ^ mAddress >>> 32) * 31 + mServiceUuid.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return Helpers.formatAddress(mAddress) + " " + mServiceUuid;
+    }
+}
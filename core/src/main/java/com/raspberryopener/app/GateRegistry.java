@@ -0,0 +1,222 @@
+package com.raspberryopener.app;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Gates the app knows, looked up by Bluetooth address.
+ * <p>
+ * Profiles are kept in an array indexed by a {@link LongIndexMap} from the 48-bit address, so
+ * finding the gate of a discovered or bonded device is one hash probe on a primitive key. The
+ * registry is saved as a compact binary file with one record per gate, which loads in one pass.
+ */
+public class GateRegistry {
+    public static final String FILE_NAME = "gates.bin";
+
+    private static final int FILE_MAGIC = 0x47524731;
+    private static final int FILE_VERSION = 2; // 1 was written with UUIDs makeUuid() had read wrong
+    private static final int MAX_GATES = 65536; // more means the file is damaged
+
+    private GateProfile[] mProfiles = new GateProfile[4];
+    private int mSize;
+    private final LongIndexMap mIndex = new LongIndexMap();
+    private boolean mDirty;
+
+    public synchronized int size() {
+        return mSize;
+    }
+
+    /**
+     * @return profile at the position, positions change when profiles are removed
+     */
+    public synchronized GateProfile get(int index) {
+        if (index < 0 || index >= mSize)
+            throw new IndexOutOfBoundsException("Index " + index + ", size " + mSize);
+        return mProfiles[index];
+    }
+
+    /**
+     * @return profile of the gate with the address, null if the gate is not known
+     */
+    public synchronized GateProfile find(long address) {
+        int index = mIndex.get(address);
+        return index == LongIndexMap.NOT_FOUND ? null : mProfiles[index];
+    }
+
+    public GateProfile find(String address) {
+        long parsed = Helpers.parseAddress(address);
+        return parsed == Helpers.NO_ADDRESS ? null : find(parsed);
+    }
+
+    public synchronized boolean contains(long address) {
+        return mIndex.get(address) != LongIndexMap.NOT_FOUND;
+    }
+
+    /**
+     * @return addresses of the gates mapped to their positions, a copy which does not follow later changes
+     */
+    public synchronized LongIndexMap copyAddresses() {
+        LongIndexMap addresses = new LongIndexMap(mSize);
+        for (int i = 0; i < mSize; i++)
+            addresses.put(mProfiles[i].getAddress(), i);
+        return addresses;
+    }
+
+    /**
+     * Adds the gate or replaces the profile of the gate with the same address.
+     */
+    public synchronized void put(GateProfile profile) {
+        int index = mIndex.get(profile.getAddress());
+        if (index == LongIndexMap.NOT_FOUND) {
+            if (mSize == mProfiles.length) {
+                GateProfile[] profiles = new GateProfile[mSize * 2];
+                System.arraycopy(mProfiles, 0, profiles, 0, mSize);
+                mProfiles = profiles;
+            }
+            index = mSize++;
+            mIndex.put(profile.getAddress(), index);
+        } else if (profile.equals(mProfiles[index])) {
+            return;
+        }
+        mProfiles[index] = profile;
+        mDirty = true;
+    }
+
+    /**
+     * @return false if the gate was not known
+     */
+    public synchronized boolean remove(long address) {
+        int index = mIndex.remove(address);
+        if (index == LongIndexMap.NOT_FOUND)
+            return false;
+        // Move the last profile into the gap, so that the array stays dense
+        int last = --mSize;
+        if (index != last) {
+            mProfiles[index] = mProfiles[last];
+            mIndex.put(mProfiles[index].getAddress(), index);
+        }
+        mProfiles[last] = null;
+        mDirty = true;
+        return true;
+    }
+
+    /**
+     * @return {@link GateProfile#STRATEGY_UNKNOWN} also if the gate is not known
+     */
+    public synchronized int getPreferredStrategy(long address) {
+        GateProfile profile = find(address);
+        return profile == null ? GateProfile.STRATEGY_UNKNOWN : profile.getPreferredStrategy();
+    }
+
+    /**
+     * Remembers the socket strategy which connected to a known gate, unknown gates are ignored.
+     */
+    public synchronized void setPreferredStrategy(long address, int strategy) {
+        GateProfile profile = find(address);
+        if (profile != null)
+            put(profile.withPreferredStrategy(strategy));
+    }
+
+    /**
+     * @return true if the registry changed since it was loaded or saved
+     */
+    public synchronized boolean isDirty() {
+        return mDirty;
+    }
+
+    public synchronized void clear() {
+        for (int i = 0; i < mSize; i++)
+            mProfiles[i] = null;
+        mSize = 0;
+        mIndex.clear();
+        mDirty = true;
+    }
+
+    public synchronized void writeTo(DataOutputStream out) throws IOException {
+        out.writeInt(FILE_MAGIC);
+        out.writeByte(FILE_VERSION);
+        out.writeInt(mSize);
+        for (int i = 0; i < mSize; i++) {
+            GateProfile profile = mProfiles[i];
+            out.writeLong(profile.getAddress());
+            out.writeLong(profile.getServiceUuid().getMostSignificantBits());
+            out.writeLong(profile.getServiceUuid().getLeastSignificantBits());
+            out.writeByte(profile.getPreferredStrategy());
+            out.writeUTF(profile.getAccount());
+        }
+    }
+
+    /**
+     * Replaces the gates by the ones written by {@link #writeTo(DataOutputStream)}.
+     */
+    public synchronized void readFrom(DataInputStream in) throws IOException {
+        if (in.readInt() != FILE_MAGIC)
+            throw new IOException("Not a gate registry");
+        int version = in.readUnsignedByte();
+        if (version != FILE_VERSION)
+            throw new IOException("Unknown gate registry version " + version);
+        int count = in.readInt();
+        if (count < 0 || count > MAX_GATES)
+            throw new IOException("Wrong number of gates " + count);
+        // Read everything first, a damaged file leaves the registry unchanged
+        GateProfile[] profiles = new GateProfile[count];
+        for (int i = 0; i < count; i++) {
+            long address = in.readLong();
+            UUID serviceUuid = new UUID(in.readLong(), in.readLong());
+            int strategy = in.readByte();
+            String account = in.readUTF();
+            try {
+                profiles[i] = new GateProfile(address, serviceUuid, account, strategy);
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Wrong gate " + i + ": " + e.getMessage());
+            }
+        }
+        clear();
+        for (GateProfile profile : profiles)
+            put(profile);
+        mDirty = false;
+    }
+
+    /**
+     * Loads the gates saved by {@link #save(File)}.
+     * @return false if nothing was saved yet, the registry is left unchanged then
+     */
+    public synchronized boolean load(File file) throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        } catch (FileNotFoundException e) {
+            return false;
+        }
+        try {
+            readFrom(in);
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    /**
+     * Saves the gates, the file is replaced only after it has been written completely.
+     */
+    public synchronized void save(File file) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            writeTo(out);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+        mDirty = false;
+    }
+}
@@ -0,0 +1,148 @@
+package com.raspberryopener.app;
+
+/**
+ * Maps messages received from the gate to gate events.
+ * <p>
+ * Every message the gate can send is known in advance, so they are put into a
+ * precompiled hash table keyed by their bytes. Decoding a message costs one hash
+ * over its bytes and one comparison, and allocates nothing. An event is the
+ * {@link ServiceStates} state the message leads to, optionally combined with
+ * {@link #FLAG_LOGGED_IN} when the message also confirms a successful login.
+ * Messages of the optional session resumption do not lead to a state, they are
+ * reported as {@link #EVENT_SESSION} and {@link #EVENT_SESSION_EXPIRED}, the same for
+ * heartbeat answers reported as {@link #EVENT_PONG}.
+ */
+public final class GateResponseDecoder {
+    public static final int NO_EVENT = Integer.MIN_VALUE;     // message is not known
+    public static final int EVENT_SESSION = Integer.MIN_VALUE + 1;         // "session=<token>&ttl=<seconds>", see GateSession
+    public static final int EVENT_SESSION_EXPIRED = Integer.MIN_VALUE + 2; // session token sent with a command is not valid
+    public static final int EVENT_PONG = Integer.MIN_VALUE + 3;            // "pong=<sequence>", see Heartbeat
+    public static final long NO_SEQUENCE = -1;
+    public static final int FLAG_LOGGED_IN = 0x10000;         // message confirms that the user is logged in
+    private static final int STATE_MASK = 0xFFFF;
+
+    private static final String OBSTACLE_REMOVED_PREFIX = "obstacleRemoved";
+    private static final String SESSION_PREFIX = "session=";
+    private static final String PONG_PREFIX = "pong=";
+
+    private static final Object[] RESPONSES = {
+            "loginStatus=1", ServiceStates.STATE_LOGGED_IN | FLAG_LOGGED_IN,
+            "loginStatus=1&gateIsOpened", ServiceStates.STATE_GATE_OPENED | FLAG_LOGGED_IN,
+            "loginStatus=1&gateIsClosed", ServiceStates.STATE_GATE_CLOSED | FLAG_LOGGED_IN,
+            "loginStatus=-1", ServiceStates.STATE_WRONG_PASSWORD,
+            "loginStatus=-2", ServiceStates.STATE_WRONG_USERNAME,
+            "wrongUserData", ServiceStates.STATE_WRONG_DATA,
+            "openingGate", ServiceStates.STATE_GATE_OPENING,
+            "closingGate", ServiceStates.STATE_GATE_CLOSING,
+            "gateIsOpened", ServiceStates.STATE_GATE_OPENED,
+            "gateIsClosed", ServiceStates.STATE_GATE_CLOSED,
+            "obstacle", ServiceStates.STATE_OBSTACLE,
+            OBSTACLE_REMOVED_PREFIX, ServiceStates.STATE_OBSTACLE_REMOVED,
+            "obstacleRemoved&gateIsOpened", ServiceStates.STATE_OBSTACLE_REMOVED_GATE_OPENED,
+            "obstacleRemoved&gateIsClosed", ServiceStates.STATE_OBSTACLE_REMOVED_GATE_CLOSED,
+            "sessionExpired", EVENT_SESSION_EXPIRED,
+    };
+
+    private static final byte[] sObstacleRemovedPrefix = OBSTACLE_REMOVED_PREFIX.getBytes();
+    private static final byte[] sSessionPrefix = SESSION_PREFIX.getBytes();
+    private static final byte[] sPongPrefix = PONG_PREFIX.getBytes();
+    private static final byte[][] sKeys;
+    private static final int[] sEvents;
+    private static final int sMask;
+
+    static {
+        int count = RESPONSES.length / 2;
+        int size = Integer.highestOneBit(count * 4);
+        sKeys = new byte[size][];
+        sEvents = new int[size];
+        sMask = size - 1;
+        for (int i = 0; i < count; i++) {
+            byte[] key = ((String) RESPONSES[2 * i]).getBytes();
+            int slot = hash(key, 0, key.length) & sMask;
+            while (sKeys[slot] != null)
+                slot = (slot + 1) & sMask;
+            sKeys[slot] = key;
+            sEvents[slot] = (Integer) RESPONSES[2 * i + 1];
+        }
+    }
+
+    private GateResponseDecoder() {
+    }
+
+    /**
+     * @return event for the given message or {@link #NO_EVENT} if the message is not known
+     */
+    public static int decode(byte[] buffer, int offset, int length) {
+        int slot = hash(buffer, offset, length) & sMask;
+        byte[] key;
+        while ((key = sKeys[slot]) != null) {
+            if (equals(key, buffer, offset, length))
+                return sEvents[slot];
+            slot = (slot + 1) & sMask;
+        }
+        // The gate may report the gate state after removed obstacle in a form we don't know yet
+        if (startsWith(buffer, offset, length, sObstacleRemovedPrefix))
+            return ServiceStates.STATE_OBSTACLE_REMOVED;
+        // Session messages carry a token, so they cannot be in the table
+        if (startsWith(buffer, offset, length, sSessionPrefix))
+            return EVENT_SESSION;
+        if (startsWith(buffer, offset, length, sPongPrefix))
+            return EVENT_PONG;
+        return NO_EVENT;
+    }
+
+    /**
+     * @return sequence number of a message decoded as {@link #EVENT_PONG}, {@link #NO_SEQUENCE} if it is damaged
+     */
+    public static long pongSequence(byte[] buffer, int offset, int length) {
+        int start = offset + sPongPrefix.length;
+        int end = offset + length;
+        if (start == end || end - start > 18)
+            return NO_SEQUENCE; // empty or may overflow
+        long sequence = 0;
+        for (int i = start; i < end; i++) {
+            int digit = buffer[i] - '0';
+            if (digit < 0 || digit > 9)
+                return NO_SEQUENCE;
+            sequence = sequence * 10 + digit;
+        }
+        return sequence;
+    }
+
+    /**
+     * @return true if the event leads to a state, see {@link #stateOf(int)}
+     */
+    public static boolean hasState(int event) {
+        return event != NO_EVENT && event != EVENT_SESSION && event != EVENT_SESSION_EXPIRED
+                && event != EVENT_PONG;
+    }
+
+    public static int stateOf(int event) {
+        return event & STATE_MASK;
+    }
+
+    public static boolean isLoggedIn(int event) {
+        return event != NO_EVENT && (event & FLAG_LOGGED_IN) != 0;
+    }
+
+    private static int hash(byte[] buffer, int offset, int length) {
+        int h = length;
+        for (int i = offset, end = offset + length; i < end; i++)
+            h = 31 * h + buffer[i];
+        return h ^ (h >>> 16);
+    }
+
+    private static boolean equals(byte[] key, byte[] buffer, int offset, int length) {
+        if (key.length != length)
+            return false;
+        for (int i = 0; i < length; i++) {
+            if (key[i] != buffer[offset + i])
+                return false;
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] buffer, int offset, int length, byte[] prefix) {
+        return length >= prefix.length && equals(prefix, buffer, offset, prefix.length);
+    }
+}
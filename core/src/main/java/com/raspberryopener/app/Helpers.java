@@ -0,0 +1,104 @@
+package com.raspberryopener.app;
+
+import java.util.UUID;
+
+public class Helpers {
+    public static final long NO_ADDRESS = -1; // parsed addresses have only 48 bits, so they are never negative
+    public static final long MAX_ADDRESS = 0xFFFFFFFFFFFFL;
+
+    private static final int ADDRESS_LENGTH = 17; // "00:11:22:AA:BB:CC"
+    private static final int UUID_LENGTH = 36;    // "00001101-0000-1000-8000-00805F9B34FB"
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    public static UUID makeUuid(String uuidString) {
+        String[] parts = {
+                uuidString.substring(0, 8),
+                uuidString.substring(9, 13),
+                uuidString.substring(14, 18),
+                uuidString.substring(19, 23),
+                uuidString.substring(24, 36)
+        };
+        long m1 = Long.parseLong(parts[0], 16);
+        long m2 = Long.parseLong(parts[1], 16);
+        long m3 = Long.parseLong(parts[2], 16);
+        long lsb1 = Long.parseLong(parts[3], 16);
+        long lsb2 = Long.parseLong(parts[4], 16);
+        long msb = (m1 << 32) | (m2 << 16) | m3;
+        long lsb = (lsb1 << 48) | lsb2;
+        return new UUID(msb, lsb);
+    }
+
+    /**
+     * @return true if the text can be passed to {@link #makeUuid(String)}: five groups of hex digits
+     *         separated by dashes as in {@code 00001101-0000-1000-8000-00805F9B34FB}
+     */
+    public static boolean isUuid(String text) {
+        if (text == null || text.length() != UUID_LENGTH)
+            return false;
+        for (int i = 0; i < UUID_LENGTH; i++) {
+            char c = text.charAt(i);
+            if (i == 8 || i == 13 || i == 18 || i == 23) {
+                if (c != '-')
+                    return false;
+            } else if (hexDigit(c) < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Parses a Bluetooth address like {@code 00:11:22:AA:BB:CC} without allocating. The case of hex
+     * digits is ignored and the bytes may also be separated by dashes.
+     * @return the 48 bits of the address, or {@link #NO_ADDRESS} if the text is not an address
+     */
+    public static long parseAddress(String address) {
+        if (address == null || address.length() != ADDRESS_LENGTH)
+            return NO_ADDRESS;
+        long value = 0;
+        for (int i = 0; i < ADDRESS_LENGTH; i += 3) {
+            int b = parseAddressByte(address, i);
+            if (b < 0)
+                return NO_ADDRESS;
+            value = value << 8 | b;
+        }
+        return value;
+    }
+
+    /**
+     * @return address parsed by {@link #parseAddress(String)} in the form Android uses, e.g. {@code 00:11:22:AA:BB:CC}
+     */
+    public static String formatAddress(long address) {
+        char[] text = new char[ADDRESS_LENGTH];
+        for (int i = 0, shift = 40; i < ADDRESS_LENGTH; i += 3, shift -= 8) {
+            int b = (int) (address >>> shift & 0xFF);
+            text[i] = HEX_DIGITS[b >>> 4];
+            text[i + 1] = HEX_DIGITS[b & 0xF];
+            if (i + 2 < ADDRESS_LENGTH)
+                text[i + 2] = ':';
+        }
+        return new String(text);
+    }
+
+    // Two hex digits at the index followed by a separator or the end, -1 if they are not
+    private static int parseAddressByte(String address, int index) {
+        if (index + 2 < ADDRESS_LENGTH) {
+            char separator = address.charAt(index + 2);
+            if (separator != ':' && separator != '-')
+                return -1;
+        }
+        int high = hexDigit(address.charAt(index));
+        int low = hexDigit(address.charAt(index + 1));
+        return (high | low) < 0 ? -1 : high << 4 | low;
+    }
+
+    private static int hexDigit(char c) {
+        if (c >= '0' && c <= '9')
+            return c - '0';
+        if (c >= 'A' && c <= 'F')
+            return c - 'A' + 10;
+        if (c >= 'a' && c <= 'f')
+            return c - 'a' + 10;
+        return -1;
+    }
+}
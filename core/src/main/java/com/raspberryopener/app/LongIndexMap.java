@@ -0,0 +1,144 @@
+package com.raspberryopener.app;
+
+/**
+ * Map from non-negative long keys, such as parsed Bluetooth addresses, to int values.
+ * <p>
+ * Keys and values are kept in two primitive arrays with open addressing and linear probing,
+ * so a lookup neither boxes the key nor follows references. The table is kept at most half
+ * full. Not thread safe.
+ */
+public class LongIndexMap {
+    public static final int NOT_FOUND = -1;
+
+    private static final long FREE = -1; // keys are never negative
+    private static final int MIN_CAPACITY = 16;
+
+    private long[] mKeys;
+    private int[] mValues;
+    private int mMask;
+    private int mSize;
+
+    public LongIndexMap() {
+        this(MIN_CAPACITY / 2);
+    }
+
+    /**
+     * @param expectedSize number of keys the map holds without growing
+     */
+    public LongIndexMap(int expectedSize) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize)) << 2));
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    /**
+     * @return value of the key, {@link #NOT_FOUND} if the map does not contain it
+     */
+    public int get(long key) {
+        if (key < 0)
+            return NOT_FOUND;
+        int slot = slotOf(key);
+        long k;
+        while ((k = mKeys[slot]) != FREE) {
+            if (k == key)
+                return mValues[slot];
+            slot = (slot + 1) & mMask;
+        }
+        return NOT_FOUND;
+    }
+
+    public void put(long key, int value) {
+        if (key < 0)
+            throw new IllegalArgumentException("Negative key: " + key);
+        if (mSize * 2 >= mKeys.length)
+            grow();
+        int slot = slotOf(key);
+        long k;
+        while ((k = mKeys[slot]) != FREE) {
+            if (k == key) {
+                mValues[slot] = value;
+                return;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        mKeys[slot] = key;
+        mValues[slot] = value;
+        mSize++;
+    }
+
+    /**
+     * @return value the key had, {@link #NOT_FOUND} if the map did not contain it
+     */
+    public int remove(long key) {
+        if (key < 0)
+            return NOT_FOUND;
+        int slot = slotOf(key);
+        long k;
+        while ((k = mKeys[slot]) != FREE) {
+            if (k == key) {
+                int value = mValues[slot];
+                deleteSlot(slot);
+                mSize--;
+                return value;
+            }
+            slot = (slot + 1) & mMask;
+        }
+        return NOT_FOUND;
+    }
+
+    public void clear() {
+        for (int i = 0; i < mKeys.length; i++)
+            mKeys[i] = FREE;
+        mSize = 0;
+    }
+
+    // Moves back the following keys of the probe sequence, so that no lookup stops at the freed slot
+    private void deleteSlot(int free) {
+        int slot = free;
+        while (true) {
+            slot = (slot + 1) & mMask;
+            long key = mKeys[slot];
+            if (key == FREE)
+                break;
+            int home = slotOf(key);
+            // Keep the key if its home lies cyclically in (free, slot]
+            if (free <= slot ? free < home && home <= slot : free < home || home <= slot)
+                continue;
+            mKeys[free] = key;
+            mValues[free] = mValues[slot];
+            free = slot;
+        }
+        mKeys[free] = FREE;
+    }
+
+    private void grow() {
+        long[] keys = mKeys;
+        int[] values = mValues;
+        allocate(keys.length * 2);
+        for (int i = 0; i < keys.length; i++) {
+            if (keys[i] == FREE)
+                continue;
+            int slot = slotOf(keys[i]);
+            while (mKeys[slot] != FREE)
+                slot = (slot + 1) & mMask;
+            mKeys[slot] = keys[i];
+            mValues[slot] = values[i];
+        }
+    }
+
+    private void allocate(int capacity) {
+        mKeys = new long[capacity];
+        mValues = new int[capacity];
+        mMask = capacity - 1;
+        for (int i = 0; i < capacity; i++)
+            mKeys[i] = FREE;
+    }
+
+    private int slotOf(long key) {
+        // Addresses of one vendor share the upper bytes, spread all the bits over the table
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ h >>> 32) & mMask;
+    }
+}
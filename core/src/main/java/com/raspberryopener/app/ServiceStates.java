@@ -0,0 +1,29 @@
+package com.raspberryopener.app;
+
+/**
+ * Constants that indicate the current connection state of {@code BluetoothService}.
+ * Kept apart from the service so that the protocol classes do not depend on Android.
+ */
+public interface ServiceStates {
+    int STATE_BLUETOOTH_NOT_SUPPORTED = -1;       // Device doesn't support bluetooth
+    int STATE_BLUETOOTH_OFF = 0;                  // Bluetooth is turned off
+    int STATE_BLUETOOTH_ON_SEARCH = 1;            // Bluetooth is turned on
+    int STATE_NONE = 100;                         // we're doing nothing
+    int STATE_LISTEN = 101;                       // now listening for incoming connections
+    int STATE_CONNECTING = 102;                   // now initiating an outgoing connection
+    int STATE_CONNECTED = 103;                    // now connected to a remote device
+    int STATE_CONNECTION_FAILED = 104;            // we're unable to connect to the device
+    int STATE_CONNECTION_LOST = 105;              // we're unable to connect to the device
+    int STATE_LOGGED_IN = 106;                    // user is logged in on a remote device
+    int STATE_WRONG_DATA = 107;                   // user cannot log in, wrong username and password
+    int STATE_WRONG_USERNAME = 108;               // user cannot log in, wrong username
+    int STATE_WRONG_PASSWORD = 109;               // user cannot log in, wrong password
+    int STATE_GATE_OPENING = 120;                 // user log in, opening gate
+    int STATE_GATE_CLOSING = 121;                 // user log in, closing gate
+    int STATE_GATE_OPENED = 122;                  // user log in, gate is opened
+    int STATE_GATE_CLOSED = 123;                  // user log in, gate is closed
+    int STATE_OBSTACLE = 124;                     // user log in, obstacle in front of gate, cannot close gate
+    int STATE_OBSTACLE_REMOVED = 125;             // user log in, obstacle removed
+    int STATE_OBSTACLE_REMOVED_GATE_OPENED = 126; // user log in, obstacle removed, gate is opened
+    int STATE_OBSTACLE_REMOVED_GATE_CLOSED = 127; // user log in, obstacle removed, gate is closed
+}
@@ -0,0 +1,244 @@
+package com.raspberryopener.app;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Named, nested sections of code timed on the monotonic clock, e.g. the parts of a cold start.
+ * <p>
+ * A section is opened with {@link #begin(String)} and closed with {@link #end()} on the same
+ * thread. Both record an event into a ring buffer of fixed size without locking or allocating,
+ * the oldest events are overwritten when it is full. While tracing is disabled they only read a
+ * volatile flag. The buffer is exported in the Chrome trace event format, which chrome://tracing
+ * and Perfetto open.
+ */
+public class Tracer {
+    public static final String PREF_TRACE_ENABLED = "trace_enabled";
+    public static final String FILE_NAME = "trace.json";
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    private static final byte PHASE_BEGIN = 'B';
+    private static final byte PHASE_END = 'E';
+
+    private static final Tracer sInstance = new Tracer(DEFAULT_CAPACITY);
+
+    private volatile boolean mEnabled;
+    private final int mMask;
+    private final String[] mNames;
+    private final long[] mNanos;
+    private final byte[] mPhases;
+    private final Thread[] mThreads;
+    private final AtomicLongArray mWritten; // number of the event in the slot plus one, 0 while it is being written
+    private final AtomicLong mNext = new AtomicLong();
+
+    public static Tracer getInstance() {
+        return sInstance;
+    }
+
+    /**
+     * @param capacity number of events kept, rounded up to a power of two
+     */
+    Tracer(int capacity) {
+        if (capacity <= 0)
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        int size = Integer.highestOneBit(capacity);
+        if (size < capacity)
+            size <<= 1;
+        mMask = size - 1;
+        mNames = new String[size];
+        mNanos = new long[size];
+        mPhases = new byte[size];
+        mThreads = new Thread[size];
+        mWritten = new AtomicLongArray(size);
+    }
+
+    public boolean isEnabled() {
+        return mEnabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        mEnabled = enabled;
+    }
+
+    public int getCapacity() {
+        return mMask + 1;
+    }
+
+    /**
+     * Opens a section on the current thread.
+     * @param name constant string, it is kept until the event is overwritten
+     */
+    public void begin(String name) {
+        if (mEnabled)
+            record(PHASE_BEGIN, name, System.nanoTime());
+    }
+
+    /**
+     * Opens a section which started earlier, e.g. before tracing could be enabled.
+     * @param startNanos {@link System#nanoTime()} when the section started
+     */
+    public void begin(String name, long startNanos) {
+        if (mEnabled)
+            record(PHASE_BEGIN, name, startNanos);
+    }
+
+    /**
+     * Closes the section opened last on the current thread.
+     */
+    public void end() {
+        if (mEnabled)
+            record(PHASE_END, null, System.nanoTime());
+    }
+
+    private void record(byte phase, String name, long nanos) {
+        long number = mNext.getAndIncrement();
+        int slot = (int) number & mMask;
+        mWritten.set(slot, 0);
+        mNames[slot] = name;
+        mNanos[slot] = nanos;
+        mPhases[slot] = phase;
+        mThreads[slot] = Thread.currentThread();
+        mWritten.lazySet(slot, number + 1);
+    }
+
+    /**
+     * @return number of events recorded since the tracer was created or cleared, including overwritten ones
+     */
+    public long getEventCount() {
+        return mNext.get();
+    }
+
+    /**
+     * Forgets all events, should not be called while sections are recorded.
+     */
+    public void clear() {
+        for (int i = 0; i <= mMask; i++) {
+            mWritten.set(i, 0);
+            mNames[i] = null;
+            mThreads[i] = null;
+        }
+        mNext.set(0);
+    }
+
+    /**
+     * Writes the events in the buffer as a Chrome trace, oldest first. Ends of sections whose
+     * beginning was already overwritten are left out, sections still open have no end.
+     * @param processId pid of the trace, e.g. android.os.Process.myPid()
+     */
+    public void writeChromeTrace(Writer out, int processId) throws IOException {
+        long next = mNext.get();
+        long first = Math.max(0, next - getCapacity());
+        Map<Thread, Integer> depths = new HashMap<>();
+        Map<Thread, Boolean> named = new HashMap<>();
+        out.write("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[");
+        boolean separate = false;
+        for (long number = first; number < next; number++) {
+            int slot = (int) number & mMask;
+            if (mWritten.get(slot) != number + 1)
+                continue; // being written or already overwritten
+            String name = mNames[slot];
+            long nanos = mNanos[slot];
+            byte phase = mPhases[slot];
+            Thread thread = mThreads[slot];
+            if (mWritten.get(slot) != number + 1 || thread == null)
+                continue; // overwritten while it was read
+            Integer depth = depths.get(thread);
+            int d = depth == null ? 0 : depth;
+            if (phase == PHASE_END) {
+                if (d == 0)
+                    continue;
+                depths.put(thread, d - 1);
+            } else {
+                depths.put(thread, d + 1);
+            }
+            if (!named.containsKey(thread)) {
+                named.put(thread, Boolean.TRUE);
+                separate = writeSeparator(out, separate);
+                out.write("{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":" + processId + ",\"tid\":" + thread.getId()
+                        + ",\"args\":{\"name\":");
+                writeString(out, thread.getName());
+                out.write("}}");
+            }
+            separate = writeSeparator(out, separate);
+            out.write("{\"ph\":\"");
+            out.write((char) phase);
+            out.write("\",\"ts\":");
+            writeMicros(out, nanos);
+            out.write(",\"pid\":" + processId + ",\"tid\":" + thread.getId());
+            if (name != null) {
+                out.write(",\"name\":");
+                writeString(out, name);
+            }
+            out.write('}');
+        }
+        out.write("]}\n");
+        out.flush();
+    }
+
+    /**
+     * Saves the trace, the file is replaced only after it has been written completely.
+     */
+    public void writeChromeTrace(File file, int processId) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(temp), "UTF-8"));
+        try {
+            writeChromeTrace(out, processId);
+        } finally {
+            out.close();
+        }
+        if (!temp.renameTo(file))
+            throw new IOException("Cannot replace " + file);
+    }
+
+    private static boolean writeSeparator(Writer out, boolean separate) throws IOException {
+        if (separate)
+            out.write(",\n");
+        else
+            out.write('\n');
+        return true;
+    }
+
+    // Microseconds with the nanoseconds as fraction, as the format expects
+    private static void writeMicros(Writer out, long nanos) throws IOException {
+        if (nanos < 0) {
+            out.write('-');
+            nanos = -nanos;
+        }
+        out.write(Long.toString(nanos / 1000));
+        long fraction = nanos % 1000;
+        out.write('.');
+        if (fraction < 100)
+            out.write('0');
+        if (fraction < 10)
+            out.write('0');
+        out.write(Long.toString(fraction));
+    }
+
+    private static void writeString(Writer out, String value) throws IOException {
+        out.write('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                out.write('\\');
+                out.write(c);
+            } else if (c < 0x20) {
+                String hex = Integer.toHexString(c);
+                out.write("\\u");
+                for (int j = hex.length(); j < 4; j++)
+                    out.write('0');
+                out.write(hex);
+            } else {
+                out.write(c);
+            }
+        }
+        out.write('"');
+    }
+}
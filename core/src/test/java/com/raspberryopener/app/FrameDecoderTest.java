@@ -0,0 +1,134 @@
+package com.raspberryopener.app;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+    private final List<String> frames = new ArrayList<>();
+    private final FrameDecoder.FrameListener collector = new FrameDecoder.FrameListener() {
+        @Override
+        public void onFrame(byte[] buffer, int offset, int length) {
+            frames.add(new String(buffer, offset, length));
+        }
+    };
+    private FrameDecoder decoder;
+
+    @Before
+    public void setUp() throws Exception {
+        decoder = new FrameDecoder(64);
+    }
+
+    private void feed(String data) {
+        byte[] bytes = data.getBytes();
+        decoder.feed(bytes, 0, bytes.length, collector);
+    }
+
+    @Test
+    public void singleMessage_isEmitted() throws Exception {
+        feed("gateIsOpened\n");
+        assertEquals(1, frames.size());
+        assertEquals("gateIsOpened", frames.get(0));
+        assertEquals(0, decoder.getPendingBytes());
+    }
+
+    @Test
+    public void coalescedMessages_areEmittedSeparately() throws Exception {
+        feed("openingGate\ngateIsOpened\n");
+        assertEquals(2, frames.size());
+        assertEquals("openingGate", frames.get(0));
+        assertEquals("gateIsOpened", frames.get(1));
+    }
+
+    @Test
+    public void splitMessage_isReassembled() throws Exception {
+        feed("loginSta");
+        assertTrue(frames.isEmpty());
+        assertEquals(8, decoder.getPendingBytes());
+        feed("tus=1&gateIs");
+        assertTrue(frames.isEmpty());
+        feed("Closed\nopen");
+        assertEquals(1, frames.size());
+        assertEquals("loginStatus=1&gateIsClosed", frames.get(0));
+        feed("ingGate\n");
+        assertEquals(2, frames.size());
+        assertEquals("openingGate", frames.get(1));
+    }
+
+    @Test
+    public void byteByByte_isReassembled() throws Exception {
+        byte[] bytes = "obstacle\nobstacleRemoved&gateIsOpened\n".getBytes();
+        for (int i = 0; i < bytes.length; i++)
+            decoder.feed(bytes, i, 1, collector);
+        assertEquals(2, frames.size());
+        assertEquals("obstacle", frames.get(0));
+        assertEquals("obstacleRemoved&gateIsOpened", frames.get(1));
+    }
+
+    @Test
+    public void longStream_isFramedForEveryReadSize() throws Exception {
+        String[] messages = {"loginStatus=1&gateIsClosed", "openingGate", "gateIsOpened", "closingGate",
+                "obstacle", "obstacleRemoved&gateIsOpened", "gateIsClosed"};
+        StringBuilder sb = new StringBuilder();
+        int count = 0;
+        while (sb.length() < 64 * 1024)
+            sb.append(messages[count++ % messages.length]).append('\n');
+        byte[] stream = sb.toString().getBytes();
+        decoder = new FrameDecoder();
+        // Reads which split the messages, coalesce a few and coalesce many of them
+        for (int chunk : new int[] {7, 64, 1024}) {
+            frames.clear();
+            for (int offset = 0; offset < stream.length; offset += chunk)
+                decoder.feed(stream, offset, Math.min(chunk, stream.length - offset), collector);
+            assertEquals(count, frames.size());
+            for (int i = 0; i < count; i++)
+                assertEquals(messages[i % messages.length], frames.get(i));
+            assertEquals(0, decoder.getPendingBytes());
+        }
+    }
+
+    @Test
+    public void whitespaceAndEmptyLines_areSkipped() throws Exception {
+        feed("\r\n  gateIsClosed \r\n\n\0closingGate\r\n");
+        assertEquals(2, frames.size());
+        assertEquals("gateIsClosed", frames.get(0));
+        assertEquals("closingGate", frames.get(1));
+    }
+
+    @Test
+    public void messagesWrappingRingEnd_areReassembled() throws Exception {
+        decoder = new FrameDecoder(16);
+        for (int i = 0; i < 100; i++) {
+            feed("gateIs");
+            feed("Opened");
+            feed("\nxx");
+            feed("\n");
+        }
+        assertEquals(200, frames.size());
+        for (int i = 0; i < frames.size(); i += 2) {
+            assertEquals("gateIsOpened", frames.get(i));
+            assertEquals("xx", frames.get(i + 1));
+        }
+    }
+
+    @Test
+    public void tooLongMessage_isDroppedAndDecoderResynchronizes() throws Exception {
+        decoder = new FrameDecoder(8);
+        feed("0123456");
+        feed("789abcdef");
+        feed("ghij\nobstacle\n");
+        assertEquals(1, frames.size());
+        assertEquals("obstacle", frames.get(0));
+        assertEquals(1, decoder.getDroppedFrames());
+    }
+
+    @Test
+    public void capacity_isRoundedToPowerOfTwo() throws Exception {
+        assertEquals(16, new FrameDecoder(9).getCapacity());
+        assertEquals(1024, new FrameDecoder().getCapacity());
+    }
+}
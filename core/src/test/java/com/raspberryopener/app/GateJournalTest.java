@@ -0,0 +1,175 @@
+package com.raspberryopener.app;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class GateJournalTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    // Records as {number, time, from, to}
+    private static class Collector implements GateJournal.Visitor {
+        final List<long[]> events = new ArrayList<>();
+
+        @Override
+        public void onEvent(long number, long timeMillis, int fromState, int toState) {
+            events.add(new long[] {number, timeMillis, fromState, toState});
+        }
+    }
+
+    private File file() {
+        return new File(folder.getRoot(), GateJournal.FILE_NAME);
+    }
+
+    @Test
+    public void appendedEvents_areReadInOrder() throws Exception {
+        GateJournal journal = GateJournal.open(file(), 64);
+        journal.append(1000, ServiceStates.STATE_GATE_CLOSED, ServiceStates.STATE_GATE_OPENING);
+        journal.append(2000, ServiceStates.STATE_GATE_OPENING, ServiceStates.STATE_GATE_OPENED);
+        Collector collector = new Collector();
+        assertEquals(2, journal.read(0, collector));
+        assertEquals(2, collector.events.size());
+        assertArrayEquals(new long[] {0, 1000, ServiceStates.STATE_GATE_CLOSED, ServiceStates.STATE_GATE_OPENING},
+                collector.events.get(0));
+        assertArrayEquals(new long[] {1, 2000, ServiceStates.STATE_GATE_OPENING, ServiceStates.STATE_GATE_OPENED},
+                collector.events.get(1));
+        // Reading on from the returned number gives only new events
+        assertEquals(2, journal.read(2, new Collector()));
+        journal.close();
+    }
+
+    @Test
+    public void events_surviveReopening() throws Exception {
+        GateJournal journal = GateJournal.open(file(), 64);
+        for (int i = 0; i < 10; i++)
+            journal.append(i * 1000, i, i + 1);
+        journal.close();
+
+        journal = GateJournal.open(file(), 64);
+        assertEquals(10, journal.getEventCount());
+        journal.append(10000, 10, 11);
+        Collector collector = new Collector();
+        journal.read(0, collector);
+        assertEquals(11, collector.events.size());
+        for (int i = 0; i < 11; i++)
+            assertEquals(i * 1000, collector.events.get(i)[1]);
+        journal.close();
+    }
+
+    @Test
+    public void fullRing_overwritesOldest() throws Exception {
+        GateJournal journal = GateJournal.open(file(), 50); // rounded up to 64
+        assertEquals(64, journal.getCapacity());
+        for (int i = 0; i < 200; i++)
+            journal.append(i, 0, 1);
+        assertEquals(136, journal.getFirstNumber());
+        Collector collector = new Collector();
+        assertEquals(200, journal.read(0, collector));
+        assertEquals(64, collector.events.size());
+        assertEquals(136, collector.events.get(0)[0]);
+        journal.close();
+
+        // The newest records are found again after a restart
+        journal = GateJournal.open(file(), 64);
+        assertEquals(200, journal.getEventCount());
+        collector = new Collector();
+        journal.read(0, collector);
+        assertEquals(64, collector.events.size());
+        assertEquals(136, collector.events.get(0)[1]);
+        journal.close();
+    }
+
+    @Test
+    public void tornRecord_isSkipped() throws Exception {
+        GateJournal journal = GateJournal.open(file(), 64);
+        for (int i = 0; i < 5; i++)
+            journal.append(i * 1000, 0, i);
+        journal.close();
+        // Damage record 2 as a crash in the middle of writing it could
+        RandomAccessFile raw = new RandomAccessFile(file(), "rw");
+        try {
+            raw.seek(16 + 2 * GateJournal.RECORD_SIZE + 1);
+            raw.write(0x55);
+        } finally {
+            raw.close();
+        }
+
+        journal = GateJournal.open(file(), 64);
+        Collector collector = new Collector();
+        assertEquals(5, journal.read(0, collector));
+        assertEquals(4, collector.events.size());
+        for (long[] event : collector.events)
+            assertNotEquals(2, event[0]);
+        journal.close();
+    }
+
+    @Test
+    public void otherCapacity_startsAnew() throws Exception {
+        GateJournal journal = GateJournal.open(file(), 64);
+        journal.append(1000, 0, 1);
+        journal.close();
+        journal = GateJournal.open(file(), 128);
+        assertEquals(0, journal.getEventCount());
+        journal.close();
+    }
+
+    @Test
+    public void query_findsTimeRange() throws Exception {
+        GateJournal journal = GateJournal.open(file(), 1024);
+        for (int i = 0; i < 1000; i++)
+            journal.append(i * 10, 0, 1);
+        Collector collector = new Collector();
+        assertEquals(50, journal.query(2000, 2500, collector));
+        assertEquals(2000, collector.events.get(0)[1]);
+        assertEquals(2490, collector.events.get(49)[1]);
+        assertEquals(0, journal.query(20000, 30000, new Collector()));
+        assertEquals(1000, journal.query(Long.MIN_VALUE, Long.MAX_VALUE, new Collector()));
+        journal.close();
+    }
+
+    @Test
+    public void concurrentAppends_areAllKept() throws Exception {
+        final GateJournal journal = GateJournal.open(file(), 65536);
+        final int threads = 4;
+        final int perThread = 10000;
+        final CountDownLatch start = new CountDownLatch(1);
+        Thread[] writers = new Thread[threads];
+        for (int t = 0; t < threads; t++) {
+            final int state = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for (int i = 0; i < perThread; i++)
+                        journal.append(i, state, state);
+                }
+            });
+            writers[t].start();
+        }
+        start.countDown();
+        for (Thread writer : writers)
+            writer.join();
+
+        Collector collector = new Collector();
+        assertEquals(threads * perThread, journal.read(0, collector));
+        int[] counts = new int[threads];
+        for (long[] event : collector.events)
+            counts[(int) event[2]]++;
+        for (int count : counts)
+            assertEquals(perThread, count);
+        journal.close();
+    }
+}
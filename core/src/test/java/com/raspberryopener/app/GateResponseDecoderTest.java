@@ -0,0 +1,81 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class GateResponseDecoderTest {
+    static final String[] MESSAGES = {
+            "loginStatus=1", "loginStatus=1&gateIsOpened", "loginStatus=1&gateIsClosed",
+            "loginStatus=-1", "loginStatus=-2", "wrongUserData", "openingGate", "closingGate",
+            "gateIsOpened", "gateIsClosed", "obstacle", "obstacleRemoved",
+            "obstacleRemoved&gateIsOpened", "obstacleRemoved&gateIsClosed"
+    };
+
+    private static int decode(String message) {
+        byte[] bytes = ("xx" + message + "yy").getBytes();
+        return GateResponseDecoder.decode(bytes, 2, bytes.length - 4);
+    }
+
+    @Test
+    public void knownMessages_matchLegacyParser() throws Exception {
+        for (String message : MESSAGES)
+            assertEquals(message, LegacyResponseParser.parse(message), decode(message));
+    }
+
+    @Test
+    public void loginMessages_areFlagged() throws Exception {
+        int event = decode("loginStatus=1&gateIsClosed");
+        assertTrue(GateResponseDecoder.isLoggedIn(event));
+        assertEquals(ServiceStates.STATE_GATE_CLOSED, GateResponseDecoder.stateOf(event));
+
+        event = decode("gateIsClosed");
+        assertFalse(GateResponseDecoder.isLoggedIn(event));
+        assertEquals(ServiceStates.STATE_GATE_CLOSED, GateResponseDecoder.stateOf(event));
+
+        assertFalse(GateResponseDecoder.isLoggedIn(decode("loginStatus=-1")));
+    }
+
+    @Test
+    public void unknownObstacleRemovedSuffix_fallsBackToObstacleRemoved() throws Exception {
+        assertEquals(ServiceStates.STATE_OBSTACLE_REMOVED, decode("obstacleRemoved&gateIsMoving"));
+    }
+
+    @Test
+    public void unknownMessages_areIgnored() throws Exception {
+        assertEquals(GateResponseDecoder.NO_EVENT, decode("loginStatus=3"));
+        assertEquals(GateResponseDecoder.NO_EVENT, decode("loginStatus=abc"));
+        assertEquals(GateResponseDecoder.NO_EVENT, decode("gateIsOpene"));
+        assertEquals(GateResponseDecoder.NO_EVENT, decode("obstacleRemove"));
+        assertEquals(GateResponseDecoder.NO_EVENT, decode(""));
+        assertFalse(GateResponseDecoder.isLoggedIn(GateResponseDecoder.NO_EVENT));
+    }
+
+    @Test
+    public void sessionMessages_haveNoState() throws Exception {
+        int event = decode("session=abc&ttl=60");
+        assertEquals(GateResponseDecoder.EVENT_SESSION, event);
+        assertFalse(GateResponseDecoder.hasState(event));
+        assertFalse(GateResponseDecoder.isLoggedIn(event));
+        event = decode("sessionExpired");
+        assertEquals(GateResponseDecoder.EVENT_SESSION_EXPIRED, event);
+        assertFalse(GateResponseDecoder.hasState(event));
+        assertTrue(GateResponseDecoder.hasState(decode("gateIsOpened")));
+        assertFalse(GateResponseDecoder.hasState(decode("session")));
+    }
+
+    @Test
+    public void pongMessages_carrySequence() throws Exception {
+        int event = decode("pong=42");
+        assertEquals(GateResponseDecoder.EVENT_PONG, event);
+        assertFalse(GateResponseDecoder.hasState(event));
+        assertFalse(GateResponseDecoder.isLoggedIn(event));
+
+        byte[] bytes = ("xx" + new String(GateCommands.ping(1234567)).replace("ping", "pong") + "yy").getBytes();
+        assertEquals(1234567, GateResponseDecoder.pongSequence(bytes, 2, bytes.length - 4));
+        bytes = "pong=".getBytes();
+        assertEquals(GateResponseDecoder.NO_SEQUENCE, GateResponseDecoder.pongSequence(bytes, 0, bytes.length));
+        bytes = "pong=12a".getBytes();
+        assertEquals(GateResponseDecoder.NO_SEQUENCE, GateResponseDecoder.pongSequence(bytes, 0, bytes.length));
+    }
+}
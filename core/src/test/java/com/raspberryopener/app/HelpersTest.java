@@ -0,0 +1,64 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.*;
+
+public class HelpersTest {
+
+    @Test
+    public void parseAddress_ignoresCaseAndSeparator() throws Exception {
+        long expected = 0x001122AABBCCL;
+        assertEquals(expected, Helpers.parseAddress("00:11:22:AA:BB:CC"));
+        assertEquals(expected, Helpers.parseAddress("00:11:22:aa:bb:cc"));
+        assertEquals(expected, Helpers.parseAddress("00-11-22-aA-Bb-cC"));
+        assertEquals(0xFFFFFFFFFFFFL, Helpers.parseAddress("FF:FF:FF:FF:FF:FF"));
+        assertEquals(0, Helpers.parseAddress("00:00:00:00:00:00"));
+    }
+
+    @Test
+    public void parseAddress_rejectsMalformed() throws Exception {
+        String[] malformed = {null, "", "00:11:22:AA:BB", "00:11:22:AA:BB:CC:", "0011:22:AA:BB:CC:",
+                "00:11:22:AA:BB:CG", "00.11.22.AA.BB.CC", " 00:11:22:AA:BB:C"};
+        for (String address : malformed)
+            assertEquals(address, Helpers.NO_ADDRESS, Helpers.parseAddress(address));
+    }
+
+    @Test
+    public void formatAddress_isParsedBack() throws Exception {
+        assertEquals("00:11:22:AA:BB:CC", Helpers.formatAddress(0x001122AABBCCL));
+        assertEquals("FF:FF:FF:FF:FF:FF", Helpers.formatAddress(Helpers.MAX_ADDRESS));
+        long address = 0xA45E600F129BL;
+        assertEquals(address, Helpers.parseAddress(Helpers.formatAddress(address)));
+    }
+
+    @Test
+    public void makeUuid_readsEveryDigit() throws Exception {
+        UUID serialPort = Helpers.makeUuid("00001101-0000-1000-8000-00805F9B34FB");
+        assertEquals(UUID.fromString("00001101-0000-1000-8000-00805F9B34FB"), serialPort);
+        assertEquals("00001101-0000-1000-8000-00805f9b34fb", serialPort.toString());
+        UUID uuid = UUID.fromString("8ce255c0-200a-11e0-ac64-0800200c9a66");
+        assertEquals(uuid, Helpers.makeUuid(uuid.toString()));
+        assertEquals(uuid, Helpers.makeUuid(uuid.toString().toUpperCase()));
+        UUID max = new UUID(-1, -1);
+        assertEquals(max, Helpers.makeUuid(max.toString()));
+    }
+
+    @Test
+    public void isUuid_acceptsOnlyWhatMakeUuidParses() throws Exception {
+        assertTrue(Helpers.isUuid("00001101-0000-1000-8000-00805F9B34FB"));
+        assertTrue(Helpers.isUuid("00001101-0000-1000-8000-00805f9b34fb"));
+        String[] malformed = {null, "", "wrong", "00001101-0000-1000-8000-00805F9B34F",
+                "0000110G-0000-1000-8000-00805F9B34FB", "00001101-0000-1000-8000-00805F9B34F ",
+                "00001101-0000-1000-8000-00805F9B34-B", "00001101\u20130000\u20131000\u20138000\u201300805F9B34FB",
+                "00001101 0000 1000 8000 00805F9B34FB", "000011010-000-1000-8000-00805F9B34FB"};
+        for (String uuid : malformed)
+            assertFalse(uuid, Helpers.isUuid(uuid));
+        // What isUuid() accepts is also what UUID.fromString() reads
+        UUID uuid = UUID.randomUUID();
+        assertTrue(Helpers.isUuid(uuid.toString()));
+        assertEquals(uuid, Helpers.makeUuid(uuid.toString()));
+    }
+}
@@ -0,0 +1,51 @@
+package com.raspberryopener.app;
+
+/**
+ * The if/else chain ActivityMain used to interpret gate messages with, kept as the
+ * reference for {@link GateResponseDecoder} tests and benchmarks. Returns the
+ * resulting state or -1 when the message is ignored, login is signalled through
+ * {@link GateResponseDecoder#FLAG_LOGGED_IN} like the decoder does.
+ */
+class LegacyResponseParser {
+    static int parse(String readStr) {
+        if (readStr.startsWith("loginStatus=")) {
+            String dataGateState = readStr.substring(12);
+            if (dataGateState.equals("1&gateIsOpened")) {
+                return ServiceStates.STATE_GATE_OPENED | GateResponseDecoder.FLAG_LOGGED_IN;
+            } else if (dataGateState.equals("1&gateIsClosed")) {
+                return ServiceStates.STATE_GATE_CLOSED | GateResponseDecoder.FLAG_LOGGED_IN;
+            } else {
+                Integer loginStatus = Integer.parseInt(dataGateState);
+                if (loginStatus == 1) {
+                    return ServiceStates.STATE_LOGGED_IN | GateResponseDecoder.FLAG_LOGGED_IN;
+                } else if (loginStatus == -1) {
+                    return ServiceStates.STATE_WRONG_PASSWORD;
+                } else if (loginStatus == -2) {
+                    return ServiceStates.STATE_WRONG_USERNAME;
+                }
+            }
+        } else if (readStr.equals("wrongUserData")) {
+            return ServiceStates.STATE_WRONG_DATA;
+        } else if (readStr.equals("openingGate")) {
+            return ServiceStates.STATE_GATE_OPENING;
+        } else if (readStr.equals("closingGate")) {
+            return ServiceStates.STATE_GATE_CLOSING;
+        } else if (readStr.equals("gateIsOpened")) {
+            return ServiceStates.STATE_GATE_OPENED;
+        } else if (readStr.equals("gateIsClosed")) {
+            return ServiceStates.STATE_GATE_CLOSED;
+        } else if (readStr.equals("obstacle")) {
+            return ServiceStates.STATE_OBSTACLE;
+        } else if (readStr.startsWith("obstacleRemoved")) {
+            String dataGateState = readStr.substring(15);
+            if (dataGateState.equals("&gateIsOpened")) {
+                return ServiceStates.STATE_OBSTACLE_REMOVED_GATE_OPENED;
+            } else if (dataGateState.equals("&gateIsClosed")) {
+                return ServiceStates.STATE_OBSTACLE_REMOVED_GATE_CLOSED;
+            } else {
+                return ServiceStates.STATE_OBSTACLE_REMOVED;
+            }
+        }
+        return -1;
+    }
+}
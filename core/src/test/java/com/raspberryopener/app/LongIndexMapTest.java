@@ -0,0 +1,58 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class LongIndexMapTest {
+
+    @Test
+    public void putGetRemove_isConsistent() throws Exception {
+        LongIndexMap map = new LongIndexMap();
+        map.put(0x001122AABBCCL, 1);
+        map.put(0L, 2);
+        map.put(0x001122AABBCCL, 3);
+        assertEquals(2, map.size());
+        assertEquals(3, map.get(0x001122AABBCCL));
+        assertEquals(2, map.get(0L));
+        assertEquals(LongIndexMap.NOT_FOUND, map.get(5L));
+        assertEquals(LongIndexMap.NOT_FOUND, map.get(-1L));
+        assertEquals(3, map.remove(0x001122AABBCCL));
+        assertEquals(LongIndexMap.NOT_FOUND, map.remove(0x001122AABBCCL));
+        assertEquals(1, map.size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void negativeKey_isRejected() throws Exception {
+        new LongIndexMap().put(-1, 0);
+    }
+
+    @Test
+    public void randomOperations_matchHashMap() throws Exception {
+        // Few distinct keys of one vendor prefix, so that probe sequences collide and removals shift them
+        Random random = new Random(11);
+        LongIndexMap map = new LongIndexMap(4);
+        Map<Long, Integer> expected = new HashMap<>();
+        for (int i = 0; i < 200000; i++) {
+            long key = 0xA45E60000000L | random.nextInt(300);
+            int operation = random.nextInt(3);
+            if (operation == 0) {
+                map.put(key, i);
+                expected.put(key, i);
+            } else if (operation == 1) {
+                Integer value = expected.remove(key);
+                assertEquals(value == null ? LongIndexMap.NOT_FOUND : value, map.remove(key));
+            } else {
+                Integer value = expected.get(key);
+                assertEquals(value == null ? LongIndexMap.NOT_FOUND : value, map.get(key));
+            }
+            assertEquals(expected.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> entry : expected.entrySet())
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+    }
+}
@@ -0,0 +1,108 @@
+package com.raspberryopener.app;
+
+import org.junit.Test;
+
+import java.io.StringWriter;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class TracerTest {
+
+    private static String export(Tracer tracer) throws Exception {
+        StringWriter out = new StringWriter();
+        tracer.writeChromeTrace(out, 42);
+        return out.toString();
+    }
+
+    private static int count(String text, String part) {
+        int count = 0;
+        for (int i = text.indexOf(part); i >= 0; i = text.indexOf(part, i + 1))
+            count++;
+        return count;
+    }
+
+    @Test
+    public void disabledTracer_recordsNothing() throws Exception {
+        Tracer tracer = new Tracer(16);
+        tracer.begin("onCreate");
+        tracer.end();
+        assertEquals(0, tracer.getEventCount());
+        assertEquals("{\"displayTimeUnit\":\"ms\",\"traceEvents\":[]}\n", export(tracer));
+    }
+
+    @Test
+    public void nestedSections_areExportedInOrder() throws Exception {
+        Tracer tracer = new Tracer(16);
+        tracer.setEnabled(true);
+        long started = System.nanoTime();
+        tracer.begin("onCreate", started);
+        tracer.begin("registerReceiver");
+        tracer.end();
+        tracer.end();
+        String trace = export(tracer);
+
+        assertTrue(trace.startsWith("{\"displayTimeUnit\":\"ms\",\"traceEvents\":["));
+        assertTrue(trace.endsWith("]}\n"));
+        assertEquals(1, count(trace, "\"ph\":\"M\""));
+        assertEquals(2, count(trace, "\"ph\":\"B\""));
+        assertEquals(2, count(trace, "\"ph\":\"E\""));
+        assertTrue(trace.indexOf("\"name\":\"onCreate\"") < trace.indexOf("\"name\":\"registerReceiver\""));
+        assertTrue(trace.contains("\"ts\":" + started / 1000 + "."));
+        assertTrue(trace.contains("\"pid\":42,\"tid\":" + Thread.currentThread().getId()));
+    }
+
+    @Test
+    public void fullBuffer_dropsEndsOfOverwrittenSections() throws Exception {
+        Tracer tracer = new Tracer(6);
+        assertEquals(8, tracer.getCapacity());
+        tracer.setEnabled(true);
+        tracer.begin("outer");
+        for (int i = 0; i < 5; i++) {
+            tracer.begin("inner");
+            tracer.end();
+        }
+        tracer.end();
+        assertEquals(12, tracer.getEventCount());
+
+        // The last 8 events are kept: the end of an inner section, three inner sections and the end of outer
+        String trace = export(tracer);
+        assertFalse(trace.contains("outer"));
+        assertEquals(3, count(trace, "\"ph\":\"B\""));
+        assertEquals(3, count(trace, "\"ph\":\"E\""));
+    }
+
+    @Test
+    public void names_areEscaped() throws Exception {
+        Tracer tracer = new Tracer(4);
+        tracer.setEnabled(true);
+        tracer.begin("say \"hi\"\\\n");
+        tracer.end();
+        assertTrue(export(tracer).contains("\"name\":\"say \\\"hi\\\"\\\\\\u000a\""));
+    }
+
+    @Test
+    public void threads_getTheirOwnTracks() throws Exception {
+        final Tracer tracer = new Tracer(1024);
+        tracer.setEnabled(true);
+        final CountDownLatch done = new CountDownLatch(4);
+        for (int t = 0; t < 4; t++) {
+            new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < 50; i++) {
+                        tracer.begin("work");
+                        tracer.end();
+                    }
+                    done.countDown();
+                }
+            }, "Worker " + t).start();
+        }
+        done.await();
+        String trace = export(tracer);
+        assertEquals(4, count(trace, "\"ph\":\"M\""));
+        assertEquals(200, count(trace, "\"ph\":\"B\""));
+        assertEquals(200, count(trace, "\"ph\":\"E\""));
+        assertTrue(trace.contains("\"args\":{\"name\":\"Worker 3\"}"));
+    }
+}
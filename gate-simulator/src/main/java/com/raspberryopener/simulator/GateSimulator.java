@@ -0,0 +1,482 @@
+package com.raspberryopener.simulator;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in for the Raspberry Pi gate server which speaks the protocol of the app over TCP, so
+ * that the app and load tests can run against it on a desk.
+ * <p>
+ * Like the gate, it takes every read as one command, split further on line breaks, and answers
+ * with messages ending in a line break. Responses can be delayed, split into parts and lost as
+ * configured in {@link SimulatorConfig}; responses to one client always arrive in order. Every
+ * client gets a thread which reads its commands, delayed responses and the gate motor run on one
+ * timer thread.
+ */
+public class GateSimulator {
+    private final String TAG = "GateSimulator";
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    // Commands in the order they are looked for when commands arrived together
+    private static final String[] COMMAND_NAMES = {"login=", "resume=", "ping=", "openGate", "closeGate"};
+
+    private final SimulatorConfig mConfig;
+    private final Random mRandom;
+    private final ScheduledThreadPoolExecutor mTimer;
+    private final SimulatedGate mSharedGate;
+    private final Set<ConnectionThread> mConnections =
+            Collections.newSetFromMap(new ConcurrentHashMap<ConnectionThread, Boolean>());
+    private AcceptThread mAcceptThread;
+    private volatile boolean mStopped;
+
+    private final AtomicLong mConnectionCount = new AtomicLong();
+    private final AtomicLong mCommandCount = new AtomicLong();
+    private final AtomicLong mResponseCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+    private final AtomicLong mLoginCount = new AtomicLong();
+    private final AtomicLong mFailedLoginCount = new AtomicLong();
+
+    public GateSimulator(SimulatorConfig config) {
+        mConfig = config;
+        mRandom = new Random(config.getSeed());
+        mTimer = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "GateSimulator timer");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mSharedGate = config.isSharedGate() ? new SimulatedGate(config, mTimer, mRandom) : null;
+    }
+
+    /**
+     * Starts accepting clients on the loopback interface.
+     * @param port 0 for any free port
+     * @return port the simulator listens on
+     */
+    public synchronized int start(int port) throws IOException {
+        return start(new InetSocketAddress(InetAddress.getLoopbackAddress(), port));
+    }
+
+    public synchronized int start(InetSocketAddress address) throws IOException {
+        if (mAcceptThread != null)
+            throw new IllegalStateException("Simulator already started");
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(address, 50);
+        mAcceptThread = new AcceptThread(serverSocket);
+        mAcceptThread.start();
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized int getPort() {
+        return mAcceptThread == null ? -1 : mAcceptThread.mmServerSocket.getLocalPort();
+    }
+
+    /**
+     * Closes every connection and stops accepting new ones.
+     */
+    public void stop() throws InterruptedException {
+        AcceptThread acceptThread;
+        synchronized (this) {
+            mStopped = true;
+            acceptThread = mAcceptThread;
+        }
+        if (acceptThread != null) {
+            acceptThread.cancel();
+            acceptThread.join(1000);
+        }
+        dropConnections();
+        mTimer.shutdownNow();
+        mTimer.awaitTermination(1, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Closes every open connection, like a gate which lost power; new clients are still accepted.
+     */
+    public void dropConnections() throws InterruptedException {
+        List<ConnectionThread> connections = new ArrayList<>(mConnections);
+        for (ConnectionThread connection : connections)
+            connection.cancel();
+        for (ConnectionThread connection : connections)
+            connection.join(1000);
+    }
+
+    public SimulatorConfig getConfig() {
+        return mConfig;
+    }
+
+    public int getActiveConnections() {
+        return mConnections.size();
+    }
+
+    public long getConnectionCount() {
+        return mConnectionCount.get();
+    }
+
+    public long getCommandCount() {
+        return mCommandCount.get();
+    }
+
+    public long getResponseCount() {
+        return mResponseCount.get();
+    }
+
+    public long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+
+    public long getLoginCount() {
+        return mLoginCount.get();
+    }
+
+    public long getFailedLoginCount() {
+        return mFailedLoginCount.get();
+    }
+
+    /**
+     * @return state of the shared gate, see {@link SimulatedGate}; -1 if every client has its own
+     */
+    int getGateState() {
+        return mSharedGate == null ? -1 : mSharedGate.getState();
+    }
+
+    /**
+     * Splits what one read delivered into commands: on line breaks and, unless the framing is
+     * strict, also where a known command name starts, as commands written quickly one after
+     * another may arrive in one read.
+     */
+    List<String> splitCommands(String received) {
+        List<String> commands = new ArrayList<>();
+        for (String line : received.split("[\\r\\n]+")) {
+            line = line.trim();
+            if (line.isEmpty())
+                continue;
+            if (mConfig.isStrictFraming()) {
+                commands.add(line);
+                continue;
+            }
+            int start = 0;
+            while (start < line.length()) {
+                int next = nextCommandStart(line, start + 1);
+                commands.add(line.substring(start, next));
+                start = next;
+            }
+        }
+        return commands;
+    }
+
+    private static int nextCommandStart(String line, int from) {
+        int next = line.length();
+        for (String name : COMMAND_NAMES) {
+            int index = line.indexOf(name, from);
+            if (index >= 0 && index < next)
+                next = index;
+        }
+        return next;
+    }
+
+    private class AcceptThread extends Thread {
+        private final ServerSocket mmServerSocket;
+
+        AcceptThread(ServerSocket serverSocket) {
+            super("GateSimulator accept");
+            setDaemon(true);
+            mmServerSocket = serverSocket;
+        }
+
+        public void run() {
+            while (!mStopped) {
+                Socket socket;
+                try {
+                    socket = mmServerSocket.accept();
+                } catch (IOException e) {
+                    if (!mStopped)
+                        System.err.println(TAG + ": accept failed " + e);
+                    return;
+                }
+                try {
+                    socket.setTcpNoDelay(true);
+                    ConnectionThread connection = new ConnectionThread(socket, mConnectionCount.incrementAndGet());
+                    mConnections.add(connection);
+                    connection.start();
+                } catch (IOException e) {
+                    System.err.println(TAG + ": cannot serve client " + e);
+                    closeQuietly(socket);
+                }
+            }
+        }
+
+        void cancel() {
+            try {
+                mmServerSocket.close();
+            } catch (IOException e) {
+                // Closing anyway
+            }
+        }
+    }
+
+    private class ConnectionThread extends Thread implements SimulatedGate.Client {
+        private final Socket mmSocket;
+        private final InputStream mmInStream;
+        private final OutputStream mmOutStream;
+        private final SimulatedGate mmGate;
+        private final boolean mmDirect;
+        private boolean mmLoggedIn;
+        // Guarded by this: parts of delayed responses in the order they must be written, and when the last is due
+        private final ArrayDeque<byte[]> mmPending = new ArrayDeque<>();
+        private long mmLastSendNanos;
+
+        ConnectionThread(Socket socket, long number) throws IOException {
+            super("GateSimulator client " + number);
+            setDaemon(true);
+            mmSocket = socket;
+            mmInStream = socket.getInputStream();
+            mmOutStream = socket.getOutputStream();
+            mmGate = mSharedGate != null ? mSharedGate : new SimulatedGate(mConfig, mTimer, mRandom);
+            mmDirect = mConfig.getLatencyMillis() == 0 && mConfig.getJitterMillis() == 0
+                    && mConfig.getSplitProbability() == 0;
+        }
+
+        public void run() {
+            byte[] buffer = new byte[1024];
+            try {
+                int n;
+                while ((n = mmInStream.read(buffer)) >= 0) {
+                    for (String command : splitCommands(new String(buffer, 0, n, ASCII)))
+                        handle(command);
+                }
+            } catch (IOException e) {
+                // Client went away
+            } finally {
+                cancel();
+                mConnections.remove(this);
+            }
+        }
+
+        private void handle(String command) {
+            mCommandCount.incrementAndGet();
+            if (command.startsWith("login=")) {
+                login(command);
+            } else if (command.startsWith("ping=")) {
+                send("pong=" + command.substring(5));
+            } else if (command.equals("openGate") && (mmLoggedIn || !mConfig.isLoginRequired())) {
+                mmGate.open(this);
+            } else if (command.equals("closeGate") && (mmLoggedIn || !mConfig.isLoginRequired())) {
+                mmGate.close(this);
+            } else {
+                // Also sessions, which this gate does not offer
+                send("wrongUserData");
+            }
+        }
+
+        private void login(String command) {
+            int pass = command.indexOf("&pass=");
+            String username = pass < 0 ? "" : command.substring(6, pass);
+            String password = pass < 0 ? "" : command.substring(pass + 6);
+            if (pass < 0) {
+                mFailedLoginCount.incrementAndGet();
+                send("wrongUserData");
+            } else if (!mConfig.getUsername().equals(username)) {
+                mFailedLoginCount.incrementAndGet();
+                send("loginStatus=-2");
+            } else if (!mConfig.getPassword().equals(password)) {
+                mFailedLoginCount.incrementAndGet();
+                send("loginStatus=-1");
+            } else {
+                mLoginCount.incrementAndGet();
+                mmLoggedIn = true;
+                send(mmGate.isOpened() ? "loginStatus=1&gateIsOpened" : "loginStatus=1&gateIsClosed");
+            }
+        }
+
+        @Override
+        public void send(String message) {
+            if (mConfig.getDropProbability() > 0 && mRandom.nextDouble() < mConfig.getDropProbability()) {
+                mDroppedCount.incrementAndGet();
+                return;
+            }
+            mResponseCount.incrementAndGet();
+            byte[] bytes = (message + "\n").getBytes(ASCII);
+            if (mmDirect) {
+                write(bytes, 0, bytes.length);
+                return;
+            }
+            synchronized (this) {
+                long now = System.nanoTime();
+                long at = Math.max(now + TimeUnit.MILLISECONDS.toNanos(delayMillis()), mmLastSendNanos);
+                int parts = bytes.length > 1 && mRandom.nextDouble() < mConfig.getSplitProbability()
+                        ? 2 + mRandom.nextInt(Math.min(2, bytes.length - 1)) : 1;
+                int offset = 0;
+                for (int part = 0; part < parts; part++) {
+                    int end = part == parts - 1 ? bytes.length
+                            : offset + 1 + mRandom.nextInt(bytes.length - offset - (parts - part) + 1);
+                    mmPending.add(Arrays.copyOfRange(bytes, offset, end));
+                    schedule(at - now);
+                    offset = end;
+                    if (part < parts - 1)
+                        at += TimeUnit.MILLISECONDS.toNanos(mConfig.getSplitGapMillis());
+                }
+                mmLastSendNanos = at;
+            }
+        }
+
+        private long delayMillis() {
+            long jitter = mConfig.getJitterMillis();
+            long delay = mConfig.getLatencyMillis();
+            if (jitter > 0)
+                delay += (long) ((mRandom.nextDouble() * 2 - 1) * jitter);
+            return Math.max(0, delay);
+        }
+
+        // Every task writes the oldest pending part, so the parts go out in order even if the timer
+        // runs two tasks due at nearly the same time the other way round
+        private void schedule(long delayNanos) {
+            try {
+                mTimer.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (ConnectionThread.this) {
+                            byte[] part = mmPending.poll();
+                            if (part != null)
+                                write(part, 0, part.length);
+                        }
+                    }
+                }, delayNanos, TimeUnit.NANOSECONDS);
+            } catch (RejectedExecutionException e) {
+                // Simulator stopped
+            }
+        }
+
+        private synchronized void write(byte[] bytes, int offset, int length) {
+            try {
+                mmOutStream.write(bytes, offset, length);
+                mmOutStream.flush();
+            } catch (IOException e) {
+                cancel();
+            }
+        }
+
+        void cancel() {
+            closeQuietly(mmSocket);
+        }
+    }
+
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // Closing anyway
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SimulatorConfig config = new SimulatorConfig();
+        int port = 8023;
+        String host = null;
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("--help")) {
+                printUsage();
+                return;
+            }
+            if (i + 1 == args.length) {
+                System.err.println("Missing value of " + arg);
+                printUsage();
+                System.exit(2);
+            }
+            String value = args[++i];
+            switch (arg) {
+                case "--port":
+                    port = Integer.parseInt(value);
+                    break;
+                case "--host":
+                    host = value;
+                    break;
+                case "--user":
+                    config.setAccount(value, config.getPassword());
+                    break;
+                case "--pass":
+                    config.setAccount(config.getUsername(), value);
+                    break;
+                case "--latency":
+                    config.setLatency(Long.parseLong(value), config.getJitterMillis());
+                    break;
+                case "--jitter":
+                    config.setLatency(config.getLatencyMillis(), Long.parseLong(value));
+                    break;
+                case "--split":
+                    config.setSplitting(Double.parseDouble(value), config.getSplitGapMillis());
+                    break;
+                case "--drop":
+                    config.setDropProbability(Double.parseDouble(value));
+                    break;
+                case "--open-millis":
+                    config.setMotorMillis(Long.parseLong(value), config.getCloseMillis());
+                    break;
+                case "--close-millis":
+                    config.setMotorMillis(config.getOpenMillis(), Long.parseLong(value));
+                    break;
+                case "--obstacle":
+                    config.setObstacles(Double.parseDouble(value), config.getObstacleMillis());
+                    break;
+                case "--gate-per-client":
+                    config.setSharedGate(!Boolean.parseBoolean(value));
+                    break;
+                case "--strict-framing":
+                    config.setStrictFraming(Boolean.parseBoolean(value));
+                    break;
+                case "--seed":
+                    config.setSeed(Long.parseLong(value));
+                    break;
+                default:
+                    System.err.println("Unknown option " + arg);
+                    printUsage();
+                    System.exit(2);
+            }
+        }
+        final GateSimulator simulator = new GateSimulator(config);
+        int bound = host == null ? simulator.start(port) : simulator.start(new InetSocketAddress(host, port));
+        System.out.println("Gate simulator on port " + bound + ": " + config);
+        Runtime.getRuntime().addShutdownHook(new Thread() {
+            public void run() {
+                try {
+                    simulator.stop();
+                } catch (InterruptedException e) {
+                    // Exiting anyway
+                }
+                System.out.println("Served " + simulator.getConnectionCount() + " connections, "
+                        + simulator.getCommandCount() + " commands, " + simulator.getDroppedCount()
+                        + " responses dropped");
+            }
+        });
+        Thread.currentThread().join();
+    }
+
+    private static void printUsage() {
+        System.err.println("Options: --port n (0 for any) --host address (default loopback) --user name --pass password\n"
+                + "  --latency ms --jitter ms --split probability --drop probability\n"
+                + "  --open-millis ms --close-millis ms --obstacle probability --gate-per-client true|false\n"
+                + "  --strict-framing true|false --seed n");
+    }
+}
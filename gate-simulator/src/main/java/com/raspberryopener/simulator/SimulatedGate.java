@@ -0,0 +1,132 @@
+package com.raspberryopener.simulator;
+
+import java.util.Random;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Gate and its motor: opening and closing take time, an obstacle stops a closing gate and
+ * opens it again once it is removed. Messages about a movement go to the client which started it.
+ * <p>
+ * Every movement gets a new generation, so a completion scheduled for a movement which was
+ * reversed in the meantime is ignored.
+ */
+class SimulatedGate {
+    static final int CLOSED = 0;
+    static final int OPENING = 1;
+    static final int OPENED = 2;
+    static final int CLOSING = 3;
+    static final int OBSTACLE = 4;
+
+    /**
+     * Client which receives the messages of the gate.
+     */
+    interface Client {
+        void send(String message);
+    }
+
+    private final SimulatorConfig mConfig;
+    private final ScheduledExecutorService mTimer;
+    private final Random mRandom;
+    private int mState = CLOSED;
+    private long mGeneration;
+
+    SimulatedGate(SimulatorConfig config, ScheduledExecutorService timer, Random random) {
+        mConfig = config;
+        mTimer = timer;
+        mRandom = random;
+    }
+
+    synchronized int getState() {
+        return mState;
+    }
+
+    synchronized boolean isOpened() {
+        return mState == OPENED || mState == OPENING || mState == OBSTACLE;
+    }
+
+    synchronized void open(Client client) {
+        switch (mState) {
+            case OBSTACLE:
+                client.send("obstacle");
+                break;
+            case OPENED:
+                client.send("gateIsOpened");
+                break;
+            case OPENING:
+                client.send("openingGate");
+                break;
+            default:
+                move(client, OPENING, "openingGate", mConfig.getOpenMillis(), OPENED, "gateIsOpened");
+                break;
+        }
+    }
+
+    synchronized void close(Client client) {
+        switch (mState) {
+            case OBSTACLE:
+                client.send("obstacle");
+                break;
+            case CLOSED:
+                client.send("gateIsClosed");
+                break;
+            case CLOSING:
+                client.send("closingGate");
+                break;
+            default:
+                if (mRandom.nextDouble() < mConfig.getObstacleProbability())
+                    moveIntoObstacle(client);
+                else
+                    move(client, CLOSING, "closingGate", mConfig.getCloseMillis(), CLOSED, "gateIsClosed");
+                break;
+        }
+    }
+
+    private void move(Client client, int moving, String startMessage, long millis, int end, String endMessage) {
+        mState = moving;
+        long generation = ++mGeneration;
+        client.send(startMessage);
+        if (millis == 0)
+            finish(generation, end, client, endMessage);
+        else
+            schedule(generation, millis, end, client, endMessage);
+    }
+
+    // The obstacle appears half way, the gate stops and opens again when it is removed
+    private void moveIntoObstacle(final Client client) {
+        mState = CLOSING;
+        final long generation = ++mGeneration;
+        client.send("closingGate");
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGate.this) {
+                    if (generation != mGeneration)
+                        return;
+                    mState = OBSTACLE;
+                    client.send("obstacle");
+                    schedule(generation, mConfig.getObstacleMillis(), OPENED, client, "obstacleRemoved&gateIsOpened");
+                }
+            }
+        }, mConfig.getCloseMillis() / 2, TimeUnit.MILLISECONDS);
+    }
+
+    private void schedule(final long generation, long millis, final int end, final Client client,
+                          final String endMessage) {
+        mTimer.schedule(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (SimulatedGate.this) {
+                    finish(generation, end, client, endMessage);
+                }
+            }
+        }, millis, TimeUnit.MILLISECONDS);
+    }
+
+    private void finish(long generation, int end, Client client, String endMessage) {
+        if (generation != mGeneration)
+            return; // the gate was moved again meanwhile
+        mState = end;
+        client.send(endMessage);
+    }
+}
@@ -0,0 +1,193 @@
+package com.raspberryopener.simulator;
+
+/**
+ * Behaviour of a {@link GateSimulator}: the account, how the network delays, splits and loses
+ * responses, and how long the gate motor runs. The defaults are a gate with a realistic motor
+ * on a perfect network.
+ */
+public class SimulatorConfig {
+    private String mUsername = "user";
+    private String mPassword = "secret";
+    private long mLatencyMillis;
+    private long mJitterMillis;
+    private double mSplitProbability;
+    private long mSplitGapMillis = 2;
+    private double mDropProbability;
+    private long mOpenMillis = 3000;
+    private long mCloseMillis = 3000;
+    private double mObstacleProbability;
+    private long mObstacleMillis = 2000;
+    private boolean mSharedGate = true;
+    private boolean mLoginRequired = true;
+    private boolean mStrictFraming = true;
+    private long mSeed = System.nanoTime();
+
+    public String getUsername() {
+        return mUsername;
+    }
+
+    public String getPassword() {
+        return mPassword;
+    }
+
+    public SimulatorConfig setAccount(String username, String password) {
+        mUsername = username;
+        mPassword = password;
+        return this;
+    }
+
+    public long getLatencyMillis() {
+        return mLatencyMillis;
+    }
+
+    public long getJitterMillis() {
+        return mJitterMillis;
+    }
+
+    /**
+     * @param latencyMillis delay of every response
+     * @param jitterMillis the delay varies uniformly by up to this much in both directions
+     */
+    public SimulatorConfig setLatency(long latencyMillis, long jitterMillis) {
+        if (latencyMillis < 0 || jitterMillis < 0)
+            throw new IllegalArgumentException("Negative latency " + latencyMillis + "/" + jitterMillis);
+        mLatencyMillis = latencyMillis;
+        mJitterMillis = jitterMillis;
+        return this;
+    }
+
+    public double getSplitProbability() {
+        return mSplitProbability;
+    }
+
+    public long getSplitGapMillis() {
+        return mSplitGapMillis;
+    }
+
+    /**
+     * @param probability that a response is written in two or three parts, like a radio link delivers it
+     * @param gapMillis time between the parts
+     */
+    public SimulatorConfig setSplitting(double probability, long gapMillis) {
+        checkProbability(probability);
+        if (gapMillis < 0)
+            throw new IllegalArgumentException("Negative gap " + gapMillis);
+        mSplitProbability = probability;
+        mSplitGapMillis = gapMillis;
+        return this;
+    }
+
+    public double getDropProbability() {
+        return mDropProbability;
+    }
+
+    /**
+     * @param probability that a response is lost, the command was run nevertheless
+     */
+    public SimulatorConfig setDropProbability(double probability) {
+        checkProbability(probability);
+        mDropProbability = probability;
+        return this;
+    }
+
+    public long getOpenMillis() {
+        return mOpenMillis;
+    }
+
+    public long getCloseMillis() {
+        return mCloseMillis;
+    }
+
+    public SimulatorConfig setMotorMillis(long openMillis, long closeMillis) {
+        if (openMillis < 0 || closeMillis < 0)
+            throw new IllegalArgumentException("Negative motor time " + openMillis + "/" + closeMillis);
+        mOpenMillis = openMillis;
+        mCloseMillis = closeMillis;
+        return this;
+    }
+
+    public double getObstacleProbability() {
+        return mObstacleProbability;
+    }
+
+    public long getObstacleMillis() {
+        return mObstacleMillis;
+    }
+
+    /**
+     * @param probability that an obstacle stops the gate while it closes, the gate opens again then
+     * @param obstacleMillis time until the obstacle is removed
+     */
+    public SimulatorConfig setObstacles(double probability, long obstacleMillis) {
+        checkProbability(probability);
+        if (obstacleMillis < 0)
+            throw new IllegalArgumentException("Negative obstacle time " + obstacleMillis);
+        mObstacleProbability = probability;
+        mObstacleMillis = obstacleMillis;
+        return this;
+    }
+
+    public boolean isSharedGate() {
+        return mSharedGate;
+    }
+
+    /**
+     * @param shared true for one gate which all clients move, like the real one; false to give every
+     *               connection a gate of its own, so that load tests with many clients do not interfere
+     */
+    public SimulatorConfig setSharedGate(boolean shared) {
+        mSharedGate = shared;
+        return this;
+    }
+
+    public boolean isLoginRequired() {
+        return mLoginRequired;
+    }
+
+    /**
+     * @param required false to run gate commands also on connections which did not log in
+     */
+    public SimulatorConfig setLoginRequired(boolean required) {
+        mLoginRequired = required;
+        return this;
+    }
+
+    public boolean isStrictFraming() {
+        return mStrictFraming;
+    }
+
+    /**
+     * @param strict true, the default, to take every read as one command like the gate does, so that
+     *               commands which arrived together are answered with wrongUserData; false to split them
+     *               at the known command names
+     */
+    public SimulatorConfig setStrictFraming(boolean strict) {
+        mStrictFraming = strict;
+        return this;
+    }
+
+    public long getSeed() {
+        return mSeed;
+    }
+
+    /**
+     * @param seed of the random delays, splits, drops and obstacles, to repeat a run
+     */
+    public SimulatorConfig setSeed(long seed) {
+        mSeed = seed;
+        return this;
+    }
+
+    private static void checkProbability(double probability) {
+        if (!(probability >= 0 && probability <= 1))
+            throw new IllegalArgumentException("Probability must be within [0, 1]: " + probability);
+    }
+
+    @Override
+    public String toString() {
+        return "account " + mUsername + ", latency " + mLatencyMillis + " +- " + mJitterMillis + " ms, split "
+                + mSplitProbability + ", drop " + mDropProbability + ", motor " + mOpenMillis + "/" + mCloseMillis
+                + " ms, obstacles " + mObstacleProbability + (mSharedGate ? ", shared gate" : ", gate per client")
+                + (mLoginRequired ? "" : ", no login required") + (mStrictFraming ? "" : ", lenient framing");
+    }
+}
@@ -0,0 +1,279 @@
+package com.raspberryopener.simulator;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class GateSimulatorTest {
+    private GateSimulator mSimulator;
+    private final List<Client> mClients = new ArrayList<>();
+
+    @After
+    public void tearDown() throws Exception {
+        for (Client client : mClients)
+            client.close();
+        if (mSimulator != null)
+            mSimulator.stop();
+    }
+
+    private int start(SimulatorConfig config) throws IOException {
+        mSimulator = new GateSimulator(config.setSeed(1));
+        return mSimulator.start(0);
+    }
+
+    private Client connect(int port) throws IOException {
+        Client client = new Client(port);
+        mClients.add(client);
+        return client;
+    }
+
+    @Test
+    public void login_answersStatusOfAccount() throws Exception {
+        int port = start(new SimulatorConfig().setAccount("john", "secret"));
+        Client client = connect(port);
+        client.send("login=jane&pass=secret");
+        assertEquals("loginStatus=-2", client.readLine());
+        client.send("login=john&pass=wrong");
+        assertEquals("loginStatus=-1", client.readLine());
+        client.send("login=john&pass=secret");
+        assertEquals("loginStatus=1&gateIsClosed", client.readLine());
+        assertEquals(1, mSimulator.getLoginCount());
+        assertEquals(2, mSimulator.getFailedLoginCount());
+    }
+
+    @Test
+    public void commandsBeforeLogin_areWrongUserData() throws Exception {
+        Client client = connect(start(new SimulatorConfig()));
+        client.send("openGate");
+        assertEquals("wrongUserData", client.readLine());
+        client.send("hello");
+        assertEquals("wrongUserData", client.readLine());
+        assertEquals(SimulatedGate.CLOSED, mSimulator.getGateState());
+    }
+
+    @Test
+    public void openAndClose_takeMotorTime() throws Exception {
+        Client client = connect(start(new SimulatorConfig().setMotorMillis(150, 100)));
+        client.send("login=user&pass=secret");
+        assertEquals("loginStatus=1&gateIsClosed", client.readLine());
+
+        long start = System.nanoTime();
+        client.send("openGate");
+        assertEquals("openingGate", client.readLine());
+        assertEquals(SimulatedGate.OPENING, mSimulator.getGateState());
+        assertEquals("gateIsOpened", client.readLine());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 140);
+
+        client.send("openGate");
+        assertEquals("gateIsOpened", client.readLine());
+
+        client.send("closeGate");
+        assertEquals("closingGate", client.readLine());
+        assertEquals("gateIsClosed", client.readLine());
+        assertEquals(SimulatedGate.CLOSED, mSimulator.getGateState());
+    }
+
+    @Test
+    public void reversedMovement_endsInLastDirection() throws Exception {
+        Client client = connect(start(new SimulatorConfig().setMotorMillis(200, 50)));
+        client.send("login=user&pass=secret");
+        client.readLine();
+        client.send("openGate");
+        assertEquals("openingGate", client.readLine());
+        client.send("closeGate");
+        assertEquals("closingGate", client.readLine());
+        assertEquals("gateIsClosed", client.readLine());
+        // The completion of the opening must not follow
+        client.send("ping=7");
+        assertEquals("pong=7", client.readLine());
+        assertEquals(SimulatedGate.CLOSED, mSimulator.getGateState());
+    }
+
+    @Test
+    public void obstacle_stopsClosingAndReopens() throws Exception {
+        Client client = connect(start(new SimulatorConfig().setMotorMillis(0, 100).setObstacles(1, 100)));
+        client.send("login=user&pass=secret");
+        client.readLine();
+        client.send("openGate");
+        assertEquals("openingGate", client.readLine());
+        assertEquals("gateIsOpened", client.readLine());
+        client.send("closeGate");
+        assertEquals("closingGate", client.readLine());
+        assertEquals("obstacle", client.readLine());
+        client.send("closeGate");
+        assertEquals("obstacle", client.readLine());
+        assertEquals("obstacleRemoved&gateIsOpened", client.readLine());
+        assertEquals(SimulatedGate.OPENED, mSimulator.getGateState());
+    }
+
+    @Test
+    public void sharedGate_isSeenByOtherClients() throws Exception {
+        int port = start(new SimulatorConfig().setMotorMillis(0, 0));
+        Client first = connect(port);
+        first.send("login=user&pass=secret");
+        first.readLine();
+        first.send("openGate");
+        assertEquals("openingGate", first.readLine());
+        assertEquals("gateIsOpened", first.readLine());
+
+        Client second = connect(port);
+        second.send("login=user&pass=secret");
+        assertEquals("loginStatus=1&gateIsOpened", second.readLine());
+    }
+
+    @Test
+    public void gatePerClient_isSeparate() throws Exception {
+        int port = start(new SimulatorConfig().setMotorMillis(0, 0).setSharedGate(false));
+        Client first = connect(port);
+        first.send("login=user&pass=secret");
+        first.readLine();
+        first.send("openGate");
+        first.readLine();
+        assertEquals("gateIsOpened", first.readLine());
+
+        Client second = connect(port);
+        second.send("login=user&pass=secret");
+        assertEquals("loginStatus=1&gateIsClosed", second.readLine());
+    }
+
+    @Test
+    public void coalescedCommands_areSplit() throws Exception {
+        // Like the gate by default, only line breaks split a read
+        assertEquals(Arrays.asList("login=user&pass=secretopenGate", "ping=3closeGate"),
+                new GateSimulator(new SimulatorConfig())
+                        .splitCommands("login=user&pass=secretopenGate\nping=3closeGate\r\n"));
+        assertEquals(Arrays.asList("login=user&pass=secret", "openGate", "ping=3", "closeGate"),
+                new GateSimulator(new SimulatorConfig().setStrictFraming(false))
+                        .splitCommands("login=user&pass=secretopenGate\nping=3closeGate\r\n"));
+    }
+
+    @Test
+    public void delayedAndSplitResponses_keepOrder() throws Exception {
+        Client client = connect(start(new SimulatorConfig().setLatency(20, 15).setSplitting(1, 1)));
+        long start = System.nanoTime();
+        client.send("login=user&pass=secret");
+        assertEquals("loginStatus=1&gateIsClosed", client.readLine());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) >= 5);
+        for (int i = 0; i < 20; i++)
+            client.send("ping=" + i + "\n");
+        for (int i = 0; i < 20; i++)
+            assertEquals("pong=" + i, client.readLine());
+    }
+
+    @Test
+    public void droppedResponses_areCounted() throws Exception {
+        Client client = connect(start(new SimulatorConfig().setDropProbability(1)));
+        client.send("ping=1\n");
+        client.send("ping=2\n");
+        long deadline = System.currentTimeMillis() + 2000;
+        while (mSimulator.getDroppedCount() < 2 && System.currentTimeMillis() < deadline)
+            Thread.sleep(5);
+        assertEquals(2, mSimulator.getDroppedCount());
+        assertEquals(0, mSimulator.getResponseCount());
+    }
+
+    @Test
+    public void manyClients_areServedConcurrently() throws Exception {
+        final int port = start(new SimulatorConfig().setMotorMillis(20, 20).setSharedGate(false).setLatency(2, 1));
+        int clients = 50;
+        final CountDownLatch done = new CountDownLatch(clients);
+        final AtomicInteger failures = new AtomicInteger();
+        for (int i = 0; i < clients; i++) {
+            new Thread() {
+                public void run() {
+                    try {
+                        Client client = new Client(port);
+                        try {
+                            client.send("login=user&pass=secret");
+                            boolean ok = client.readLine().equals("loginStatus=1&gateIsClosed");
+                            for (int cycle = 0; cycle < 5; cycle++) {
+                                client.send("openGate");
+                                ok &= client.readLine().equals("openingGate") && client.readLine().equals("gateIsOpened");
+                                client.send("closeGate");
+                                ok &= client.readLine().equals("closingGate") && client.readLine().equals("gateIsClosed");
+                            }
+                            if (!ok)
+                                failures.incrementAndGet();
+                        } finally {
+                            client.close();
+                        }
+                    } catch (IOException e) {
+                        failures.incrementAndGet();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        assertEquals(0, failures.get());
+        assertEquals(clients, mSimulator.getConnectionCount());
+        assertEquals(clients * 11, mSimulator.getCommandCount());
+    }
+
+    @Test
+    public void dropConnections_closesClients() throws Exception {
+        int port = start(new SimulatorConfig());
+        Client client = connect(port);
+        client.send("ping=1");
+        assertEquals("pong=1", client.readLine());
+        mSimulator.dropConnections();
+        assertNull(client.readLine());
+        assertEquals(0, mSimulator.getActiveConnections());
+        // Still accepting
+        Client next = connect(port);
+        next.send("ping=2");
+        assertEquals("pong=2", next.readLine());
+    }
+
+    private static class Client {
+        private final Socket mSocket;
+        private final InputStream mIn;
+        private final OutputStream mOut;
+
+        Client(int port) throws IOException {
+            mSocket = new Socket(InetAddress.getLoopbackAddress(), port);
+            mSocket.setTcpNoDelay(true);
+            mSocket.setSoTimeout(5000);
+            mIn = mSocket.getInputStream();
+            mOut = mSocket.getOutputStream();
+        }
+
+        // Every command is written on its own and answered before the next in most tests, like the app does
+        void send(String command) throws IOException {
+            mOut.write(command.getBytes("US-ASCII"));
+            mOut.flush();
+        }
+
+        /**
+         * @return line without the line break, null when the simulator closed the connection
+         */
+        String readLine() throws IOException {
+            StringBuilder line = new StringBuilder();
+            while (true) {
+                int b = mIn.read();
+                if (b < 0)
+                    return null;
+                if (b == '\n')
+                    return line.toString();
+                line.append((char) b);
+            }
+        }
+
+        void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}